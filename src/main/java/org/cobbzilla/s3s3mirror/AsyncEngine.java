@@ -0,0 +1,534 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.model.SSECustomerKey;
+import com.amazonaws.util.Base64;
+import com.amazonaws.util.Md5Utils;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.core.async.AsyncResponseTransformer;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
+import software.amazon.awssdk.core.interceptor.ExecutionAttribute;
+import software.amazon.awssdk.core.retry.RetryPolicyContext;
+import software.amazon.awssdk.core.retry.backoff.FullJitterBackoffStrategy;
+import software.amazon.awssdk.core.retry.conditions.RetryCondition;
+import software.amazon.awssdk.http.SdkHttpConfigurationOption;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.ProxyConfiguration;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.S3AsyncClientBuilder;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.*;
+import software.amazon.awssdk.utils.AttributeMap;
+
+import java.io.FileNotFoundException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies and deletes keys with non-blocking requests (--engine ASYNC). Every key is a chain of CompletableFutures
+ * (HEAD, then COPY or GET and PUT, or DELETE) that runs on the event loop threads of the HTTP client, so thousands of
+ * keys can be in flight without a thread for each of them.
+ *
+ * Retries are left to the SDK, with the same number of tries and delays as the blocking path, and they draw on the
+ * same --retry-budget. There are no jobs to defer or to retry at the end, so --deferred-retry and --retry-pass can't be
+ * used with this engine. Keys that need a multipart upload and profiles with client-side encryption aren't handled
+ * here, they go to the MirrorLanes.
+ */
+@Slf4j
+public class AsyncEngine {
+
+    private final MirrorContext context;
+    private final RetryQueue retryQueue;
+
+    private final SdkEventLoopGroup eventLoopGroup;
+    private final List<SdkAsyncHttpClient> httpClients = new ArrayList<SdkAsyncHttpClient>();
+    private final S3AsyncClient sourceClient;
+    private final S3AsyncClient destinationClient;
+    private final boolean sameClient;
+
+    // Every key in flight holds a permit. A key sends one request at a time, so this bounds the requests in flight.
+    private final Semaphore inFlight;
+    private final AtomicInteger active = new AtomicInteger(0);
+
+    public AsyncEngine(MirrorContext context, RetryQueue retryQueue) {
+        this.context = context;
+        this.retryQueue = retryQueue;
+
+        final MirrorOptions options = context.getOptions();
+        this.inFlight = new Semaphore(options.getAsyncRequests());
+        this.eventLoopGroup = options.getEventLoopThreads() > 0
+                ? SdkEventLoopGroup.builder().numberOfThreads(options.getEventLoopThreads()).build()
+                : SdkEventLoopGroup.builder().build();
+
+        this.sourceClient = buildClient(options, options.getSourceProfile());
+        this.sameClient = context.getSourceClient() == context.getDestinationClient();
+        this.destinationClient = sameClient ? sourceClient : buildClient(options, options.getDestinationProfile());
+    }
+
+    public static boolean isSupported(MirrorOptions options) {
+        return !options.hasLocalBackend() && !options.hasExtraDestinations() && !options.isChecksum()
+                && !options.isDedup() && !options.hasDelta()
+                && !MirrorEncryption.isCSE(options.getSourceProfile().getEncryption())
+                && !MirrorEncryption.isCSE(options.getDestinationProfile().getEncryption());
+    }
+
+    private S3AsyncClient buildClient(MirrorOptions options, MirrorProfile profile) {
+        final NettyNioAsyncHttpClient.Builder http = NettyNioAsyncHttpClient.builder()
+                .eventLoopGroup(eventLoopGroup)
+                .maxConcurrency(options.getAsyncRequests())
+                .maxPendingConnectionAcquires(Math.max(10000, 2 * options.getAsyncRequests()));
+        if (profile.hasProxy()) {
+            http.proxyConfiguration(ProxyConfiguration.builder().host(profile.getProxyHost()).port(profile.getProxyPort()).build());
+        }
+
+        final AttributeMap.Builder httpDefaults = AttributeMap.builder();
+        if (options.isDisableCertCheck()) httpDefaults.put(SdkHttpConfigurationOption.TRUST_ALL_CERTIFICATES, Boolean.TRUE);
+        final SdkAsyncHttpClient httpClient = http.buildWithDefaults(httpDefaults.build());
+        httpClients.add(httpClient);
+
+        if (profile.getSignerType() != null) log.warn("The async engine ignores the signer type {} of profile {}.", profile.getSignerType(), profile.getName());
+
+        final long baseDelay = options.getRetryBaseDelay();
+        final long throttleDelay = baseDelay * RetryPolicy.THROTTLE_DELAY_FACTOR;
+        final software.amazon.awssdk.core.retry.RetryPolicy retryPolicy = software.amazon.awssdk.core.retry.RetryPolicy.builder()
+                .numRetries(Math.max(0, options.getMaxRetries() - 1))
+                .backoffStrategy(FullJitterBackoffStrategy.builder()
+                        .baseDelay(Duration.ofMillis(baseDelay))
+                        .maxBackoffTime(Duration.ofMillis(Math.max(baseDelay, options.getRetryMaxDelay())))
+                        .build())
+                .throttlingBackoffStrategy(FullJitterBackoffStrategy.builder()
+                        .baseDelay(Duration.ofMillis(throttleDelay))
+                        .maxBackoffTime(Duration.ofMillis(Math.max(throttleDelay, options.getRetryMaxDelay())))
+                        .build())
+                .retryCapacityCondition(new BudgetRetryCondition(context, profile))
+                .build();
+
+        final S3AsyncClientBuilder builder = S3AsyncClient.builder()
+                .httpClient(httpClient)
+                .region(Region.of(getRegionId(profile.getRegion())))
+                .credentialsProvider(StaticCredentialsProvider.create(
+                        AwsBasicCredentials.create(profile.getAWSAccessKeyId(), profile.getAWSSecretKey())))
+                .serviceConfiguration(S3Configuration.builder()
+                        .pathStyleAccessEnabled(profile.hasOption(MirrorProfileOptions.PATH_STYLE_ACCESS))
+                        .build())
+                .overrideConfiguration(ClientOverrideConfiguration.builder().retryPolicy(retryPolicy).build());
+
+        if (profile.getEndpoint() != null) {
+            final String endpoint = profile.getEndpoint();
+            builder.endpointOverride(URI.create(endpoint.contains("://") ? endpoint : "https://" + endpoint));
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Lets the SDK retry a request only while the --retry-budget of its endpoint has room, the RetryPolicy charges and
+     * refunds the budget the same way for the blocking path.
+     */
+    private static class BudgetRetryCondition implements RetryCondition {
+
+        private static final ExecutionAttribute<Integer> LAST_COST = new ExecutionAttribute<Integer>("s3s3mirror.retryCost");
+
+        private final MirrorContext context;
+        private final MirrorProfile profile;
+        private final RetryPolicy.Budget budget;
+
+        BudgetRetryCondition(MirrorContext context, MirrorProfile profile) {
+            this.context = context;
+            this.profile = profile;
+            this.budget = context.getRetryPolicy().getBudget(profile);
+        }
+
+        @Override
+        public boolean shouldRetry(RetryPolicyContext retryContext) {
+            final int cost = ErrorClass.of(retryContext.exception()) == ErrorClass.TIMEOUT
+                    ? RetryPolicy.TIMEOUT_RETRY_COST : RetryPolicy.RETRY_COST;
+            if (!budget.acquire(cost)) {
+                context.getStats().retryBudgetExhausted.incrementAndGet();
+                log.warn("Retry budget of profile {} is exhausted, not retrying async request.", profile.getName());
+                return false;
+            }
+            retryContext.executionAttributes().putAttribute(LAST_COST, cost);
+            return true;
+        }
+
+        @Override
+        public void requestSucceeded(RetryPolicyContext retryContext) {
+            final Integer cost = retryContext.executionAttributes().getAttribute(LAST_COST);
+            budget.release(cost != null ? cost : RetryPolicy.SUCCESS_REFILL);
+        }
+    }
+
+    /**
+     * Profiles name regions like the enum of SDK v1 (US_EAST_1) or by their id (us-east-1).
+     */
+    static String getRegionId(String region) {
+        try {
+            return Regions.valueOf(region).getName();
+        } catch (IllegalArgumentException e) {
+            return region;
+        }
+    }
+
+    public boolean isIdle() { return active.get() == 0; }
+
+    private void start() throws InterruptedException {
+        inFlight.acquire();
+        active.incrementAndGet();
+    }
+
+    private void finish() {
+        active.decrementAndGet();
+        inFlight.release();
+    }
+
+    /**
+     * Starts copying a key, waiting while too many keys are in flight.
+     *
+     * @param doneListener told when the key is done, or null
+     * @return false if the key has to be copied by a KeyCopyJob instead
+     */
+    public boolean copy(final KeyObjectSummary summary, final KeyDoneListener doneListener) throws InterruptedException {
+        final MirrorOptions options = context.getOptions();
+        final MirrorStats stats = context.getStats();
+
+        final long maxSingleRequestSize = options.getMaxSingleRequestUploadSize();
+        if (maxSingleRequestSize != 0 && summary.getSize() > maxSingleRequestSize) return false;
+
+        final String key = summary.getKey();
+        final String keydest = KeyCopyJob.getDestinationKey(options, key);
+
+        start();
+        shouldCopy(summary, keydest)
+                .thenCompose(copy -> copy ? transfer(key, keydest) : CompletableFuture.completedFuture(false))
+                .whenComplete((copied, e) -> {
+                    try {
+                        if (e != null) {
+                            final ErrorClass errorClass = stats.recordError(e);
+                            log.error("Error copying key {} ({}).", key, errorClass, unwrap(e));
+                            stats.copyErrors.incrementAndGet();
+                            retryQueue.recordFailure(summary);
+                            if (doneListener != null) doneListener.failed(summary);
+                        } else {
+                            if (copied) stats.objectsCopied.incrementAndGet();
+                            if (doneListener != null) doneListener.completed(summary);
+                        }
+                        if (options.isVerbose()) log.info("Done with {}.", key);
+                    } finally {
+                        finish();
+                    }
+                });
+        return true;
+    }
+
+    private CompletableFuture<Boolean> shouldCopy(KeyObjectSummary summary, String keydest) {
+        final MirrorOptions options = context.getOptions();
+        final boolean verbose = options.isVerbose();
+        final String key = summary.getKey();
+
+        if (options.hasCtime() && summary.getLastModified() != null && summary.getLastModified().getTime() < options.getMaxAge()) {
+            if (verbose) log.info("Key {} (last modified {}) is older than {} (cutoff {}), not copying.", key,
+                    summary.getLastModified(), options.getCtime(), options.getMaxAgeDate());
+            return CompletableFuture.completedFuture(false);
+        }
+
+        return head(destinationClient, options.getDestinationBucket(), keydest, context.getDestinationSSEKey())
+                .thenCompose(destination -> {
+                    if (destination == null) {
+                        if (verbose) log.info("Key {} not found in destination bucket (will copy).", keydest);
+                        return CompletableFuture.completedFuture(true);
+                    }
+                    if (summary.isChanged()) {
+                        return CompletableFuture.completedFuture(!KeyCopyJob.hasSameETag(summary, destination.eTag()));
+                    }
+                    if (!options.isCompareSize()) {
+                        if (verbose) log.info("Destination object {}/{} already exists, not copying.", options.getDestinationBucket(), keydest);
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    return head(sourceClient, options.getSourceBucket(), key, context.getSourceSSEKey()).thenApply(source -> {
+                        if (source == null) {
+                            if (verbose) log.info("Key {}/{} not found in source bucket anymore (not copying).", options.getSourceBucket(), key);
+                            return false;
+                        }
+                        final boolean sizeChanged = getRealObjectSize(source) != getRealObjectSize(destination);
+                        if (sizeChanged) log.info("Object size changed for {}/{} (copying).", options.getSourceBucket(), key);
+                        return sizeChanged;
+                    });
+                });
+    }
+
+    private CompletableFuture<Boolean> transfer(final String key, final String keydest) {
+        final MirrorOptions options = context.getOptions();
+        if (options.isDryRun()) {
+            log.info("Would have copied {} to destination {}.", key, keydest);
+            return CompletableFuture.completedFuture(false);
+        }
+
+        return head(sourceClient, options.getSourceBucket(), key, context.getSourceSSEKey())
+                .thenCompose(source -> {
+                    if (source == null) {
+                        throw new CompletionException(new FileNotFoundException("Key " + key + " not found anymore."));
+                    }
+                    return sameClient ? serverSideCopy(key, keydest, source) : stream(key, keydest, source);
+                })
+                .thenApply(bytes -> {
+                    context.getStats().bytesCopied.addAndGet(bytes);
+                    if (options.isVerbose()) log.info("Completed copying to {}.", keydest);
+                    return true;
+                });
+    }
+
+    private CompletableFuture<Long> serverSideCopy(final String key, final String keydest, final HeadObjectResponse source) {
+        final MirrorOptions options = context.getOptions();
+        final CompletableFuture<List<Grant>> acl = options.isCrossAccountCopy()
+                ? CompletableFuture.completedFuture(Collections.<Grant>emptyList())
+                : getSourceAcl(key);
+
+        return acl.thenCompose(grants -> {
+            final CopyObjectRequest.Builder request = CopyObjectRequest.builder()
+                    .sourceBucket(options.getSourceBucket())
+                    .sourceKey(key)
+                    .destinationBucket(options.getDestinationBucket())
+                    .destinationKey(keydest)
+                    .storageClass(getStorageClass(options))
+                    .metadataDirective(MetadataDirective.REPLACE)
+                    .metadata(getUserMetadata(source.metadata()))
+                    .contentType(source.contentType())
+                    .cacheControl(source.cacheControl())
+                    .contentEncoding(source.contentEncoding())
+                    .contentLanguage(source.contentLanguage())
+                    .contentDisposition(source.contentDisposition())
+                    .expires(source.expires());
+
+            if (options.isCrossAccountCopy()) {
+                request.acl(ObjectCannedACL.BUCKET_OWNER_FULL_CONTROL);
+            } else {
+                final Map<Permission, String> headers = getGrantHeaders(grants);
+                request.grantFullControl(headers.get(Permission.FULL_CONTROL))
+                        .grantRead(headers.get(Permission.READ))
+                        .grantReadACP(headers.get(Permission.READ_ACP))
+                        .grantWriteACP(headers.get(Permission.WRITE_ACP));
+            }
+
+            final SSECustomerKey sourceKey = context.getSourceSSEKey();
+            if (sourceKey != null) {
+                request.copySourceSSECustomerAlgorithm(sourceKey.getAlgorithm())
+                        .copySourceSSECustomerKey(sourceKey.getKey())
+                        .copySourceSSECustomerKeyMD5(getKeyMD5(sourceKey));
+            }
+            final SSECustomerKey destinationKey = context.getDestinationSSEKey();
+            if (destinationKey != null) {
+                request.sseCustomerAlgorithm(destinationKey.getAlgorithm())
+                        .sseCustomerKey(destinationKey.getKey())
+                        .sseCustomerKeyMD5(getKeyMD5(destinationKey));
+            }
+
+            context.getStats().s3copyCount.incrementAndGet();
+            return sourceClient.copyObject(request.build()).thenApply(response -> getRealObjectSize(source));
+        });
+    }
+
+    private CompletableFuture<Long> stream(final String key, final String keydest, final HeadObjectResponse source) {
+        final MirrorOptions options = context.getOptions();
+        final MirrorStats stats = context.getStats();
+        final long size = getRealObjectSize(source);
+
+        final GetObjectRequest.Builder getRequest = GetObjectRequest.builder().bucket(options.getSourceBucket()).key(key);
+        final SSECustomerKey sourceKey = context.getSourceSSEKey();
+        if (sourceKey != null) {
+            getRequest.sseCustomerAlgorithm(sourceKey.getAlgorithm())
+                    .sseCustomerKey(sourceKey.getKey())
+                    .sseCustomerKeyMD5(getKeyMD5(sourceKey));
+        }
+
+        final PutObjectRequest.Builder putRequest = PutObjectRequest.builder()
+                .bucket(options.getDestinationBucket())
+                .key(keydest)
+                .contentLength(size)
+                .acl(ObjectCannedACL.BUCKET_OWNER_FULL_CONTROL)
+                .storageClass(getStorageClass(options))
+                .metadata(getUserMetadata(source.metadata()))
+                .contentType(source.contentType())
+                .cacheControl(source.cacheControl())
+                .contentEncoding(source.contentEncoding())
+                .contentLanguage(source.contentLanguage())
+                .contentDisposition(source.contentDisposition())
+                .expires(source.expires());
+        final SSECustomerKey destinationKey = context.getDestinationSSEKey();
+        if (destinationKey != null) {
+            putRequest.sseCustomerAlgorithm(destinationKey.getAlgorithm())
+                    .sseCustomerKey(destinationKey.getKey())
+                    .sseCustomerKeyMD5(getKeyMD5(destinationKey));
+        }
+
+        stats.s3getCount.incrementAndGet();
+        final CompletableFuture<PutObjectResponse> put;
+        if (size <= options.getSmallObjectSize()) {
+            // Small objects are buffered, so that the SDK can retry the PUT.
+            put = sourceClient.getObject(getRequest.build(), AsyncResponseTransformer.toBytes()).thenCompose(object -> {
+                stats.s3putCount.incrementAndGet();
+                return destinationClient.putObject(putRequest.build(), AsyncRequestBody.fromBytes(object.asByteArrayUnsafe()));
+            });
+        } else {
+            // Larger objects are streamed from the GET into the PUT. A failed PUT can't be retried by the SDK then,
+            // the key fails and is reported like any other failed key.
+            put = sourceClient.getObject(getRequest.build(), AsyncResponseTransformer.toPublisher()).thenCompose(publisher -> {
+                stats.s3putCount.incrementAndGet();
+                return destinationClient.putObject(putRequest.build(), AsyncRequestBody.fromPublisher(publisher));
+            });
+        }
+        return put.thenApply(response -> size);
+    }
+
+    /**
+     * Starts deleting a key from the destination if it doesn't exist in the source anymore.
+     *
+     * @param doneListener told when the key is done, or null
+     * @return false if the key has to be deleted by a KeyDeleteJob instead
+     */
+    public boolean delete(final KeyObjectSummary summary, final KeyDoneListener doneListener) throws InterruptedException {
+        final MirrorOptions options = context.getOptions();
+        final MirrorStats stats = context.getStats();
+        final String key = summary.getKey();
+        final String keysrc = KeyDeleteJob.getSourceKey(options, key);
+
+        start();
+        head(sourceClient, options.getSourceBucket(), keysrc, context.getSourceSSEKey())
+                .thenCompose(source -> {
+                    // the object exists in the source bucket, don't delete it from the destination bucket
+                    if (source != null) return CompletableFuture.completedFuture(false);
+
+                    if (options.isVerbose()) log.info("Key {} not found in source bucket (will delete from destination).", keysrc);
+                    if (options.isDryRun()) {
+                        log.info("Would have deleted {} from destination because {} does not exist in source bucket.", key, keysrc);
+                        return CompletableFuture.completedFuture(false);
+                    }
+
+                    stats.s3deleteCount.incrementAndGet();
+                    return destinationClient.deleteObject(DeleteObjectRequest.builder()
+                            .bucket(options.getDestinationBucket()).key(key).build()).thenApply(response -> true);
+                })
+                .whenComplete((deleted, e) -> {
+                    try {
+                        if (e != null) {
+                            final ErrorClass errorClass = stats.recordError(e);
+                            log.error("Error deleting key {} ({}).", key, errorClass, unwrap(e));
+                            stats.deleteErrors.incrementAndGet();
+                            if (doneListener != null) doneListener.failed(summary);
+                        } else {
+                            if (deleted) stats.objectsDeleted.incrementAndGet();
+                            if (doneListener != null) doneListener.completed(summary);
+                        }
+                        if (options.isVerbose()) log.info("Done with {}.", key);
+                    } finally {
+                        finish();
+                    }
+                });
+        return true;
+    }
+
+    /**
+     * @return the metadata of the object, or null if it doesn't exist
+     */
+    private CompletableFuture<HeadObjectResponse> head(S3AsyncClient client, String bucket, String key, SSECustomerKey sseKey) {
+        final HeadObjectRequest.Builder request = HeadObjectRequest.builder().bucket(bucket).key(key);
+        if (sseKey != null) {
+            request.sseCustomerAlgorithm(sseKey.getAlgorithm())
+                    .sseCustomerKey(sseKey.getKey())
+                    .sseCustomerKeyMD5(getKeyMD5(sseKey));
+        }
+
+        final MirrorStats stats = context.getStats();
+        stats.s3getCount.incrementAndGet();
+        final long start = System.currentTimeMillis();
+        return client.headObject(request.build()).handle((response, e) -> {
+            if (e == null) {
+                stats.recordHeadLatency(System.currentTimeMillis() - start);
+                return response;
+            }
+            final Throwable cause = unwrap(e);
+            if (cause instanceof NoSuchKeyException || (cause instanceof S3Exception && ((S3Exception) cause).statusCode() == 404)) {
+                return null;
+            }
+            throw new CompletionException(cause);
+        });
+    }
+
+    private CompletableFuture<List<Grant>> getSourceAcl(final String key) {
+        context.getStats().s3getCount.incrementAndGet();
+        final GetObjectAclRequest request = GetObjectAclRequest.builder().bucket(context.getOptions().getSourceBucket()).key(key).build();
+        return sourceClient.getObjectAcl(request).handle((response, e) -> {
+            if (e == null) return response.grants();
+            // see KeyJob.getAccessControlList
+            log.warn("Unable to obtain object ACL for {}, copying object without ACL data.", key);
+            return Collections.<Grant>emptyList();
+        });
+    }
+
+    /**
+     * @return the values of the x-amz-grant-* headers that recreate the grants
+     */
+    static Map<Permission, String> getGrantHeaders(List<Grant> grants) {
+        final Map<Permission, String> headers = new EnumMap<Permission, String>(Permission.class);
+        for (Grant grant : grants) {
+            final Grantee grantee = grant.grantee();
+            if (grantee == null || grantee.type() == null || grant.permission() == null) continue;
+
+            final String value;
+            switch (grantee.type()) {
+                case CANONICAL_USER: value = "id=\"" + grantee.id() + "\""; break;
+                case GROUP: value = "uri=\"" + grantee.uri() + "\""; break;
+                case AMAZON_CUSTOMER_BY_EMAIL: value = "emailAddress=\"" + grantee.emailAddress() + "\""; break;
+                default: continue;
+            }
+
+            final String previous = headers.get(grant.permission());
+            headers.put(grant.permission(), previous == null ? value : previous + ", " + value);
+        }
+        return headers;
+    }
+
+    static Map<String, String> getUserMetadata(Map<String, String> sourceMetadata) {
+        final Map<String, String> metadata = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : sourceMetadata.entrySet()) {
+            if (!entry.getKey().matches(KeyJob.USER_METADATA_CLEANUP_REGEXP)) metadata.put(entry.getKey(), entry.getValue());
+        }
+        return metadata;
+    }
+
+    private static long getRealObjectSize(HeadObjectResponse response) {
+        final String length = response.metadata().get("x-amz-unencrypted-content-length");
+        return length != null ? Long.parseLong(length) : response.contentLength();
+    }
+
+    private static StorageClass getStorageClass(MirrorOptions options) {
+        return StorageClass.fromValue(com.amazonaws.services.s3.model.StorageClass.valueOf(options.getStorageClass()).toString());
+    }
+
+    private static String getKeyMD5(SSECustomerKey key) {
+        return key.getMd5() != null ? key.getMd5() : Md5Utils.md5AsBase64(Base64.decode(key.getKey()));
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+        return e;
+    }
+
+    public void shutdown() {
+        if (destinationClient != sourceClient) destinationClient.close();
+        sourceClient.close();
+        for (SdkAsyncHttpClient httpClient : httpClients) httpClient.close();
+        eventLoopGroup.eventLoopGroup().shutdownGracefully();
+    }
+}
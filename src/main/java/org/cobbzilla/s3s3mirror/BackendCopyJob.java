@@ -0,0 +1,158 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Copies a key through the StorageBackends of the context, used when the source or the destination is a local
+ * directory. Checks the same conditions as KeyCopyJob before it copies.
+ */
+@Slf4j
+public class BackendCopyJob extends KeyJob {
+
+    private final String keydest;
+
+    public BackendCopyJob(MirrorContext context, KeyObjectSummary summary, JobSignal notifyLock) {
+        super(context, summary, notifyLock);
+        keydest = KeyCopyJob.getDestinationKey(context.getOptions(), summary.getKey());
+    }
+
+    @Override public Logger getLog() { return log; }
+
+    @Override public int getConnectionsNeeded() {
+        // large objects from S3 are downloaded in ranges of a part at the same time, see LocalBackend.download
+        final MirrorOptions options = context.getOptions();
+        if (options.isDestinationLocal() && !options.isSourceLocal()
+                && !MirrorEncryption.isCSE(options.getSourceProfile().getEncryption())) {
+            final long size = summary.getSize();
+            final long partSize = new PartSizer(options, context.getStats()).peekPartSize(size, false);
+            if (size > partSize) return (int) Math.min(LocalBackend.DOWNLOAD_RANGES, PartSizer.ceilDiv(size, partSize));
+        }
+        return 1;
+    }
+
+    @Override protected void countFailure() { context.getStats().copyErrors.incrementAndGet(); }
+
+    @Override
+    public void run() {
+        final MirrorOptions options = context.getOptions();
+        final String key = summary.getKey();
+        try {
+            if (!shouldTransfer()) return;
+
+            if (options.isDryRun()) {
+                log.info("Would have copied {} to destination {}.", key, keydest);
+            } else if (copyKey()) {
+                context.getStats().objectsCopied.incrementAndGet();
+            } else {
+                fail();
+            }
+        } catch (Exception e) {
+            log.error("Error copying key {}.", key, e);
+            fail();
+        } finally {
+            notifyLock.signalAll();
+            if (options.isVerbose()) log.info("Done with {}.", key);
+        }
+    }
+
+    private boolean copyKey() throws IOException {
+        final MirrorOptions options = context.getOptions();
+        final StorageBackend source = context.getSourceBackend();
+        final StorageBackend destination = context.getDestinationBackend();
+        final String key = summary.getKey();
+
+        final ObjectMetadata sourceMetadata;
+        try {
+            sourceMetadata = head(source, key);
+        } catch (FileNotFoundException e) {
+            log.error("Key {} not found anymore.", key, e);
+            return false;
+        }
+        if (options.isVerbose()) logMetadata("source", sourceMetadata);
+
+        final ObjectMetadata destinationMetadata = buildDestinationMetadata(sourceMetadata);
+        // files keep the modification time of the object, S3 sets its own
+        if (options.isDestinationLocal()) destinationMetadata.setLastModified(sourceMetadata.getLastModified());
+
+        try {
+            withRetry(RetryPolicy.Operation.PUT, destination, keydest, new BackendRequest<Void>() {
+                @Override public Void send() throws IOException {
+                    if (options.isVerbose()) log.info("Copying {} from {} to {}.", key, source, destination);
+                    destination.put(keydest, source, key, destinationMetadata);
+                    return null;
+                }
+            });
+        } catch (IOException | SdkClientException e) {
+            log.error("Giving up on copying {} to {}.", key, keydest, e);
+            return false;
+        }
+
+        addBytesCopied(destinationMetadata.getContentLength());
+        if (options.isVerbose()) log.info("Completed copying to {}.", keydest);
+        return true;
+    }
+
+    private ObjectMetadata head(final StorageBackend backend, final String key) throws IOException {
+        return withRetry(RetryPolicy.Operation.HEAD, backend, key, new BackendRequest<ObjectMetadata>() {
+            @Override public ObjectMetadata send() throws IOException { return backend.head(key); }
+        });
+    }
+
+    private boolean shouldTransfer() {
+        final MirrorOptions options = context.getOptions();
+        final String key = summary.getKey();
+        final boolean verbose = options.isVerbose();
+
+        if (options.hasCtime()) {
+            final Date lastModified = summary.getLastModified();
+            if (lastModified == null) {
+                if (verbose) log.info("No Last-Modified time for key {}/{}.", options.getSourceBucket(), key);
+
+            } else if (lastModified.getTime() < options.getMaxAge()) {
+                if (verbose) log.info("Key {} (last modified {}) is older than {} (cutoff {}), not copying.", key,
+                        lastModified, options.getCtime(), options.getMaxAgeDate());
+                return false;
+            }
+        }
+
+        final ObjectMetadata destinationMetadata;
+        try {
+            destinationMetadata = head(context.getDestinationBackend(), keydest);
+        } catch (FileNotFoundException e) {
+            if (verbose) log.info("Key {} not found in destination (will copy).", keydest);
+            return true;
+        } catch (IOException | SdkClientException e) {
+            log.warn("Error getting metadata for {} in {} (not copying).", keydest, context.getDestinationBackend(), e);
+            fail();
+            return false;
+        }
+
+        if (!options.isCompareSize()) {
+            if (verbose) log.info("Destination object {} already exists, not copying.", keydest);
+            return false;
+        }
+
+        final ObjectMetadata sourceMetadata;
+        try {
+            sourceMetadata = head(context.getSourceBackend(), key);
+        } catch (FileNotFoundException e) {
+            if (verbose) log.info("Key {} not found in source anymore (not copying).", key);
+            return false;
+        } catch (IOException | SdkClientException e) {
+            log.warn("Error getting metadata for {} in {} (not copying).", key, context.getSourceBackend(), e);
+            fail();
+            return false;
+        }
+
+        final boolean sizeChanged = getRealObjectSize(sourceMetadata) != getRealObjectSize(destinationMetadata);
+        if (sizeChanged) log.info("Object size changed for {} (copying).", key);
+        return sizeChanged;
+    }
+}
@@ -0,0 +1,85 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.SdkClientException;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Deletes a key from the destination backend if it doesn't exist in the source backend, used when the source or the
+ * destination is a local directory.
+ */
+@Slf4j
+public class BackendDeleteJob extends KeyJob {
+
+    private final String keysrc;
+
+    public BackendDeleteJob(MirrorContext context, KeyObjectSummary summary, JobSignal notifyLock) {
+        super(context, summary, notifyLock);
+        keysrc = KeyDeleteJob.getSourceKey(context.getOptions(), summary.getKey()); // summary.getKey is the key in the destination
+    }
+
+    @Override public Logger getLog() { return log; }
+
+    @Override protected void countFailure() { context.getStats().deleteErrors.incrementAndGet(); }
+
+    @Override
+    public void run() {
+        final MirrorOptions options = context.getOptions();
+        final String key = summary.getKey();
+        final StorageBackend destination = context.getDestinationBackend();
+        try {
+            if (!shouldDelete()) return;
+
+            if (options.isDryRun()) {
+                log.info("Would have deleted {} from destination because {} does not exist in source.", key, keysrc);
+                return;
+            }
+
+            try {
+                withRetry(RetryPolicy.Operation.DELETE, destination, key, new BackendRequest<Void>() {
+                    @Override public Void send() throws IOException {
+                        if (options.isVerbose()) log.info("Deleting {} from {}.", key, destination);
+                        destination.delete(key);
+                        return null;
+                    }
+                });
+                context.getStats().objectsDeleted.incrementAndGet();
+            } catch (IOException | SdkClientException e) {
+                log.error("Giving up on deleting {} from {}.", key, destination, e);
+                fail();
+            }
+
+        } catch (Exception e) {
+            log.error("Error deleting key {}.", key, e);
+            fail();
+
+        } finally {
+            notifyLock.signalAll();
+            if (options.isVerbose()) log.info("Done with {}.", key);
+        }
+    }
+
+    private boolean shouldDelete() {
+        final StorageBackend source = context.getSourceBackend();
+        try {
+            withRetry(RetryPolicy.Operation.HEAD, source, keysrc, new BackendRequest<Void>() {
+                @Override public Void send() throws IOException {
+                    source.head(keysrc);
+                    return null;
+                }
+            });
+            return false; // the key exists in the source, don't delete it from the destination
+
+        } catch (FileNotFoundException e) {
+            if (context.getOptions().isVerbose()) log.info("Key {} not found in source (will delete from destination).", keysrc);
+            return true;
+        } catch (IOException | SdkClientException e) {
+            log.warn("Error getting metadata for {} in {} (not deleting).", keysrc, source, e);
+            fail();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Adjusts the number of threads of the lanes while the mirror is running (AIMD): the limit is increased by one
+ * thread per interval while the pool is saturated and throughput keeps up, and multiplied by DECREASE_FACTOR when the
+ * endpoint throttles us, requests time out or the latency of metadata requests spikes.
+ */
+@Slf4j
+public class ConcurrencyController implements Runnable {
+
+    public static final double DECREASE_FACTOR = 0.7d;
+
+    // latency is considered a spike when the average of an interval is this much higher than the baseline
+    public static final double LATENCY_SPIKE_FACTOR = 2.0d;
+
+    // throughput is considered to keep up if it didn't drop below this fraction of the previous interval
+    public static final double THROUGHPUT_TOLERANCE = 0.95d;
+
+    private final MirrorContext context;
+    private final MirrorLanes lanes;
+    private final int floor;
+    private final int ceiling;
+
+    private volatile boolean running = true;
+    private int limit;
+    private double baselineLatency = -1;
+    private double lastThroughput = 0;
+
+    private long lastThrottleErrors;
+    private long lastTimeoutErrors;
+    private long lastHeadCount;
+    private long lastHeadLatencyMillis;
+    private long lastWork;
+    private long lastTime;
+
+    public ConcurrencyController(MirrorContext context, MirrorLanes lanes) {
+        this.context = context;
+        this.lanes = lanes;
+
+        final MirrorOptions options = context.getOptions();
+        this.ceiling = lanes.getConcurrencyCeiling();
+        this.floor = Math.max(1, Math.min(options.getMinThreads(), ceiling));
+        this.limit = Math.max(floor, ceiling / 2);
+    }
+
+    @Override
+    public void run() {
+        final MirrorOptions options = context.getOptions();
+        final MirrorStats stats = context.getStats();
+
+        log.info("Starting with a concurrency limit of {} (floor {}, ceiling {}).", limit, floor, ceiling);
+        apply();
+
+        lastThrottleErrors = stats.throttleErrors.get();
+        lastTimeoutErrors = stats.timeoutErrors.get();
+        lastHeadCount = stats.headCount.get();
+        lastHeadLatencyMillis = stats.headLatencyMillis.get();
+        lastWork = getWork();
+        lastTime = System.currentTimeMillis();
+
+        while (running) {
+            if (Sleep.sleep(options.getConcurrencyInterval() * 1000)) break;
+            if (running) adjust();
+        }
+    }
+
+    public void stop() { running = false; }
+
+    /**
+     * Work done so far, expressed in bytes like the expected cost of LARGEST_FIRST scheduling.
+     */
+    private long getWork() {
+        final MirrorStats stats = context.getStats();
+        final long requests = stats.s3getCount.get() + stats.s3putCount.get() + stats.s3copyCount.get() + stats.s3deleteCount.get();
+        return stats.bytesCopied.get() + requests * context.getOptions().getRequestOverheadBytes();
+    }
+
+    void adjust() {
+        final MirrorStats stats = context.getStats();
+        final boolean verbose = context.getOptions().isVerbose();
+
+        final long now = System.currentTimeMillis();
+        final long throttleErrors = stats.throttleErrors.get();
+        final long timeoutErrors = stats.timeoutErrors.get();
+        final long headCount = stats.headCount.get();
+        final long headLatencyMillis = stats.headLatencyMillis.get();
+        final long work = getWork();
+
+        final long throttled = throttleErrors - lastThrottleErrors;
+        final long timedOut = timeoutErrors - lastTimeoutErrors;
+        final long heads = headCount - lastHeadCount;
+        final double latency = heads > 0 ? (double) (headLatencyMillis - lastHeadLatencyMillis) / heads : -1;
+        final double throughput = (double) (work - lastWork) / Math.max(1, now - lastTime);
+
+        lastThrottleErrors = throttleErrors;
+        lastTimeoutErrors = timeoutErrors;
+        lastHeadCount = headCount;
+        lastHeadLatencyMillis = headLatencyMillis;
+        lastWork = work;
+        lastTime = now;
+
+        final boolean latencySpike = latency >= 0 && baselineLatency > 0 && latency > LATENCY_SPIKE_FACTOR * baselineLatency;
+        if (latency >= 0 && !latencySpike) {
+            // the baseline follows the latency slowly, but drops immediately when it gets better
+            baselineLatency = baselineLatency < 0 || latency < baselineLatency ? latency : 0.9d * baselineLatency + 0.1d * latency;
+        }
+
+        final int oldLimit = limit;
+        if (throttled > 0 || timedOut > 0 || latencySpike) {
+            limit = Math.max(floor, (int) (limit * DECREASE_FACTOR));
+            if (limit != oldLimit) {
+                log.info("Decreasing concurrency limit from {} to {} ({} throttled, {} timed out, latency {} ms, baseline {} ms).",
+                        oldLimit, limit, throttled, timedOut, Math.round(latency), Math.round(baselineLatency));
+            }
+        } else if (limit < ceiling && lanes.getActiveCount() >= lanes.getPoolSize() && throughput >= THROUGHPUT_TOLERANCE * lastThroughput) {
+            limit++;
+            if (verbose) log.info("Increasing concurrency limit from {} to {} (latency {} ms).", oldLimit, limit, Math.round(latency));
+        }
+        lastThroughput = throughput;
+
+        if (limit != oldLimit) apply();
+    }
+
+    private void apply() {
+        lanes.setConcurrencyLimit(limit);
+        context.getStats().concurrencyLimit.set(limit);
+    }
+}
@@ -0,0 +1,53 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.SSEAlgorithm;
+import com.amazonaws.util.Base64;
+import com.amazonaws.util.BinaryUtils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.regex.Pattern;
+
+/**
+ * The MD5 of the content of an object, see --checksum. It's known before the object is read if the object was uploaded
+ * in a single request without SSE-KMS or SSE-C, then its ETag is the MD5, or if an earlier mirror stored it in the
+ * user metadata. Streamed copies send it as Content-MD5, so S3 refuses a body that differs from the source, and store
+ * it at the destination, so later runs and --verify can compare content by HEAD.
+ */
+public class ContentDigest {
+
+    public static final String USER_METADATA_KEY = "s3s3mirror-md5";
+
+    private static final Pattern MD5_HEX = Pattern.compile("[0-9a-f]{32}");
+
+    /**
+     * @param clientSideEncrypted true if the object is client-side encrypted, its ETag is the MD5 of the ciphertext
+     * @return the MD5 of the content in hex, null if it isn't known
+     */
+    public static String of(ObjectMetadata metadata, boolean clientSideEncrypted) {
+        if (!clientSideEncrypted && metadata.getETag() != null
+                && !SSEAlgorithm.KMS.getAlgorithm().equals(metadata.getSSEAlgorithm())
+                && metadata.getSSECustomerAlgorithm() == null) {
+            final String etag = metadata.getETag().replace("\"", "").toLowerCase();
+            if (MD5_HEX.matcher(etag).matches()) return etag;
+        }
+        final String stored = metadata.getUserMetaDataOf(USER_METADATA_KEY);
+        return stored != null && MD5_HEX.matcher(stored).matches() ? stored : null;
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(MessageDigest digest) { return BinaryUtils.toHex(digest.digest()); }
+
+    /**
+     * @return the value of a Content-MD5 header
+     */
+    public static String toContentMD5(String hex) { return Base64.encodeAsString(BinaryUtils.fromHex(hex)); }
+}
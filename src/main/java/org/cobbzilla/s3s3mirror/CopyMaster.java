@@ -2,23 +2,42 @@ package org.cobbzilla.s3s3mirror;
 
 import com.amazonaws.services.s3.AmazonS3;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.io.File;
 
 public class CopyMaster extends KeyMaster {
 
-    public CopyMaster(MirrorContext context, BlockingQueue<Runnable> workQueue, ThreadPoolExecutor executorService) {
-        super(context, workQueue, executorService);
+    public CopyMaster(MirrorContext context, MirrorLanes lanes) {
+        super(context, lanes);
     }
 
     protected AmazonS3 getClient() { return context.getSourceClient(); }
     protected MirrorProfile getProfile(MirrorOptions options) { return context.getOptions().getSourceProfile(); }
     protected String getPrefix(MirrorOptions options) { return options.getSourcePrefix(); }
     protected String getBucket(MirrorOptions options) { return options.getSourceBucket(); }
+    protected StorageBackend getBackend() { return context.getSourceBackend(); }
 
-    protected KeyCopyJob getTask(KeyObjectSummary summary) {
+    @Override
+    protected boolean submitAsync(KeyObjectSummary summary) throws InterruptedException {
+        return asyncEngine.copy(summary, doneListener);
+    }
+
+    @Override
+    protected KeyLister getLister(MirrorOptions options, int maxQueueCapacity) throws Exception {
+        if (options.hasFailedKeys()) {
+            return new FixedKeyLister(context, FailureList.read(new File(options.getFailedKeys()), options.getSourceBucket()));
+        }
+        if (options.hasExecutePlan()) return new PlanLister(context, maxQueueCapacity, options.getExecutePlan(), MirrorPlan.COPY);
+        if (options.hasKeyList()) return new KeyListLister(context, lanes.getRetryQueue(), maxQueueCapacity, options.getKeyList());
+        return super.getLister(options, maxQueueCapacity);
+    }
+
+    protected KeyJob getTask(KeyObjectSummary summary) {
+        if (context.getOptions().hasLocalBackend()) return new BackendCopyJob(context, summary, notifyLock);
+        if (!context.getExtraDestinations().isEmpty()) return new FanOutCopyJob(context, summary, notifyLock);
+        if (context.getCsePassthrough().isEnabled(summary)) return new PassthroughCopyJob(context, summary, notifyLock);
         long maxSingleRequestSize = context.getOptions().getMaxSingleRequestUploadSize();
         if (maxSingleRequestSize != 0 && summary.getSize() > maxSingleRequestSize) {
+            if (context.getParallelCse().isEnabled(summary)) return new ParallelCseUploadJob(context, summary, notifyLock);
             return new MultipartKeyCopyJob(context, summary, notifyLock);
         }
         return new KeyCopyJob(context, summary, notifyLock);
@@ -0,0 +1,55 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3;
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * When both profiles use the same client-side encryption with the same key, an object that's decrypted on GET is
+ * encrypted to the same envelope format on PUT, so the work can be skipped. PassthroughCopyJob copies the encrypted
+ * object with its envelope metadata (and its instruction file with CSM_INSTRUCTION_FILE) using clients without
+ * encryption, on the server where possible.
+ */
+public class CsePassthrough {
+
+    public static final String INSTRUCTION_SUFFIX = ".instruction";
+
+    // CopyObject and a single PUT can't handle larger objects, those are decrypted and encrypted again
+    public static final long MAX_OBJECT_SIZE = 5 * MirrorConstants.GB;
+
+    @Getter private AmazonS3 sourceClient;
+    @Getter private AmazonS3 destinationClient;
+    private boolean sameClient;
+
+    public static boolean isPossible(MirrorOptions options) {
+        if (options.isDisableCsePassthrough() || options.hasLocalBackend() || options.hasExtraDestinations()) return false;
+
+        final MirrorProfile source = options.getSourceProfile();
+        final MirrorProfile destination = options.getDestinationProfile();
+        if (!MirrorEncryption.isCSE(source.getEncryption()) || source.getEncryption() != destination.getEncryption()) return false;
+        if (source.hasOption(MirrorProfileOptions.CSM_INSTRUCTION_FILE) != destination.hasOption(MirrorProfileOptions.CSM_INSTRUCTION_FILE)) return false;
+        return source.getEncryptionKey() != null && destination.getEncryptionKey() != null
+                && Arrays.equals(source.getEncryptionKey().getEncoded(), destination.getEncryptionKey().getEncoded());
+    }
+
+    /**
+     * @param sameClient true if the mirror uses the same client on both sides
+     */
+    public void setClients(AmazonS3 sourceClient, AmazonS3 destinationClient, boolean sameClient) {
+        this.sourceClient = sourceClient;
+        this.destinationClient = destinationClient;
+        this.sameClient = sameClient;
+    }
+
+    public boolean isEnabled() { return sourceClient != null && destinationClient != null; }
+
+    public boolean isEnabled(KeyObjectSummary summary) {
+        return isEnabled() && summary.getSize() <= MAX_OBJECT_SIZE;
+    }
+
+    /**
+     * @return the client that sends CopyObject requests, see ServerSideCopy
+     */
+    public AmazonS3 getCopyClient() { return sameClient ? sourceClient : destinationClient; }
+}
@@ -0,0 +1,423 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The --daemon: keeps the JVM, its JIT state and the clients with their connection pools between cycles, and mirrors
+ * every --daemon-interval seconds. The first cycle checks all keys. Later cycles skip the keys last modified before the
+ * start of the last sync without errors (less OVERLAP, for clock skew and uploads in progress) like --ctime does, so
+ * they don't HEAD what didn't change. Every --daemon-full-every cycles all keys are checked again.
+ *
+ * With --daemon-listen a small HTTP server answers GET /health, and POST /sync?prefix=... queues a sync of all keys
+ * below a prefix, which runs after the cycle in progress. POST /sync without a prefix starts the next cycle now.
+ *
+ * With --events the keys of bucket notifications, POSTed to /events by a webhook or appended to the --events-file, are
+ * replicated between the cycles, see EventQueue. Events that were missed are caught by the next cycle.
+ */
+@Slf4j
+public class Daemon extends MirrorMain implements HttpHandler {
+
+    public static final long OVERLAP = TimeUnit.MINUTES.toMillis(15);
+    // how often the queued events are checked for keys that waited for the --events-window
+    private static final int EVENTS_POLL = 100;
+
+    private static final String STATE_LAST_SYNC = "lastSync";
+    private static final String STATE_CYCLES = "cycles";
+
+    private final Map<String, AmazonS3> clients = new HashMap<String, AmazonS3>();
+
+    // prefixes to sync on demand, "" for the next cycle, guarded by this
+    private final Set<String> requested = new LinkedHashSet<String>();
+    private boolean stopping = false;
+    private String status = "starting";
+
+    // the cycles that ran on schedule and the start of the last one without errors, kept in the --daemon-state
+    @Getter private volatile long cycles = 0;
+    @Getter private volatile long lastSync = 0;
+    private volatile String lastCycle = "none";
+
+    // with --events
+    @Getter private EventQueue events;
+    // the bytes read from the --events-file so far, written by its thread only
+    @Getter private volatile long eventsFileOffset = 0;
+    private volatile String lastEvents = "none";
+
+    private HttpServer server;
+
+    public Daemon(String[] args) { super(args); }
+
+    public static boolean isDaemon(String[] args) {
+        return Arrays.asList(args).contains(MirrorOptions.LONGOPT_DAEMON);
+    }
+
+    @Override
+    protected AmazonS3 getAmazonS3Client(MirrorProfile profile, boolean plain) {
+        final String key = profile.getName() + (plain ? ":plain" : "");
+        synchronized (clients) {
+            AmazonS3 client = clients.get(key);
+            if (client == null) {
+                client = super.getAmazonS3Client(profile, plain);
+                clients.put(key, client);
+            }
+            return client;
+        }
+    }
+
+    @Override
+    public void run() {
+        final MirrorOptions options = getOptions();
+        loadState();
+        if (options.isEvents()) {
+            events = new EventQueue(options.getSourceBucket(), options.getSourcePrefix(), options.getEventsWindow());
+            if (options.getEventsFile() != null) startEventsFile(options.getEventsFile());
+        }
+        try {
+            startServer();
+        } catch (IOException e) {
+            log.error("Error listening on {}, exiting.", options.getDaemonListen(), e);
+            return;
+        }
+        log.info("Daemon mirroring every {} seconds.", options.getDaemonInterval());
+
+        long nextCycle = System.currentTimeMillis();
+        try {
+            while (true) {
+                final long wait = nextCycle - System.currentTimeMillis();
+                final String prefix = awaitRequest(events == null ? wait : Math.min(wait, EVENTS_POLL));
+                if (isStopping()) break;
+                if (prefix == null && System.currentTimeMillis() < nextCycle) {
+                    runEvents();
+                } else if (prefix == null || prefix.length() == 0) {
+                    nextCycle = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(options.getDaemonInterval());
+                    runCycle(null);
+                } else {
+                    runCycle(prefix);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.warn("Daemon interrupted, exiting.");
+        } finally {
+            stopServer();
+        }
+    }
+
+    /**
+     * @return the next prefix to sync, "" to start the next cycle now, or null when the wait is over
+     */
+    private synchronized String awaitRequest(long millis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + millis;
+        while (requested.isEmpty() && !stopping) {
+            final long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return null;
+            wait(left);
+        }
+        if (stopping) return null;
+        final Iterator<String> next = requested.iterator();
+        final String prefix = next.next();
+        next.remove();
+        return prefix;
+    }
+
+    /**
+     * Queues a sync of the keys below the prefix, or of the next cycle for null or "".
+     */
+    public synchronized void requestSync(String prefix) {
+        requested.add(prefix == null ? "" : prefix);
+        notifyAll();
+    }
+
+    private synchronized boolean isStopping() { return stopping; }
+
+    /**
+     * @param prefix the prefix of a sync on demand, below the source prefix, or null for a cycle on schedule
+     */
+    void runCycle(String prefix) {
+        final MirrorOptions options = getOptions();
+        final boolean scheduled = prefix == null;
+        final boolean full = !scheduled || lastSync == 0 || cycles % options.getDaemonFullEvery() == 0;
+        final long modifiedSince = full ? 0 : lastSync - OVERLAP;
+        final String name = (scheduled ? (full ? "full" : "incremental") + " cycle " + (cycles + 1) : "sync of " + prefix);
+
+        final long start = System.currentTimeMillis();
+        try {
+            final List<MirrorOptions> extraOptions = new ArrayList<MirrorOptions>();
+            for (MirrorOptions extra : getExtraDestinationOptions()) extraOptions.add(extra.forCycle(prefix, modifiedSince));
+            final MirrorOptions cycleOptions = options.forCycle(prefix, modifiedSince);
+            synchronized (this) {
+                // a SIGTERM must find the master it has to stop
+                if (stopping) return;
+                status = "running " + name;
+                initContext(cycleOptions, extraOptions);
+            }
+            log.info("Starting {}{}.", name, full ? "" : ", skipping keys last modified before " + new Date(modifiedSince));
+            getMaster().mirror();
+
+            final MirrorContext context = getContext();
+            context.getStats().logStats();
+            for (MirrorContext extra : context.getExtraDestinations()) extra.getStats().logStats();
+            writeStatsFile();
+
+            final boolean ok = !context.hasErrors() && !isStopping();
+            lastCycle = name + " " + (ok ? "ok" : "with errors") + ", finished " + new Date()
+                    + ", " + context.getStats().objectsCopied.get() + " copied";
+            if (scheduled) {
+                cycles++;
+                // keys that failed are checked again by the next cycle
+                if (ok) lastSync = start;
+                saveState();
+            }
+        } catch (Exception e) {
+            log.error("Error running {}.", name, e);
+            lastCycle = name + " failed: " + e;
+        } finally {
+            synchronized (this) {
+                status = stopping ? "stopping" : "idle";
+            }
+        }
+    }
+
+    /**
+     * Replicates the keys of the events that waited for the --events-window.
+     */
+    void runEvents() {
+        final List<EventQueue.Event> ready = events.takeReady();
+        if (ready.isEmpty()) return;
+        final String name = "events of " + ready.size() + " keys";
+        try {
+            final List<MirrorOptions> extraOptions = new ArrayList<MirrorOptions>();
+            for (MirrorOptions extra : getExtraDestinationOptions()) extraOptions.add(extra.forCycle(null, 0));
+            final MirrorOptions eventOptions = getOptions().forCycle(null, 0);
+            synchronized (this) {
+                if (stopping) return;
+                status = "replicating " + name;
+                initContext(eventOptions, extraOptions);
+                getMaster().setEventBatch(new EventBatch(ready));
+            }
+            if (eventOptions.isVerbose()) log.info("Replicating {}.", name);
+            getMaster().mirror();
+
+            final MirrorStats stats = getContext().getStats();
+            if (eventOptions.isVerbose()) stats.logStats();
+            lastEvents = name + (getContext().hasErrors() ? " with errors" : " ok") + ", finished " + new Date()
+                    + ", lag " + stats.eventLagMaxMillis.get() + " ms max";
+        } catch (Exception e) {
+            log.error("Error replicating {}.", name, e);
+            lastEvents = name + " failed: " + e;
+        } finally {
+            synchronized (this) {
+                status = stopping ? "stopping" : "idle";
+            }
+        }
+    }
+
+    /**
+     * Reads the notifications appended to a file or written to a named pipe, one per line. A line is added only once
+     * its newline has been written.
+     */
+    private void startEventsFile(final String file) {
+        final Thread thread = new Thread("Daemon-events") {
+            @Override public void run() {
+                final ByteArrayOutputStream line = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[8192];
+                try (InputStream in = new FileInputStream(file)) {
+                    while (!isStopping()) {
+                        final int read = in.read(buffer);
+                        if (read == -1) {
+                            // the end of the file for now, or a pipe without writers
+                            if (Sleep.sleep(EVENTS_POLL)) return;
+                            continue;
+                        }
+                        eventsFileOffset += read;
+                        for (int i = 0; i < read; i++) {
+                            if (buffer[i] != '\n') {
+                                line.write(buffer[i]);
+                                continue;
+                            }
+                            addEvents(new String(line.toByteArray(), UTF_8));
+                            line.reset();
+                        }
+                    }
+                } catch (IOException e) {
+                    log.error("Error reading events from {}, events are caught by the next cycle only.", file, e);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void addEvents(String json) {
+        if (json.trim().length() == 0) return;
+        try {
+            events.add(json);
+        } catch (IllegalArgumentException e) {
+            log.warn("Ignoring an event: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    protected void shutdown() {
+        synchronized (this) {
+            stopping = true;
+            status = "stopping";
+            notifyAll();
+        }
+        stopServer();
+        super.shutdown();
+    }
+
+    private void loadState() {
+        final String stateFile = getOptions().getDaemonState();
+        if (stateFile == null || !new File(stateFile).exists()) return;
+        final Properties state = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(stateFile), UTF_8)) {
+            state.load(reader);
+            lastSync = Long.parseLong(state.getProperty(STATE_LAST_SYNC, "0"));
+            cycles = Long.parseLong(state.getProperty(STATE_CYCLES, "0"));
+            log.info("Resuming after {} cycles, last sync {}.", cycles, lastSync == 0 ? "never" : new Date(lastSync));
+        } catch (IOException | NumberFormatException e) {
+            log.warn("Error reading {}, starting with a full cycle.", stateFile, e);
+        }
+    }
+
+    private void saveState() {
+        final String stateFile = getOptions().getDaemonState();
+        if (stateFile == null) return;
+        final Properties state = new Properties();
+        state.setProperty(STATE_LAST_SYNC, String.valueOf(lastSync));
+        state.setProperty(STATE_CYCLES, String.valueOf(cycles));
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(stateFile), UTF_8)) {
+            state.store(writer, "s3s3mirror daemon");
+        } catch (IOException e) {
+            log.error("Error writing {}.", stateFile, e);
+        }
+    }
+
+    private void startServer() throws IOException {
+        final String listen = getOptions().getDaemonListen();
+        if (listen == null) return;
+        final int colon = listen.lastIndexOf(':');
+        final InetSocketAddress address = colon == -1
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(listen))
+                : new InetSocketAddress(listen.substring(0, colon), Integer.parseInt(listen.substring(colon + 1)));
+        server = HttpServer.create(address, 0);
+        server.createContext("/", this);
+        server.start();
+        log.info("Listening on {}.", server.getAddress());
+    }
+
+    private synchronized void stopServer() {
+        if (server == null) return;
+        server.stop(0);
+        server = null;
+    }
+
+    /**
+     * @return the address of the HTTP server, null without --daemon-listen
+     */
+    public synchronized InetSocketAddress getAddress() { return server == null ? null : server.getAddress(); }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        try {
+            final String path = exchange.getRequestURI().getPath();
+            final String method = exchange.getRequestMethod();
+            if (path.equals("/health")) {
+                if (!method.equals("GET")) {
+                    respond(exchange, 405, "GET only\n");
+                    return;
+                }
+                final boolean stopping = isStopping();
+                respond(exchange, stopping ? 503 : 200, getHealth());
+
+            } else if (path.equals("/sync")) {
+                if (!method.equals("POST")) {
+                    respond(exchange, 405, "POST only\n");
+                    return;
+                }
+                final String prefix = getParameter(exchange, "prefix");
+                requestSync(prefix);
+                respond(exchange, 202, "queued " + (prefix == null || prefix.length() == 0 ? "next cycle" : "sync of " + prefix) + "\n");
+
+            } else if (path.equals("/events") && events != null) {
+                if (!method.equals("POST")) {
+                    respond(exchange, 405, "POST only\n");
+                    return;
+                }
+                final String body = readBody(exchange);
+                // a webhook target may be tested with an empty request
+                if (body.trim().length() > 0) {
+                    try {
+                        events.add(body);
+                    } catch (IllegalArgumentException e) {
+                        respond(exchange, 400, e.getMessage() + "\n");
+                        return;
+                    }
+                }
+                respond(exchange, 200, "ok\n");
+
+            } else {
+                respond(exchange, 404, "not found\n");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private synchronized String getHealth() {
+        return "status: " + status + "\n"
+                + "cycles: " + cycles + "\n"
+                + "last sync: " + (lastSync == 0 ? "never" : new Date(lastSync).toString()) + "\n"
+                + "last cycle: " + lastCycle + "\n"
+                + "queued: " + requested.size() + "\n"
+                + (events == null ? "" : "events: " + events.size() + " queued, lag " + events.getLagMillis() + " ms, "
+                        + events.getReceived() + " received, " + events.getCoalesced() + " coalesced, " + events.getIgnored() + " ignored\n"
+                        + "last events: " + lastEvents + "\n");
+    }
+
+    private static String getParameter(HttpExchange exchange, String name) throws UnsupportedEncodingException {
+        final String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) return null;
+        for (String parameter : query.split("&")) {
+            final int equals = parameter.indexOf('=');
+            final String key = equals == -1 ? parameter : parameter.substring(0, equals);
+            if (URLDecoder.decode(key, "UTF-8").equals(name)) {
+                return equals == -1 ? "" : URLDecoder.decode(parameter.substring(equals + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        try (InputStream in = exchange.getRequestBody()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) body.write(buffer, 0, read);
+        }
+        return new String(body.toByteArray(), UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        final byte[] bytes = body.getBytes(UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
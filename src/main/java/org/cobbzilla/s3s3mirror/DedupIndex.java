@@ -0,0 +1,117 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.internal.Constants;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The destination keys by ETag and size, see --dedup. An object that was renamed or duplicated in the source has the
+ * same ETag and size as one the destination has already, so it's copied within the destination instead of being
+ * transferred again. The index is built from a listing of the destination when the mirror starts (once for the cycles
+ * of a --daemon) and grows with every key that's copied. The copy only happens if the duplicate still has the ETag,
+ * so a duplicate that was changed or deleted since is just transferred.
+ *
+ * An entry takes about 150 bytes, objects below --dedup-min-size aren't indexed.
+ */
+@Slf4j
+public class DedupIndex {
+
+    // CopyObject can't copy larger objects
+    public static final long MAX_OBJECT_SIZE = 5 * MirrorConstants.GB;
+
+    private static final int LIST_SIZE = 1000;
+
+    private final Map<String, String> keys = new ConcurrentHashMap<String, String>();
+    private volatile long minSize;
+    private volatile boolean loaded = false;
+
+    /**
+     * @return true unless client-side encryption makes the ETags of equal objects differ, or a side is a directory
+     */
+    public static boolean isPossible(MirrorOptions options) {
+        return !options.hasLocalBackend()
+                && !MirrorEncryption.isCSE(options.getSourceProfile().getEncryption())
+                && !MirrorEncryption.isCSE(options.getDestinationProfile().getEncryption());
+    }
+
+    public boolean isLoaded() { return loaded; }
+
+    public int size() { return keys.size(); }
+
+    /**
+     * Lists the destination and indexes its keys.
+     */
+    public void load(MirrorContext context) {
+        final MirrorOptions options = context.getOptions();
+        final String prefix = options.hasDestinationPrefix() ? options.getDestinationPrefix() : options.getSourcePrefix();
+        minSize = Math.max(1, options.getDedupMinSize());
+
+        final ListObjectsRequest request = new ListObjectsRequest(options.getDestinationBucket(), prefix, null, null, LIST_SIZE);
+        if (options.getDestinationProfile().hasOption(MirrorProfileOptions.NO_ENCODING_TYPE)) {
+            request.setEncodingType(Constants.NO_ENCODING_TYPE);
+        }
+        final long start = System.currentTimeMillis();
+        ObjectListing listing;
+        do {
+            listing = list(context, request);
+            for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+                add(summary.getETag(), summary.getSize(), summary.getKey());
+            }
+            request.setMarker(listing.getNextMarker() != null ? listing.getNextMarker() : lastKey(listing));
+        } while (listing.isTruncated());
+        loaded = true;
+        log.info("Indexed {} destination objects by ETag and size in {} ms.", keys.size(), System.currentTimeMillis() - start);
+    }
+
+    private static String lastKey(ObjectListing listing) {
+        return listing.getObjectSummaries().isEmpty() ? null
+                : listing.getObjectSummaries().get(listing.getObjectSummaries().size() - 1).getKey();
+    }
+
+    private static ObjectListing list(MirrorContext context, ListObjectsRequest request) {
+        final MirrorOptions options = context.getOptions();
+        final RetryPolicy.Retry retry = context.getRetryPolicy().begin(RetryPolicy.Operation.LIST, options.getDestinationProfile());
+        for (int tries = 1; ; tries++) {
+            try {
+                context.getStats().s3getCount.incrementAndGet();
+                final ObjectListing listing = context.getDestinationClient().listObjects(request);
+                retry.succeeded();
+                return listing;
+            } catch (SdkClientException e) {
+                log.warn("Error listing the destination for the dedup index (try #{}).", tries, e);
+                if (tries >= options.getMaxRetries() || !retry.backoff(e)) throw e;
+            }
+        }
+    }
+
+    /**
+     * @return a destination key with the ETag and size, null if there's none
+     */
+    public String find(String etag, long size) {
+        if (etag == null || size < minSize || size > MAX_OBJECT_SIZE) return null;
+        return keys.get(indexKey(etag, size));
+    }
+
+    public void add(String etag, long size, String key) {
+        if (etag == null || size < minSize || size > MAX_OBJECT_SIZE) return;
+        keys.put(indexKey(etag, size), key);
+    }
+
+    /**
+     * Forgets a key that doesn't have the ETag anymore.
+     */
+    public void remove(String etag, long size, String key) {
+        if (etag == null) return;
+        keys.remove(indexKey(etag, size), key);
+    }
+
+    static String unquote(String etag) { return etag.replace("\"", ""); }
+
+    private static String indexKey(String etag, long size) { return unquote(etag) + "/" + size; }
+}
@@ -0,0 +1,222 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException.DeleteError;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the keys that KeyDeleteJobs found to be deletable and deletes them with DeleteObjects requests of up to
+ * --delete-batch-size keys, --delete-batches of them at the same time. A job that hands its key over leaves its lane
+ * without telling the RetryQueue; that happens once its batch was sent, so the job is completed when the key is
+ * deleted, or failed and retried on its own if it can't be.
+ *
+ * Requests are sent in quiet mode, so the response only lists the keys that couldn't be deleted. Keys with a
+ * temporary error are sent again in the next round, up to --max-retries rounds.
+ */
+@Slf4j
+public class DeleteBatcher {
+
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    private final MirrorContext context;
+    private final RetryQueue retryQueue;
+    private final int batchSize;
+
+    private final Semaphore batches;
+    private final int maxBatches;
+    private final ExecutorService executor;
+
+    private List<KeyDeleteJob> pending = new ArrayList<KeyDeleteJob>();
+
+    public DeleteBatcher(MirrorContext context, RetryQueue retryQueue) {
+        this.context = context;
+        this.retryQueue = retryQueue;
+        this.batchSize = context.getOptions().getDeleteBatchSize();
+        this.maxBatches = Math.max(1, context.getOptions().getDeleteBatches());
+        this.batches = new Semaphore(maxBatches);
+        this.executor = Executors.newFixedThreadPool(maxBatches, new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger(0);
+            @Override public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "DeleteBatcher-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static boolean isSupported(MirrorOptions options) {
+        return options.getDeleteBatchSize() > 1 && !options.hasLocalBackend() && !options.isDryRun();
+    }
+
+    /**
+     * Adds the key of the job to the current batch. Sends the batch when it's full, which waits while
+     * --delete-batches requests are already in flight.
+     */
+    public void add(KeyDeleteJob job) throws InterruptedException {
+        final List<KeyDeleteJob> full;
+        synchronized (this) {
+            pending.add(job);
+            if (pending.size() < batchSize) return;
+            full = pending;
+            pending = new ArrayList<KeyDeleteJob>();
+        }
+        send(full);
+    }
+
+    /**
+     * Sends the keys that are waiting for their batch to fill up.
+     */
+    public void flush() throws InterruptedException {
+        final List<KeyDeleteJob> partial;
+        synchronized (this) {
+            if (pending.isEmpty()) return;
+            partial = pending;
+            pending = new ArrayList<KeyDeleteJob>();
+        }
+        send(partial);
+    }
+
+    /**
+     * @return true if no keys are waiting and no request is in flight
+     */
+    public boolean isIdle() {
+        synchronized (this) {
+            if (!pending.isEmpty()) return false;
+        }
+        return batches.availablePermits() == maxBatches;
+    }
+
+    public void shutdown() { executor.shutdownNow(); }
+
+    private void send(final List<KeyDeleteJob> jobs) throws InterruptedException {
+        try {
+            batches.acquire();
+        } catch (InterruptedException e) {
+            for (KeyDeleteJob job : jobs) failed(job, null);
+            throw e;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        deleteBatch(jobs);
+                    } catch (Exception e) {
+                        log.error("Error deleting a batch of {} keys.", jobs.size(), e);
+                        for (KeyDeleteJob job : jobs) failed(job, ErrorClass.of(e));
+                    } finally {
+                        batches.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            batches.release();
+            throw e;
+        }
+    }
+
+    private void deleteBatch(List<KeyDeleteJob> jobs) {
+        final MirrorOptions options = context.getOptions();
+        final MirrorStats stats = context.getStats();
+        final RetryPolicy.Retry retry = context.getRetryPolicy().begin(RetryPolicy.Operation.DELETE, options.getDestinationProfile());
+
+        final Map<String, KeyDeleteJob> remaining = new LinkedHashMap<String, KeyDeleteJob>();
+        for (KeyDeleteJob job : jobs) remaining.put(job.summary.getKey(), job);
+
+        for (int tries = 1; !remaining.isEmpty(); tries++) {
+            final List<KeyVersion> keys = new ArrayList<KeyVersion>(remaining.size());
+            for (String key : remaining.keySet()) keys.add(new KeyVersion(key));
+            final DeleteObjectsRequest request = new DeleteObjectsRequest(options.getDestinationBucket()).withKeys(keys).withQuiet(true);
+
+            if (options.isVerbose()) log.info("Deleting {} keys (try #{}).", keys.size(), tries);
+            Exception lastException;
+            try {
+                stats.s3deleteCount.incrementAndGet();
+                context.getDestinationClient().deleteObjects(request);
+                retry.succeeded();
+                deleted(remaining.values());
+                return;
+
+            } catch (MultiObjectDeleteException e) {
+                retry.succeeded();
+                lastException = null;
+                final Map<String, KeyDeleteJob> retryable = new LinkedHashMap<String, KeyDeleteJob>();
+                for (DeleteError error : e.getErrors()) {
+                    final String key = error.getKey();
+                    if (isMissingInstructionFile(error, remaining)) continue;
+
+                    final KeyDeleteJob job = remaining.get(key);
+                    if (job == null) continue;
+                    final ErrorClass errorClass = "NoSuchKey".equals(error.getCode()) ? null : ErrorClass.ofErrorCode(error.getCode());
+                    if (errorClass == null) continue; // gone already, that's what we wanted
+
+                    remaining.remove(key);
+                    if (errorClass.isRetryable()) {
+                        retryable.put(key, job);
+                        if (lastException == null) lastException = toException(error);
+                    } else {
+                        log.error("Error deleting {}: {} {}", key, error.getCode(), error.getMessage());
+                        failed(job, errorClass);
+                    }
+                }
+                deleted(remaining.values());
+                remaining.clear();
+                remaining.putAll(retryable);
+                if (lastException == null) return;
+
+            } catch (SdkClientException e) {
+                lastException = e;
+                log.error("Exception deleting {} keys (try #{}).", keys.size(), tries, e);
+            }
+
+            if (!retry.backoff(lastException)) {
+                final ErrorClass errorClass = ErrorClass.of(lastException);
+                for (KeyDeleteJob job : remaining.values()) failed(job, errorClass);
+                return;
+            }
+        }
+    }
+
+    /**
+     * This is really ugly: The AWS Java SDK deletes the special key containing the encryption materials along with
+     * every key when CSE is used, and at least Google's server implementation answers with a 404 for it when there is
+     * no such key. Those errors are ignored, like KeyDeleteJob does.
+     */
+    private static boolean isMissingInstructionFile(DeleteError error, Map<String, KeyDeleteJob> keys) {
+        final String key = error.getKey();
+        if (key == null || !key.endsWith(".instruction") || keys.containsKey(key)) return false;
+        return "NoSuchKey".equals(error.getCode())
+                || (error.getMessage() != null && error.getMessage().matches("^No such object: .*\\.instruction$"));
+    }
+
+    private static AmazonS3Exception toException(DeleteError error) {
+        final AmazonS3Exception e = new AmazonS3Exception(error.getKey() + ": " + error.getMessage());
+        e.setErrorCode(error.getCode());
+        return e;
+    }
+
+    private void deleted(Collection<KeyDeleteJob> jobs) {
+        context.getStats().objectsDeleted.addAndGet(jobs.size());
+        final boolean verbose = context.getOptions().isVerbose();
+        for (KeyDeleteJob job : jobs) {
+            if (verbose) log.info("Successfully deleted {}.", job.summary.getKey());
+            retryQueue.done(job);
+        }
+    }
+
+    private void failed(KeyDeleteJob job, ErrorClass errorClass) {
+        job.setLastError(errorClass);
+        job.fail();
+        retryQueue.done(job);
+    }
+}
@@ -2,13 +2,13 @@ package org.cobbzilla.s3s3mirror;
 
 import com.amazonaws.services.s3.AmazonS3;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-
 public class DeleteMaster extends KeyMaster {
 
-    public DeleteMaster(MirrorContext context, BlockingQueue<Runnable> workQueue, ThreadPoolExecutor executorService) {
-        super(context, workQueue, executorService);
+    private final DeleteBatcher batcher;
+
+    public DeleteMaster(MirrorContext context, MirrorLanes lanes) {
+        super(context, lanes);
+        batcher = DeleteBatcher.isSupported(context.getOptions()) ? new DeleteBatcher(context, lanes.getRetryQueue()) : null;
     }
 
     protected AmazonS3 getClient() { return context.getDestinationClient(); }
@@ -19,9 +19,35 @@ public class DeleteMaster extends KeyMaster {
     }
 
     protected String getBucket(MirrorOptions options) { return options.getDestinationBucket(); }
+    protected StorageBackend getBackend() { return context.getDestinationBackend(); }
+
+    @Override
+    protected KeyLister getLister(MirrorOptions options, int maxQueueCapacity) throws Exception {
+        if (options.hasExecutePlan()) return new PlanLister(context, maxQueueCapacity, options.getExecutePlan(), MirrorPlan.DELETE);
+        return super.getLister(options, maxQueueCapacity);
+    }
+
+    @Override
+    protected boolean submitAsync(KeyObjectSummary summary) throws InterruptedException {
+        return asyncEngine.delete(summary, doneListener);
+    }
 
     @Override
     protected KeyJob getTask(KeyObjectSummary summary) {
-        return new KeyDeleteJob(context, summary, notifyLock);
+        if (context.getOptions().hasLocalBackend()) return new BackendDeleteJob(context, summary, notifyLock);
+        return new KeyDeleteJob(context, summary, notifyLock, batcher);
+    }
+
+    @Override
+    protected boolean flush() throws InterruptedException {
+        if (batcher == null) return true;
+        batcher.flush();
+        return batcher.isIdle();
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (batcher != null) batcher.shutdown();
     }
 }
@@ -0,0 +1,113 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.util.BinaryUtils;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The MD5s of the parts of an object that MultipartKeyCopyJob uploaded, see --delta. When the object is uploaded again,
+ * the parts of the new object whose MD5s are the same are copied from the old destination object with UploadPartCopy,
+ * only the others are transferred.
+ *
+ * The MD5s are kept in a file per destination key in the --delta directory, not in the metadata of the object: the
+ * metadata is set before the first part is read and can't hold more than 2 KB, and the SDK has no GetObjectAttributes.
+ * A file only describes the destination object whose ETag it names. It also names the ETag of the source object that
+ * was uploaded, so that a source object rewritten with the same size is copied again, see KeyCopyJob.shouldTransfer.
+ */
+@Slf4j
+public class DeltaParts {
+
+    private static final String SUFFIX = ".parts";
+
+    // parts are buffered in byte arrays, objects with larger parts are copied whole
+    public static final long MAX_PART_SIZE = MirrorConstants.GB;
+
+    @Getter private final String key;
+    @Getter private final String etag;
+    @Getter private final String sourceETag;
+    @Getter private final long size;
+    @Getter private final long partSize;
+    private final List<String> digests;
+
+    public DeltaParts(String key, String etag, String sourceETag, long size, long partSize, List<String> digests) {
+        this.key = key;
+        this.etag = DedupIndex.unquote(etag);
+        this.sourceETag = DedupIndex.unquote(sourceETag);
+        this.size = size;
+        this.partSize = partSize;
+        this.digests = Collections.unmodifiableList(new ArrayList<String>(digests));
+    }
+
+    public int getPartCount() { return digests.size(); }
+
+    /**
+     * @return true if this describes the object with the ETag
+     */
+    public boolean describes(String objectETag) { return objectETag != null && etag.equals(DedupIndex.unquote(objectETag)); }
+
+    /**
+     * @return true if the source object with the ETag isn't the one that was uploaded
+     */
+    public boolean isOtherSource(String objectETag) { return objectETag != null && !sourceETag.equals(DedupIndex.unquote(objectETag)); }
+
+    /**
+     * @param partNumber the number of the part, from 1
+     * @return true if the old object has a part with the number, length and MD5
+     */
+    public boolean hasPart(int partNumber, long length, String digest) {
+        if (partNumber < 1 || partNumber > digests.size()) return false;
+        final long start = (partNumber - 1) * partSize;
+        return Math.min(partSize, size - start) == length && digests.get(partNumber - 1).equals(digest);
+    }
+
+    /**
+     * @return the parts of the key, null if there are none or they can't be read
+     */
+    public static DeltaParts load(File dir, String key) {
+        final File file = getFile(dir, key);
+        if (!file.exists()) return null;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            final String[] header = reader.readLine().split("\t", -1);
+            if (header.length != 5 || !FailureList.unescape(header[0]).equals(key)) return null;
+            final List<String> digests = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) digests.add(line);
+            }
+            return new DeltaParts(key, header[1], header[2], Long.parseLong(header[3]), Long.parseLong(header[4]), digests);
+        } catch (Exception e) {
+            log.warn("Error reading the parts of {} from {}, copying it whole.", key, file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the parts through a temporary file, so a crash never leaves half of them.
+     */
+    public void save(File dir) throws IOException {
+        final File file = getFile(dir, key);
+        final File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), UTF_8))) {
+            writer.write(FailureList.escape(key) + "\t" + etag + "\t" + sourceETag + "\t" + size + "\t" + partSize + "\n");
+            for (String digest : digests) writer.write(digest + "\n");
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // keys can be longer than file names and contain slashes
+    private static File getFile(File dir, String key) {
+        final MessageDigest digest = ContentDigest.newDigest();
+        digest.update(key.getBytes(UTF_8));
+        return new File(dir, BinaryUtils.toHex(digest.digest()) + SUFFIX);
+    }
+}
@@ -0,0 +1,90 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ResetException;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.FileSystemException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Classifies the errors of S3 requests.
+ */
+public enum ErrorClass {
+
+    // the endpoint asks us to slow down (503 SlowDown, 429 and friends)
+    THROTTLE,
+
+    // the request or the connection timed out
+    TIMEOUT,
+
+    // anything else that might go away by trying again (5xx, connection resets, ...)
+    TRANSIENT,
+
+    // trying again won't help (403, 400, ...)
+    PERMANENT;
+
+    private static final Set<String> THROTTLE_CODES = new HashSet<String>(Arrays.asList(
+            "SlowDown", "Throttling", "ThrottlingException", "ThrottledException", "RequestThrottled",
+            "RequestThrottledException", "TooManyRequestsException", "RequestLimitExceeded", "BandwidthLimitExceeded",
+            "ProvisionedThroughputExceededException", "PriorRequestNotComplete", "EC2ThrottledException"));
+
+    private static final Set<String> TRANSIENT_CODES = new HashSet<String>(Arrays.asList(
+            "RequestTimeTooSkewed", "RequestExpired", "InternalError", "ServiceUnavailable", "OperationAborted"));
+
+    public static ErrorClass of(Throwable e) {
+        // failures of the async engine arrive wrapped
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+
+        if (e instanceof AmazonServiceException) {
+            final AmazonServiceException ase = (AmazonServiceException) e;
+            return of(ase.getStatusCode(), ase.getErrorCode());
+        }
+        if (e instanceof AwsServiceException) {
+            final AwsServiceException ase = (AwsServiceException) e;
+            return of(ase.statusCode(), ase.awsErrorDetails() == null ? null : ase.awsErrorDetails().errorCode());
+        }
+
+        if (e instanceof ResetException) return TRANSIENT;
+
+        // missing files, permissions etc. of a local directory, retrying won't help
+        if (e instanceof FileSystemException) return PERMANENT;
+
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            // ConnectTimeoutException of the HTTP client is an InterruptedIOException as well
+            if (cause instanceof SocketTimeoutException) return TIMEOUT;
+            if (cause instanceof InterruptedIOException && cause.getClass().getSimpleName().contains("Timeout")) return TIMEOUT;
+            // SDK v2 and Netty timeouts (ApiCallTimeoutException, ReadTimeoutException, ...)
+            if (cause.getClass().getSimpleName().endsWith("TimeoutException")) return TIMEOUT;
+            if (cause.getCause() == cause) break;
+        }
+
+        return TRANSIENT;
+    }
+
+    /**
+     * Classifies an error that comes with a code but no status of its own, like the errors of single keys in a
+     * DeleteObjects response. Codes that aren't known to be temporary are permanent.
+     */
+    public static ErrorClass ofErrorCode(String code) {
+        return of(400, code);
+    }
+
+    private static ErrorClass of(int status, String code) {
+        if (status == 429 || status == 503 || THROTTLE_CODES.contains(code)) return THROTTLE;
+        if (status == 408 || "RequestTimeout".equals(code)) return TIMEOUT;
+        if (status >= 500 || TRANSIENT_CODES.contains(code)) return TRANSIENT;
+        if (status >= 400) return PERMANENT;
+        return TRANSIENT;
+    }
+
+    public boolean isRetryable() { return this != PERMANENT; }
+}
@@ -0,0 +1,58 @@
+package org.cobbzilla.s3s3mirror;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The keys of the events that the --daemon replicates between its cycles, listed instead of the buckets. Created keys
+ * are copied (see KeyObjectSummary.isChanged), removed keys are deleted from every destination with --delete-removed,
+ * where KeyDeleteJob still checks that the source doesn't have them. The time from the event until a key is done is
+ * recorded as the lag in the stats of its destination.
+ */
+public class EventBatch {
+
+    private final List<EventQueue.Event> events;
+
+    public EventBatch(List<EventQueue.Event> events) {
+        this.events = new ArrayList<EventQueue.Event>(events);
+    }
+
+    public int size() { return events.size(); }
+
+    public KeyLister getCopyLister(MirrorContext context) {
+        final List<KeyObjectSummary> summaries = new ArrayList<KeyObjectSummary>();
+        for (EventQueue.Event event : events) {
+            if (event.isRemoved()) continue;
+            final KeyObjectSummary summary = event.toSummary(event.getKey());
+            summary.setBucketName(context.getOptions().getSourceBucket());
+            summary.setChanged(true);
+            summaries.add(summary);
+        }
+        return new FixedKeyLister(context, summaries);
+    }
+
+    /**
+     * @param destination the context of the destination, its keys may have another prefix
+     */
+    public KeyLister getDeleteLister(MirrorContext destination) {
+        final MirrorOptions options = destination.getOptions();
+        final List<KeyObjectSummary> summaries = new ArrayList<KeyObjectSummary>();
+        for (EventQueue.Event event : events) {
+            if (!event.isRemoved()) continue;
+            final KeyObjectSummary summary = event.toSummary(KeyCopyJob.getDestinationKey(options, event.getKey()));
+            summary.setBucketName(options.getDestinationBucket());
+            summaries.add(summary);
+        }
+        return new FixedKeyLister(destination, summaries);
+    }
+
+    public KeyDoneListener getDoneListener(final MirrorContext context) {
+        return new KeyDoneListener() {
+            @Override public void completed(KeyObjectSummary summary) {
+                context.getStats().recordEventLag(Math.max(0, System.currentTimeMillis() - summary.getLastModified().getTime()));
+            }
+            // the next cycle of the daemon copies it again
+            @Override public void failed(KeyObjectSummary summary) {}
+        };
+    }
+}
@@ -0,0 +1,162 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.event.S3EventNotification;
+import lombok.Getter;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The object-created and object-removed notifications of the source bucket that are still to be replicated, see
+ * --events. Notifications of S3 and MinIO have the same JSON format. Events are coalesced per key: a key waits
+ * --events-window ms after its first event, and only its latest event is replicated. Later means a greater sequencer
+ * if both events have one (S3 orders the events of a key by it), otherwise a later event time. Events of other
+ * buckets, of keys outside of the source prefix and of other types are ignored.
+ */
+public class EventQueue {
+
+    private final String bucket;
+    private final String prefix;
+    private final long windowMillis;
+
+    // key -> latest event, in the order of the first event of the key
+    private final LinkedHashMap<String, Event> events = new LinkedHashMap<String, Event>();
+
+    @Getter private final AtomicLong received = new AtomicLong(0);
+    @Getter private final AtomicLong coalesced = new AtomicLong(0);
+    @Getter private final AtomicLong ignored = new AtomicLong(0);
+
+    public EventQueue(String bucket, String prefix, long windowMillis) {
+        this.bucket = bucket;
+        this.prefix = prefix == null ? "" : prefix;
+        this.windowMillis = windowMillis;
+    }
+
+    public static class Event {
+        @Getter private final String key;
+        @Getter private final boolean removed;
+        @Getter private final long size;
+        @Getter private final String eTag;
+        @Getter private final long eventTime;
+        private final String sequencer;
+        private long firstReceived;
+
+        Event(String key, boolean removed, long size, String eTag, long eventTime, String sequencer) {
+            this.key = key;
+            this.removed = removed;
+            this.size = size;
+            this.eTag = eTag;
+            this.eventTime = eventTime;
+            this.sequencer = sequencer;
+        }
+
+        boolean isAfter(Event other) {
+            if (sequencer != null && other.sequencer != null) return compareSequencers(sequencer, other.sequencer) > 0;
+            return eventTime > other.eventTime;
+        }
+
+        /**
+         * @return the key with the time of the event as last modified, the ETag and size of created objects
+         */
+        public KeyObjectSummary toSummary(String key) {
+            final KeyObjectSummary summary = new KeyObjectSummary();
+            summary.setKey(key);
+            summary.setSize(size);
+            summary.setETag(eTag);
+            summary.setLastModified(new Date(eventTime));
+            return summary;
+        }
+    }
+
+    /**
+     * Sequencers are hex numbers of different lengths, the shorter one is padded with zeros on the left.
+     */
+    static int compareSequencers(String a, String b) {
+        final int length = Math.max(a.length(), b.length());
+        return pad(a, length).compareToIgnoreCase(pad(b, length));
+    }
+
+    private static String pad(String hex, int length) {
+        final StringBuilder padded = new StringBuilder(length);
+        for (int i = hex.length(); i < length; i++) padded.append('0');
+        return padded.append(hex).toString();
+    }
+
+    /**
+     * @param json a notification with a Records array, as sent to a webhook or an SQS queue
+     * @throws IllegalArgumentException if it isn't valid JSON
+     */
+    public void add(String json) {
+        final S3EventNotification notification;
+        try {
+            notification = S3EventNotification.parseJson(json);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid event notification: " + e.getMessage(), e);
+        }
+        if (notification.getRecords() == null) return;
+        for (S3EventNotification.S3EventNotificationRecord record : notification.getRecords()) add(record);
+    }
+
+    private void add(S3EventNotification.S3EventNotificationRecord record) {
+        received.incrementAndGet();
+        final String eventName = record.getEventName() == null ? "" : record.getEventName().replaceFirst("^s3:", "");
+        final boolean created = eventName.startsWith("ObjectCreated:");
+        final boolean removed = eventName.startsWith("ObjectRemoved:");
+        if ((!created && !removed) || record.getS3() == null || record.getS3().getObject() == null
+                || record.getS3().getBucket() == null || !bucket.equals(record.getS3().getBucket().getName())) {
+            ignored.incrementAndGet();
+            return;
+        }
+        final S3EventNotification.S3ObjectEntity object = record.getS3().getObject();
+        final String key = object.getUrlDecodedKey();
+        if (key == null || !key.startsWith(prefix)) {
+            ignored.incrementAndGet();
+            return;
+        }
+        final long size = object.getSizeAsLong() == null ? 0 : object.getSizeAsLong();
+        final long eventTime = record.getEventTime() == null ? System.currentTimeMillis() : record.getEventTime().getMillis();
+        add(new Event(key, removed, size, object.geteTag(), eventTime, object.getSequencer()));
+    }
+
+    synchronized void add(Event event) {
+        final Event previous = events.get(event.key);
+        if (previous == null) {
+            event.firstReceived = System.currentTimeMillis();
+            events.put(event.key, event);
+            return;
+        }
+        coalesced.incrementAndGet();
+        if (event.isAfter(previous)) {
+            event.firstReceived = previous.firstReceived;
+            // replacing the value keeps the key in its place
+            events.put(event.key, event);
+        }
+    }
+
+    /**
+     * @return the events whose keys have waited for the window, in the order of their first event
+     */
+    public synchronized List<Event> takeReady() {
+        final long now = System.currentTimeMillis();
+        final List<Event> ready = new ArrayList<Event>();
+        final Iterator<Event> iterator = events.values().iterator();
+        while (iterator.hasNext()) {
+            final Event event = iterator.next();
+            if (now - event.firstReceived < windowMillis) break;
+            ready.add(event);
+            iterator.remove();
+        }
+        return ready;
+    }
+
+    public synchronized int size() { return events.size(); }
+
+    /**
+     * @return how long ago the oldest event still waiting happened, 0 if none is
+     */
+    public synchronized long getLagMillis() {
+        long oldest = Long.MAX_VALUE;
+        for (Event event : events.values()) oldest = Math.min(oldest, event.eventTime);
+        return oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+}
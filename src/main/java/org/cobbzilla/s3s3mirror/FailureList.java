@@ -0,0 +1,87 @@
+package org.cobbzilla.s3s3mirror;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads and writes the list of keys that failed in a run: one key per line with its size and ETag, separated by tabs.
+ * Tabs, line breaks and backslashes in keys are escaped with a backslash.
+ */
+public class FailureList {
+
+    public static void write(File file, List<KeyObjectSummary> summaries) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8))) {
+            for (KeyObjectSummary summary : summaries) {
+                writer.write(escape(summary.getKey()));
+                writer.write('\t');
+                writer.write(Long.toString(summary.getSize()));
+                writer.write('\t');
+                writer.write(summary.getETag() == null ? "" : summary.getETag());
+                writer.write('\n');
+            }
+        }
+    }
+
+    public static List<KeyObjectSummary> read(File file, String bucket) throws IOException {
+        final List<KeyObjectSummary> summaries = new ArrayList<KeyObjectSummary>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.length() == 0) continue;
+
+                final String[] fields = line.split("\t", -1);
+                if (fields.length != 3) throw new IOException(file + ":" + lineNumber + ": expected key, size and ETag separated by tabs");
+
+                final KeyObjectSummary summary = new KeyObjectSummary();
+                summary.setBucketName(bucket);
+                summary.setKey(unescape(fields[0]));
+                try {
+                    summary.setSize(Long.parseLong(fields[1]));
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + lineNumber + ": invalid size " + fields[1]);
+                }
+                if (fields[2].length() > 0) summary.setETag(fields[2]);
+                summaries.add(summary);
+            }
+        }
+        return summaries;
+    }
+
+    static String escape(String key) {
+        final StringBuilder b = new StringBuilder(key.length());
+        for (char c : key.toCharArray()) {
+            switch (c) {
+                case '\\': b.append("\\\\"); break;
+                case '\t': b.append("\\t"); break;
+                case '\n': b.append("\\n"); break;
+                case '\r': b.append("\\r"); break;
+                default: b.append(c);
+            }
+        }
+        return b.toString();
+    }
+
+    static String unescape(String field) {
+        final StringBuilder b = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            final char c = field.charAt(i);
+            if (c != '\\' || i == field.length() - 1) {
+                b.append(c);
+                continue;
+            }
+            final char next = field.charAt(++i);
+            switch (next) {
+                case 't': b.append('\t'); break;
+                case 'n': b.append('\n'); break;
+                case 'r': b.append('\r'); break;
+                default: b.append(next);
+            }
+        }
+        return b.toString();
+    }
+}
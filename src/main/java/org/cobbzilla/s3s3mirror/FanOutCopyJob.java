@@ -0,0 +1,371 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.GB;
+
+/**
+ * Copies a key to the destination and every --extra-destination, reading it from the source only once. Each
+ * destination has a KeyCopyJob of its own context (a leg), which decides whether the key is copied there and counts
+ * the result in the stats of that destination. Objects up to the single upload size are read into memory and put to
+ * all destinations at the same time, larger ones are read part by part and each part is uploaded to all destinations
+ * at the same time. A destination that fails drops out, the others go on. The job fails if any destination failed,
+ * and when it runs again only those destinations still need the key. With --checksum the MD5 of what was read is
+ * compared with the one of the source before the object or the upload is completed, and every request carries the
+ * Content-MD5 of its bytes.
+ */
+@Slf4j
+public class FanOutCopyJob extends KeyCopyJob {
+
+    // objects and parts are buffered in byte arrays
+    public static final long MAX_BUFFER_SIZE = GB;
+
+    private final List<KeyCopyJob> legs = new ArrayList<KeyCopyJob>();
+    private final List<KeyCopyJob> failedLegs = new ArrayList<KeyCopyJob>();
+
+    public FanOutCopyJob(MirrorContext context, KeyObjectSummary summary, JobSignal notifyLock) {
+        super(context, summary, notifyLock);
+        legs.add(new KeyCopyJob(context, summary, notifyLock));
+        for (MirrorContext destination : context.getExtraDestinations()) {
+            legs.add(new KeyCopyJob(destination, summary, notifyLock));
+        }
+    }
+
+    @Override public Logger getLog() { return log; }
+
+    // the source GET and an upload to every destination
+    @Override public int getConnectionsNeeded() { return 1 + legs.size(); }
+
+    @Override
+    protected void countFailure() {
+        for (KeyCopyJob leg : failedLegs) leg.countFailure();
+    }
+
+    private static class Target {
+        final KeyCopyJob leg;
+        ObjectMetadata metadata;
+        String uploadId;
+        final List<PartETag> partETags = new ArrayList<PartETag>();
+        volatile boolean failed = false;
+        volatile boolean copied = false;
+
+        Target(KeyCopyJob leg) { this.leg = leg; }
+
+        MirrorContext getContext() { return leg.context; }
+        MirrorOptions getOptions() { return leg.context.getOptions(); }
+        AmazonS3 getClient() { return leg.context.getDestinationClient(); }
+        String getBucket() { return getOptions().getDestinationBucket(); }
+        String getKey() { return leg.keydest; }
+
+        @Override public String toString() { return getBucket() + "/" + getKey(); }
+    }
+
+    private interface TargetRequest {
+        void send(Target target);
+    }
+
+    @Override
+    public void run() {
+        final MirrorOptions options = context.getOptions();
+        final String key = summary.getKey();
+        final List<Target> targets = new ArrayList<Target>();
+        boolean transferring = false;
+        failedLegs.clear();
+        try {
+            for (KeyCopyJob leg : legs) {
+                leg.resetFailure();
+                if (leg.shouldTransfer()) {
+                    targets.add(new Target(leg));
+                } else if (leg.isFailed()) {
+                    failedLegs.add(leg);
+                }
+            }
+            if (targets.isEmpty()) return;
+
+            if (options.isDryRun()) {
+                for (Target target : targets) log.info("Would have copied {} to {}.", key, target);
+                return;
+            }
+
+            transferring = true;
+            final ObjectMetadata sourceMetadata;
+            try {
+                sourceMetadata = getSourceObjectMetadata(key);
+            } catch (FileNotFoundException e) {
+                log.error("Key {} not found anymore.", key, e);
+                for (Target target : targets) target.failed = true;
+                return;
+            }
+            if (options.isVerbose()) logMetadata("source", sourceMetadata);
+
+            final long objectSize = getRealObjectSize(sourceMetadata);
+            for (Target target : targets) target.metadata = target.leg.buildDestinationMetadata(sourceMetadata);
+            final String sourceDigest = getSourceDigest(sourceMetadata);
+
+            final long maxSingleRequestSize = options.getMaxSingleRequestUploadSize() == 0
+                    ? MAX_BUFFER_SIZE : Math.min(options.getMaxSingleRequestUploadSize(), MAX_BUFFER_SIZE);
+            if (objectSize <= maxSingleRequestSize) {
+                putObject(targets, objectSize, sourceDigest);
+            } else {
+                uploadParts(targets, objectSize, sourceDigest);
+            }
+
+            for (Target target : active(targets)) {
+                target.copied = true;
+                target.leg.addBytesCopied(objectSize);
+                target.getContext().getStats().objectsCopied.incrementAndGet();
+            }
+        } catch (Exception e) {
+            log.error("Error copying key {}.", key, e);
+            transferring = true;
+        } finally {
+            for (Target target : targets) {
+                if (transferring && !target.copied) {
+                    failedLegs.add(target.leg);
+                    if (getLastError() == null) setLastError(target.leg.getLastError());
+                }
+            }
+            if (!failedLegs.isEmpty()) fail();
+            notifyLock.signalAll();
+            if (options.isVerbose()) log.info("Done with {}.", key);
+        }
+    }
+
+    private static List<Target> active(List<Target> targets) {
+        final List<Target> active = new ArrayList<Target>();
+        for (Target target : targets) {
+            if (!target.failed) active.add(target);
+        }
+        return active;
+    }
+
+    /**
+     * @return true if requests to the target may carry a Content-MD5 of the plaintext
+     */
+    private static boolean isMD5Checked(Target target) {
+        return !MirrorEncryption.isCSE(target.getOptions().getDestinationProfile().getEncryption());
+    }
+
+    private void putObject(List<Target> targets, long objectSize, final String sourceDigest) {
+        final byte[] data = new byte[(int) objectSize];
+        final MessageDigest digest = context.getOptions().isChecksum() ? ContentDigest.newDigest() : null;
+        final RetryPolicy.Retry retry = beginRetry(RetryPolicy.Operation.GET, context.getOptions().getSourceProfile());
+        for (int tries = 1; ; tries++) {
+            S3ObjectInputStream objectStream = null;
+            try {
+                objectStream = openSource();
+                readFully(objectStream, data, data.length);
+                closeS3ObjectInputStream(objectStream);
+                objectStream = null;
+                if (digest != null) {
+                    digest.reset();
+                    digest.update(data);
+                    checkDigest(digest, sourceDigest);
+                }
+                retry.succeeded();
+                break;
+            } catch (SdkClientException e) {
+                log.error("Client exception reading {} (try#{}).", summary.getKey(), tries, e);
+                if (tries >= context.getOptions().getMaxRetries() || !retry.backoff(e)) throw e;
+            } finally {
+                if (objectStream != null) objectStream.abort();
+            }
+        }
+
+        forEach(targets, RetryPolicy.Operation.PUT, new TargetRequest() {
+            @Override public void send(Target target) {
+                if (sourceDigest != null && isMD5Checked(target)) target.metadata.setContentMD5(ContentDigest.toContentMD5(sourceDigest));
+                final PutObjectRequest putRequest = new PutObjectRequest(target.getBucket(), target.getKey(),
+                        new ByteArrayInputStream(data), target.metadata)
+                        .withCannedAcl(CannedAccessControlList.BucketOwnerFullControl)
+                        .withStorageClass(StorageClass.valueOf(target.getOptions().getStorageClass()));
+                target.leg.setupSSEEncryption(putRequest, target.getContext().getDestinationSSEKey());
+
+                target.getContext().getStats().s3putCount.incrementAndGet();
+                target.getClient().putObject(putRequest);
+            }
+        });
+    }
+
+    private void uploadParts(List<Target> targets, long objectSize, String sourceDigest) {
+        final MirrorOptions options = context.getOptions();
+        final long partSize = Math.min(new PartSizer(options, context.getStats()).getPartSize(objectSize, false), MAX_BUFFER_SIZE);
+        final byte[] buffer = new byte[(int) Math.min(partSize, objectSize)];
+        if (options.isVerbose()) log.info("Using part size {} for {} (size {}, {} parts, {} destinations).", partSize,
+                summary.getKey(), objectSize, PartSizer.ceilDiv(objectSize, partSize), targets.size());
+
+        final RetryPolicy.Retry retry = beginRetry(RetryPolicy.Operation.GET, options.getSourceProfile());
+        for (int tries = 1; tries <= options.getMaxRetries(); tries++) {
+            S3ObjectInputStream objectStream = null;
+            SdkClientException lastException;
+            try {
+                forEach(active(targets), RetryPolicy.Operation.MULTIPART, new TargetRequest() {
+                    @Override public void send(Target target) { initiate(target); }
+                });
+                objectStream = openSource();
+                // the MD5 of the whole object is computed on the way, the one of every part is sent with it
+                final MessageDigest digest = options.isChecksum() ? ContentDigest.newDigest() : null;
+                final MessageDigest partDigest = options.isChecksum() ? ContentDigest.newDigest() : null;
+
+                long bytePosition = 0;
+                for (int i = 1; bytePosition < objectSize && !active(targets).isEmpty(); i++) {
+                    final int length = (int) Math.min(partSize, objectSize - bytePosition);
+                    final int partNumber = i;
+                    final boolean isLast = bytePosition + length >= objectSize;
+                    readFully(objectStream, buffer, length);
+                    String partMD5 = null;
+                    if (digest != null) {
+                        digest.update(buffer, 0, length);
+                        partDigest.update(buffer, 0, length);
+                        partMD5 = ContentDigest.toContentMD5(ContentDigest.toHex(partDigest));
+                    }
+                    final String md5 = partMD5;
+
+                    forEach(active(targets), RetryPolicy.Operation.UPLOAD_PART, new TargetRequest() {
+                        @Override public void send(Target target) { uploadPart(target, partNumber, buffer, length, isLast, md5); }
+                    });
+                    bytePosition += length;
+                }
+                if (bytePosition >= objectSize) {
+                    closeS3ObjectInputStream(objectStream);
+                    objectStream = null;
+                    // before completing, the destinations keep their old objects if the copy differs
+                    if (digest != null) checkDigest(digest, sourceDigest);
+                }
+
+                forEach(active(targets), RetryPolicy.Operation.MULTIPART, new TargetRequest() {
+                    @Override public void send(Target target) {
+                        target.getClient().completeMultipartUpload(new CompleteMultipartUploadRequest(
+                                target.getBucket(), target.getKey(), target.uploadId, target.partETags));
+                    }
+                });
+                retry.succeeded();
+                return;
+            } catch (SdkClientException e) {
+                // the source failed, all destinations start over
+                lastException = e;
+                log.error("Client exception reading {} (try#{}).", summary.getKey(), tries, e);
+                for (Target target : active(targets)) abort(target);
+            } finally {
+                if (objectStream != null) objectStream.abort();
+            }
+            if (!retry.backoff(lastException)) break;
+        }
+        log.error("Giving up on reading {}.", summary.getKey());
+        for (Target target : targets) target.failed = true;
+    }
+
+    private void initiate(Target target) {
+        if (target.uploadId != null) return;
+        final InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(target.getBucket(), target.getKey())
+                .withObjectMetadata(target.metadata)
+                .withCannedACL(CannedAccessControlList.BucketOwnerFullControl)
+                .withStorageClass(StorageClass.valueOf(target.getOptions().getStorageClass()));
+        target.leg.setupSSEEncryption(initiateRequest, target.getContext().getDestinationSSEKey());
+        target.uploadId = target.getClient().initiateMultipartUpload(initiateRequest).getUploadId();
+    }
+
+    /**
+     * @param md5 the Content-MD5 of the part, or null
+     */
+    private void uploadPart(Target target, int partNumber, byte[] buffer, int length, boolean isLast, String md5) {
+        final UploadPartRequest uploadRequest = new UploadPartRequest()
+                .withBucketName(target.getBucket())
+                .withKey(target.getKey())
+                .withUploadId(target.uploadId)
+                .withInputStream(new ByteArrayInputStream(buffer, 0, length))
+                .withPartSize(length)
+                .withPartNumber(partNumber)
+                .withLastPart(isLast);
+        if (md5 != null && isMD5Checked(target)) uploadRequest.setMd5Digest(md5);
+        target.leg.setupSSEEncryption(uploadRequest, target.getContext().getDestinationSSEKey());
+
+        final MirrorStats stats = target.getContext().getStats();
+        stats.s3putCount.incrementAndGet();
+        final long partStart = System.currentTimeMillis();
+        final UploadPartResult result = target.getClient().uploadPart(uploadRequest);
+        stats.recordPartUpload(length, System.currentTimeMillis() - partStart);
+        target.partETags.add(result.getPartETag());
+    }
+
+    private void abort(Target target) {
+        if (target.uploadId == null) return;
+        try {
+            target.getClient().abortMultipartUpload(new AbortMultipartUploadRequest(target.getBucket(), target.getKey(), target.uploadId));
+        } catch (SdkClientException e) {
+            log.warn("Error aborting the upload of {}.", target, e);
+        }
+        target.uploadId = null;
+        target.partETags.clear();
+    }
+
+    /**
+     * Sends a request to every target at the same time, each with the retries of its own destination. A target that
+     * runs out of retries fails and drops out.
+     */
+    private void forEach(List<Target> targets, final RetryPolicy.Operation operation, final TargetRequest request) {
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final Target target : targets) {
+            futures.add(context.getFanOutExecutor().submit(new Runnable() {
+                @Override public void run() {
+                    if (!send(target, operation, request)) {
+                        target.failed = true;
+                        abort(target);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AbortedException("Interrupted waiting for the destinations of " + summary.getKey(), e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Unexpected error sending " + operation + " for " + summary.getKey(), e.getCause());
+            }
+        }
+    }
+
+    private boolean send(Target target, RetryPolicy.Operation operation, TargetRequest request) {
+        final MirrorOptions options = target.getOptions();
+        final RetryPolicy.Retry retry = target.leg.beginRetry(operation, options.getDestinationProfile());
+        // the encryption client can't send a part again, the whole object is tried again instead
+        final int maxTries = operation == RetryPolicy.Operation.UPLOAD_PART
+                && MirrorEncryption.isCSE(options.getDestinationProfile().getEncryption()) ? 1 : options.getMaxRetries();
+        for (int tries = 1; tries <= maxTries; tries++) {
+            SdkClientException lastException;
+            try {
+                request.send(target);
+                retry.succeeded();
+                return true;
+            } catch (SdkClientException e) {
+                lastException = e;
+                log.error("{} request for {} failed (try#{}).", operation, target, tries, e);
+            }
+            if (!retry.backoff(lastException)) break;
+        }
+        log.error("Giving up on copying {} to {}.", summary.getKey(), target);
+        return false;
+    }
+
+    private S3ObjectInputStream openSource() {
+        final GetObjectRequest getRequest = new GetObjectRequest(context.getOptions().getSourceBucket(), summary.getKey());
+        setupSSEEncryption(getRequest, context.getSourceSSEKey());
+        context.getStats().s3getCount.incrementAndGet();
+        return context.getSourceClient().getObject(getRequest).getObjectContent();
+    }
+}
@@ -0,0 +1,43 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out a list of keys that is known in advance instead of listing a bucket.
+ */
+@Slf4j
+public class FixedKeyLister extends KeyLister {
+
+    private final List<KeyObjectSummary> summaries;
+
+    public FixedKeyLister(MirrorContext context, List<KeyObjectSummary> summaries) {
+        this.summaries = new ArrayList<KeyObjectSummary>(summaries);
+        context.getStats().objectsRead.addAndGet(summaries.size());
+        if (context.getOptions().isVerbose()) log.info("Added {} keys.", summaries.size());
+    }
+
+    @Override
+    public boolean isDone() { return true; }
+
+    @Override
+    public void run() {}
+
+    @Override
+    protected int getSize() {
+        synchronized (summaries) {
+            return summaries.size();
+        }
+    }
+
+    @Override
+    public List<KeyObjectSummary> getNextBatch() {
+        synchronized (summaries) {
+            final List<KeyObjectSummary> copy = new ArrayList<KeyObjectSummary>(summaries);
+            summaries.clear();
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.Getter;
+import org.bouncycastle.crypto.modes.gcm.GCMExponentiator;
+import org.bouncycastle.crypto.modes.gcm.GCMMultiplier;
+import org.bouncycastle.crypto.modes.gcm.GCMUtil;
+import org.bouncycastle.crypto.modes.gcm.Tables1kGCMExponentiator;
+import org.bouncycastle.crypto.modes.gcm.Tables8kGCMMultiplier;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * Encrypts the parts of a single AES/GCM/NoPadding ciphertext independently of each other, so they can be encrypted
+ * on several cores at the same time.
+ *
+ * GCM is CTR mode plus a GHASH over the ciphertext. The counter of every block follows from its offset, so a part is
+ * encrypted with AES/CTR starting at the counter of its first block. GHASH is linear: the GHASH of two parts joined
+ * is GHASH(first) * H^blocks(second) + GHASH(second). Each part yields its partial GHASH, and tag() joins them into
+ * the tag that the whole ciphertext would have had. The result is the same as encrypting everything with one
+ * AES/GCM/NoPadding cipher with a 128 bit tag and no additional data.
+ *
+ * All parts but the last one must be a multiple of the block size.
+ */
+public class GcmParts {
+
+    public static final int BLOCK_SIZE = 16;
+    public static final int IV_LENGTH = 12;
+    public static final int TAG_LENGTH = 16;
+
+    // the 32 bit block counter must not wrap, which is also the GCM limit on the plaintext size
+    public static final long MAX_PLAINTEXT = ((1L << 32) - 2) * BLOCK_SIZE;
+
+    @Getter private final SecretKey key;
+    @Getter private final byte[] iv;
+
+    private final byte[] h;
+    private final byte[] encryptedJ0;
+
+    public GcmParts(SecretKey key, byte[] iv) {
+        if (iv.length != IV_LENGTH) throw new IllegalArgumentException("The IV must have " + IV_LENGTH + " bytes");
+        this.key = key;
+        this.iv = iv.clone();
+        try {
+            final Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+            aes.init(Cipher.ENCRYPT_MODE, key);
+            h = aes.doFinal(new byte[BLOCK_SIZE]);
+            encryptedJ0 = aes.doFinal(counterBlock(1));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not initialize AES.", e);
+        }
+    }
+
+    private byte[] counterBlock(int counter) {
+        return ByteBuffer.allocate(BLOCK_SIZE).put(iv).putInt(counter).array();
+    }
+
+    public static long blocks(long length) { return (length + BLOCK_SIZE - 1) / BLOCK_SIZE; }
+
+    /**
+     * Encrypts a part in place. Safe to call from several threads.
+     *
+     * @param offset the offset of the part in the plaintext, a multiple of the block size
+     * @param data the plaintext of the part, replaced by its ciphertext
+     * @param length the length of the part
+     * @return the partial GHASH of the part, see tag()
+     */
+    public byte[] encrypt(long offset, byte[] data, int length) {
+        if (offset % BLOCK_SIZE != 0) throw new IllegalArgumentException("Part offset " + offset + " is not a multiple of " + BLOCK_SIZE);
+        if (offset + length > MAX_PLAINTEXT) throw new IllegalArgumentException("GCM can't encrypt more than " + MAX_PLAINTEXT + " bytes");
+        try {
+            // block 0 of the plaintext uses counter 2, counter 1 is for the tag
+            final Cipher ctr = Cipher.getInstance("AES/CTR/NoPadding");
+            ctr.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counterBlock((int) (2 + offset / BLOCK_SIZE))));
+            ctr.doFinal(data, 0, length, data, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not encrypt part at offset " + offset + ".", e);
+        }
+
+        final GCMMultiplier multiplier = new Tables8kGCMMultiplier();
+        multiplier.init(h);
+        final byte[] ghash = new byte[BLOCK_SIZE];
+        for (int pos = 0; pos < length; pos += BLOCK_SIZE) {
+            // the last block is padded with zeros
+            GCMUtil.xor(ghash, 0, data, pos, Math.min(BLOCK_SIZE, length - pos));
+            multiplier.multiplyH(ghash);
+        }
+        return ghash;
+    }
+
+    /**
+     * @param partials the partial GHASH of every part, in order
+     * @param lengths the length of every part, in order
+     * @return the authentication tag, which is appended to the ciphertext of the last part
+     */
+    public byte[] tag(byte[][] partials, long[] lengths) {
+        if (partials.length != lengths.length) throw new IllegalArgumentException("Got " + partials.length + " hashes for " + lengths.length + " parts");
+
+        final GCMExponentiator exponentiator = new Tables1kGCMExponentiator();
+        exponentiator.init(h);
+        final byte[] power = new byte[BLOCK_SIZE];
+
+        final byte[] ghash = new byte[BLOCK_SIZE];
+        long total = 0;
+        for (int i = 0; i < partials.length; i++) {
+            if (i < partials.length - 1 && lengths[i] % BLOCK_SIZE != 0) {
+                throw new IllegalArgumentException("Part " + (i + 1) + " is not a multiple of " + BLOCK_SIZE);
+            }
+            exponentiator.exponentiateX(blocks(lengths[i]), power);
+            GCMUtil.multiply(ghash, power);
+            GCMUtil.xor(ghash, partials[i]);
+            total += lengths[i];
+        }
+
+        // the lengths in bits of the additional data (none) and of the ciphertext
+        GCMUtil.xor(ghash, ByteBuffer.allocate(BLOCK_SIZE).putLong(0).putLong(total * 8).array());
+        GCMUtil.multiply(ghash, h);
+        GCMUtil.xor(ghash, encryptedJ0);
+        return ghash;
+    }
+}
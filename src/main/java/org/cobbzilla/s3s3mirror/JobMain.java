@@ -0,0 +1,282 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.kohsuke.args4j.CmdLineParser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.amazonaws.SDKGlobalConfiguration.DISABLE_CERT_CHECKING_SYSTEM_PROPERTY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Mirrors the pairs of a --job-file in one process. Every line of the file is parsed like the arguments of a single
+ * mirror, after the other arguments of the command line. Up to --job-pairs pairs run at the same time, each with its
+ * own MirrorMaster, lanes and stats, and all of them share --max-threads workers (see SharedWorkers). A profile is
+ * loaded (and its key derived) only once, and all pairs that use a profile share its client and connection pool.
+ */
+@Slf4j
+public class JobMain {
+
+    @Getter private final String jobFile;
+    @Getter private final int jobPairs;
+    @Getter private final int workers;
+    private final List<String> defaultArgs = new ArrayList<String>();
+
+    @Getter private final List<Pair> pairs = new ArrayList<Pair>();
+    private final Map<String, MirrorProfile> profiles = new HashMap<String, MirrorProfile>();
+    private final Map<String, AmazonS3> clients = new HashMap<String, AmazonS3>();
+    private final AtomicInteger failedPairs = new AtomicInteger(0);
+    private final long start = System.currentTimeMillis();
+
+    public static boolean isJob(String[] args) {
+        return Arrays.asList(args).contains(MirrorOptions.LONGOPT_JOB_FILE);
+    }
+
+    public static void main(String[] args) {
+        final JobMain job;
+        try {
+            job = new JobMain(args);
+            job.parsePairs();
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            new CmdLineParser(new MirrorOptions()).printUsage(System.err);
+            System.exit(1);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override public void run() {
+                job.stopPairs();
+                job.getTotalStats().logStats();
+            }
+        });
+        job.run();
+    }
+
+    public JobMain(String[] args) {
+        String jobFile = null;
+        int jobPairs = new MirrorOptions().getJobPairs();
+        int workers = new MirrorOptions().getMaxThreads();
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals(MirrorOptions.LONGOPT_JOB_FILE)) {
+                jobFile = getValue(args, ++i);
+            } else if (arg.equals(MirrorOptions.LONGOPT_JOB_PAIRS)) {
+                jobPairs = Integer.parseInt(getValue(args, ++i));
+            } else {
+                // the pairs get --max-threads too, every pair may use all workers while the others are idle
+                if (arg.equals(MirrorOptions.OPT_MAX_THREADS) || arg.equals(MirrorOptions.LONGOPT_MAX_THREADS)) {
+                    workers = Integer.parseInt(getValue(args, i + 1));
+                }
+                defaultArgs.add(arg);
+            }
+        }
+        if (jobFile == null) throw new IllegalStateException("No " + MirrorOptions.LONGOPT_JOB_FILE + " specified");
+        if (jobPairs < 1) throw new IllegalStateException(MirrorOptions.LONGOPT_JOB_PAIRS + " must be at least 1");
+        this.jobFile = jobFile;
+        this.jobPairs = jobPairs;
+        this.workers = workers;
+    }
+
+    private static String getValue(String[] args, int i) {
+        if (i >= args.length) throw new IllegalStateException("Option " + args[i - 1] + " needs a value");
+        return args[i];
+    }
+
+    /**
+     * Parses every line of the job file, so that a mistake in any line stops the job before it starts.
+     */
+    public void parsePairs() throws IOException {
+        final List<String> lines = Files.readAllLines(Paths.get(jobFile), UTF_8);
+        for (int i = 0; i < lines.size(); i++) {
+            final String line = lines.get(i).trim();
+            if (line.length() == 0 || line.startsWith("#")) continue;
+
+            final List<String> pairArgs = new ArrayList<String>(defaultArgs);
+            pairArgs.addAll(tokenize(line));
+            final Pair pair = new Pair(pairArgs.toArray(new String[pairArgs.size()]), i + 1);
+            try {
+                pair.parseArguments();
+            } catch (Exception e) {
+                throw new IllegalStateException(jobFile + " line " + (i + 1) + ": " + e.getMessage(), e);
+            }
+            if (pair.getOptions().getJobFile() != null) {
+                throw new IllegalStateException(jobFile + " line " + (i + 1) + ": a pair can't have a " + MirrorOptions.LONGOPT_JOB_FILE);
+            }
+            pairs.add(pair);
+        }
+        if (pairs.isEmpty()) throw new IllegalStateException("No pairs in " + jobFile);
+    }
+
+    /**
+     * Splits a line into arguments at whitespace. Double quotes keep an argument with whitespace together.
+     */
+    static List<String> tokenize(String line) {
+        final List<String> tokens = new ArrayList<String>();
+        final StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        boolean inToken = false;
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                inToken = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (inToken) tokens.add(token.toString());
+                token.setLength(0);
+                inToken = false;
+            } else {
+                token.append(c);
+                inToken = true;
+            }
+        }
+        if (quoted) throw new IllegalStateException("Unbalanced quotes: " + line);
+        if (inToken) tokens.add(token.toString());
+        return tokens;
+    }
+
+    public void run() {
+        log.info("Mirroring {} pairs of {}, {} at a time with {} workers.", pairs.size(), jobFile, jobPairs, workers);
+        final SharedWorkers sharedWorkers = new SharedWorkers(workers);
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(jobPairs, pairs.size()));
+        for (final Pair pair : pairs) {
+            executor.execute(new Runnable() {
+                @Override public void run() { pair.mirror(sharedWorkers); }
+            });
+        }
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.info("{} of {} pairs done.", getDone(), pairs.size());
+            }
+        } catch (InterruptedException e) {
+            log.error("Interrupted while waiting for the pairs.");
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        if (failedPairs.get() > 0) log.error("{} of {} pairs failed.", failedPairs.get(), pairs.size());
+    }
+
+    private int getDone() {
+        int done = 0;
+        for (Pair pair : pairs) {
+            if (pair.done) done++;
+        }
+        return done;
+    }
+
+    /**
+     * Stops all running pairs at once and waits for their keys in flight, at most the longest --shutdown-grace.
+     */
+    void stopPairs() {
+        long graceMillis = 0;
+        for (Pair pair : pairs) {
+            if (pair.getMaster() == null) continue;
+            pair.getMaster().requestStop();
+            graceMillis = Math.max(graceMillis, TimeUnit.SECONDS.toMillis(pair.getOptions().getShutdownGrace()));
+        }
+        final long deadline = System.currentTimeMillis() + graceMillis;
+        for (Pair pair : pairs) {
+            if (pair.getMaster() == null) continue;
+            pair.getMaster().awaitStop(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * @return the stats of all destinations of all pairs that have started
+     */
+    public MirrorStats getTotalStats() {
+        final MirrorStats total = new MirrorStats(start);
+        int started = 0;
+        for (Pair pair : pairs) {
+            final MirrorContext context = pair.getContext();
+            if (context == null) continue;
+            started++;
+            context.getStats().addTo(total);
+            for (MirrorContext extra : context.getExtraDestinations()) extra.getStats().addTo(total);
+        }
+        total.setLabel("all pairs, " + started + " of " + pairs.size() + " started, " + failedPairs.get() + " failed");
+        return total;
+    }
+
+    /**
+     * Loads a profile the first time a pair uses it.
+     */
+    protected MirrorProfile loadProfile(Pair pair, String name) throws Exception {
+        return pair.loadFromS3Config(name);
+    }
+
+    /**
+     * A line of the job file. Profiles and clients come from the JobMain, so that pairs share them.
+     */
+    public class Pair extends MirrorMain {
+
+        @Getter private final int line;
+        private volatile boolean done = false;
+
+        Pair(String[] args, int line) {
+            super(args);
+            this.line = line;
+        }
+
+        @Override
+        protected MirrorProfile loadProfile(String name) throws Exception {
+            synchronized (profiles) {
+                MirrorProfile profile = profiles.get(name);
+                if (profile == null) {
+                    profile = JobMain.this.loadProfile(this, name);
+                    profiles.put(name, profile);
+                }
+                return profile;
+            }
+        }
+
+        MirrorProfile loadFromS3Config(String name) throws Exception { return super.loadProfile(name); }
+
+        @Override
+        protected AmazonS3 getAmazonS3Client(MirrorProfile profile, boolean plain) {
+            final String key = profile.getName() + (plain ? ":plain" : "");
+            synchronized (clients) {
+                AmazonS3 client = clients.get(key);
+                if (client == null) {
+                    client = super.getAmazonS3Client(profile, plain);
+                    clients.put(key, client);
+                }
+                return client;
+            }
+        }
+
+        public String getLabel() {
+            final MirrorOptions options = getOptions();
+            return "line " + line + ": " + options.getSourceBucket() + (options.hasSourcePrefix() ? "/" + options.getSourcePrefix() : "")
+                    + " -> " + options.getDestinationBucket() + (options.hasDestinationPrefix() ? "/" + options.getDestinationPrefix() : "");
+        }
+
+        void mirror(SharedWorkers sharedWorkers) {
+            try {
+                if (getOptions().isDisableCertCheck()) System.setProperty(DISABLE_CERT_CHECKING_SYSTEM_PROPERTY, "true");
+                initContext();
+                getContext().getStats().setLabel(getLabel());
+                getMaster().setSharedWorkers(sharedWorkers);
+                log.info("Starting {}.", getLabel());
+                getMaster().mirror();
+                getContext().getStats().logStats();
+                for (MirrorContext extra : getContext().getExtraDestinations()) extra.getStats().logStats();
+                if (getContext().hasErrors()) failedPairs.incrementAndGet();
+            } catch (Exception e) {
+                log.error("Error mirroring {}.", getLabel(), e);
+                failedPairs.incrementAndGet();
+            } finally {
+                done = true;
+            }
+        }
+    }
+}
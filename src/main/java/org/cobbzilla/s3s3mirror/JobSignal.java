@@ -0,0 +1,33 @@
+package org.cobbzilla.s3s3mirror;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lets a KeyMaster that waits for room in a lane wake up as soon as a job is done. Uses a lock instead of
+ * synchronized and Object.wait, which would pin a virtual thread to its carrier thread.
+ */
+public class JobSignal {
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition done = lock.newCondition();
+
+    public void signalAll() {
+        lock.lock();
+        try {
+            done.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void await(long millis) throws InterruptedException {
+        lock.lock();
+        try {
+            done.await(millis, TimeUnit.MILLISECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
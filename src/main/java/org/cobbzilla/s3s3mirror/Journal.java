@@ -0,0 +1,279 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The append-only --journal of a run, so that --resume can go on where a run that was killed stopped. Every listing
+ * (a partition, see KeyMaster) writes these records, one per line with tabs between the fields:
+ *
+ * M partition key: every key up to this one is done, the next run starts listing after it
+ * D partition key: this key is done, but some key before it isn't yet
+ * F partition key size etag: this key failed, the next run tries it first
+ *
+ * Records are buffered and flushed every FLUSH_RECORDS records or FLUSH_MILLIS, the marker only when flushed. A
+ * resumed journal is compacted first: it keeps the marker, the keys done after it and the keys that failed.
+ */
+@Slf4j
+public class Journal {
+
+    public static final int FLUSH_RECORDS = 1000;
+    public static final long FLUSH_MILLIS = 1000;
+
+    private static final String MARKER = "M";
+    private static final String DONE = "D";
+    private static final String FAILED = "F";
+
+    private final File file;
+    private final Map<String, Partition> partitions = new LinkedHashMap<String, Partition>();
+    private Writer writer;
+    private int unflushed = 0;
+    private long lastFlush = System.currentTimeMillis();
+
+    private Journal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param resume true to load the journal and go on with it, false to start a new one
+     */
+    public static Journal open(File file, boolean resume) throws IOException {
+        final Journal journal = new Journal(file);
+        if (resume && file.exists()) {
+            journal.load();
+            journal.compact();
+            for (Partition partition : journal.partitions.values()) {
+                log.info("Resuming {} after {} with {} keys done and {} failed.", partition.name,
+                        partition.marker, partition.done.size(), partition.failed.size());
+            }
+        } else if (resume) {
+            log.warn("No journal {} to resume, starting from the first key.", file);
+        }
+        journal.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, resume), UTF_8));
+        return journal;
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.length() == 0) continue;
+                final String[] fields = line.split("\t", -1);
+                if (fields.length < 3) {
+                    // the last line may be cut off by a kill
+                    log.warn("{}:{}: skipping incomplete record.", file, lineNumber);
+                    continue;
+                }
+                final Partition partition = partition(FailureList.unescape(fields[1]));
+                final String key = FailureList.unescape(fields[2]);
+                if (fields[0].equals(MARKER)) {
+                    partition.marker = key;
+                } else if (fields[0].equals(DONE)) {
+                    partition.done.add(key);
+                    partition.failed.remove(key);
+                } else if (fields[0].equals(FAILED) && fields.length == 5) {
+                    final KeyObjectSummary summary = new KeyObjectSummary();
+                    summary.setKey(key);
+                    try {
+                        summary.setSize(Long.parseLong(fields[3]));
+                    } catch (NumberFormatException e) {
+                        log.warn("{}:{}: skipping record with invalid size.", file, lineNumber);
+                        continue;
+                    }
+                    if (fields[4].length() > 0) summary.setETag(fields[4]);
+                    partition.failed.put(key, summary);
+                    partition.done.remove(key);
+                } else {
+                    log.warn("{}:{}: skipping unknown record.", file, lineNumber);
+                }
+            }
+        }
+        for (Partition partition : partitions.values()) {
+            if (partition.marker == null) continue;
+            final Iterator<String> done = partition.done.iterator();
+            while (done.hasNext()) {
+                if (Shard.compareKeys(done.next(), partition.marker) <= 0) done.remove();
+            }
+            // a failed key after the marker is listed again anyway
+            final Iterator<String> failed = partition.failed.keySet().iterator();
+            while (failed.hasNext()) {
+                if (Shard.compareKeys(failed.next(), partition.marker) > 0) failed.remove();
+            }
+        }
+    }
+
+    private void compact() throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF_8))) {
+            for (Partition partition : partitions.values()) {
+                if (partition.marker != null) write(out, MARKER, partition.name, partition.marker);
+                for (String key : partition.done) write(out, DONE, partition.name, key);
+                for (KeyObjectSummary summary : partition.failed.values()) writeFailed(out, partition.name, summary);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void write(Writer out, String type, String partition, String key) throws IOException {
+        out.write(type + "\t" + FailureList.escape(partition) + "\t" + FailureList.escape(key) + "\n");
+    }
+
+    private static void writeFailed(Writer out, String partition, KeyObjectSummary summary) throws IOException {
+        out.write(FAILED + "\t" + FailureList.escape(partition) + "\t" + FailureList.escape(summary.getKey()) + "\t"
+                + summary.getSize() + "\t" + (summary.getETag() == null ? "" : summary.getETag()) + "\n");
+    }
+
+    public synchronized Partition partition(String name) {
+        Partition partition = partitions.get(name);
+        if (partition == null) {
+            partition = new Partition(name);
+            partitions.put(name, partition);
+        }
+        return partition;
+    }
+
+    private synchronized void append(String type, Partition partition, KeyObjectSummary summary) {
+        if (writer == null) return;
+        try {
+            if (type.equals(FAILED)) {
+                writeFailed(writer, partition.name, summary);
+            } else {
+                write(writer, type, partition.name, summary.getKey());
+            }
+            unflushed++;
+            if (unflushed >= FLUSH_RECORDS || System.currentTimeMillis() - lastFlush >= FLUSH_MILLIS) flush();
+        } catch (IOException e) {
+            log.error("Error writing to journal {}, not journaling anymore.", file, e);
+            closeQuietly();
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        if (writer == null) return;
+        for (Partition partition : partitions.values()) {
+            final String marker = partition.getNewMarker();
+            if (marker != null) write(writer, MARKER, partition.name, marker);
+        }
+        writer.flush();
+        unflushed = 0;
+        lastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * Flushes and closes the journal, records that come in later are dropped.
+     */
+    public synchronized void close() {
+        if (writer == null) return;
+        try {
+            flush();
+            writer.close();
+        } catch (IOException e) {
+            log.error("Error closing journal {}.", file, e);
+        }
+        writer = null;
+    }
+
+    private void closeQuietly() {
+        try {
+            writer.close();
+        } catch (IOException ignored) {
+            // already failed
+        }
+        writer = null;
+    }
+
+    /**
+     * The journal of a single listing. Keys must be passed to listed() in the order of the listing.
+     */
+    public class Partition implements KeyDoneListener {
+        private final String name;
+        // loaded by --resume
+        private volatile String marker;
+        private final Set<String> done = new HashSet<String>();
+        private final Map<String, KeyObjectSummary> failed = new LinkedHashMap<String, KeyObjectSummary>();
+
+        // the keys listed since the marker, in the order of the listing, and whether they're finished
+        private final LinkedHashMap<String, Boolean> inFlight = new LinkedHashMap<String, Boolean>();
+        private String newMarker;
+        private boolean markerChanged = false;
+
+        Partition(String name) { this.name = name; }
+
+        public String getMarker() { return marker; }
+
+        /**
+         * @return true if the key was done in an earlier run
+         */
+        public boolean isDone(String key) {
+            if (marker != null && Shard.compareKeys(key, marker) <= 0) return true;
+            synchronized (Journal.this) {
+                return done.contains(key);
+            }
+        }
+
+        /**
+         * @return the keys that failed in an earlier run, once
+         */
+        public List<KeyObjectSummary> takeFailed() {
+            synchronized (Journal.this) {
+                final List<KeyObjectSummary> summaries = new ArrayList<KeyObjectSummary>(failed.values());
+                failed.clear();
+                return summaries;
+            }
+        }
+
+        public void listed(String key) {
+            synchronized (Journal.this) {
+                inFlight.put(key, false);
+            }
+        }
+
+        @Override
+        public void completed(KeyObjectSummary summary) {
+            synchronized (Journal.this) {
+                finished(summary.getKey());
+                append(DONE, this, summary);
+            }
+        }
+
+        /**
+         * The key was given up. It doesn't hold back the marker, the next run tries it first.
+         */
+        @Override
+        public void failed(KeyObjectSummary summary) {
+            synchronized (Journal.this) {
+                finished(summary.getKey());
+                append(FAILED, this, summary);
+            }
+        }
+
+        // called with the lock of the journal held
+        private void finished(String key) {
+            if (!inFlight.containsKey(key)) return;
+            inFlight.put(key, true);
+            final Iterator<Map.Entry<String, Boolean>> entries = inFlight.entrySet().iterator();
+            while (entries.hasNext()) {
+                final Map.Entry<String, Boolean> entry = entries.next();
+                if (!entry.getValue()) break;
+                newMarker = entry.getKey();
+                markerChanged = true;
+                entries.remove();
+            }
+        }
+
+        // called with the lock of the journal held
+        private String getNewMarker() {
+            if (!markerChanged) return null;
+            markerChanged = false;
+            return newMarker;
+        }
+    }
+}
@@ -1,12 +1,16 @@
 package org.cobbzilla.s3s3mirror;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.ResetException;
 import com.amazonaws.SdkClientException;
 import com.amazonaws.services.s3.model.*;
 import lombok.extern.slf4j.Slf4j;
 import org.slf4j.Logger;
 
+import java.io.File;
 import java.io.FileNotFoundException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.Date;
 
 /**
@@ -16,19 +20,34 @@ import java.util.Date;
 public class KeyCopyJob extends KeyJob {
     protected String keydest;
 
-    public KeyCopyJob(MirrorContext context, KeyObjectSummary summary, Object notifyLock) {
+    // set when copying this key on the server was denied
+    protected boolean streamOnly = false;
+
+    public KeyCopyJob(MirrorContext context, KeyObjectSummary summary, JobSignal notifyLock) {
         super(context, summary, notifyLock);
+        keydest = getDestinationKey(context.getOptions(), summary.getKey());
+    }
 
-        keydest = summary.getKey();
-        final MirrorOptions options = context.getOptions();
-        if (options.hasDestinationPrefix()) {
-            keydest = keydest.substring(options.getSourcePrefixLength());
-            keydest = options.getDestinationPrefix() + keydest;
-        }
+    static String getDestinationKey(MirrorOptions options, String key) {
+        if (!options.hasDestinationPrefix()) return key;
+        return options.getDestinationPrefix() + key.substring(options.getSourcePrefixLength());
+    }
+
+    /**
+     * @return true if the destination has the ETag of a changed key already, e.g. a full cycle copied it
+     */
+    static boolean hasSameETag(KeyObjectSummary summary, String destinationETag) {
+        if (summary.getETag() == null || destinationETag == null) return false;
+        return summary.getETag().replace("\"", "").equals(destinationETag.replace("\"", ""));
     }
 
     @Override public Logger getLog() { return log; }
 
+    // Streaming keeps the source GET open while uploading to the destination
+    @Override public int getConnectionsNeeded() { return useCopy() ? 1 : 2; }
+
+    @Override protected void countFailure() { context.getStats().copyErrors.incrementAndGet(); }
+
     @Override
     public void run() {
         final MirrorOptions options = context.getOptions();
@@ -41,16 +60,17 @@ public class KeyCopyJob extends KeyJob {
             } else {
                 if (copyKey()) {
                     context.getStats().objectsCopied.incrementAndGet();
+                    final DedupIndex dedupIndex = context.getDedupIndex();
+                    if (dedupIndex.isLoaded()) dedupIndex.add(summary.getETag(), summary.getSize(), keydest);
                 } else {
-                    context.getStats().copyErrors.incrementAndGet();
+                    fail();
                 }
             }
         } catch (Exception e) {
             log.error("Error copying key {}.", key, e);
+            fail();
         } finally {
-            synchronized (notifyLock) {
-                notifyLock.notifyAll();
-            }
+            notifyLock.signalAll();
             if (options.isVerbose()) log.info("Done with {}.", key);
         }
     }
@@ -72,30 +92,17 @@ public class KeyCopyJob extends KeyJob {
         if (verbose) logMetadata("source", sourceMetadata);
 		final ObjectMetadata destinationMetadata = buildDestinationMetadata(sourceMetadata);
         if (verbose) logMetadata("destination ", destinationMetadata);
+        final String sourceDigest = getSourceDigest(sourceMetadata);
+        if (!useCopy() && copyFromDuplicate(destinationMetadata)) return true;
 
         boolean copyOkay = false;
+        final RetryPolicy.Retry retry = beginRetry(useCopy() ? RetryPolicy.Operation.COPY : RetryPolicy.Operation.PUT,
+                options.getDestinationProfile());
         for (int tries = 1; tries <= maxRetries; tries++) {
             S3ObjectInputStream objectStream = null;
+            SdkClientException lastException;
             try {
-            	if (useCopy()) {
-                    if (verbose) log.info("Copying to {} (try #{}).", keydest, tries);
-
-            		final CopyObjectRequest copyRequest = new CopyObjectRequest(options.getSourceBucket(), key, options.getDestinationBucket(), keydest)
-            											  .withStorageClass(StorageClass.valueOf(options.getStorageClass()))
-            											  .withNewObjectMetadata(destinationMetadata);
-
-                    setupSSEEncryption(copyRequest, context.getSourceSSEKey(), context.getDestinationSSEKey());
-
-                    if (options.isCrossAccountCopy()) {
-                        copyRequest.setCannedAccessControlList(CannedAccessControlList.BucketOwnerFullControl);
-                    } else {
-                        final AccessControlList objectAcl = getSourceAccessControlList(key);
-                        copyRequest.setAccessControlList(objectAcl);
-                    }
-
-                    stats.s3copyCount.incrementAndGet();
-                    context.getSourceClient().copyObject(copyRequest);
-
+            	if (useCopy() && copyOnServer(destinationMetadata, tries)) {
                     if (verbose) log.info("Completed copying to {}.", keydest);
             	} else {
                     if (verbose) log.info("Uploading to {} (try #{}).", keydest, tries);
@@ -108,7 +115,15 @@ public class KeyCopyJob extends KeyJob {
             		S3Object object = context.getSourceClient().getObject(getRequest);
                     objectStream = object.getObjectContent();
 
-            		final PutObjectRequest putRequest = new PutObjectRequest(options.getDestinationBucket(), keydest, objectStream, destinationMetadata)
+                    // the digest is computed as the bytes go by, the SDK buffers what it may have to send again above it
+                    final DigestInputStream digestStream = options.isChecksum()
+                            ? new DigestInputStream(objectStream, ContentDigest.newDigest()) : null;
+                    if (sourceDigest != null && !MirrorEncryption.isCSE(options.getDestinationProfile().getEncryption())) {
+                        destinationMetadata.setContentMD5(ContentDigest.toContentMD5(sourceDigest));
+                    }
+
+            		final PutObjectRequest putRequest = new PutObjectRequest(options.getDestinationBucket(), keydest,
+                                                            digestStream != null ? digestStream : objectStream, destinationMetadata)
             												.withCannedAcl(CannedAccessControlList.BucketOwnerFullControl)
             												.withStorageClass(StorageClass.valueOf(options.getStorageClass()));
 
@@ -118,19 +133,23 @@ public class KeyCopyJob extends KeyJob {
                     context.getDestinationClient().putObject(putRequest);
                     // Stream is closed when we reached EOF
                     objectStream = null;
+                    if (digestStream != null) checkDigest(digestStream, sourceDigest);
 
                     if (verbose) log.info("Completed uploading to {}.", keydest);
             	}
 
-            	stats.bytesCopied.addAndGet(getRealObjectSize(sourceMetadata));
+            	addBytesCopied(getRealObjectSize(sourceMetadata));
 
 
+                retry.succeeded();
                 copyOkay = true;
                 break;
             } catch (ResetException e) {
+                lastException = e;
                 // ResetException can occur when there is a transient, retryable failure.
                 if (verbose) log.info("Reset exception copying to {} (try#{}).", keydest, tries, e);
             } catch (SdkClientException e) {
+                lastException = e;
                 log.error("Client exception copying to {} (try#{}).", keydest, tries, e);
             } finally {
                 if (objectStream != null) {
@@ -138,7 +157,7 @@ public class KeyCopyJob extends KeyJob {
                 }
             }
 
-            if (tries < maxRetries && Sleep.sleep(50)) break;
+            if (!retry.backoff(lastException)) break;
         }
 
         if (!copyOkay) {
@@ -148,7 +167,120 @@ public class KeyCopyJob extends KeyJob {
         return copyOkay;
     }
 
-    private boolean shouldTransfer() {
+    /**
+     * Compares the MD5 of a streamed copy with the one of the source, see --checksum. S3 checks the Content-MD5 of what
+     * it received already, this catches what changed before, e.g. in the decryption of a client-side encrypted source.
+     * @param expected the MD5 of the source, null if it isn't known
+     * @throws SdkClientException if they differ, so that the copy is tried again
+     */
+    protected void checkDigest(DigestInputStream stream, String expected) {
+        checkDigest(stream.getMessageDigest(), expected);
+    }
+
+    /**
+     * Compares the MD5 of the bytes that went through the digest with the one of the source.
+     * @see #checkDigest(DigestInputStream, String)
+     */
+    protected void checkDigest(MessageDigest digest, String expected) {
+        if (expected == null) {
+            if (context.getOptions().isVerbose()) log.info("No MD5 of {} known to compare, not checked.", summary.getKey());
+            return;
+        }
+        final String actual = ContentDigest.toHex(digest);
+        if (!actual.equals(expected)) {
+            context.getStats().checksumMismatches.incrementAndGet();
+            throw new SdkClientException("MD5 of the copy of " + summary.getKey() + " is " + actual + ", expected " + expected);
+        }
+        context.getStats().checksumsVerified.incrementAndGet();
+    }
+
+    /**
+     * Copies the object within the destination from a key with the same ETag and size, see DedupIndex.
+     * @return false if there's no such key or it changed, then the object is transferred
+     */
+    boolean copyFromDuplicate(ObjectMetadata destinationMetadata) {
+        final DedupIndex dedupIndex = context.getDedupIndex();
+        if (!dedupIndex.isLoaded()) return false;
+        final String etag = summary.getETag();
+        final long size = summary.getSize();
+        final String duplicate = dedupIndex.find(etag, size);
+        if (duplicate == null || duplicate.equals(keydest)) return false;
+
+        final MirrorOptions options = context.getOptions();
+        final String bucket = options.getDestinationBucket();
+        final CopyObjectRequest copyRequest = new CopyObjectRequest(bucket, duplicate, bucket, keydest)
+                .withStorageClass(StorageClass.valueOf(options.getStorageClass()))
+                .withNewObjectMetadata(destinationMetadata)
+                .withCannedAccessControlList(CannedAccessControlList.BucketOwnerFullControl)
+                .withMatchingETagConstraint("\"" + DedupIndex.unquote(etag) + "\"");
+        setupSSEEncryption(copyRequest, context.getDestinationSSEKey(), context.getDestinationSSEKey());
+
+        final RetryPolicy.Retry retry = beginRetry(RetryPolicy.Operation.COPY, options.getDestinationProfile());
+        for (int tries = 1; tries <= options.getMaxRetries(); tries++) {
+            try {
+                context.getStats().s3copyCount.incrementAndGet();
+                // null if the duplicate doesn't have the ETag anymore
+                final CopyObjectResult result = context.getDestinationClient().copyObject(copyRequest);
+                retry.succeeded();
+                if (result == null) return forgetDuplicate(duplicate);
+                context.getStats().dedupCopies.incrementAndGet();
+                context.getStats().dedupBytesSaved.addAndGet(size);
+                if (options.isVerbose()) log.info("Copied {} from its duplicate {} in the destination.", keydest, duplicate);
+                return true;
+            } catch (AmazonServiceException e) {
+                if (e.getStatusCode() == 404) return forgetDuplicate(duplicate);
+                log.warn("Error copying {} from its duplicate {} (try #{}).", keydest, duplicate, tries, e);
+                if (!retry.backoff(e)) return false;
+            } catch (SdkClientException e) {
+                log.warn("Error copying {} from its duplicate {} (try #{}).", keydest, duplicate, tries, e);
+                if (!retry.backoff(e)) return false;
+            }
+        }
+        return false;
+    }
+
+    private boolean forgetDuplicate(String duplicate) {
+        if (context.getOptions().isVerbose()) log.info("Duplicate {} of {} changed, transferring.", duplicate, keydest);
+        context.getDedupIndex().remove(summary.getETag(), summary.getSize(), duplicate);
+        return false;
+    }
+
+    /**
+     * @return false if the copy was denied and the object has to be streamed instead
+     */
+    private boolean copyOnServer(ObjectMetadata destinationMetadata, int tries) {
+        final String key = summary.getKey();
+        final MirrorOptions options = context.getOptions();
+        if (options.isVerbose()) log.info("Copying to {} (try #{}).", keydest, tries);
+
+        final CopyObjectRequest copyRequest = new CopyObjectRequest(options.getSourceBucket(), key, options.getDestinationBucket(), keydest)
+                                              .withStorageClass(StorageClass.valueOf(options.getStorageClass()))
+                                              .withNewObjectMetadata(destinationMetadata);
+
+        setupSSEEncryption(copyRequest, context.getSourceSSEKey(), context.getDestinationSSEKey());
+
+        final ServerSideCopy serverSideCopy = context.getServerSideCopy();
+        // the source ACL names the source account, which a different profile may not belong to
+        if (options.isCrossAccountCopy() || serverSideCopy.isCrossProfile()) {
+            copyRequest.setCannedAccessControlList(CannedAccessControlList.BucketOwnerFullControl);
+        } else {
+            final AccessControlList objectAcl = getSourceAccessControlList(key);
+            copyRequest.setAccessControlList(objectAcl);
+        }
+
+        try {
+            context.getStats().s3copyCount.incrementAndGet();
+            serverSideCopy.getCopyClient().copyObject(copyRequest);
+            serverSideCopy.succeeded();
+            return true;
+        } catch (AmazonServiceException e) {
+            if (!serverSideCopy.shouldStream(key, e)) throw e;
+            streamOnly = true;
+            return false;
+        }
+    }
+
+    boolean shouldTransfer() {
         final MirrorOptions options = context.getOptions();
         final String key = summary.getKey();
         final boolean verbose = options.isVerbose();
@@ -176,9 +308,25 @@ public class KeyCopyJob extends KeyJob {
             return true;
         } catch (SdkClientException e) {
             log.warn("Error getting metadata for {}/{} (not copying).", options.getDestinationBucket(), keydest, e);
+            fail();
             return false;
         }
 
+        if (summary.isChanged()) {
+            final boolean same = hasSameETag(summary, destinationMetadata.getETag());
+            if (verbose) log.info("Key {} changed, destination {} {}.", key, keydest, same ? "has it already (not copying)" : "differs (copying)");
+            return !same;
+        }
+
+        if (options.hasDelta()) {
+            // a rewrite of the source with the same size, its unchanged parts are copied in the destination
+            final DeltaParts parts = DeltaParts.load(new File(options.getDelta()), keydest);
+            if (parts != null && parts.describes(destinationMetadata.getETag()) && parts.isOtherSource(summary.getETag())) {
+                log.info("Object {}/{} changed since it was uploaded (copying).", options.getSourceBucket(), key);
+                return true;
+            }
+        }
+
         if (compareSize) {
             final ObjectMetadata sourceMetadata;
             try {
@@ -189,14 +337,26 @@ public class KeyCopyJob extends KeyJob {
                 return false;
             } catch (SdkClientException e) {
                 log.warn("Error getting metadata for {}/{} (not copying).", options.getSourceBucket(), key, e);
+                fail();
                 return false;
             }
 
             final boolean sizeChanged = getRealObjectSize(sourceMetadata) != getRealObjectSize(destinationMetadata);
 
-            if (sizeChanged) log.info("Object size changed for {}/{} (copying).", options.getSourceBucket(), key);
-
-            return sizeChanged;
+            if (sizeChanged) {
+                log.info("Object size changed for {}/{} (copying).", options.getSourceBucket(), key);
+                return true;
+            }
+            if (options.isChecksum()) {
+                final String sourceDigest = getSourceDigest(sourceMetadata);
+                final String destinationDigest = ContentDigest.of(destinationMetadata,
+                        MirrorEncryption.isCSE(options.getDestinationProfile().getEncryption()));
+                if (sourceDigest != null && destinationDigest != null && !sourceDigest.equals(destinationDigest)) {
+                    log.info("Object content changed for {}/{} (copying).", options.getSourceBucket(), key);
+                    return true;
+                }
+            }
+            return false;
         } else {
             if (verbose) log.info("Destination object {}/{} already exists, not copying.",
                     options.getDestinationBucket(), keydest);
@@ -205,7 +365,6 @@ public class KeyCopyJob extends KeyJob {
     }
 
     boolean useCopy() {
-        return context.getSourceClient() == context.getDestinationClient()
-                && !MirrorEncryption.isCSE(context.getOptions().getSourceProfile().getEncryption());
+        return !streamOnly && context.getServerSideCopy().isPossible();
     }
 }
@@ -13,20 +13,27 @@ import java.io.FileNotFoundException;
 public class KeyDeleteJob extends KeyJob {
 
     private String keysrc;
+    private final DeleteBatcher batcher;
 
-    public KeyDeleteJob (MirrorContext context, KeyObjectSummary summary, Object notifyLock) {
+    public KeyDeleteJob (MirrorContext context, KeyObjectSummary summary, JobSignal notifyLock) {
+        this(context, summary, notifyLock, null);
+    }
+
+    public KeyDeleteJob (MirrorContext context, KeyObjectSummary summary, JobSignal notifyLock, DeleteBatcher batcher) {
         super(context, summary, notifyLock);
+        keysrc = getSourceKey(context.getOptions(), summary.getKey()); // NOTE: summary.getKey is the key in the destination bucket
+        this.batcher = batcher;
+    }
 
-        final MirrorOptions options = context.getOptions();
-        keysrc = summary.getKey(); // NOTE: summary.getKey is the key in the destination bucket
-        if (options.hasSourcePrefix()) {
-            keysrc = keysrc.substring(options.getDestinationPrefixLength());
-            keysrc = options.getSourcePrefix() + keysrc;
-        }
+    static String getSourceKey(MirrorOptions options, String key) {
+        if (!options.hasSourcePrefix()) return key;
+        return options.getSourcePrefix() + key.substring(options.getDestinationPrefixLength());
     }
 
     @Override public Logger getLog() { return log; }
 
+    @Override protected void countFailure() { context.getStats().deleteErrors.incrementAndGet(); }
+
     @Override
     public void run() {
         final MirrorOptions options = context.getOptions();
@@ -41,18 +48,27 @@ public class KeyDeleteJob extends KeyJob {
 
             if (options.isDryRun()) {
                 log.info("Would have deleted {} from destination because {} does not exist in source bucket.", key, keysrc);
+            } else if (batcher != null && !retrying && !lastChance) {
+                // retries delete the key on its own, the batcher may be done by then
+                if (verbose) log.info("Deleting {} with the next batch.", key);
+                handOff();
+                batcher.add(this);
             } else {
                 boolean deletedOK = false;
+                final RetryPolicy.Retry retry = beginRetry(RetryPolicy.Operation.DELETE, options.getDestinationProfile());
                 for (int tries = 1; tries <= maxRetries; tries++) {
                     if (verbose) log.info("Deleting {} (try #{}).", key, tries);
+                    SdkClientException lastException;
                     try {
                         stats.s3deleteCount.incrementAndGet();
                         context.getDestinationClient().deleteObject(request);
+                        retry.succeeded();
                         deletedOK = true;
                         if (verbose) log.info("Successfully deleted {} (try #{}).", key, tries);
                         break;
 
                     } catch (AmazonS3Exception e) {
+                        lastException = e;
                         // This is really ugly: The AWS Java SDK tries to delete a special key containing optional encryption
                         // materials when deleting the corresponding key and CSE is used. At least with Google's server
                         // implementation this leads to an exception which we try to detect here and then go on to ignore
@@ -69,25 +85,25 @@ public class KeyDeleteJob extends KeyJob {
 
                         log.error("S3 exception deleting {} (try #{}).", key, tries, e);
                     } catch (SdkClientException e) {
+                        lastException = e;
                         log.error("Client exception deleting {} (try #{}).", key, tries, e);
                     }
 
-                    if (tries < maxRetries && Sleep.sleep(10)) break;
+                    if (!retry.backoff(lastException)) break;
                 }
                 if (deletedOK) {
                     context.getStats().objectsDeleted.incrementAndGet();
                 } else {
-                    context.getStats().deleteErrors.incrementAndGet();
+                    fail();
                 }
             }
 
         } catch (Exception e) {
             log.error("Error deleting key {}.", key, e);
+            fail();
 
         } finally {
-            synchronized (notifyLock) {
-                notifyLock.notifyAll();
-            }
+            notifyLock.signalAll();
             if (verbose) log.info("Done with {}.", key);
         }
     }
@@ -108,6 +124,7 @@ public class KeyDeleteJob extends KeyJob {
             return true;
         } catch (SdkClientException e) {
             log.warn("Error getting metadata for {}/{} (not deleting).", options.getSourceBucket(), keysrc, e);
+            fail();
             return false;
         }
     }
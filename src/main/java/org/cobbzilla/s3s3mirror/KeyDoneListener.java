@@ -0,0 +1,17 @@
+package org.cobbzilla.s3s3mirror;
+
+/**
+ * Told when the job of a key is done for good, see Journal and EventBatch.
+ */
+public interface KeyDoneListener {
+
+    /**
+     * The key was copied or deleted, or didn't need to be.
+     */
+    void completed(KeyObjectSummary summary);
+
+    /**
+     * The key was given up after its retries.
+     */
+    void failed(KeyObjectSummary summary);
+}
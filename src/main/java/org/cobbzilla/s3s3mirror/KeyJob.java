@@ -13,22 +13,24 @@ import org.slf4j.Logger;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Slf4j
 public abstract class KeyJob implements Runnable {
 
-    final String USER_METADATA_CLEANUP_REGEXP = "(?i:^X-Amz-.*$)";
+    static final String USER_METADATA_CLEANUP_REGEXP = "(?i:^X-Amz-.*$)";
 
     protected final MirrorContext context;
     protected final KeyObjectSummary summary;
-    protected final Object notifyLock;
+    protected final JobSignal notifyLock;
 
-    public KeyJob(MirrorContext context, KeyObjectSummary summary, Object notifyLock) {
+    public KeyJob(MirrorContext context, KeyObjectSummary summary, JobSignal notifyLock) {
         this.context = context;
         this.summary = summary;
         this.notifyLock = notifyLock;
@@ -36,23 +38,106 @@ public abstract class KeyJob implements Runnable {
 
     public abstract Logger getLog();
 
+    private volatile long bytesTransferred = 0;
+    public long getBytesTransferred() { return bytesTransferred; }
+
+    protected void addBytesCopied(long bytes) {
+        bytesTransferred += bytes;
+        context.getStats().bytesCopied.addAndGet(bytes);
+    }
+
+    /**
+     * @return the number of connections this job holds at the same time while it's running
+     */
+    public int getConnectionsNeeded() { return 1; }
+
+    // Set when the job couldn't do its work, the RetryQueue decides whether it's tried again or given up.
+    private volatile boolean failed = false;
+    private volatile ErrorClass lastError = null;
+    public boolean isFailed() { return failed; }
+    public ErrorClass getLastError() { return lastError; }
+    void setLastError(ErrorClass lastError) { this.lastError = lastError; }
+    protected void fail() { failed = true; }
+
+    // bookkeeping of the RetryQueue
+    int deferrals = 0;
+    long deferredDelay = 0;
+    boolean lastChance = false;
+    volatile boolean retrying = false;
+
+    // set when the job handed its key to the DeleteBatcher, which tells the RetryQueue once the key is deleted
+    private final AtomicBoolean handedOff = new AtomicBoolean(false);
+    void handOff() { handedOff.set(true); }
+    boolean takeHandOff() { return handedOff.getAndSet(false); }
+
+    // told when the key is done for good, like the --journal
+    KeyDoneListener doneListener = null;
+
+    void resetFailure() {
+        failed = false;
+        lastError = null;
+    }
+
+    /**
+     * Counts the job as failed for good, after the RetryQueue gave up on it.
+     */
+    protected abstract void countFailure();
+
+    protected RetryPolicy.Retry beginRetry(RetryPolicy.Operation operation, MirrorProfile profile) {
+        return context.getRetryPolicy().begin(operation, profile, this);
+    }
+
     @Override public String toString() { return summary.getKey(); }
 
-    private ObjectMetadata getObjectMetadata(AmazonS3 client, SSECustomerKey sseKey, String bucket, String key) throws FileNotFoundException {
+    protected interface BackendRequest<T> {
+        T send() throws IOException;
+    }
+
+    /**
+     * Sends a request to a StorageBackend and retries it as the RetryPolicy says. A key that doesn't exist is not
+     * retried, the FileNotFoundException is thrown right away.
+     */
+    protected <T> T withRetry(RetryPolicy.Operation operation, StorageBackend backend, String key, BackendRequest<T> request) throws IOException {
+        final RetryPolicy.Retry retry = beginRetry(operation, backend.getProfile());
+        for (int tries = 1; ; tries++) {
+            Exception lastException;
+            try {
+                final T result = request.send();
+                retry.succeeded();
+                return result;
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException | SdkClientException e) {
+                lastException = e;
+                if (context.getOptions().isVerbose()) log.warn("{} request for {} to {} failed (try #{}).", operation, key, backend, tries, e);
+            }
+            if (!retry.backoff(lastException)) {
+                if (lastException instanceof IOException) throw (IOException) lastException;
+                throw (SdkClientException) lastException;
+            }
+        }
+    }
+
+    private ObjectMetadata getObjectMetadata(AmazonS3 client, MirrorProfile profile, SSECustomerKey sseKey, String bucket, String key) throws FileNotFoundException {
         MirrorOptions options = context.getOptions();
         boolean verbose = options.isVerbose();
         int maxRetries = options.getMaxRetries();
+        final RetryPolicy.Retry retry = beginRetry(RetryPolicy.Operation.HEAD, profile);
 
         SdkClientException lastException = null;
         ObjectMetadata metadata = null;
-        for (int tries = 1; tries <= maxRetries; tries++) {
+        int tries;
+        for (tries = 1; tries <= maxRetries; tries++) {
             try {
                 GetObjectMetadataRequest getRequest = new GetObjectMetadataRequest(bucket, key);
 
                 setupSSEEncryption(getRequest, sseKey);
 
                 context.getStats().s3getCount.incrementAndGet();
+                final long start = System.currentTimeMillis();
                 metadata = client.getObjectMetadata(getRequest);
+                context.getStats().recordHeadLatency(System.currentTimeMillis() - start);
+                retry.succeeded();
                 break;
 
             } catch (AmazonS3Exception e) {
@@ -69,31 +154,32 @@ public abstract class KeyJob implements Runnable {
                 if (verbose) log.warn("GetObjectMetadataRequest for {} failed (try #{}).", key, tries, e);
             }
 
-            if (tries < maxRetries && Sleep.sleep(10)) break;
+            if (!retry.backoff(lastException)) break;
         }
 
         if (metadata != null) {
             return metadata;
         } else {
-            log.error("getObjectMetadata for {} failed after {} tries, giving up.", key, options.getMaxRetries(), lastException);
+            log.error("getObjectMetadata for {} failed after {} tries, giving up.", key, Math.min(tries, maxRetries), lastException);
             throw lastException;
         }
     }
 
     protected ObjectMetadata getSourceObjectMetadata(String key) throws FileNotFoundException {
-    	return getObjectMetadata(context.getSourceClient(), context.getSourceSSEKey(),
+    	return getObjectMetadata(context.getSourceClient(), context.getOptions().getSourceProfile(), context.getSourceSSEKey(),
                 context.getOptions().getSourceBucket(), key);
     }
 
     protected ObjectMetadata getDestinationObjectMetadata(String key) throws FileNotFoundException {
-    	return getObjectMetadata(context.getDestinationClient(), context.getDestinationSSEKey(),
+    	return getObjectMetadata(context.getDestinationClient(), context.getOptions().getDestinationProfile(), context.getDestinationSSEKey(),
                 context.getOptions().getDestinationBucket(), key);
     }
 
-    private AccessControlList getAccessControlList(AmazonS3 client, SSECustomerKey sseKey, String bucket, String key) {
+    private AccessControlList getAccessControlList(AmazonS3 client, MirrorProfile profile, String bucket, String key) {
         MirrorOptions options = context.getOptions();
         boolean verbose = options.isVerbose();
         int maxRetries = options.getMaxRetries();
+        final RetryPolicy.Retry retry = beginRetry(RetryPolicy.Operation.ACL, profile);
 
         AccessControlList acl = null;
         for (int tries = 1; tries <= maxRetries; tries++) {
@@ -102,13 +188,13 @@ public abstract class KeyJob implements Runnable {
 
                 context.getStats().s3getCount.incrementAndGet();
                 acl = client.getObjectAcl(getObject);
+                retry.succeeded();
                 break;
             } catch (SdkClientException se3) {
                 // Ignore and try again
                 if (verbose) log.warn("GetObjectAclRequest for {} failed (try #{}).", key, tries);
+                if (!retry.backoff(se3)) break;
             }
-
-            if (tries < maxRetries && Sleep.sleep(10)) break;
         }
 
         if (acl != null) {
@@ -125,7 +211,7 @@ public abstract class KeyJob implements Runnable {
     }
 
     protected AccessControlList getSourceAccessControlList(String key) {
-    	return this.getAccessControlList(context.getSourceClient(), context.getSourceSSEKey(), context.getOptions().getSourceBucket(), key);
+    	return this.getAccessControlList(context.getSourceClient(), context.getOptions().getSourceProfile(), context.getOptions().getSourceBucket(), key);
     }
 
     @SneakyThrows
@@ -146,6 +232,15 @@ public abstract class KeyJob implements Runnable {
         log.info(metadataString);
     }
 
+    /**
+     * @return the MD5 of the content of the source object with --checksum, null without or if it isn't known
+     */
+    protected String getSourceDigest(ObjectMetadata sourceMetadata) {
+        final MirrorOptions options = context.getOptions();
+        if (!options.isChecksum()) return null;
+        return ContentDigest.of(sourceMetadata, MirrorEncryption.isCSE(options.getSourceProfile().getEncryption()));
+    }
+
     protected ObjectMetadata buildDestinationMetadata(ObjectMetadata sourceMetadata) {
         ObjectMetadata destinationMetadata = new ObjectMetadata();
 
@@ -172,6 +267,8 @@ public abstract class KeyJob implements Runnable {
         }
 
         destinationMetadata.setUserMetadata(userMetadataMap);
+        final String digest = getSourceDigest(sourceMetadata);
+        if (digest != null) destinationMetadata.addUserMetadata(ContentDigest.USER_METADATA_KEY, digest);
 
         if (length != null) {
             if (context.getOptions().isVerbose())
@@ -205,6 +302,22 @@ public abstract class KeyJob implements Runnable {
         return (length != null) ? Long.parseLong(length) : metadata.getContentLength();
     }
 
+    /**
+     * Reads exactly length bytes, for the jobs that buffer objects or parts.
+     */
+    protected static void readFully(InputStream in, byte[] data, int length) {
+        try {
+            int read = 0;
+            while (read < length) {
+                final int n = in.read(data, read, length - read);
+                if (n < 0) throw new SdkClientException("Source ended after " + read + " of " + length + " bytes");
+                read += n;
+            }
+        } catch (IOException e) {
+            throw new SdkClientException("Error reading the source: " + e, e);
+        }
+    }
+
     protected static void closeS3ObjectInputStream(S3ObjectInputStream objectStream) {
         try {
             // See https://github.com/aws/aws-sdk-java/issues/1211
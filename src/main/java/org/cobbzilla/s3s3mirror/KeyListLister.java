@@ -0,0 +1,195 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Streams the keys of a --key-list instead of listing the source: one key per line, optionally followed by its size
+ * and ETag separated by tabs, so a --failure-list can be used as it is (keys are unescaped like there). Keys without a
+ * size are looked up with a HEAD, --max-threads at a time, and skipped if the source doesn't have them. Keys outside
+ * the source prefix are skipped. Keys whose HEAD keeps failing and lines that can't be read are copy errors, the keys
+ * go to the --failure-list with their size unknown (-1), so they are looked up again when the list is used as a
+ * --key-list. The keys are marked as changed, so a key the destination has is copied again unless it has the same
+ * ETag, e.g. to repair the mismatches of a --verify.
+ */
+@Slf4j
+public class KeyListLister extends KeyLister {
+
+    // HEADs in flight per thread, so that the threads don't wait for the next line
+    private static final int HEADS_PER_THREAD = 4;
+
+    private final MirrorContext context;
+    private final RetryQueue retryQueue;
+    private final int maxQueueCapacity;
+    private final String file;
+    private final String prefix;
+
+    private final List<KeyObjectSummary> summaries = new ArrayList<KeyObjectSummary>();
+    private final AtomicBoolean done = new AtomicBoolean(false);
+    private final AtomicLong missing = new AtomicLong(0);
+    private long outside = 0;
+
+    /**
+     * @param retryQueue records the keys that can't be looked up in the --failure-list
+     * @param file the file with the keys, - for stdin
+     */
+    public KeyListLister(MirrorContext context, RetryQueue retryQueue, int maxQueueCapacity, String file) {
+        this.context = context;
+        this.retryQueue = retryQueue;
+        this.maxQueueCapacity = maxQueueCapacity;
+        this.file = file;
+        this.prefix = context.getOptions().hasSourcePrefix() ? context.getOptions().getSourcePrefix() : "";
+    }
+
+    @Override
+    public boolean isDone() { return done.get(); }
+
+    @Override
+    public void run() {
+        final MirrorOptions options = context.getOptions();
+        final int threads = options.getMaxThreads();
+        final ExecutorService heads = Executors.newFixedThreadPool(threads);
+        final Semaphore inFlight = new Semaphore(threads * HEADS_PER_THREAD);
+        log.info("Reading keys from {}...", file.equals("-") ? "stdin" : file);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                file.equals("-") ? System.in : new FileInputStream(file), UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.length() == 0) continue;
+                final KeyObjectSummary summary;
+                try {
+                    summary = parse(line, lineNumber);
+                } catch (IOException e) {
+                    // the other keys are still copied, the run reports the error
+                    log.error("{}, skipping the line.", e.getMessage());
+                    context.getStats().copyErrors.incrementAndGet();
+                    continue;
+                }
+                if (!summary.getKey().startsWith(prefix)) {
+                    if (options.isVerbose()) log.info("Key {} is outside of the source prefix {}, skipping.", summary.getKey(), prefix);
+                    outside++;
+                    continue;
+                }
+                // wait until the KeyMaster has taken some of the keys, like the other listers do
+                while (getSize() >= maxQueueCapacity) {
+                    if (Sleep.sleep(50)) return;
+                }
+                if (summary.getSize() >= 0) {
+                    add(summary);
+                    continue;
+                }
+                inFlight.acquire();
+                heads.execute(new Runnable() {
+                    @Override public void run() {
+                        try {
+                            head(summary);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }
+                });
+            }
+            heads.shutdown();
+            while (!heads.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (options.isVerbose()) log.info("Waiting for the HEADs of the last keys.");
+            }
+            log.info("Read {} lines, {} keys outside of the source prefix, {} keys not found in the source.",
+                    lineNumber, outside, missing.get());
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while reading keys from {}.", file);
+        } catch (Exception e) {
+            log.error("Error reading keys from {}, KeyListLister thread exiting now.", file, e);
+        } finally {
+            heads.shutdownNow();
+            done.set(true);
+        }
+    }
+
+    /**
+     * @return the key with its size and ETag, the size is -1 if the line has only the key
+     */
+    private KeyObjectSummary parse(String line, int lineNumber) throws IOException {
+        final String[] fields = line.split("\t", -1);
+        if (fields.length > 3) throw new IOException(file + ":" + lineNumber + ": expected a key, its size and ETag separated by tabs");
+        final KeyObjectSummary summary = new KeyObjectSummary();
+        summary.setBucketName(context.getOptions().getSourceBucket());
+        summary.setKey(FailureList.unescape(fields[0]));
+        summary.setSize(-1);
+        summary.setChanged(true);
+        if (fields.length > 1 && fields[1].length() > 0) {
+            try {
+                summary.setSize(Long.parseLong(fields[1]));
+            } catch (NumberFormatException e) {
+                throw new IOException(file + ":" + lineNumber + ": invalid size " + fields[1]);
+            }
+        }
+        if (fields.length > 2 && fields[2].length() > 0) summary.setETag(fields[2]);
+        return summary;
+    }
+
+    private void head(KeyObjectSummary summary) {
+        final MirrorOptions options = context.getOptions();
+        final StorageBackend source = context.getSourceBackend();
+        final RetryPolicy.Retry retry = context.getRetryPolicy().begin(RetryPolicy.Operation.HEAD, source.getProfile());
+        for (int tries = 1; tries <= options.getMaxRetries(); tries++) {
+            try {
+                final ObjectMetadata metadata = source.head(summary.getKey());
+                retry.succeeded();
+                summary.setSize(metadata.getContentLength());
+                summary.setETag(metadata.getETag());
+                summary.setLastModified(metadata.getLastModified());
+                add(summary);
+                return;
+            } catch (FileNotFoundException e) {
+                if (options.isVerbose()) log.info("Key {} not found in the source, skipping.", summary.getKey());
+                missing.incrementAndGet();
+                return;
+            } catch (IOException | SdkClientException e) {
+                log.warn("Error getting metadata for {} (try #{}).", summary.getKey(), tries, e);
+                if (!retry.backoff(e)) break;
+            }
+        }
+        // not queued: without its size the key can't be given to the right job
+        log.error("Error getting metadata for {}, not copying it.", summary.getKey());
+        context.getStats().copyErrors.incrementAndGet();
+        retryQueue.recordFailure(summary);
+    }
+
+    private void add(KeyObjectSummary summary) {
+        synchronized (summaries) {
+            summaries.add(summary);
+        }
+        context.getStats().objectsRead.incrementAndGet();
+    }
+
+    @Override
+    protected int getSize() {
+        synchronized (summaries) {
+            return summaries.size();
+        }
+    }
+
+    @Override
+    public List<KeyObjectSummary> getNextBatch() {
+        synchronized (summaries) {
+            final List<KeyObjectSummary> copy = new ArrayList<KeyObjectSummary>(summaries);
+            summaries.clear();
+            return copy;
+        }
+    }
+}
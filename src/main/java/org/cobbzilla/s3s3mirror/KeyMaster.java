@@ -1,11 +1,12 @@
 package org.cobbzilla.s3s3mirror;
 
 import com.amazonaws.services.s3.AmazonS3;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.PriorityQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -20,16 +21,24 @@ public abstract class KeyMaster implements Runnable {
     private AtomicBoolean done = new AtomicBoolean(false);
     public boolean isDone () { return done.get(); }
 
-    private BlockingQueue<Runnable> workQueue;
-    private ThreadPoolExecutor executorService;
-    protected final Object notifyLock = new Object();
+    protected MirrorLanes lanes;
+    @Setter protected AsyncEngine asyncEngine;
+    @Setter protected Journal journal;
+    protected Journal.Partition journalPartition;
+    // told when a key is done for good, the journal partition or an EventBatch
+    @Setter protected KeyDoneListener doneListener;
+    // replaces the listing of the bucket, see EventBatch
+    @Setter protected KeyLister customLister;
+    protected final JobSignal notifyLock = new JobSignal();
+
+    // set by requestStop, no more keys are submitted
+    private volatile boolean stopping = false;
 
     private Thread thread;
 
-    public KeyMaster(MirrorContext context, BlockingQueue<Runnable> workQueue, ThreadPoolExecutor executorService) {
+    public KeyMaster(MirrorContext context, MirrorLanes lanes) {
         this.context = context;
-        this.workQueue = workQueue;
-        this.executorService = executorService;
+        this.lanes = lanes;
     }
 
     protected abstract AmazonS3 getClient();
@@ -39,35 +48,89 @@ public abstract class KeyMaster implements Runnable {
 
     protected abstract KeyJob getTask(KeyObjectSummary summary);
 
+    /**
+     * Hands the key to the AsyncEngine, only called with --engine ASYNC.
+     *
+     * @return false if the key has to be handled by a KeyJob
+     */
+    protected boolean submitAsync(KeyObjectSummary summary) throws InterruptedException { return false; }
+
+    protected abstract StorageBackend getBackend();
+
+    /**
+     * Sends the work that's been held back, called after all keys have been submitted.
+     *
+     * @return true if nothing is in flight anymore
+     */
+    protected boolean flush() throws InterruptedException { return true; }
+
+    protected KeyLister getLister(MirrorOptions options, int maxQueueCapacity) throws Exception {
+        if (options.hasLocalBackend()) return getBackend().newLister(context, maxQueueCapacity, getPrefix(options));
+        final String startAfter = journalPartition == null ? null : journalPartition.getMarker();
+        return new KeyObjectLister(context, maxQueueCapacity, getProfile(options), getClient(), getBucket(options), getPrefix(options), startAfter);
+    }
+
+    /**
+     * @return the name of the listing in the --journal
+     */
+    protected String getJournalName(MirrorOptions options) {
+        final Shard shard = options.getKeyShard();
+        return getClass().getSimpleName() + " " + getBucket(options) + "/" + (getPrefix(options) == null ? "" : getPrefix(options))
+                + (shard == null ? "" : " " + shard);
+    }
+
     public void start () {
-        this.thread = new Thread(this);
+        this.thread = new Thread(this, getClass().getSimpleName());
+        // a master that doesn't stop must not keep the JVM alive
+        this.thread.setDaemon(true);
         this.thread.start();
     }
 
-    @SuppressWarnings("deprecation")
+    /**
+     * Stops submitting keys, the jobs that are running finish.
+     */
+    public void requestStop() {
+        stopping = true;
+    }
+
 	public void stop () {
         final String name = getClass().getSimpleName();
         final long start = System.currentTimeMillis();
         log.info("stopping "+ name +"...");
-        try {
-            if (isDone()) return;
-            this.thread.interrupt();
-            while (!isDone() && System.currentTimeMillis() - start < STOP_TIMEOUT) {
-                if (Sleep.sleep(50)) return;
-            }
-        } finally {
-            if (!isDone()) {
-                try {
-                    log.warn("{} didn't stop within {} after interrupting it, forcibly killing the thread.", name, STOP_TIMEOUT_SECONDS);
-                    this.thread.stop();
-                } catch (Exception e) {
-                    log.error("Error calling Thread.stop on {}.", name, e);
-                }
-            }
-            if (isDone()) log.info("{} stopped.", name);
+        if (isDone()) return;
+        requestStop();
+        this.thread.interrupt();
+        while (!isDone() && System.currentTimeMillis() - start < STOP_TIMEOUT) {
+            if (Sleep.sleep(50)) break;
+        }
+        if (isDone()) {
+            log.info("{} stopped.", name);
+        } else {
+            log.warn("{} didn't stop within {} seconds after interrupting it, leaving it behind.", name, STOP_TIMEOUT_SECONDS);
         }
     }
 
+    /**
+     * Submits the job for a key, waiting for room in its lane.
+     *
+     * @return false if we were interrupted while waiting
+     */
+    private boolean submit(KeyObjectSummary summary) throws InterruptedException {
+        if (stopping) return false;
+        if (asyncEngine != null && submitAsync(summary)) return true;
+
+        final KeyJob job = getTask(summary);
+        job.doneListener = doneListener;
+        while (lanes.isFull(job)) {
+            if (stopping) return false;
+            notifyLock.await(50);
+
+            if (Sleep.sleep(50)) return false;
+        }
+        lanes.submit(job);
+        return true;
+    }
+
     public void run() {
 
         final MirrorOptions options = context.getOptions();
@@ -76,7 +139,17 @@ public abstract class KeyMaster implements Runnable {
         final int maxQueueCapacity = MirrorMaster.getMaxQueueCapacity(options);
 
         int counter = 0;
+        Thread listerThread = null;
         try {
+            if (journal != null) {
+                journalPartition = journal.partition(getJournalName(options));
+                doneListener = journalPartition;
+                // the keys that failed in the run that's resumed come first
+                for (KeyObjectSummary summary : journalPartition.takeFailed()) {
+                    if (!submit(summary)) return;
+                }
+            }
+
             /*
             boolean useKeyVersionLister = false;
 
@@ -98,30 +171,58 @@ public abstract class KeyMaster implements Runnable {
             }
             */
 
-            KeyLister lister = new KeyObjectLister(context, maxQueueCapacity, getProfile(options), getClient(), getBucket(options), getPrefix(options));
-            executorService.submit(lister);
+            KeyLister lister = customLister != null ? customLister : getLister(options, maxQueueCapacity);
+            listerThread = new Thread(lister, getClass().getSimpleName() + "-lister");
+            listerThread.start();
+
+            // With a schedule other than FIFO, listed keys are collected in a window and the jobs are started in
+            // the order of the schedule. A window size of 0 means that all keys are listed before the first job starts.
+            final Comparator<KeyObjectSummary> order = options.getScheduleMode().getComparator(options);
+            final PriorityQueue<KeyObjectSummary> window = order == null ? null : new PriorityQueue<KeyObjectSummary>(11, order);
+            final int windowSize = options.getScheduleWindow();
 
             List<KeyObjectSummary> summaries = lister.getNextBatch();
             if (verbose) log.info("{} keys found in first batch from bucket -- processing...", summaries.size());
 
-            while (true) {
+            final Shard shard = options.getKeyShard();
+            final String prefix = getPrefix(options);
+
+            while (!stopping) {
                 for (KeyObjectSummary summary : summaries) {
-                    while (workQueue.size() >= maxQueueCapacity) {
-                        synchronized (notifyLock) {
-                            notifyLock.wait(50);
+                    // keys of other shards are mirrored by other processes
+                    if (shard != null && !shard.contains(Shard.relativeKey(summary.getKey(), prefix))) continue;
+                    if (journalPartition != null) {
+                        // done by the run that's resumed, the lister may start before the marker
+                        if (journalPartition.isDone(summary.getKey())) {
+                            context.getStats().journalSkipped.incrementAndGet();
+                            continue;
                         }
-
-                        if (Sleep.sleep(50)) return;
+                        journalPartition.listed(summary.getKey());
+                    }
+                    if (window == null) {
+                        if (!submit(summary)) return;
+                    } else {
+                        window.add(summary);
+                        if (windowSize > 0 && window.size() > windowSize && !submit(window.poll())) return;
                     }
-                    executorService.submit(getTask(summary));
                     counter++;
                 }
 
                 summaries = lister.getNextBatch();
                 if (summaries.size() > 0) {
-                    if (verbose) log.info(" more keys found in bucket -- continuing (queue size="+workQueue.size()+", total processed="+counter+")...", summaries.size());
+                    if (verbose) log.info(" more keys found in bucket -- continuing (queue size="+lanes.getQueueSize()+", total processed="+counter+")...", summaries.size());
 
                 } else if (lister.isDone()) {
+                    // the lister might have added its last batch just before it finished
+                    summaries = lister.getNextBatch();
+                    if (summaries.size() > 0) continue;
+
+                    if (window != null) {
+                        if (verbose) log.info("Processing the remaining {} keys in {} order.", window.size(), options.getScheduleMode());
+                        while (!window.isEmpty()) {
+                            if (!submit(window.poll())) return;
+                        }
+                    }
                     if (verbose) log.info("No more keys found in source bucket -- ALL DONE");
                     return;
                 } else {
@@ -129,16 +230,21 @@ public abstract class KeyMaster implements Runnable {
                     if (Sleep.sleep(50)) return;
                 }
             }
+            log.info("{} stopped submitting keys.", getClass().getSimpleName());
 
         } catch (Exception e) {
             log.error("Unexpected exception in MirrorMaster.", e);
         } finally {
-            while (workQueue.size() > 0 || executorService.getActiveCount() > 0) {
-                // wait for the queue to be empty
-                if (Sleep.sleep(100)) break;
+            if (listerThread != null && listerThread.isAlive()) listerThread.interrupt();
+            try {
+                // flush only when the lanes are idle, so no job can add to what's held back afterwards
+                while (!lanes.isIdle() || !flush() || (asyncEngine != null && !asyncEngine.isIdle())) {
+                    // wait for the queues to be empty
+                    if (Sleep.sleep(100)) break;
+                }
+            } catch (InterruptedException e) {
+                log.warn("Interrupted while waiting for the remaining keys.");
             }
-            // this will wait for currently executing tasks to finish
-            executorService.shutdown();
             done.set(true);
         }
     }
@@ -6,6 +6,7 @@ import com.amazonaws.services.s3.internal.Constants;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayList;
@@ -17,31 +18,53 @@ public class KeyObjectLister extends KeyLister {
 
     private MirrorContext context;
     private AmazonS3 client;
+    private MirrorProfile profile;
     private int maxQueueCapacity;
 
     private final List<S3ObjectSummary> summaries;
     private final AtomicBoolean done = new AtomicBoolean(false);
+    // set if the listing stopped before its end, see MirrorPlan
+    @Getter private volatile boolean failed = false;
     private ListObjectsRequest request;
     private ObjectListing listing;
+    // the last key of the range of a --shard with --shard-splits
+    private final String upperBound;
+    private volatile boolean pastUpperBound = false;
 
     @Override
     public boolean isDone () { return done.get(); }
 
     public KeyObjectLister(MirrorContext context, int maxQueueCapacity, MirrorProfile profile, AmazonS3 client, String bucket, String prefix) {
+        this(context, maxQueueCapacity, profile, client, bucket, prefix, null);
+    }
+
+    /**
+     * @param startAfter the key to start listing after, like the marker of a --resume
+     */
+    public KeyObjectLister(MirrorContext context, int maxQueueCapacity, MirrorProfile profile, AmazonS3 client, String bucket, String prefix, String startAfter) {
         this.context = context;
         this.client = client;
+        this.profile = profile;
         this.maxQueueCapacity = maxQueueCapacity;
 
         final MirrorOptions options = context.getOptions();
         int fetchSize = options.getMaxThreads();
         this.summaries = new ArrayList<S3ObjectSummary>(10*fetchSize);
 
-        this.request = new ListObjectsRequest(bucket, prefix, null, null, fetchSize);
+        // a shard with a range starts listing after the split before it
+        final Shard shard = options.getKeyShard();
+        final String keyPrefix = prefix == null ? "" : prefix;
+        String marker = shard != null && shard.getLowerBound() != null ? keyPrefix + shard.getLowerBound() : null;
+        if (startAfter != null && (marker == null || Shard.compareKeys(startAfter, marker) > 0)) marker = startAfter;
+        this.upperBound = shard != null && shard.getUpperBound() != null ? keyPrefix + shard.getUpperBound() : null;
+
+        this.request = new ListObjectsRequest(bucket, prefix, marker, null, fetchSize);
         if (profile.hasOption(MirrorProfileOptions.NO_ENCODING_TYPE))
             this.request.setEncodingType(Constants.NO_ENCODING_TYPE);
         listing = s3getFirstBatch();
         synchronized (summaries) {
             final List<S3ObjectSummary> objectSummaries = listing.getObjectSummaries();
+            checkUpperBound(objectSummaries);
             summaries.addAll(objectSummaries);
             context.getStats().objectsRead.addAndGet(objectSummaries.size());
             if (options.isVerbose()) log.info("Added initial set of {} keys.", objectSummaries.size());
@@ -57,11 +80,12 @@ public class KeyObjectLister extends KeyLister {
         try {
             while (true) {
                 while (getSize() < maxQueueCapacity) {
-                    if (listing.isTruncated()) {
+                    if (listing.isTruncated() && !pastUpperBound) {
                         listing = s3getNextBatch();
                         if (++counter % 100 == 0) context.getStats().logStats();
                         synchronized (summaries) {
                             final List<S3ObjectSummary> objectSummaries = listing.getObjectSummaries();
+                            checkUpperBound(objectSummaries);
                             summaries.addAll(objectSummaries);
                             context.getStats().objectsRead.addAndGet(objectSummaries.size());
                             if (verbose) log.info("queued next set of "+objectSummaries.size()+" keys (total now="+getSize()+")");
@@ -77,24 +101,34 @@ public class KeyObjectLister extends KeyLister {
             }
         } catch (Exception e) {
             log.error("Error in run loop, KeyLister thread exiting now.", e);
+            failed = true;
         } finally {
             if (verbose) log.info("KeyLister run loop finished.");
             done.set(true);
         }
     }
 
+    // the rest of the listing belongs to the next shards, KeyMaster skips the keys past the bound in this batch
+    private void checkUpperBound(List<S3ObjectSummary> objectSummaries) {
+        if (upperBound == null || objectSummaries.isEmpty()) return;
+        final String lastKey = objectSummaries.get(objectSummaries.size() - 1).getKey();
+        if (Shard.compareKeys(lastKey, upperBound) > 0) pastUpperBound = true;
+    }
+
     private ObjectListing s3getFirstBatch() {
 
         final MirrorOptions options = context.getOptions();
         final boolean verbose = options.isVerbose();
         final int maxRetries = options.getMaxRetries();
 
+        final RetryPolicy.Retry retry = context.getRetryPolicy().begin(RetryPolicy.Operation.LIST, profile);
         SdkClientException lastException = null;
         for (int tries = 1; tries <= maxRetries; tries++) {
             try {
                 context.getStats().s3getCount.incrementAndGet();
                 ObjectListing listing = client.listObjects(request);
                 if (verbose) log.info("Successfully got first batch of objects (try #{}).", tries);
+                retry.succeeded();
                 return listing;
 
             } catch (SdkClientException e) {
@@ -102,7 +136,7 @@ public class KeyObjectLister extends KeyLister {
                 log.warn("s3getFirstBatch: Error listing (try #{}).", tries, e);
             }
 
-            if (tries < maxRetries && Sleep.sleep(50)) break;
+            if (!retry.backoff(lastException)) break;
         }
 
         throw new IllegalStateException("s3getFirstBatch failed even after " + maxRetries + ".", lastException);
@@ -113,12 +147,14 @@ public class KeyObjectLister extends KeyLister {
         final boolean verbose = options.isVerbose();
         final int maxRetries = options.getMaxRetries();
 
+        final RetryPolicy.Retry retry = context.getRetryPolicy().begin(RetryPolicy.Operation.LIST, profile);
         SdkClientException lastException = null;
         for (int tries = 1; tries <= maxRetries; tries++) {
             try {
                 context.getStats().s3getCount.incrementAndGet();
                 ObjectListing next = client.listNextBatchOfObjects(listing);
                 if (verbose) log.info("Successfully got next batch of objects (on try #{}).", tries);
+                retry.succeeded();
                 return next;
 
             } catch (SdkClientException e) {
@@ -126,7 +162,7 @@ public class KeyObjectLister extends KeyLister {
                 log.error("Client exception listing objects (try #{}).", tries, e);
             }
 
-            if (tries < maxRetries && Sleep.sleep(50)) break;
+            if (!retry.backoff(lastException)) break;
         }
 
         throw new IllegalStateException("Too many errors trying to list objects (maxRetries="+maxRetries+").", lastException);
@@ -24,6 +24,8 @@ public class KeyObjectSummary implements Serializable {
     @Getter @Setter private String versionId;
     @Getter @Setter private boolean deleteMarker = false;
     @Getter @Setter private boolean latest = true;
+    // set for keys that an event reported as created, they're copied even if the destination has them already
+    @Getter @Setter private boolean changed = false;
 
     private static Function<S3ObjectSummary, KeyObjectSummary> S3ObjectSummaryToKeyObjectSummaryFunction
             = new Function<S3ObjectSummary, KeyObjectSummary>() {
@@ -16,6 +16,7 @@ public class KeyVersionLister extends KeyLister {
 
     private MirrorContext context;
     private AmazonS3 client;
+    private MirrorProfile profile;
     private int maxQueueCapacity;
 
     private final List<S3VersionSummary> summaries;
@@ -28,6 +29,7 @@ public class KeyVersionLister extends KeyLister {
     public KeyVersionLister(MirrorContext context, int maxQueueCapacity, MirrorProfile profile, AmazonS3 client, String bucket, String prefix) {
         this.context = context;
         this.client = client;
+        this.profile = profile;
         this.maxQueueCapacity = maxQueueCapacity;
 
         final MirrorOptions options = context.getOptions();
@@ -90,6 +92,7 @@ public class KeyVersionLister extends KeyLister {
         final boolean verbose = options.isVerbose();
         final int maxRetries = options.getMaxRetries();
 
+        final RetryPolicy.Retry retry = context.getRetryPolicy().begin(RetryPolicy.Operation.LIST, profile);
         SdkClientException lastException = null;
         for (int tries = 1; tries <= maxRetries; tries++) {
             try {
@@ -98,13 +101,14 @@ public class KeyVersionLister extends KeyLister {
                 this.request.setKeyMarker(listing.getNextKeyMarker());
                 this.request.setVersionIdMarker(listing.getNextVersionIdMarker());
                 if (verbose) log.info("Successfully got first batch of objects (try #{}).", tries);
+                retry.succeeded();
                 return listing;
             } catch (SdkClientException e) {
                 lastException = e;
                 log.error("Client exception while listing objects (try #{}).", tries, e);
             }
 
-            if (tries < maxRetries && Sleep.sleep(50)) break;
+            if (!retry.backoff(lastException)) break;
         }
 
         throw new IllegalStateException("s3getFirstBatch failed even after " + maxRetries + ".", lastException);
@@ -115,6 +119,7 @@ public class KeyVersionLister extends KeyLister {
         final boolean verbose = options.isVerbose();
         final int maxRetries = options.getMaxRetries();
 
+        final RetryPolicy.Retry retry = context.getRetryPolicy().begin(RetryPolicy.Operation.LIST, profile);
         SdkClientException lastException = null;
         for (int tries = 1; tries <= maxRetries; tries++) {
             try {
@@ -123,6 +128,7 @@ public class KeyVersionLister extends KeyLister {
                 this.request.setKeyMarker(listing.getNextKeyMarker());
                 this.request.setVersionIdMarker(listing.getNextVersionIdMarker());
                 if (verbose) log.info("Successfully got next batch of objects (try #{}).", tries);
+                retry.succeeded();
                 return next;
 
             } catch (SdkClientException e) {
@@ -130,7 +136,7 @@ public class KeyVersionLister extends KeyLister {
                 log.error("Client exception listing objects (try #{}).", tries, e);
             }
 
-            if (tries < maxRetries && Sleep.sleep(50)) break;
+            if (!retry.backoff(lastException)) break;
         }
 
         throw new IllegalStateException("Too many errors trying to list objects (maxRetries="+maxRetries+").", lastException);
@@ -0,0 +1,52 @@
+package org.cobbzilla.s3s3mirror;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A listing of a bucket in order, key by key, for comparing two listings side by side, see MirrorPlan and
+ * MirrorVerifier. The lister runs in its own thread.
+ */
+class ListingCursor {
+
+    private final KeyObjectLister lister;
+    private final String name;
+    private final Thread thread;
+    private Iterator<KeyObjectSummary> batch = Collections.<KeyObjectSummary>emptyList().iterator();
+
+    /**
+     * @param name the side that's listed, for the thread and errors
+     */
+    ListingCursor(KeyObjectLister lister, String name) {
+        this.lister = lister;
+        this.name = name;
+        this.thread = new Thread(lister, "ListingCursor-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the next key, null at the end of the listing
+     * @throws IOException if the listing stopped before its end
+     */
+    KeyObjectSummary next() throws IOException, InterruptedException {
+        while (!batch.hasNext()) {
+            // read done first, the lister may add its last batch just before it's done
+            final boolean done = lister.isDone();
+            final List<KeyObjectSummary> next = lister.getNextBatch();
+            if (next.isEmpty()) {
+                if (lister.isFailed()) throw new IOException("Error listing the " + name);
+                if (done) return null;
+                Thread.sleep(10);
+            }
+            batch = next.iterator();
+        }
+        return batch.next();
+    }
+
+    void stop() {
+        if (thread.isAlive()) thread.interrupt();
+    }
+}
@@ -0,0 +1,319 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Keeps objects as files below a root directory, the key is the path relative to the root.
+ *
+ * Files are written to a temporary file next to the target and moved into place when they're complete, so a reader
+ * never sees half a file. Objects from S3 that are larger than a part are downloaded in ranges at the same time, each
+ * range is written at its own position of the file. Files are copied with FileChannel.transferTo, which lets the
+ * kernel move the data without copying it through the JVM.
+ *
+ * The content type and user metadata are kept in extended attributes where the filesystem supports them.
+ */
+@Slf4j
+public class LocalBackend implements StorageBackend {
+
+    public static final String TEMP_PREFIX = ".s3s3mirror-";
+
+    // ranges of a single object that are downloaded at the same time
+    public static final int DOWNLOAD_RANGES = 4;
+
+    private static final String CONTENT_TYPE_ATTRIBUTE = "s3.content-type";
+    private static final String USER_METADATA_ATTRIBUTE = "s3.meta.";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final MirrorContext context;
+    @Getter private final Path root;
+
+    private final ExecutorService rangeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger(0);
+        @Override public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "LocalBackend-range-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public LocalBackend(MirrorContext context, File root) {
+        this.context = context;
+        this.root = root.toPath().toAbsolutePath().normalize();
+    }
+
+    @Override public String getName() { return root.toString(); }
+
+    @Override public MirrorProfile getProfile() { return null; }
+
+    @Override public String toString() { return "file:" + root; }
+
+    /**
+     * @return the file of the key
+     * @throws IOException if the key would point outside of the root directory
+     */
+    public Path getPath(String key) throws IOException {
+        final Path path = root.resolve(key.replace('/', File.separatorChar)).normalize();
+        if (!path.startsWith(root) || path.equals(root)) throw new IOException("Key " + key + " is outside of " + root);
+        return path;
+    }
+
+    @Override
+    public KeyLister newLister(MirrorContext context, int maxQueueCapacity, String prefix) throws IOException {
+        if (!Files.isDirectory(root)) throw new FileNotFoundException(root + " is not a directory");
+        return new LocalKeyLister(context, maxQueueCapacity, root, prefix);
+    }
+
+    @Override
+    public ObjectMetadata head(String key) throws IOException {
+        final Path path = getPath(key);
+        final BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("Key " + key + " not found in " + root + ".");
+        }
+        if (!attributes.isRegularFile()) throw new FileNotFoundException("Key " + key + " is not a file in " + root + ".");
+
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(attributes.size());
+        metadata.setLastModified(new Date(attributes.lastModifiedTime().toMillis()));
+        readAttributes(path, metadata);
+        return metadata;
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(getPath(key), READ);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("Key " + key + " not found in " + root + ".");
+        }
+        channel.position(offset);
+        final InputStream in = Channels.newInputStream(channel);
+        return length < 0 ? in : new RangeInputStream(in, length);
+    }
+
+    @Override
+    public void put(String key, StorageBackend source, String sourceKey, ObjectMetadata metadata) throws IOException {
+        final Path target = getPath(key);
+        Files.createDirectories(target.getParent());
+        final Path temp = Files.createTempFile(target.getParent(), TEMP_PREFIX, ".tmp");
+        try {
+            final long size = metadata.getContentLength();
+            if (source instanceof LocalBackend) {
+                transfer(((LocalBackend) source).getPath(sourceKey), temp, size);
+            } else {
+                download(source, sourceKey, temp, size);
+            }
+            writeAttributes(temp, metadata);
+            if (metadata.getLastModified() != null) {
+                Files.setLastModifiedTime(temp, FileTime.fromMillis(metadata.getLastModified().getTime()));
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    @Override
+    public void copy(String sourceKey, String key, ObjectMetadata metadata) throws IOException {
+        put(key, this, sourceKey, metadata);
+    }
+
+    @Override
+    public void delete(String key) throws IOException {
+        final Path path = getPath(key);
+        Files.deleteIfExists(path);
+
+        // remove the directories that became empty, like there are no empty "directories" in a bucket
+        for (Path dir = path.getParent(); dir != null && dir.startsWith(root) && !dir.equals(root); dir = dir.getParent()) {
+            try {
+                Files.delete(dir);
+            } catch (DirectoryNotEmptyException e) {
+                break;
+            } catch (IOException e) {
+                if (context.getOptions().isVerbose()) log.info("Not removing directory {}: {}", dir, e.toString());
+                break;
+            }
+        }
+    }
+
+    private static void transfer(Path source, Path target, long size) throws IOException {
+        try (FileChannel in = FileChannel.open(source, READ);
+             FileChannel out = FileChannel.open(target, WRITE, TRUNCATE_EXISTING)) {
+            long position = 0;
+            final long length = in.size();
+            while (position < length) {
+                position += in.transferTo(position, length - position, out);
+            }
+            if (position != size && size >= 0) log.warn("{} has {} bytes, expected {}.", source, position, size);
+        }
+    }
+
+    /**
+     * Downloads the object in ranges of a part size, DOWNLOAD_RANGES of them at the same time. The calling thread
+     * downloads ranges as well.
+     */
+    private void download(final StorageBackend source, final String sourceKey, Path temp, long size) throws IOException {
+        final long partSize = new PartSizer(context.getOptions(), context.getStats()).getPartSize(size, false);
+        // client-side encrypted objects are decrypted as a whole
+        final boolean encrypted = source.getProfile() != null && MirrorEncryption.isCSE(source.getProfile().getEncryption());
+        final int ranges = size <= partSize || encrypted ? 1 : (int) ((size + partSize - 1) / partSize);
+
+        try (final FileChannel out = FileChannel.open(temp, WRITE)) {
+            if (ranges == 1) {
+                try (InputStream in = source.get(sourceKey, 0, -1)) {
+                    writeAt(in, out, 0);
+                }
+                return;
+            }
+
+            final AtomicInteger next = new AtomicInteger(0);
+            final Callable<Void> worker = new Callable<Void>() {
+                @Override public Void call() throws IOException {
+                    int range;
+                    while ((range = next.getAndIncrement()) < ranges) {
+                        final long offset = range * partSize;
+                        final long length = Math.min(partSize, size - offset);
+                        try (InputStream in = source.get(sourceKey, offset, length)) {
+                            final long written = writeAt(in, out, offset);
+                            if (written != length) throw new IOException("Range " + offset + "+" + length + " of " + sourceKey + " had " + written + " bytes");
+                        }
+                    }
+                    return null;
+                }
+            };
+
+            final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 1; i < Math.min(ranges, DOWNLOAD_RANGES); i++) futures.add(rangeExecutor.submit(worker));
+            try {
+                worker.call();
+            } catch (IOException | RuntimeException e) {
+                next.set(ranges);
+                throw e;
+            } catch (Exception e) {
+                next.set(ranges);
+                throw new IOException(e);
+            } finally {
+                for (Future<Void> future : futures) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException e) {
+                        next.set(ranges);
+                        throw new IOException("Interrupted while downloading " + sourceKey, e);
+                    } catch (ExecutionException e) {
+                        next.set(ranges);
+                        if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                        if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                        throw new IOException(e.getCause());
+                    }
+                }
+            }
+        }
+    }
+
+    private static long writeAt(InputStream in, FileChannel out, long position) throws IOException {
+        final ReadableByteChannel channel = Channels.newChannel(in);
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long written = 0;
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) written += out.write(buffer, position + written);
+            buffer.clear();
+        }
+        return written;
+    }
+
+    private void readAttributes(Path path, ObjectMetadata metadata) {
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if (view == null) return;
+        try {
+            for (String name : view.list()) {
+                if (!name.equals(CONTENT_TYPE_ATTRIBUTE) && !name.startsWith(USER_METADATA_ATTRIBUTE)) continue;
+                final ByteBuffer value = ByteBuffer.allocate(view.size(name));
+                view.read(name, value);
+                value.flip();
+                final String string = UTF_8.decode(value).toString();
+                if (name.equals(CONTENT_TYPE_ATTRIBUTE)) {
+                    metadata.setContentType(string);
+                } else {
+                    metadata.addUserMetadata(name.substring(USER_METADATA_ATTRIBUTE.length()), string);
+                }
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            if (context.getOptions().isVerbose()) log.info("Can't read extended attributes of {}: {}", path, e.toString());
+        }
+    }
+
+    private void writeAttributes(Path path, ObjectMetadata metadata) {
+        if (metadata.getContentType() == null && metadata.getUserMetadata().isEmpty()) return;
+        final UserDefinedFileAttributeView view = Files.getFileAttributeView(path, UserDefinedFileAttributeView.class);
+        if (view == null) return;
+        try {
+            if (metadata.getContentType() != null) view.write(CONTENT_TYPE_ATTRIBUTE, UTF_8.encode(metadata.getContentType()));
+            for (Map.Entry<String, String> entry : metadata.getUserMetadata().entrySet()) {
+                view.write(USER_METADATA_ATTRIBUTE + entry.getKey(), UTF_8.encode(entry.getValue()));
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            if (context.getOptions().isVerbose()) log.info("Can't write extended attributes of {}: {}", path, e.toString());
+        }
+    }
+
+    /**
+     * Stops reading after the length of a range.
+     */
+    static class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            final int b = in.read();
+            if (b != -1) remaining--;
+            return b;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            final int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        @Override public long skip(long n) throws IOException {
+            final long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override public int available() throws IOException { return (int) Math.min(in.available(), remaining); }
+        @Override public boolean markSupported() { return false; }
+    }
+}
@@ -0,0 +1,159 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lists the files below a directory of a LocalBackend. Directories are walked in parallel, which matters on network
+ * filesystems where every directory listing is a round trip. Symbolic links to directories are not followed. A
+ * directory or file that can't be read is skipped and counted as a list error, so the run reports it.
+ */
+@Slf4j
+public class LocalKeyLister extends KeyLister {
+
+    // directories that are listed at the same time
+    public static final int WALK_THREADS = 8;
+
+    private final MirrorContext context;
+    private final int maxQueueCapacity;
+    private final Path root;
+    private final String prefix;
+    private final String bucket;
+
+    private final List<KeyObjectSummary> summaries = new ArrayList<KeyObjectSummary>();
+    private final AtomicBoolean done = new AtomicBoolean(false);
+    private volatile boolean stopped = false;
+
+    public LocalKeyLister(MirrorContext context, int maxQueueCapacity, Path root, String prefix) {
+        this.context = context;
+        this.maxQueueCapacity = maxQueueCapacity;
+        this.root = root;
+        this.prefix = prefix == null ? "" : prefix;
+        this.bucket = root.toString();
+    }
+
+    @Override
+    public boolean isDone() { return done.get(); }
+
+    @Override
+    public void run() {
+        final ForkJoinPool pool = new ForkJoinPool(WALK_THREADS);
+        log.info("Starting...");
+        try {
+            // start at the deepest directory that contains all keys with the prefix
+            final int slash = prefix.lastIndexOf('/');
+            final String start = slash == -1 ? "" : prefix.substring(0, slash + 1);
+            final Path startDir = start.length() == 0 ? root : root.resolve(start.replace('/', File.separatorChar));
+            if (Files.isDirectory(startDir)) pool.invoke(new Walk(startDir, start));
+            log.info("No more files found in {}, exiting.", root);
+        } catch (Exception e) {
+            log.error("Error walking {}, LocalKeyLister thread exiting now.", root, e);
+        } finally {
+            stopped = true;
+            pool.shutdownNow();
+            if (context.getOptions().isVerbose()) log.info("LocalKeyLister run loop finished.");
+            done.set(true);
+        }
+    }
+
+    private void add(List<KeyObjectSummary> batch) {
+        if (batch.isEmpty()) return;
+        // wait until the KeyMaster has taken some of the keys, like the S3 listers do
+        while (getSize() >= maxQueueCapacity && !stopped) {
+            if (Sleep.sleep(50)) {
+                stopped = true;
+                return;
+            }
+        }
+        synchronized (summaries) {
+            summaries.addAll(batch);
+        }
+        context.getStats().objectsRead.addAndGet(batch.size());
+        if (context.getOptions().isVerbose()) log.info("queued next set of {} keys (total now={})", batch.size(), getSize());
+    }
+
+    @Override
+    protected int getSize() {
+        synchronized (summaries) {
+            return summaries.size();
+        }
+    }
+
+    @Override
+    public List<KeyObjectSummary> getNextBatch() {
+        synchronized (summaries) {
+            final List<KeyObjectSummary> copy = new ArrayList<KeyObjectSummary>(summaries);
+            summaries.clear();
+            return copy;
+        }
+    }
+
+    private class Walk extends RecursiveAction {
+        private final Path dir;
+        private final String keyPrefix;
+
+        Walk(Path dir, String keyPrefix) {
+            this.dir = dir;
+            this.keyPrefix = keyPrefix;
+        }
+
+        @Override
+        protected void compute() {
+            if (stopped) return;
+            final List<Walk> subdirs = new ArrayList<Walk>();
+            final List<KeyObjectSummary> batch = new ArrayList<KeyObjectSummary>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    final String name = entry.getFileName().toString();
+                    if (name.startsWith(LocalBackend.TEMP_PREFIX)) continue;
+                    final String key = keyPrefix + name;
+
+                    final BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        log.error("Can't read attributes of {}, skipping it: {}", entry, e.toString());
+                        context.getStats().listErrors.incrementAndGet();
+                        continue;
+                    }
+
+                    if (attributes.isDirectory()) {
+                        if (Files.isSymbolicLink(entry)) {
+                            if (context.getOptions().isVerbose()) log.info("Not following symbolic link {}.", entry);
+                        } else if (prefix.startsWith(key + "/") || (key + "/").startsWith(prefix)) {
+                            subdirs.add(new Walk(entry, key + "/"));
+                        }
+                    } else if (attributes.isRegularFile() && key.startsWith(prefix)) {
+                        final KeyObjectSummary summary = new KeyObjectSummary();
+                        summary.setBucketName(bucket);
+                        summary.setKey(key);
+                        summary.setSize(attributes.size());
+                        summary.setLastModified(new Date(attributes.lastModifiedTime().toMillis()));
+                        batch.add(summary);
+                        if (batch.size() >= 1000) {
+                            add(batch);
+                            batch.clear();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log.error("Error listing directory {}, skipping it.", dir, e);
+                context.getStats().listErrors.incrementAndGet();
+            }
+            add(batch);
+            invokeAll(subdirs);
+        }
+    }
+}
@@ -6,6 +6,13 @@ import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 @AllArgsConstructor
 public class MirrorContext {
 
@@ -15,4 +22,48 @@ public class MirrorContext {
     @Getter @Setter private SSECustomerKey sourceSSEKey;
     @Getter @Setter private SSECustomerKey destinationSSEKey;
     @Getter private final MirrorStats stats = new MirrorStats();
+    @Getter private final RetryPolicy retryPolicy = new RetryPolicy(this);
+    @Getter private final ServerSideCopy serverSideCopy = new ServerSideCopy(this);
+    @Getter private final CsePassthrough csePassthrough = new CsePassthrough();
+    @Getter private final ParallelCse parallelCse = new ParallelCse();
+    @Getter private final DedupIndex dedupIndex = new DedupIndex();
+
+    // a context for every --extra-destination, with the same source
+    @Getter private final List<MirrorContext> extraDestinations = new ArrayList<MirrorContext>();
+    @Getter(lazy=true) private final ExecutorService fanOutExecutor = initFanOutExecutor();
+
+    @Getter(lazy=true) private final StorageBackend sourceBackend = initSourceBackend();
+    @Getter(lazy=true) private final StorageBackend destinationBackend = initDestinationBackend();
+
+    /**
+     * @return true if copies, deletes or listings failed, here or at an extra destination
+     */
+    public boolean hasErrors() {
+        if (stats.copyErrors.get() > 0 || stats.deleteErrors.get() > 0 || stats.listErrors.get() > 0) return true;
+        for (MirrorContext extra : extraDestinations) {
+            if (extra.hasErrors()) return true;
+        }
+        return false;
+    }
+
+    private ExecutorService initFanOutExecutor() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+            @Override public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "fan-out-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private StorageBackend initSourceBackend() {
+        if (options.isSourceLocal()) return new LocalBackend(this, MirrorOptions.getLocalDirectory(options.getSourceBucket()));
+        return new S3Backend(this, sourceClient, options.getSourceProfile(), options.getSourceBucket(), sourceSSEKey);
+    }
+
+    private StorageBackend initDestinationBackend() {
+        if (options.isDestinationLocal()) return new LocalBackend(this, MirrorOptions.getLocalDirectory(options.getDestinationBucket()));
+        return new S3Backend(this, destinationClient, options.getDestinationProfile(), options.getDestinationBucket(), destinationSSEKey);
+    }
 }
@@ -0,0 +1,357 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs KeyJobs in separate lanes for small, medium and large objects, so that a burst of large objects can't occupy
+ * every thread while small objects queue up behind them. Every lane has its own threads, work queue and connection
+ * allowance.
+ *
+ * A job whose lane is busy may borrow an idle thread of a lane for larger objects. Large jobs never borrow from the
+ * lanes for smaller objects, as they would hold on to the borrowed thread for a long time.
+ *
+ * Without --size-lanes there is a single lane with --max-threads threads, which behaves like a plain thread pool.
+ *
+ * With --engine VIRTUAL every job runs on its own virtual thread, and the number of threads of a lane only limits how
+ * many of them run at the same time. A blocked virtual thread doesn't hold on to an OS thread, so a lane can have
+ * thousands of requests in flight.
+ *
+ * The pairs of a --job-file each have their own lanes, and every job also waits for one of the SharedWorkers.
+ */
+@Slf4j
+public class MirrorLanes {
+
+    private final MirrorContext context;
+    private final Map<SizeClass, Lane> lanes = new EnumMap<SizeClass, Lane>(SizeClass.class);
+    @Getter private final RetryQueue retryQueue;
+    private final boolean virtual;
+    private final SharedWorkers sharedWorkers;
+
+    public MirrorLanes(MirrorContext context) {
+        this(context, null);
+    }
+
+    public MirrorLanes(MirrorContext context, SharedWorkers sharedWorkers) {
+        this.context = context;
+        this.sharedWorkers = sharedWorkers;
+        this.retryQueue = new RetryQueue(context, this);
+
+        final MirrorOptions options = context.getOptions();
+        if (options.getEngine() == TransferEngine.VIRTUAL && !VirtualThreads.isAvailable()) {
+            log.warn("Virtual threads need Java 21 or newer, using platform threads.");
+        }
+        this.virtual = options.getEngine() == TransferEngine.VIRTUAL && VirtualThreads.isAvailable();
+
+        if (options.isSizeLanes()) {
+            for (SizeClass sizeClass : SizeClass.values()) {
+                final int threads = options.getLaneThreads(sizeClass);
+                lanes.put(sizeClass, newLane(sizeClass, threads, options.getLaneConnections(sizeClass), 20 * threads));
+            }
+            context.getStats().setReportLanes(true);
+            if (options.isVerbose()) log.info("Using lanes {}.", lanes.values());
+        } else {
+            final int threads = options.getMaxThreads();
+            lanes.put(SizeClass.MEDIUM, newLane(SizeClass.MEDIUM, threads, Integer.MAX_VALUE,
+                    MirrorMaster.getMaxQueueCapacity(options)));
+        }
+    }
+
+    private Lane newLane(SizeClass sizeClass, int threads, int maxConnections, int capacity) {
+        return virtual
+                ? new VirtualLane(sizeClass, threads, maxConnections, capacity)
+                : new PoolLane(sizeClass, threads, maxConnections, capacity);
+    }
+
+    public SizeClass getSizeClass(KeyJob job) {
+        if (lanes.size() == 1) return SizeClass.MEDIUM;
+        if (job instanceof KeyDeleteJob || job instanceof BackendDeleteJob) return SizeClass.SMALL;
+        if (job instanceof MultipartKeyCopyJob || job instanceof ParallelCseUploadJob) return SizeClass.LARGE;
+        return SizeClass.of(context.getOptions(), job.summary.getSize());
+    }
+
+    /**
+     * @return true if the lane the job belongs to can't take any more jobs right now
+     */
+    public boolean isFull(KeyJob job) {
+        final SizeClass sizeClass = getSizeClass(job);
+        if (!lanes.get(sizeClass).isFull()) return false;
+        return findLender(sizeClass) == null;
+    }
+
+    public void submit(KeyJob job) {
+        final SizeClass sizeClass = getSizeClass(job);
+        Lane lane = lanes.get(sizeClass);
+
+        if (lane.isBusy()) {
+            final Lane lender = findLender(sizeClass);
+            if (lender != null) {
+                if (context.getOptions().isVerbose()) log.info("{} lane is busy, running {} in {} lane.", sizeClass, job, lender.sizeClass);
+                context.getStats().getLaneStats(sizeClass).borrowed.incrementAndGet();
+                lane = lender;
+            }
+        }
+
+        lane.execute(new LaneTask(job, sizeClass, lane));
+    }
+
+    private Lane findLender(SizeClass sizeClass) {
+        for (SizeClass other : SizeClass.values()) {
+            if (other.ordinal() <= sizeClass.ordinal()) continue;
+            final Lane lane = lanes.get(other);
+            if (lane != null && lane.hasIdleThread()) return lane;
+        }
+        return null;
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (Lane lane : lanes.values()) size += lane.getQueueSize();
+        return size;
+    }
+
+    public int getActiveCount() {
+        int active = 0;
+        for (Lane lane : lanes.values()) active += lane.getActiveCount();
+        return active;
+    }
+
+    public boolean isIdle() {
+        return getQueueSize() == 0 && getActiveCount() == 0 && !retryQueue.hasPending();
+    }
+
+    /**
+     * @return the current number of threads of all lanes
+     */
+    public int getPoolSize() {
+        int threads = 0;
+        for (Lane lane : lanes.values()) threads += lane.getPoolSize();
+        return threads;
+    }
+
+    /**
+     * @return the number of threads of all lanes as configured
+     */
+    public int getConcurrencyCeiling() {
+        int threads = 0;
+        for (Lane lane : lanes.values()) threads += lane.threads;
+        return threads;
+    }
+
+    /**
+     * Resizes the lanes so that all of them together run at most limit jobs, keeping the proportions of the lanes
+     * and at least one thread per lane.
+     */
+    public void setConcurrencyLimit(int limit) {
+        final int ceiling = getConcurrencyCeiling();
+        for (Lane lane : lanes.values()) {
+            lane.resize(Math.max(1, Math.min(lane.threads, Math.round((float) lane.threads * limit / ceiling))));
+        }
+    }
+
+    public void shutdown() {
+        // this will wait for currently executing tasks to finish
+        for (Lane lane : lanes.values()) lane.shutdown();
+    }
+
+    private abstract class Lane {
+        protected final SizeClass sizeClass;
+        protected final int threads;
+        protected final int capacity;
+        private final Semaphore connections;
+        @Getter private final int maxConnections;
+
+        Lane(SizeClass sizeClass, int threads, int maxConnections, int capacity) {
+            this.sizeClass = sizeClass;
+            this.threads = threads;
+            this.capacity = capacity;
+            this.maxConnections = maxConnections;
+            this.connections = new Semaphore(maxConnections);
+        }
+
+        abstract void execute(LaneTask task);
+        abstract void resize(int poolSize);
+        abstract void shutdown();
+
+        // jobs that wait for a thread
+        abstract int getQueueSize();
+        // jobs that are running
+        abstract int getActiveCount();
+        // the number of jobs that may run at the same time
+        abstract int getPoolSize();
+
+        boolean isFull() { return getQueueSize() >= capacity; }
+        boolean isBusy() { return getQueueSize() > 0 || getActiveCount() >= getPoolSize(); }
+        boolean hasIdleThread() { return getQueueSize() == 0 && getActiveCount() < getPoolSize(); }
+
+        @Override public String toString() {
+            return sizeClass + "(threads=" + threads + ", connections=" + maxConnections + ")";
+        }
+    }
+
+    private class PoolLane extends Lane {
+        private final BlockingQueue<Runnable> queue;
+        private final ThreadPoolExecutor executor;
+
+        PoolLane(final SizeClass sizeClass, int threads, int maxConnections, int capacity) {
+            super(sizeClass, threads, maxConnections, capacity);
+            // Jobs that wait in the queue keep the order of the schedule, the queue is bounded by isFull() then.
+            final Comparator<KeyObjectSummary> order = context.getOptions().getScheduleMode().getComparator(context.getOptions());
+            if (order == null) {
+                this.queue = new LinkedBlockingQueue<Runnable>(capacity);
+            } else {
+                this.queue = new PriorityBlockingQueue<Runnable>(capacity, new Comparator<Runnable>() {
+                    @Override public int compare(Runnable r1, Runnable r2) {
+                        return order.compare(((LaneTask) r1).job.summary, ((LaneTask) r2).job.summary);
+                    }
+                });
+            }
+
+            final RejectedExecutionHandler rejectedExecutionHandler = new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    log.error("Error submitting job {} to {} lane, possible queue overflow.", r, sizeClass);
+                }
+            };
+            this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, queue, rejectedExecutionHandler);
+        }
+
+        @Override void execute(LaneTask task) { executor.execute(task); }
+
+        @Override void resize(int poolSize) {
+            // the maximum pool size must never be smaller than the core pool size
+            if (poolSize > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(poolSize);
+                executor.setCorePoolSize(poolSize);
+            } else {
+                executor.setCorePoolSize(poolSize);
+                executor.setMaximumPoolSize(poolSize);
+            }
+        }
+
+        @Override void shutdown() { executor.shutdown(); }
+
+        @Override int getQueueSize() { return queue.size(); }
+        @Override int getActiveCount() { return executor.getActiveCount(); }
+        @Override int getPoolSize() { return executor.getCorePoolSize(); }
+    }
+
+    /**
+     * Starts a virtual thread for every job right away. The thread waits for a permit before it runs the job, the
+     * permits take the place of the threads of a pool. Waiting jobs run in the order they were submitted.
+     */
+    private class VirtualLane extends Lane {
+        private final ExecutorService executor;
+        private final Permits permits;
+        private final AtomicInteger waiting = new AtomicInteger(0);
+        private final AtomicInteger running = new AtomicInteger(0);
+        private volatile int poolSize;
+
+        VirtualLane(SizeClass sizeClass, int threads, int maxConnections, int capacity) {
+            super(sizeClass, threads, maxConnections, capacity);
+            this.executor = VirtualThreads.newExecutor(sizeClass.name().toLowerCase() + "-lane-");
+            this.permits = new Permits(threads);
+            this.poolSize = threads;
+        }
+
+        @Override void execute(final LaneTask task) {
+            waiting.incrementAndGet();
+            executor.execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        permits.acquire();
+                    } catch (InterruptedException e) {
+                        waiting.decrementAndGet();
+                        log.error("Interrupted while waiting to run {} in {} lane.", task, sizeClass);
+                        retryQueue.done(task.job);
+                        return;
+                    }
+                    // count the job as running before it stops waiting, so that the lane never looks idle in between
+                    running.incrementAndGet();
+                    waiting.decrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        running.decrementAndGet();
+                        permits.release();
+                    }
+                }
+            });
+        }
+
+        @Override synchronized void resize(int size) {
+            if (size > poolSize) {
+                permits.release(size - poolSize);
+            } else if (size < poolSize) {
+                permits.reducePermits(poolSize - size);
+            }
+            poolSize = size;
+        }
+
+        @Override void shutdown() { executor.shutdown(); }
+
+        @Override int getQueueSize() { return waiting.get(); }
+        @Override int getActiveCount() { return running.get(); }
+        @Override int getPoolSize() { return poolSize; }
+    }
+
+    private static class Permits extends Semaphore {
+        Permits(int permits) { super(permits, true); }
+        @Override protected void reducePermits(int reduction) { super.reducePermits(reduction); }
+    }
+
+    private class LaneTask implements Runnable {
+        private final KeyJob job;
+        private final SizeClass sizeClass;
+        private final Lane lane;
+
+        LaneTask(KeyJob job, SizeClass sizeClass, Lane lane) {
+            this.job = job;
+            this.sizeClass = sizeClass;
+            this.lane = lane;
+        }
+
+        @Override
+        public void run() {
+            final int permits = Math.min(job.getConnectionsNeeded(), lane.getMaxConnections());
+            final long start = System.currentTimeMillis();
+            try {
+                if (sharedWorkers != null) {
+                    try {
+                        sharedWorkers.acquire(context);
+                    } catch (InterruptedException e) {
+                        log.error("Interrupted while waiting for a worker for {}.", job);
+                        return;
+                    }
+                }
+                try {
+                    try {
+                        lane.connections.acquire(permits);
+                    } catch (InterruptedException e) {
+                        log.error("Interrupted while waiting for a connection for {}.", job);
+                        return;
+                    }
+                    try {
+                        job.run();
+                    } finally {
+                        lane.connections.release(permits);
+                        context.getStats().getLaneStats(sizeClass).record(job.getBytesTransferred(), System.currentTimeMillis() - start);
+                    }
+                } finally {
+                    if (sharedWorkers != null) sharedWorkers.release(context);
+                }
+            } finally {
+                // the DeleteBatcher tells the RetryQueue about keys it was handed
+                if (!job.takeHandOff()) retryQueue.done(job);
+            }
+        }
+
+        @Override public String toString() { return job.toString(); }
+    }
+}
@@ -8,6 +8,7 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.AmazonS3EncryptionClientBuilder;
 import com.amazonaws.services.s3.model.*;
+import lombok.AccessLevel;
 import lombok.Cleanup;
 import lombok.Getter;
 import lombok.Setter;
@@ -20,6 +21,10 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static com.amazonaws.SDKGlobalConfiguration.DISABLE_CERT_CHECKING_SYSTEM_PROPERTY;
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -44,19 +49,77 @@ public class MirrorMain {
 
     @Getter private AmazonS3 sourceClient;
     @Getter private AmazonS3 destinationClient;
-    @Getter private MirrorContext context;
-    @Getter private MirrorMaster master;
+    // replaced for every cycle of a --daemon, and read by the shutdown hook
+    @Getter private volatile MirrorContext context;
+    @Getter private volatile MirrorMaster master;
+
+    // the options of every --extra-destination
+    @Getter(AccessLevel.PROTECTED) private final List<MirrorOptions> extraDestinationOptions = new ArrayList<MirrorOptions>();
 
     public MirrorMain(String[] args) { this.args = args; }
 
     public static void main (String[] args) {
-        MirrorMain main = new MirrorMain(args);
+        if (JobMain.isJob(args)) {
+            JobMain.main(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals(MirrorOptions.LONGOPT_MERGE_STATS)) {
+            mergeStats(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        MirrorMain main = Daemon.isDaemon(args) ? new Daemon(args) : new MirrorMain(args);
         main.init();
         main.run();
     }
 
     public void run() {
+        if (options.getSampleShardSplits() != null) {
+            sampleShardSplits();
+            return;
+        }
         master.mirror();
+        writeStatsFile();
+    }
+
+    /**
+     * Writes the stats of the context to the --stats-file, if any.
+     */
+    protected void writeStatsFile() {
+        if (options.getStatsFile() == null) return;
+        try {
+            context.getStats().write(new File(options.getStatsFile()));
+        } catch (IOException e) {
+            log.error("Error writing stats to {}.", options.getStatsFile(), e);
+        }
+    }
+
+    private void sampleShardSplits() {
+        final File file = new File(options.getSampleShardSplits());
+        try {
+            Shard.writeSplits(file, Shard.sampleSplits(context, options.getKeyShard().getCount()));
+            log.info("Wrote the splits of {} shards to {}.", options.getKeyShard().getCount(), file);
+        } catch (Exception e) {
+            log.error("Error sampling the splits of {} shards.", options.getKeyShard().getCount(), e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Logs the sum of the stats files of several shards, see --stats-file.
+     */
+    private static void mergeStats(String[] files) {
+        if (files.length == 0) {
+            System.err.println(MirrorOptions.LONGOPT_MERGE_STATS + " needs the stats files to merge");
+            System.exit(1);
+        }
+        final List<MirrorStats> stats = new ArrayList<MirrorStats>();
+        try {
+            for (String file : files) stats.add(MirrorStats.read(new File(file)));
+        } catch (IOException e) {
+            System.err.println("Error reading stats: " + e.getMessage());
+            System.exit(1);
+        }
+        MirrorStats.merge(stats).logStats();
     }
 
     public void init() {
@@ -71,8 +134,45 @@ public class MirrorMain {
         if (options.isDisableCertCheck())
             System.setProperty(DISABLE_CERT_CHECKING_SYSTEM_PROPERTY, "true");
 
-        sourceClient = getAmazonS3Client(options.getSourceProfile());
-        if (!options.getDestinationProfile().equals(options.getSourceProfile())) {
+        initContext();
+        for (MirrorContext extra : context.getExtraDestinations()) {
+            Runtime.getRuntime().addShutdownHook(extra.getStats().getShutdownHook());
+        }
+
+        // on SIGTERM the keys in flight may finish before the stats are logged
+        Runtime.getRuntime().addShutdownHook(new Thread("MirrorMain-shutdown") {
+            @Override public void run() { shutdown(); }
+        });
+        Thread.setDefaultUncaughtExceptionHandler(uncaughtExceptionHandler);
+    }
+
+    /**
+     * Called by the shutdown hook, stops the mirror and waits --shutdown-grace seconds for the keys in flight.
+     */
+    protected void shutdown() {
+        final MirrorMaster master = this.master;
+        master.requestStop();
+        master.awaitStop(TimeUnit.SECONDS.toMillis(options.getShutdownGrace()));
+        context.getStats().logStats();
+    }
+
+    /**
+     * Creates the clients, the context and the master for the parsed options.
+     */
+    protected void initContext() {
+        initContext(options, extraDestinationOptions);
+    }
+
+    /**
+     * Creates the clients, the context and the master for these options, which may differ from the parsed ones in
+     * their prefixes and --ctime, see Daemon.
+     */
+    protected void initContext(MirrorOptions options, List<MirrorOptions> extraDestinationOptions) {
+        // a local directory needs no client
+        if (!options.isSourceLocal()) sourceClient = getAmazonS3Client(options.getSourceProfile());
+        if (options.isDestinationLocal()) {
+            destinationClient = null;
+        } else if (options.isSourceLocal() || !options.getDestinationProfile().equals(options.getSourceProfile())) {
         	destinationClient = getAmazonS3Client(options.getDestinationProfile());
         } else {
         	destinationClient = sourceClient;
@@ -91,13 +191,62 @@ public class MirrorMain {
         }
 
         context = new MirrorContext(options, sourceClient, destinationClient, sourceSSEKey, destinationSSEKey);
+        initCsePassthrough(context);
+        initParallelCse(context);
+        for (MirrorOptions extraOptions : extraDestinationOptions) {
+            addExtraDestination(context, extraOptions);
+        }
         master = new MirrorMaster(context);
+    }
 
-        Runtime.getRuntime().addShutdownHook(context.getStats().getShutdownHook());
-        Thread.setDefaultUncaughtExceptionHandler(uncaughtExceptionHandler);
+    /**
+     * Creates the clients without encryption that copy encrypted objects as they are, if both profiles allow it.
+     */
+    protected void initCsePassthrough(MirrorContext context) {
+        if (!CsePassthrough.isPossible(options)) return;
+        final boolean sameClient = context.getSourceClient() == context.getDestinationClient();
+        final AmazonS3 plainSourceClient = getAmazonS3Client(options.getSourceProfile(), true);
+        final AmazonS3 plainDestinationClient = sameClient ? plainSourceClient : getAmazonS3Client(options.getDestinationProfile(), true);
+        context.getCsePassthrough().setClients(plainSourceClient, plainDestinationClient, sameClient);
+        log.info("Both profiles use {} with the same key, copying encrypted objects as they are.", options.getSourceProfile().getEncryption());
+    }
+
+    /**
+     * Creates the client without encryption that uploads the parts encrypted by ParallelCse, if enabled.
+     */
+    protected void initParallelCse(MirrorContext context) {
+        if (!ParallelCse.isPossible(options)) return;
+        final CsePassthrough passthrough = context.getCsePassthrough();
+        context.getParallelCse().setDestinationClient(passthrough.isEnabled()
+                ? passthrough.getDestinationClient()
+                : getAmazonS3Client(options.getDestinationProfile(), true));
+        log.info("Encrypting up to {} parts of an object at the same time.", options.getCsePartThreads());
+    }
+
+    /**
+     * Creates the context of an --extra-destination, which shares the source of the main context.
+     */
+    protected MirrorContext addExtraDestination(MirrorContext context, MirrorOptions extraOptions) {
+        final MirrorProfile profile = extraOptions.getDestinationProfile();
+        final SSECustomerKey sseKey = profile.getEncryption() == MirrorEncryption.SSE_C ? new SSECustomerKey(profile.getEncryptionKey()) : null;
+        final MirrorContext extra = new MirrorContext(extraOptions, context.getSourceClient(), getAmazonS3Client(profile),
+                context.getSourceSSEKey(), sseKey);
+        context.getExtraDestinations().add(extra);
+
+        context.getStats().setLabel(options.getDestinationProfile().getName() + ":" + options.getDestinationBucket());
+        extra.getStats().setLabel(profile.getName() + ":" + extraOptions.getDestinationBucket());
+        log.info("Also mirroring to {} with profile {}.", extraOptions.getDestinationBucket(), profile.getName());
+        return extra;
     }
 
 	protected AmazonS3 getAmazonS3Client(MirrorProfile profile) {
+        return getAmazonS3Client(profile, false);
+    }
+
+    /**
+     * @param plain true for a client without client-side encryption, even if the profile has it
+     */
+    protected AmazonS3 getAmazonS3Client(MirrorProfile profile, boolean plain) {
         if (!profile.isValid()) {
             throw new IllegalStateException("Profile is invalid");
         }
@@ -121,7 +270,7 @@ public class MirrorMain {
         }
 
         AmazonS3 client;
-        switch (profile.getEncryption()) {
+        switch (plain ? MirrorEncryption.NONE : profile.getEncryption()) {
             case CSE_AES_256:
             case CSE_AES_GCM_256:
             case CSE_AES_GCM_256_STRICT:
@@ -184,29 +333,38 @@ public class MirrorMain {
     protected void parseArguments() throws Exception {
         parser.parseArgument(args);
         
-        if (options.getSourceProfileName() == null || options.getSourceProfileName().equals("")) {
-        	throw new IllegalStateException("No source profile specified");
+        if (options.isSourceLocal() && options.isDestinationLocal()) {
+            throw new IllegalStateException("Source and destination can't both be local directories");
         }
 
-        if (options.getDestinationProfileName() == null || options.getDestinationProfileName().equals("")) {
-        	throw new IllegalStateException("No destination profile specified");
+        if (options.getDeleteBatchSize() < 1 || options.getDeleteBatchSize() > DeleteBatcher.MAX_BATCH_SIZE) {
+            throw new IllegalStateException(MirrorOptions.LONGOPT_DELETE_BATCH_SIZE + " must be between 1 and " + DeleteBatcher.MAX_BATCH_SIZE);
         }
 
-        MirrorProfile sourceProfile = options.getSourceProfile();
-        MirrorProfile destinationProfile = options.getDestinationProfile();
+        if (options.getCsePartThreads() < 1) {
+            throw new IllegalStateException(MirrorOptions.LONGOPT_CSE_PART_THREADS + " must be at least 1");
+        }
 
-        sourceProfile.setName(options.getSourceProfileName());
-        destinationProfile.setName(options.getDestinationProfileName());
+        if (!options.isSourceLocal() && (options.getSourceProfileName() == null || options.getSourceProfileName().equals(""))) {
+        	throw new IllegalStateException("No source profile specified");
+        }
 
-        loadAwsKeysFromS3Config(sourceProfile);
-        loadAwsKeysFromS3Config(destinationProfile);
+        if (!options.isDestinationLocal() && (options.getDestinationProfileName() == null || options.getDestinationProfileName().equals(""))) {
+        	throw new IllegalStateException("No destination profile specified");
+        }
 
-        if (!options.getSourceProfile().isValid()) {
-        	throw new IllegalStateException("Could not find source credentials");
+        if (!options.isSourceLocal()) {
+            options.setSourceProfile(loadProfile(options.getSourceProfileName()));
+            if (!options.getSourceProfile().isValid()) {
+                throw new IllegalStateException("Could not find source credentials");
+            }
         }
-        
-        if (!options.getDestinationProfile().isValid()) {
-        	throw new IllegalStateException("Could not find destination credentials");
+
+        if (!options.isDestinationLocal()) {
+            options.setDestinationProfile(loadProfile(options.getDestinationProfileName()));
+            if (!options.getDestinationProfile().isValid()) {
+                throw new IllegalStateException("Could not find destination credentials");
+            }
         }
 
         // If there are more threads than connections, then some threads won't be able to get a connection
@@ -217,7 +375,188 @@ public class MirrorMain {
             options.setMaxConnections(options.getMaxThreads());
         }
 
+        // Every lane gets its share of the connection pool, so that lanes don't wait for each other's connections.
+        if (options.isSizeLanes()) {
+            int laneConnections = 0;
+            for (SizeClass sizeClass : SizeClass.values()) {
+                if (options.getLaneConnections(sizeClass) < options.getLaneThreads(sizeClass)) {
+                    log.warn("The {} lane has fewer connections than threads, some of its threads will wait for a connection.", sizeClass);
+                }
+                laneConnections += options.getLaneConnections(sizeClass);
+            }
+            if (laneConnections > options.getMaxConnections()) {
+                log.info("Adjusting maximum connections to the {} connections of all lanes.", laneConnections);
+                options.setMaxConnections(laneConnections);
+            }
+        }
+
         options.initDerivedFields();
+
+        if (options.getShard() != null) {
+            Shard shard = Shard.parse(options.getShard());
+            if (options.getShardSplits() != null && options.getSampleShardSplits() == null) {
+                shard = shard.withSplits(Shard.readSplits(new File(options.getShardSplits())));
+            }
+            options.setKeyShard(shard);
+        } else if (options.getShardSplits() != null || options.getSampleShardSplits() != null) {
+            throw new IllegalStateException(MirrorOptions.LONGOPT_SHARD_SPLITS + " and " + MirrorOptions.LONGOPT_SAMPLE_SHARD_SPLITS
+                    + " need " + MirrorOptions.LONGOPT_SHARD + " <i/N>");
+        }
+
+        // the async engine has no jobs that the RetryQueue could take
+        if (options.getEngine() == TransferEngine.ASYNC && (options.isDeferredRetry() || options.isRetryPass())) {
+            throw new IllegalStateException(MirrorOptions.LONGOPT_DEFERRED_RETRY + " and " + MirrorOptions.LONGOPT_RETRY_PASS
+                    + " can't be used with " + MirrorOptions.LONGOPT_ENGINE + " ASYNC");
+        }
+
+        if (options.hasKeyList()) {
+            if (options.hasFailedKeys()) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_KEY_LIST + " can't be used with " + MirrorOptions.LONGOPT_FAILED_KEYS);
+            }
+            // the destination would still be listed in full
+            if (options.isDeleteRemoved()) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_KEY_LIST + " can't be used with " + MirrorOptions.LONGOPT_DELETE_REMOVED);
+            }
+        }
+
+        if (options.hasPlan() || options.hasExecutePlan()) {
+            final String option = options.hasPlan() ? MirrorOptions.LONGOPT_PLAN : MirrorOptions.LONGOPT_EXECUTE_PLAN;
+            if (options.hasPlan() && options.hasExecutePlan()) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_PLAN + " can't be used with " + MirrorOptions.LONGOPT_EXECUTE_PLAN);
+            }
+            if (options.hasKeyList() || options.hasFailedKeys() || options.hasJournal() || options.isDaemon()) {
+                throw new IllegalStateException(option + " can't be used with " + MirrorOptions.LONGOPT_KEY_LIST + ", "
+                        + MirrorOptions.LONGOPT_FAILED_KEYS + ", " + MirrorOptions.LONGOPT_JOURNAL + " or " + MirrorOptions.LONGOPT_DAEMON);
+            }
+            if (options.hasLocalBackend() || options.hasExtraDestinations()) {
+                throw new IllegalStateException(option + " can't be used with local directories or " + MirrorOptions.LONGOPT_EXTRA_DESTINATION);
+            }
+            // the processes of a --shard execute parts of the same plan
+            if (options.hasPlan() && options.getKeyShard() != null) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_PLAN + " can't be used with " + MirrorOptions.LONGOPT_SHARD);
+            }
+            // the listed sizes of client-side encrypted objects aren't the sizes of their data, and their requests and
+            // costs aren't the ones of a plain copy
+            if (options.hasPlan() && (MirrorEncryption.isCSE(options.getSourceProfile().getEncryption())
+                    || MirrorEncryption.isCSE(options.getDestinationProfile().getEncryption()))) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_PLAN + " can't be used with client-side encryption");
+            }
+            if (options.hasExecutePlan()) {
+                try {
+                    MirrorPlan.checkPlan(new File(options.getExecutePlan()), options);
+                } catch (IOException e) {
+                    throw new IllegalStateException(MirrorOptions.LONGOPT_EXECUTE_PLAN + ": " + e.getMessage(), e);
+                }
+            }
+        }
+
+        if (options.hasVerify()) {
+            if (options.hasPlan() || options.hasExecutePlan() || options.hasKeyList() || options.hasFailedKeys()
+                    || options.hasJournal() || options.isDaemon() || options.getKeyShard() != null) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_VERIFY + " can't be used with " + MirrorOptions.LONGOPT_PLAN + ", "
+                        + MirrorOptions.LONGOPT_EXECUTE_PLAN + ", " + MirrorOptions.LONGOPT_KEY_LIST + ", " + MirrorOptions.LONGOPT_FAILED_KEYS + ", "
+                        + MirrorOptions.LONGOPT_JOURNAL + ", " + MirrorOptions.LONGOPT_DAEMON + " or " + MirrorOptions.LONGOPT_SHARD);
+            }
+            if (options.hasLocalBackend() || options.hasExtraDestinations()) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_VERIFY + " can't be used with local directories or " + MirrorOptions.LONGOPT_EXTRA_DESTINATION);
+            }
+        }
+        if (options.getVerifySample() < 0 || options.getVerifySample() > 1) {
+            throw new IllegalStateException(MirrorOptions.LONGOPT_VERIFY_SAMPLE + " must be between 0 and 1");
+        }
+
+        if (options.isDedup() && !DedupIndex.isPossible(options)) {
+            throw new IllegalStateException(MirrorOptions.LONGOPT_DEDUP + " can't be used with local directories or client-side encryption");
+        }
+        // the FanOutCopyJob transfers every object to all destinations, it doesn't copy within them
+        if (options.isDedup() && options.hasExtraDestinations()) {
+            throw new IllegalStateException(MirrorOptions.LONGOPT_DEDUP + " can't be used with " + MirrorOptions.LONGOPT_EXTRA_DESTINATION);
+        }
+
+        if (options.hasDelta()) {
+            // the parts of client-side encrypted objects can't be copied on their own
+            if (!DedupIndex.isPossible(options)) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_DELTA + " can't be used with local directories or client-side encryption");
+            }
+            // the FanOutCopyJob streams every object whole to all destinations
+            if (options.hasExtraDestinations()) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_DELTA + " can't be used with " + MirrorOptions.LONGOPT_EXTRA_DESTINATION);
+            }
+            final File deltaDir = new File(options.getDelta());
+            if (!deltaDir.isDirectory() && !deltaDir.mkdirs()) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_DELTA + ": can't create directory " + deltaDir);
+            }
+        }
+
+        if (options.isResume() && !options.hasJournal()) {
+            throw new IllegalStateException(MirrorOptions.LONGOPT_RESUME + " needs a " + MirrorOptions.LONGOPT_JOURNAL);
+        }
+        // the position in the journal only works for keys that are listed in order
+        if (options.hasJournal() && (options.isSourceLocal() || options.hasFailedKeys() || options.hasKeyList())) {
+            throw new IllegalStateException(MirrorOptions.LONGOPT_JOURNAL + " can't be used with a local source directory, "
+                    + MirrorOptions.LONGOPT_FAILED_KEYS + " or " + MirrorOptions.LONGOPT_KEY_LIST);
+        }
+
+        if (options.isDaemon()) {
+            // a daemon keeps its own state between cycles
+            if (options.hasJournal()) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_DAEMON + " can't be used with " + MirrorOptions.LONGOPT_JOURNAL);
+            }
+            if (options.hasKeyList() || options.hasFailedKeys()) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_DAEMON + " can't be used with " + MirrorOptions.LONGOPT_KEY_LIST
+                        + " or " + MirrorOptions.LONGOPT_FAILED_KEYS);
+            }
+            if (options.getDaemonInterval() < 1 || options.getDaemonFullEvery() < 1) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_DAEMON_INTERVAL + " and " + MirrorOptions.LONGOPT_DAEMON_FULL_EVERY
+                        + " must be at least 1");
+            }
+        }
+        if (options.isEvents()) {
+            if (!options.isDaemon()) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_EVENTS + " needs " + MirrorOptions.LONGOPT_DAEMON);
+            }
+            if (options.getDaemonListen() == null && options.getEventsFile() == null) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_EVENTS + " needs " + MirrorOptions.LONGOPT_DAEMON_LISTEN
+                        + " or " + MirrorOptions.LONGOPT_EVENTS_FILE);
+            }
+            if (options.isSourceLocal()) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_EVENTS + " can't be used with a local source directory");
+            }
+            if (options.getEventsWindow() < 0) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_EVENTS_WINDOW + " can't be negative");
+            }
+        } else if (options.getEventsFile() != null) {
+            throw new IllegalStateException(MirrorOptions.LONGOPT_EVENTS_FILE + " needs " + MirrorOptions.LONGOPT_EVENTS);
+        }
+
+        if (options.hasExtraDestinations() && options.hasLocalBackend()) {
+            throw new IllegalStateException(MirrorOptions.LONGOPT_EXTRA_DESTINATION + " can't be used with local directories");
+        }
+        for (String extraDestination : options.getExtraDestinations()) {
+            final int colon = extraDestination.indexOf(':');
+            if (colon <= 0 || colon == extraDestination.length() - 1) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_EXTRA_DESTINATION + " must be <profile>:<bucket[/prefix]>, not " + extraDestination);
+            }
+            final String bucket = extraDestination.substring(colon + 1);
+            if (MirrorOptions.isLocal(bucket)) {
+                throw new IllegalStateException(MirrorOptions.LONGOPT_EXTRA_DESTINATION + " must be a bucket, not " + bucket);
+            }
+            final MirrorProfile profile = loadProfile(extraDestination.substring(0, colon));
+            if (!profile.isValid()) {
+                throw new IllegalStateException("Could not find credentials of extra destination profile " + profile.getName());
+            }
+            extraDestinationOptions.add(options.forExtraDestination(profile, bucket));
+        }
+    }
+
+    /**
+     * @return the profile with this name from the s3cfg file
+     */
+    protected MirrorProfile loadProfile(String name) throws Exception {
+        final MirrorProfile profile = new MirrorProfile();
+        profile.setName(name);
+        loadAwsKeysFromS3Config(profile);
+        return profile;
     }
 
     // Credit: https://stackoverflow.com/questions/326390/how-do-i-create-a-java-string-from-the-contents-of-a-file
@@ -1,8 +1,14 @@
 package org.cobbzilla.s3s3mirror;
 
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.concurrent.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages the Starts a KeyLister and sends batches of keys to the ExecutorService for handling by KeyJobs
@@ -14,47 +20,155 @@ public class MirrorMaster {
 
     private final MirrorContext context;
 
+    // the workers of all pairs of a --job-file
+    @Setter private SharedWorkers sharedWorkers;
+
+    // the keys of the events the --daemon replicates, instead of listing the buckets
+    @Setter private EventBatch eventBatch;
+
+    // set by requestStop, the masters and the retry pass stop starting new keys
+    private volatile boolean stopping = false;
+    private volatile boolean started = false;
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final List<KeyMaster> masters = new ArrayList<KeyMaster>();
+    private volatile Journal journal;
+
     public MirrorMaster(MirrorContext context) {
         this.context = context;
     }
 
+    /**
+     * Stops starting new keys, the keys in flight go on. Called by the shutdown hook on SIGTERM, a mirror that hasn't
+     * started yet stops right away.
+     */
+    public void requestStop() {
+        if (finished.getCount() == 0) return;
+        stopping = true;
+        synchronized (masters) {
+            for (KeyMaster master : masters) master.requestStop();
+        }
+    }
+
+    /**
+     * Waits until the keys in flight are done and the journal is written, at most graceMillis.
+     */
+    public void awaitStop(long graceMillis) {
+        if (!started || finished.getCount() == 0) return;
+        log.info("Stopping, waiting up to {} seconds for the keys in flight.", TimeUnit.MILLISECONDS.toSeconds(graceMillis));
+        try {
+            if (finished.await(graceMillis, TimeUnit.MILLISECONDS)) return;
+            log.warn("Keys still in flight after {} seconds, they're copied again by the next run.", TimeUnit.MILLISECONDS.toSeconds(graceMillis));
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for the keys in flight.");
+        }
+        // keep what's done so far, the keys in flight hold back the marker
+        final Journal journal = this.journal;
+        if (journal != null) journal.close();
+    }
+
     public void mirror() {
 
         log.info("version "+VERSION+" starting");
+        started = true;
 
         final MirrorOptions options = context.getOptions();
 
-        if (options.isVerbose() && options.hasCtime()) log.info("will not copy anything older than "+options.getCtime()+" (cutoff="+options.getMaxAgeDate()+")");
+        if (options.hasPlan()) {
+            writePlan();
+            return;
+        }
+        if (options.hasVerify()) {
+            verify();
+            return;
+        }
 
-        final int maxQueueCapacity = getMaxQueueCapacity(options);
-        final BlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<Runnable>(maxQueueCapacity);
-        final RejectedExecutionHandler rejectedExecutionHandler = new RejectedExecutionHandler() {
-            @Override
-            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
-                log.error("Error submitting job {}, possible queue overflow.", r);
+        if (options.hasJournal()) {
+            try {
+                journal = Journal.open(new File(options.getJournal()), options.isResume());
+            } catch (IOException e) {
+                log.error("Error opening journal {}, not mirroring.", options.getJournal(), e);
+                finished.countDown();
+                return;
             }
-        };
+        }
 
-        final ThreadPoolExecutor executorService = new ThreadPoolExecutor(options.getMaxThreads(), options.getMaxThreads(), 1, TimeUnit.MINUTES, workQueue, rejectedExecutionHandler);
+        // a --daemon indexes once, the copies of its cycles add to the index
+        final DedupIndex dedupIndex = context.getDedupIndex();
+        if (options.isDedup() && !dedupIndex.isLoaded()) {
+            try {
+                dedupIndex.load(context);
+            } catch (Exception e) {
+                log.warn("Error indexing the destination, copying without --dedup.", e);
+            }
+        }
+
+        if (options.isVerbose() && options.hasCtime()) log.info("will not copy anything older than "+options.getCtime()+" (cutoff="+options.getMaxAgeDate()+")");
+
+        if (sharedWorkers != null) sharedWorkers.register(context);
+        final MirrorLanes lanes = new MirrorLanes(context, sharedWorkers);
+        final KeyMaster copyMaster = new CopyMaster(context, lanes);
+        copyMaster.setJournal(journal);
+        if (eventBatch != null) {
+            copyMaster.setCustomLister(eventBatch.getCopyLister(context));
+            copyMaster.setDoneListener(eventBatch.getDoneListener(context));
+        }
+        addMaster(copyMaster);
+        final List<KeyMaster> deleteMasters = new ArrayList<KeyMaster>();
+
+        AsyncEngine asyncEngine = null;
+        if (options.getEngine() == TransferEngine.ASYNC) {
+            if (AsyncEngine.isSupported(options)) {
+                asyncEngine = new AsyncEngine(context, lanes.getRetryQueue());
+                copyMaster.setAsyncEngine(asyncEngine);
+            } else {
+                log.warn("The async engine doesn't support client-side encryption, local directories, extra destinations, --checksum, --dedup or --delta, using threads.");
+            }
+        }
 
-        final KeyMaster copyMaster = new CopyMaster(context, workQueue, executorService);
-        KeyMaster deleteMaster = null;
+        ConcurrencyController controller = null;
+        if (options.isAdaptiveConcurrency()) {
+            controller = new ConcurrencyController(context, lanes);
+            final Thread controllerThread = new Thread(controller, "ConcurrencyController");
+            controllerThread.setDaemon(true);
+            controllerThread.start();
+        }
 
         try {
             copyMaster.start();
 
-            if (context.getOptions().isDeleteRemoved()) {
-                deleteMaster = new DeleteMaster(context, workQueue, executorService);
-                deleteMaster.start();
+            // a plan has deletes only if it was written with --delete-removed
+            if (options.isDeleteRemoved() || options.hasExecutePlan()) {
+                // every destination is compared with the source on its own
+                final List<MirrorContext> destinations = new ArrayList<MirrorContext>();
+                destinations.add(context);
+                destinations.addAll(context.getExtraDestinations());
+                for (MirrorContext destination : destinations) {
+                    final KeyMaster deleteMaster = new DeleteMaster(destination, lanes);
+                    deleteMaster.setAsyncEngine(asyncEngine);
+                    // batched deletes are done when their batch was sent, every destination is a listing of its own
+                    deleteMaster.setJournal(journal);
+                    if (eventBatch != null) {
+                        deleteMaster.setCustomLister(eventBatch.getDeleteLister(destination));
+                        deleteMaster.setDoneListener(eventBatch.getDoneListener(destination));
+                    }
+                    addMaster(deleteMaster);
+                    deleteMaster.start();
+                    deleteMasters.add(deleteMaster);
+                }
             }
 
             while (true) {
-                if (copyMaster.isDone() && (deleteMaster == null || deleteMaster.isDone())) {
-                    log.info("mirror: completed");
+                if (copyMaster.isDone() && allDone(deleteMasters)) {
                     break;
                 }
                 if (Sleep.sleep(100)) return;
             }
+            if (stopping) {
+                log.info("mirror: stopped");
+            } else {
+                lanes.getRetryQueue().runRetryPass();
+                log.info("mirror: completed");
+            }
 
         } catch (Exception e) {
             log.error("Unexpected exception in mirror.", e);
@@ -64,14 +178,66 @@ public class MirrorMaster {
             } catch (Exception e) {
                 log.error("Error stopping copyMaster.", e);
             }
-            if (deleteMaster != null) {
+            for (KeyMaster deleteMaster : deleteMasters) {
                 try {
                     deleteMaster.stop();
                 } catch (Exception e) {
                     log.error("Error stopping deleteMaster.", e);
                 }
             }
+            if (controller != null) controller.stop();
+            lanes.getRetryQueue().finish();
+            lanes.shutdown();
+            if (asyncEngine != null) asyncEngine.shutdown();
+            if (sharedWorkers != null) sharedWorkers.unregister(context);
+            if (journal != null) journal.close();
+            finished.countDown();
+        }
+    }
+
+    private void writePlan() {
+        final File file = new File(context.getOptions().getPlan());
+        try {
+            final MirrorPlan plan = new MirrorPlan(context);
+            plan.write(file);
+            log.info("Wrote the plan to {}:\n{}", file, plan);
+        } catch (Exception e) {
+            log.error("Error writing the plan to {}.", file, e);
+            // a failed run, see MirrorContext.hasErrors
+            context.getStats().copyErrors.incrementAndGet();
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    private void verify() {
+        final File file = new File(context.getOptions().getVerify());
+        try {
+            final MirrorVerifier verifier = new MirrorVerifier(context);
+            verifier.verify(file);
+            log.info("Wrote {} mismatches to {}:\n{}", verifier.getMismatches(), file, verifier);
+            // a failed run, so that scripts see the mismatches
+            if (verifier.getMismatches() > 0) context.getStats().copyErrors.incrementAndGet();
+        } catch (Exception e) {
+            log.error("Error verifying to {}.", file, e);
+            context.getStats().copyErrors.incrementAndGet();
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    private void addMaster(KeyMaster master) {
+        synchronized (masters) {
+            masters.add(master);
+        }
+        if (stopping) master.requestStop();
+    }
+
+    private static boolean allDone(List<KeyMaster> masters) {
+        for (KeyMaster master : masters) {
+            if (!master.isDone()) return false;
         }
+        return true;
     }
 
     public static int getMaxQueueCapacity(MirrorOptions options) {
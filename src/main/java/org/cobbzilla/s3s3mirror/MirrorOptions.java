@@ -7,14 +7,21 @@ import org.joda.time.DateTime;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+import static org.cobbzilla.s3s3mirror.MirrorConstants.KB;
 import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
 
 @Slf4j
-public class MirrorOptions {
+public class MirrorOptions implements Cloneable {
 
     public static final String S3_PROTOCOL_PREFIX = "s3://";
+    public static final String LOCAL_PREFIX = "file:";
 
     public static final String USAGE_SOURCE_PROFILE= "Profile used for source side (from ~/.s3cfg)";
     public static final String OPT_SOURCE_PROFILE= "-Y";
@@ -64,6 +71,15 @@ public class MirrorOptions {
     public boolean hasDestinationPrefix() { return destinationPrefix != null && destinationPrefix.length() > 0; }
     public int getDestinationPrefixLength() { return destinationPrefix == null ? 0 : destinationPrefix.length(); }
 
+    public static final String USAGE_EXTRA_DESTINATION = "Also mirror to this bucket with this profile, reading every " +
+            "object from the source only once. Can be given several times. Every destination is compared, retried and " +
+            "counted on its own";
+    public static final String LONGOPT_EXTRA_DESTINATION = "--extra-destination";
+    @Option(name=LONGOPT_EXTRA_DESTINATION, usage=USAGE_EXTRA_DESTINATION, metaVar="<profile>:<bucket[/prefix]>")
+    @Getter @Setter private List<String> extraDestinations = new ArrayList<String>();
+
+    public boolean hasExtraDestinations() { return extraDestinations != null && !extraDestinations.isEmpty(); }
+
     public static final String USAGE_MAX_CONNECTIONS = "Maximum number of connections to S3 (default 15)";
     public static final String OPT_MAX_CONNECTIONS = "-m";
     public static final String LONGOPT_MAX_CONNECTIONS = "--max-connections";
@@ -76,13 +92,249 @@ public class MirrorOptions {
     @Option(name=OPT_MAX_THREADS, aliases=LONGOPT_MAX_THREADS, usage=USAGE_MAX_THREADS)
     @Getter @Setter private int maxThreads = 10;
 
+    public static final String USAGE_ENGINE = "How keys are transferred: THREADS (a thread per key, the default), " +
+            "VIRTUAL (a virtual thread per key, needs Java 21, " + LONGOPT_MAX_THREADS + " limits the keys in flight and " +
+            "can be set to thousands) or ASYNC (non-blocking requests from a few event loop threads, keys too large " +
+            "for a single request and profiles with client-side encryption still use threads)";
+    public static final String LONGOPT_ENGINE = "--engine";
+    @Option(name=LONGOPT_ENGINE, usage=USAGE_ENGINE)
+    @Getter @Setter private TransferEngine engine = TransferEngine.THREADS;
+
+    public static final String USAGE_ASYNC_REQUESTS = "Maximum number of keys in flight with " + LONGOPT_ENGINE + " ASYNC (default 1000)";
+    public static final String LONGOPT_ASYNC_REQUESTS = "--async-requests";
+    @Option(name=LONGOPT_ASYNC_REQUESTS, usage=USAGE_ASYNC_REQUESTS)
+    @Getter @Setter private int asyncRequests = 1000;
+
+    public static final String USAGE_EVENT_LOOP_THREADS = "Number of event loop threads with " + LONGOPT_ENGINE + " ASYNC " +
+            "(0 means the default of the HTTP client)";
+    public static final String LONGOPT_EVENT_LOOP_THREADS = "--event-loop-threads";
+    @Option(name=LONGOPT_EVENT_LOOP_THREADS, usage=USAGE_EVENT_LOOP_THREADS)
+    @Getter @Setter private int eventLoopThreads = 0;
+
+    public static final String USAGE_ADAPTIVE_CONCURRENCY = "Adjust the number of threads while running: increase it while " +
+            "throughput grows, decrease it when the endpoint throttles, requests time out or latency spikes " +
+            "(" + LONGOPT_MAX_THREADS + " is the ceiling)";
+    public static final String LONGOPT_ADAPTIVE_CONCURRENCY = "--adaptive-concurrency";
+    @Option(name=LONGOPT_ADAPTIVE_CONCURRENCY, usage=USAGE_ADAPTIVE_CONCURRENCY)
+    @Getter @Setter private boolean adaptiveConcurrency = false;
+
+    public static final String USAGE_MIN_THREADS = "Minimum number of threads with " + LONGOPT_ADAPTIVE_CONCURRENCY + " (default 1)";
+    public static final String LONGOPT_MIN_THREADS = "--min-threads";
+    @Option(name=LONGOPT_MIN_THREADS, usage=USAGE_MIN_THREADS)
+    @Getter @Setter private int minThreads = 1;
+
+    public static final String USAGE_CONCURRENCY_INTERVAL = "Seconds between adjustments of " + LONGOPT_ADAPTIVE_CONCURRENCY + " (default 5)";
+    public static final String LONGOPT_CONCURRENCY_INTERVAL = "--concurrency-interval";
+    @Option(name=LONGOPT_CONCURRENCY_INTERVAL, usage=USAGE_CONCURRENCY_INTERVAL)
+    @Getter @Setter private int concurrencyInterval = 5;
+
     public static final String USAGE_MAX_RETRIES = "Maximum number of retries for S3 requests (default 3)";
     public static final String OPT_MAX_RETRIES = "-r";
     public static final String LONGOPT_MAX_RETRIES = "--max-retries";
     @Option(name=OPT_MAX_RETRIES, aliases=LONGOPT_MAX_RETRIES, usage=USAGE_MAX_RETRIES)
     @Getter @Setter private int maxRetries = 3;
 
-    public static final String USAGE_CTIME = "Only copy objects whose Last-Modified date is younger than this many days. " +
+    public static final String USAGE_RETRY_BASE_DELAY = "Delay (in milliseconds) before the first retry of a failed request, " +
+            "retries back off exponentially from there (throttled requests start at ten times this delay, default 50)";
+    public static final String LONGOPT_RETRY_BASE_DELAY = "--retry-base-delay";
+    @Option(name=LONGOPT_RETRY_BASE_DELAY, usage=USAGE_RETRY_BASE_DELAY)
+    @Getter @Setter private long retryBaseDelay = 50;
+
+    public static final String USAGE_RETRY_MAX_DELAY = "Maximum delay (in milliseconds) between retries of a failed request (default 20000)";
+    public static final String LONGOPT_RETRY_MAX_DELAY = "--retry-max-delay";
+    @Option(name=LONGOPT_RETRY_MAX_DELAY, usage=USAGE_RETRY_MAX_DELAY)
+    @Getter @Setter private long retryMaxDelay = 20000;
+
+    public static final String USAGE_RETRY_BUDGET = "Retry budget per endpoint: a retry costs 5 (10 after a timeout). " +
+            "A request that succeeds after a retry returns the cost of that retry, one that succeeds at once returns 1 " +
+            "(default 500)";
+    public static final String LONGOPT_RETRY_BUDGET = "--retry-budget";
+    @Option(name=LONGOPT_RETRY_BUDGET, usage=USAGE_RETRY_BUDGET)
+    @Getter @Setter private int retryBudget = 500;
+
+    public static final String USAGE_DEFERRED_RETRY = "Don't retry failed keys in the worker thread, put them on a delayed " +
+            "retry queue instead so the thread can go on with other keys (up to " + LONGOPT_MAX_RETRIES + " tries per key)";
+    public static final String LONGOPT_DEFERRED_RETRY = "--deferred-retry";
+    @Option(name=LONGOPT_DEFERRED_RETRY, usage=USAGE_DEFERRED_RETRY)
+    @Getter @Setter private boolean deferredRetry = false;
+
+    public static final String USAGE_RETRY_PASS = "Try all keys that failed once more at the end of the run";
+    public static final String LONGOPT_RETRY_PASS = "--retry-pass";
+    @Option(name=LONGOPT_RETRY_PASS, usage=USAGE_RETRY_PASS)
+    @Getter @Setter private boolean retryPass = false;
+
+    public static final String USAGE_FAILURE_LIST = "Write the keys that could not be copied to this file (one key, size " +
+            "and ETag per line, separated by tabs)";
+    public static final String LONGOPT_FAILURE_LIST = "--failure-list";
+    @Option(name=LONGOPT_FAILURE_LIST, usage=USAGE_FAILURE_LIST)
+    @Getter @Setter private String failureList = null;
+    public boolean hasFailureList() { return failureList != null && failureList.length() > 0; }
+
+    public static final String USAGE_FAILED_KEYS = "Only copy the keys listed in this file (written by " + LONGOPT_FAILURE_LIST +
+            " of an earlier run) instead of listing the source bucket";
+    public static final String LONGOPT_FAILED_KEYS = "--failed-keys";
+    @Option(name=LONGOPT_FAILED_KEYS, usage=USAGE_FAILED_KEYS)
+    @Getter @Setter private String failedKeys = null;
+    public boolean hasFailedKeys() { return failedKeys != null && failedKeys.length() > 0; }
+
+    public static final String USAGE_KEY_LIST = "Only copy the keys listed in this file, or - for stdin, instead of listing " +
+            "the source: one key per line, optionally followed by its size and ETag separated by tabs like in a " +
+            LONGOPT_FAILURE_LIST + ". Keys without a size are looked up with a HEAD";
+    public static final String LONGOPT_KEY_LIST = "--key-list";
+    @Option(name=LONGOPT_KEY_LIST, usage=USAGE_KEY_LIST, metaVar="<file>")
+    @Getter @Setter private String keyList = null;
+    public boolean hasKeyList() { return keyList != null && keyList.length() > 0; }
+
+    public static final String USAGE_PLAN = "Don't mirror, write the keys to copy and delete to this file, with the " +
+            "requests, cost and duration it takes. The source and destination are listed once instead of a HEAD per key";
+    public static final String LONGOPT_PLAN = "--plan";
+    @Option(name=LONGOPT_PLAN, usage=USAGE_PLAN, metaVar="<file>")
+    @Getter @Setter private String plan = null;
+    public boolean hasPlan() { return plan != null && plan.length() > 0; }
+
+    public static final String USAGE_EXECUTE_PLAN = "Copy and delete the keys of a " + LONGOPT_PLAN + " instead of " +
+            "listing the buckets. With --shard every process executes its part of the plan";
+    public static final String LONGOPT_EXECUTE_PLAN = "--execute-plan";
+    @Option(name=LONGOPT_EXECUTE_PLAN, usage=USAGE_EXECUTE_PLAN, metaVar="<file>")
+    @Getter @Setter private String executePlan = null;
+    public boolean hasExecutePlan() { return executePlan != null && executePlan.length() > 0; }
+
+    public static final String USAGE_PLAN_RATES = "Estimate the duration of a " + LONGOPT_PLAN + " from the copy rates " +
+            "in this --stats-file of an earlier run";
+    public static final String LONGOPT_PLAN_RATES = "--plan-rates";
+    @Option(name=LONGOPT_PLAN_RATES, usage=USAGE_PLAN_RATES, metaVar="<file>")
+    @Getter @Setter private String planRates = null;
+
+    public static final String USAGE_PRICE_EGRESS_GB = "Price of a GB read from the source by this process, for the " +
+            "cost of a " + LONGOPT_PLAN;
+    public static final String LONGOPT_PRICE_EGRESS_GB = "--price-egress-gb";
+    @Option(name=LONGOPT_PRICE_EGRESS_GB, usage=USAGE_PRICE_EGRESS_GB, metaVar="<price>")
+    @Getter @Setter private double priceEgressGb = 0.09;
+
+    public static final String USAGE_PRICE_PUT_1000 = "Price of 1000 PUT, COPY, multipart and LIST requests, for the " +
+            "cost of a " + LONGOPT_PLAN;
+    public static final String LONGOPT_PRICE_PUT_1000 = "--price-put-1000";
+    @Option(name=LONGOPT_PRICE_PUT_1000, usage=USAGE_PRICE_PUT_1000, metaVar="<price>")
+    @Getter @Setter private double pricePut1000 = 0.005;
+
+    public static final String USAGE_PRICE_GET_1000 = "Price of 1000 GET and HEAD requests, for the cost of a " + LONGOPT_PLAN;
+    public static final String LONGOPT_PRICE_GET_1000 = "--price-get-1000";
+    @Option(name=LONGOPT_PRICE_GET_1000, usage=USAGE_PRICE_GET_1000, metaVar="<price>")
+    @Getter @Setter private double priceGet1000 = 0.0004;
+
+    public static final String USAGE_VERIFY = "Don't mirror, check that the destination matches the source and write " +
+            "the keys that don't to this file, as a --key-list that repairs them";
+    public static final String LONGOPT_VERIFY = "--verify";
+    @Option(name=LONGOPT_VERIFY, usage=USAGE_VERIFY, metaVar="<file>")
+    @Getter @Setter private String verify = null;
+    public boolean hasVerify() { return verify != null && verify.length() > 0; }
+
+    public static final String USAGE_VERIFY_SAMPLE = "Fraction (0 to 1) of the keys with the same size and ETag whose " +
+            "content " + LONGOPT_VERIFY + " reads and compares as well";
+    public static final String LONGOPT_VERIFY_SAMPLE = "--verify-sample";
+    @Option(name=LONGOPT_VERIFY_SAMPLE, usage=USAGE_VERIFY_SAMPLE, metaVar="<fraction>")
+    @Getter @Setter private double verifySample = 0;
+
+    public static final String USAGE_SHARD = "Mirror only shard i of N (0 <= i < N), so that N processes can mirror a " +
+            "bucket together. A key belongs to a shard by a consistent hash of the key after the prefix, or by the ranges " +
+            "of --shard-splits";
+    public static final String LONGOPT_SHARD = "--shard";
+    @Option(name=LONGOPT_SHARD, usage=USAGE_SHARD, metaVar="<i/N>")
+    @Getter @Setter private String shard = null;
+
+    public static final String USAGE_SHARD_SPLITS = "File with the N-1 keys (after the prefix, sorted, one per line) " +
+            "that split the keys into the ranges of the N shards. Every shard then lists only its own range. A key " +
+            "equal to a split belongs to the shard before it";
+    public static final String LONGOPT_SHARD_SPLITS = "--shard-splits";
+    @Option(name=LONGOPT_SHARD_SPLITS, usage=USAGE_SHARD_SPLITS, metaVar="<file>")
+    @Getter @Setter private String shardSplits = null;
+
+    public static final String USAGE_SAMPLE_SHARD_SPLITS = "List the source, write the splits of the N shards of " +
+            LONGOPT_SHARD + " to this file and exit, for " + LONGOPT_SHARD_SPLITS;
+    public static final String LONGOPT_SAMPLE_SHARD_SPLITS = "--sample-shard-splits";
+    @Option(name=LONGOPT_SAMPLE_SHARD_SPLITS, usage=USAGE_SAMPLE_SHARD_SPLITS, metaVar="<file>")
+    @Getter @Setter private String sampleShardSplits = null;
+
+    // the parsed --shard and --shard-splits
+    @Getter @Setter private Shard keyShard = null;
+
+    public static final String LONGOPT_MERGE_STATS = "--merge-stats";
+    public static final String USAGE_STATS_FILE = "Write the stats to this file when done. " + LONGOPT_MERGE_STATS +
+            " <file>... instead of the other arguments adds up the stats files of several shards";
+    public static final String LONGOPT_STATS_FILE = "--stats-file";
+    @Option(name=LONGOPT_STATS_FILE, usage=USAGE_STATS_FILE, metaVar="<file>")
+    @Getter @Setter private String statsFile = null;
+
+    public static final String USAGE_JOURNAL = "Append the keys that are done and the position of the listings to " +
+            "this file while mirroring, so that a run that was killed can be resumed";
+    public static final String LONGOPT_JOURNAL = "--journal";
+    @Option(name=LONGOPT_JOURNAL, usage=USAGE_JOURNAL, metaVar="<file>")
+    @Getter @Setter private String journal = null;
+    public boolean hasJournal() { return journal != null && journal.length() > 0; }
+
+    public static final String USAGE_RESUME = "Go on with the run of the " + LONGOPT_JOURNAL + ": list after the " +
+            "last position, skip the keys that are done without checking them again and try the keys that failed first";
+    public static final String LONGOPT_RESUME = "--resume";
+    @Option(name=LONGOPT_RESUME, usage=USAGE_RESUME)
+    @Getter @Setter private boolean resume = false;
+
+    public static final String USAGE_SHUTDOWN_GRACE = "On SIGTERM stop starting new keys and give the keys in flight " +
+            "this many seconds to finish before exiting";
+    public static final String LONGOPT_SHUTDOWN_GRACE = "--shutdown-grace";
+    @Option(name=LONGOPT_SHUTDOWN_GRACE, usage=USAGE_SHUTDOWN_GRACE, metaVar="<seconds>")
+    @Getter @Setter private int shutdownGrace = 20;
+
+    public static final String USAGE_DAEMON = "Keep running and mirror every --daemon-interval seconds, with the " +
+            "same clients. After the first cycle only keys modified since the last sync are checked";
+    public static final String LONGOPT_DAEMON = "--daemon";
+    @Option(name=LONGOPT_DAEMON, usage=USAGE_DAEMON)
+    @Getter @Setter private boolean daemon = false;
+
+    public static final String USAGE_DAEMON_INTERVAL = "Seconds from the start of one cycle of the " + LONGOPT_DAEMON +
+            " to the start of the next";
+    public static final String LONGOPT_DAEMON_INTERVAL = "--daemon-interval";
+    @Option(name=LONGOPT_DAEMON_INTERVAL, usage=USAGE_DAEMON_INTERVAL, metaVar="<seconds>")
+    @Getter @Setter private int daemonInterval = 3600;
+
+    public static final String USAGE_DAEMON_FULL_EVERY = "Every this many cycles of the " + LONGOPT_DAEMON + " check " +
+            "all keys, not only the ones modified since the last sync. Catches multipart uploads that took longer " +
+            "than the overlap of the cycles";
+    public static final String LONGOPT_DAEMON_FULL_EVERY = "--daemon-full-every";
+    @Option(name=LONGOPT_DAEMON_FULL_EVERY, usage=USAGE_DAEMON_FULL_EVERY, metaVar="<cycles>")
+    @Getter @Setter private int daemonFullEvery = 24;
+
+    public static final String USAGE_DAEMON_STATE = "File that keeps the time of the last sync of the " + LONGOPT_DAEMON +
+            ", so that a restarted daemon goes on with incremental cycles";
+    public static final String LONGOPT_DAEMON_STATE = "--daemon-state";
+    @Option(name=LONGOPT_DAEMON_STATE, usage=USAGE_DAEMON_STATE, metaVar="<file>")
+    @Getter @Setter private String daemonState = null;
+
+    public static final String USAGE_DAEMON_LISTEN = "Serve GET /health and POST /sync?prefix=<prefix> of the " +
+            LONGOPT_DAEMON + " on this port of 127.0.0.1, or on host:port";
+    public static final String LONGOPT_DAEMON_LISTEN = "--daemon-listen";
+    @Option(name=LONGOPT_DAEMON_LISTEN, usage=USAGE_DAEMON_LISTEN, metaVar="<[host:]port>")
+    @Getter @Setter private String daemonListen = null;
+
+    public static final String USAGE_EVENTS = "Between the cycles of the " + LONGOPT_DAEMON + ", replicate the keys of the " +
+            "object-created and object-removed notifications of the source bucket, POSTed by a webhook to /events of the " +
+            LONGOPT_DAEMON_LISTEN + " address or appended to the events file. The cycles catch events that were missed";
+    public static final String LONGOPT_EVENTS = "--events";
+    @Option(name=LONGOPT_EVENTS, usage=USAGE_EVENTS)
+    @Getter @Setter private boolean events = false;
+
+    public static final String USAGE_EVENTS_FILE = "File or named pipe that " + LONGOPT_EVENTS + " are read from, one JSON " +
+            "notification per line";
+    public static final String LONGOPT_EVENTS_FILE = "--events-file";
+    @Option(name=LONGOPT_EVENTS_FILE, usage=USAGE_EVENTS_FILE, metaVar="<file>")
+    @Getter @Setter private String eventsFile = null;
+
+    public static final String USAGE_EVENTS_WINDOW = "Milliseconds to wait after the first event of a key, so that the " +
+            "events of a key that changes several times are replicated once";
+    public static final String LONGOPT_EVENTS_WINDOW = "--events-window";
+    @Option(name=LONGOPT_EVENTS_WINDOW, usage=USAGE_EVENTS_WINDOW, metaVar="<milliseconds>")
+    @Getter @Setter private long eventsWindow = 2000;
+
+    public static final String USAGE_CTIME ="Only copy objects whose Last-Modified date is younger than this many days. " +
             "For other time units, use these suffixes: y (years), M (months), d (days), w (weeks), h (hours), m (minutes), s (seconds)";
     public static final String OPT_CTIME = "-c";
     public static final String LONGOPT_CTIME = "--ctime";
@@ -99,11 +351,52 @@ public class MirrorOptions {
     @Option(name=OPT_DELETE_REMOVED, aliases=LONGOPT_DELETE_REMOVED, usage=USAGE_DELETE_REMOVED)
     @Getter @Setter private boolean deleteRemoved = false;
 
-    @Argument(index=0, required=true, usage="Source bucket with optional prefix", metaVar = "<source bucket[/source/prefix]>")
+    public static final String USAGE_DELETE_BATCH_SIZE = "With " + LONGOPT_DELETE_REMOVED + ", delete up to this many keys " +
+            "with a single DeleteObjects request (default 1000, the most S3 allows; 1 deletes every key on its own)";
+    public static final String LONGOPT_DELETE_BATCH_SIZE = "--delete-batch-size";
+    @Option(name=LONGOPT_DELETE_BATCH_SIZE, usage=USAGE_DELETE_BATCH_SIZE)
+    @Getter @Setter private int deleteBatchSize = 1000;
+
+    public static final String USAGE_DELETE_BATCHES = "Number of DeleteObjects requests sent at the same time (default 4)";
+    public static final String LONGOPT_DELETE_BATCHES = "--delete-batches";
+    @Option(name=LONGOPT_DELETE_BATCHES, usage=USAGE_DELETE_BATCHES)
+    @Getter @Setter private int deleteBatches = 4;
+
+    public static final String USAGE_JOB_FILE = "Mirror all pairs of this file in one process, instead of the source and " +
+            "destination arguments. Every line has the arguments of one pair (profiles, buckets with prefixes and options), " +
+            "the other arguments on the command line apply to every pair. Empty lines and lines starting with # are skipped";
+    public static final String LONGOPT_JOB_FILE = "--job-file";
+    @Option(name=LONGOPT_JOB_FILE, usage=USAGE_JOB_FILE, metaVar="<file>")
+    @Getter @Setter private String jobFile = null;
+
+    public static final String USAGE_JOB_PAIRS = "Number of pairs of the " + LONGOPT_JOB_FILE + " mirrored at the same " +
+            "time (default 4). They share " + LONGOPT_MAX_THREADS + " workers, which are divided evenly among the pairs " +
+            "that have work";
+    public static final String LONGOPT_JOB_PAIRS = "--job-pairs";
+    @Option(name=LONGOPT_JOB_PAIRS, usage=USAGE_JOB_PAIRS)
+    @Getter @Setter private int jobPairs = 4;
+
+    @Argument(index=0, required=true, usage="Source bucket with optional prefix, or " + LOCAL_PREFIX + "<directory>", metaVar = "<source bucket[/source/prefix]>")
     @Getter @Setter private String sourceBucket;
-    @Argument(index=1, required=true, usage="Destination bucket with optional prefix", metaVar = "<source bucket[/source/prefix]>")
+    @Argument(index=1, required=true, usage="Destination bucket with optional prefix, or " + LOCAL_PREFIX + "<directory>", metaVar = "<source bucket[/source/prefix]>")
     @Getter @Setter private String destinationBucket;
 
+    // with file:<directory> the bucket is the directory, which has no profile
+    public boolean isSourceLocal() { return isLocal(sourceBucket); }
+    public boolean isDestinationLocal() { return isLocal(destinationBucket); }
+    public boolean hasLocalBackend() { return isSourceLocal() || isDestinationLocal(); }
+    public static boolean isLocal(String bucket) { return bucket != null && bucket.trim().startsWith(LOCAL_PREFIX); }
+
+    /**
+     * @return the directory of a file:<directory> argument
+     */
+    public static File getLocalDirectory(String bucket) {
+        String path = bucket.trim().substring(LOCAL_PREFIX.length());
+        // file:///data and file://data are file:/data and file:data
+        if (path.startsWith("//")) path = path.substring(2);
+        return new File(path);
+    }
+
     private static final String MAX_SINGLE_REQUEST_UPLOAD_SIZE_USAGE = "The maximum size (in bytes) uploaded via a single request (0 means unlimited)";
     public static final String LONGOPT_MAX_SINGLE_REQUEST_UPLOAD_SIZE = "--max-single-upload-size";
     @Option(name=LONGOPT_MAX_SINGLE_REQUEST_UPLOAD_SIZE, usage=MAX_SINGLE_REQUEST_UPLOAD_SIZE_USAGE)
@@ -114,6 +407,18 @@ public class MirrorOptions {
     @Option(name=LONGOPT_MULTI_PART_UPLOAD_SIZE, usage=MULTI_PART_UPLOAD_SIZE_USAGE)
     @Getter @Setter private long uploadPartSize = 64 * MB;
 
+    private static final String ADAPTIVE_PART_SIZE_USAGE = "Choose the part size per object from its size, the part throughput " +
+            "measured so far and the memory budget (" + LONGOPT_MULTI_PART_UPLOAD_SIZE + " is used until enough parts have been measured)";
+    public static final String LONGOPT_ADAPTIVE_PART_SIZE = "--adaptive-part-size";
+    @Option(name=LONGOPT_ADAPTIVE_PART_SIZE, usage=ADAPTIVE_PART_SIZE_USAGE)
+    @Getter @Setter private boolean adaptivePartSize = false;
+
+    private static final String PART_MEMORY_BUDGET_USAGE = "The memory (in bytes) all threads together may use for buffering parts " +
+            "when " + LONGOPT_ADAPTIVE_PART_SIZE + " is active (0 means half of the maximum heap size)";
+    public static final String LONGOPT_PART_MEMORY_BUDGET = "--part-memory-budget";
+    @Option(name=LONGOPT_PART_MEMORY_BUDGET, usage=PART_MEMORY_BUDGET_USAGE)
+    @Getter @Setter private long partMemoryBudget = 0;
+
     private static final String CROSS_ACCOUNT_USAGE ="Copy across AWS accounts. Only Resource-based policies are supported (as " +
             "specified by AWS documentation) for cross account copying. " +
             "Default is false (copying within same account, preserving ACLs across copies). " +
@@ -122,8 +427,28 @@ public class MirrorOptions {
     private static final String LONGOPT_CROSS_ACCOUNT_COPY = "--cross-account-copy";
     @Option(name=OPT_CROSS_ACCOUNT_COPY, aliases=LONGOPT_CROSS_ACCOUNT_COPY, usage=CROSS_ACCOUNT_USAGE)
     @Getter @Setter private boolean crossAccountCopy = false;
-    
-    @Getter private MirrorProfile sourceProfile = new MirrorProfile();
+
+    public static final String USAGE_DISABLE_CROSS_PROFILE_COPY = "Always stream objects when the source and destination " +
+            "profiles differ. By default objects are copied on the server with the destination credentials if both " +
+            "profiles use the same endpoint and region, falling back to streaming when that's denied";
+    public static final String LONGOPT_DISABLE_CROSS_PROFILE_COPY = "--disable-cross-profile-copy";
+    @Option(name=LONGOPT_DISABLE_CROSS_PROFILE_COPY, usage=USAGE_DISABLE_CROSS_PROFILE_COPY)
+    @Getter @Setter private boolean disableCrossProfileCopy = false;
+
+    public static final String USAGE_DISABLE_CSE_PASSTHROUGH = "Decrypt and encrypt every object again when both profiles " +
+            "use the same client-side encryption and key. By default the encrypted objects are copied as they are";
+    public static final String LONGOPT_DISABLE_CSE_PASSTHROUGH = "--disable-cse-passthrough";
+    @Option(name=LONGOPT_DISABLE_CSE_PASSTHROUGH, usage=USAGE_DISABLE_CSE_PASSTHROUGH)
+    @Getter @Setter private boolean disableCsePassthrough = false;
+
+    public static final String USAGE_CSE_PART_THREADS = "Encrypt and upload this many parts of a multipart upload at " +
+            "the same time when the destination uses AES/GCM client-side encryption (1 means one part after the other " +
+            "through the encryption client). Each of these threads holds a part in memory";
+    public static final String LONGOPT_CSE_PART_THREADS = "--cse-part-threads";
+    @Option(name=LONGOPT_CSE_PART_THREADS, usage=USAGE_CSE_PART_THREADS)
+    @Getter @Setter private int csePartThreads = 1;
+
+    @Getter @Setter private MirrorProfile sourceProfile = new MirrorProfile();
     @Getter @Setter private MirrorProfile destinationProfile = new MirrorProfile();
 
     private static final String USAGE_DISABLE_CERT_CHECK = "Disable checking of TLS certificates";
@@ -138,6 +463,109 @@ public class MirrorOptions {
     @Option(name=OPT_COMPARE_SIZE, aliases=LONGOPT_COMPARE_SIZE, usage=USAGE_COMPARE_SIZE)
     @Getter @Setter private boolean compareSize = false;
 
+    public static final String USAGE_CHECKSUM = "Check streamed copies end to end with the MD5 of the content, computed " +
+            "while it's copied, and store the MD5 at the destination. With " + LONGOPT_COMPARE_SIZE + " objects whose stored " +
+            "MD5s differ are copied again, and --verify compares the stored MD5s instead of reading the objects";
+    public static final String LONGOPT_CHECKSUM = "--checksum";
+    @Option(name=LONGOPT_CHECKSUM, usage=USAGE_CHECKSUM)
+    @Getter @Setter private boolean checksum = false;
+
+    public static final String USAGE_DEDUP = "Copy objects within the destination instead of transferring them when " +
+            "the destination has an object with the same ETag and size, e.g. after renames in the source";
+    public static final String LONGOPT_DEDUP = "--dedup";
+    @Option(name=LONGOPT_DEDUP, usage=USAGE_DEDUP)
+    @Getter @Setter private boolean dedup = false;
+
+    public static final String USAGE_DEDUP_MIN_SIZE = "Smallest object (in bytes) that " + LONGOPT_DEDUP + " indexes";
+    public static final String LONGOPT_DEDUP_MIN_SIZE = "--dedup-min-size";
+    @Option(name=LONGOPT_DEDUP_MIN_SIZE, usage=USAGE_DEDUP_MIN_SIZE)
+    @Getter @Setter private long dedupMinSize = MB;
+
+    public static final String USAGE_DELTA = "Record the MD5s of the parts of streamed multipart uploads in this " +
+            "directory. When such an object is uploaded again, its unchanged parts are copied from the old destination " +
+            "object and only the changed ones are uploaded; the whole source object is still read. An object whose " +
+            "source ETag differs from the one recorded is uploaded again even if its size is the same. Each part is " +
+            "read into memory, objects with parts over 1 GB are copied whole";
+    public static final String LONGOPT_DELTA = "--delta";
+    @Option(name=LONGOPT_DELTA, usage=USAGE_DELTA, metaVar="<dir>")
+    @Getter @Setter private String delta = null;
+    public boolean hasDelta() { return delta != null && delta.length() > 0; }
+
+    public static final String USAGE_SIZE_LANES = "Run small, medium and large objects in separate lanes with their own threads and connections";
+    public static final String LONGOPT_SIZE_LANES = "--size-lanes";
+    @Option(name=LONGOPT_SIZE_LANES, usage=USAGE_SIZE_LANES)
+    @Getter @Setter private boolean sizeLanes = false;
+
+    public static final String USAGE_SMALL_OBJECT_SIZE = "Objects up to this size (in bytes) go to the small lane (default 1 MB)";
+    public static final String LONGOPT_SMALL_OBJECT_SIZE = "--small-object-size";
+    @Option(name=LONGOPT_SMALL_OBJECT_SIZE, usage=USAGE_SMALL_OBJECT_SIZE)
+    @Getter @Setter private long smallObjectSize = MB;
+
+    public static final String USAGE_LARGE_OBJECT_SIZE = "Objects larger than this size (in bytes) go to the large lane (default 64 MB)";
+    public static final String LONGOPT_LARGE_OBJECT_SIZE = "--large-object-size";
+    @Option(name=LONGOPT_LARGE_OBJECT_SIZE, usage=USAGE_LARGE_OBJECT_SIZE)
+    @Getter @Setter private long largeObjectSize = 64 * MB;
+
+    public static final String USAGE_LANE_THREADS = "Threads of the small, medium and large lane, e.g. 10,6,4 " +
+            "(default is to split --max-threads 50/30/20)";
+    public static final String LONGOPT_LANE_THREADS = "--lane-threads";
+    @Option(name=LONGOPT_LANE_THREADS, usage=USAGE_LANE_THREADS)
+    @Getter @Setter private String laneThreads = null;
+
+    public static final String USAGE_LANE_CONNECTIONS = "Connections reserved for the small, medium and large lane, e.g. 20,12,8 " +
+            "(default is two per lane thread)";
+    public static final String LONGOPT_LANE_CONNECTIONS = "--lane-connections";
+    @Option(name=LONGOPT_LANE_CONNECTIONS, usage=USAGE_LANE_CONNECTIONS)
+    @Getter @Setter private String laneConnections = null;
+
+    public static final String USAGE_SCHEDULE = "Order in which listed keys are processed: FIFO (listing order), " +
+            "LARGEST_FIRST (most expensive first, shortens the tail of a run) or NEWEST_FIRST (most recently modified first)";
+    public static final String LONGOPT_SCHEDULE = "--schedule";
+    @Option(name=LONGOPT_SCHEDULE, usage=USAGE_SCHEDULE)
+    @Getter @Setter private ScheduleMode scheduleMode = ScheduleMode.FIFO;
+
+    public static final String USAGE_SCHEDULE_WINDOW = "Number of listed keys that are buffered and ordered by " + LONGOPT_SCHEDULE +
+            " before they are processed (0 means all keys, default 10000)";
+    public static final String LONGOPT_SCHEDULE_WINDOW = "--schedule-window";
+    @Option(name=LONGOPT_SCHEDULE_WINDOW, usage=USAGE_SCHEDULE_WINDOW)
+    @Getter @Setter private int scheduleWindow = 10000;
+
+    public static final String USAGE_REQUEST_OVERHEAD = "Cost of a single request expressed in bytes, used by " + LONGOPT_SCHEDULE +
+            " LARGEST_FIRST (default 256 KB)";
+    public static final String LONGOPT_REQUEST_OVERHEAD = "--request-overhead-bytes";
+    @Option(name=LONGOPT_REQUEST_OVERHEAD, usage=USAGE_REQUEST_OVERHEAD)
+    @Getter @Setter private long requestOverheadBytes = 256 * KB;
+
+    public int getLaneThreads(SizeClass sizeClass) {
+        if (laneThreads != null) return parseLaneValues(LONGOPT_LANE_THREADS, laneThreads)[sizeClass.ordinal()];
+
+        final int small = Math.max(1, maxThreads / 2);
+        final int medium = Math.max(1, maxThreads * 3 / 10);
+        switch (sizeClass) {
+            case SMALL: return small;
+            case MEDIUM: return medium;
+            default: return Math.max(1, maxThreads - small - medium);
+        }
+    }
+
+    public int getLaneConnections(SizeClass sizeClass) {
+        if (laneConnections != null) return parseLaneValues(LONGOPT_LANE_CONNECTIONS, laneConnections)[sizeClass.ordinal()];
+        return 2 * getLaneThreads(sizeClass);
+    }
+
+    private static int[] parseLaneValues(String option, String value) {
+        final String[] parts = value.trim().split("\\s*,\\s*");
+        if (parts.length != SizeClass.values().length) {
+            throw new IllegalArgumentException("Invalid option for " + option + ": " + value + " (expected small,medium,large)");
+        }
+        final int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i]);
+            if (values[i] < 1) throw new IllegalArgumentException("Invalid option for " + option + ": " + value);
+        }
+        return values;
+    }
+
     @Getter private long nowTime = System.currentTimeMillis();
 
     private long initMaxAge() {
@@ -174,8 +602,9 @@ public class MirrorOptions {
         String scrubbed;
         int slashPos;
 
-        scrubbed = scrubS3ProtocolPrefix(sourceBucket);
-        slashPos = scrubbed.indexOf('/');
+        // a local directory keeps its whole path, its prefix can only be given with an option
+        scrubbed = isSourceLocal() ? sourceBucket : scrubS3ProtocolPrefix(sourceBucket);
+        slashPos = isSourceLocal() ? -1 : scrubbed.indexOf('/');
         if (slashPos == -1) {
             sourceBucket = scrubbed;
         } else {
@@ -184,8 +613,8 @@ public class MirrorOptions {
             sourcePrefix = scrubbed.substring(slashPos+1);
         }
 
-        scrubbed = scrubS3ProtocolPrefix(destinationBucket);
-        slashPos = scrubbed.indexOf('/');
+        scrubbed = isDestinationLocal() ? destinationBucket : scrubS3ProtocolPrefix(destinationBucket);
+        slashPos = isDestinationLocal() ? -1 : scrubbed.indexOf('/');
         if (slashPos == -1) {
             destinationBucket = scrubbed;
         } else {
@@ -195,6 +624,52 @@ public class MirrorOptions {
         }
     }
 
+    /**
+     * @param profile the profile of an --extra-destination
+     * @param bucket the bucket of an --extra-destination, with an optional prefix
+     * @return a copy of these options that mirrors to the extra destination
+     */
+    public MirrorOptions forExtraDestination(MirrorProfile profile, String bucket) {
+        final MirrorOptions copy;
+        try {
+            copy = (MirrorOptions) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        copy.destinationProfileName = profile.getName();
+        copy.destinationProfile = profile;
+        copy.destinationBucket = bucket;
+        copy.destinationPrefix = null;
+        copy.extraDestinations = Collections.emptyList();
+        copy.initDerivedFields();
+        return copy;
+    }
+
+    /**
+     * @param prefix a prefix below the source prefix (and destination prefix, if any) to mirror on its own, or null
+     * @param modifiedSince skip the keys last modified before this time without checking them, 0 for none
+     * @return a copy of these options for one cycle of a --daemon
+     */
+    public MirrorOptions forCycle(String prefix, long modifiedSince) {
+        final MirrorOptions copy;
+        try {
+            copy = (MirrorOptions) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        if (prefix != null) {
+            copy.sourcePrefix = (hasSourcePrefix() ? sourcePrefix : "") + prefix;
+            if (hasDestinationPrefix()) copy.destinationPrefix = destinationPrefix + prefix;
+        }
+        // a --ctime counts from the start of every cycle
+        copy.initDerivedFields();
+        if (modifiedSince > 0 && (!copy.hasCtime() || copy.getMaxAge() < modifiedSince)) {
+            copy.ctime = Math.max(1, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - modifiedSince)) + "s";
+            copy.initDerivedFields();
+        }
+        return copy;
+    }
+
     protected String scrubS3ProtocolPrefix(String bucket) {
         bucket = bucket.trim();
         if (bucket.startsWith(S3_PROTOCOL_PREFIX)) {
@@ -0,0 +1,256 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.cobbzilla.s3s3mirror.MirrorConstants.GB;
+
+/**
+ * The diff of a --plan: the source and the destination are listed side by side, which takes a LIST request per 1000
+ * keys of each instead of a HEAD per key, and the keys to copy or delete are written to a file. --execute-plan carries
+ * it out later, split across processes with --shard if needed, without listing again (see PlanLister).
+ *
+ * A key is copied if the destination doesn't have it, or with --compare-size if the listed sizes differ, and keys
+ * older than --ctime are skipped, like KeyCopyJob decides. The plan ends with the number of requests that executing it
+ * takes, estimated like the jobs send them, and their cost at the --price-* options. The duration is estimated from
+ * the rates of an earlier run (--plan-rates), or else from the latency of the LIST requests.
+ */
+@Slf4j
+public class MirrorPlan {
+
+    public static final char COPY = 'C';
+    public static final char DELETE = 'D';
+
+    static final String HEADER = "# s3s3mirror plan";
+    static final String SOURCE = "# source: ";
+    static final String DESTINATION = "# destination: ";
+
+    // the requests that are billed like PUTs, the others are billed like GETs except for the free DELETEs
+    private static final List<RetryPolicy.Operation> PUT_CLASS = Arrays.asList(RetryPolicy.Operation.LIST,
+            RetryPolicy.Operation.PUT, RetryPolicy.Operation.COPY, RetryPolicy.Operation.MULTIPART,
+            RetryPolicy.Operation.UPLOAD_PART, RetryPolicy.Operation.COPY_PART);
+
+    private final MirrorContext context;
+    private final PartSizer partSizer;
+    private final boolean serverSide;
+
+    @Getter private long copies = 0;
+    @Getter private long copyBytes = 0;
+    @Getter private long deletes = 0;
+    @Getter private long unchanged = 0;
+    @Getter private long tooOld = 0;
+    // bytes that are read from the source by this process instead of being copied on the server
+    @Getter private long transferBytes = 0;
+    private final Map<RetryPolicy.Operation, Long> requests = new EnumMap<RetryPolicy.Operation, Long>(RetryPolicy.Operation.class);
+    private long listRequests = 0;
+    private long listMillis = 0;
+
+    public MirrorPlan(MirrorContext context) {
+        this.context = context;
+        // measured part sizes don't exist yet, --adaptive-part-size starts with the --upload-part-size too
+        this.partSizer = new PartSizer(context.getOptions(), new MirrorStats());
+        this.serverSide = context.getServerSideCopy().isPossible();
+        for (RetryPolicy.Operation operation : RetryPolicy.Operation.values()) requests.put(operation, 0L);
+    }
+
+    public long getRequests(RetryPolicy.Operation operation) { return requests.get(operation); }
+
+    static String getSourceName(MirrorOptions options) {
+        return options.getSourceBucket() + "/" + (options.hasSourcePrefix() ? options.getSourcePrefix() : "");
+    }
+
+    static String getDestinationName(MirrorOptions options) {
+        return options.getDestinationBucket() + "/" + getDestinationPrefix(options);
+    }
+
+    private static String getDestinationPrefix(MirrorOptions options) {
+        if (options.hasDestinationPrefix()) return options.getDestinationPrefix();
+        return options.hasSourcePrefix() ? options.getSourcePrefix() : "";
+    }
+
+    /**
+     * Lists both sides and writes the plan to the file, through a temporary file so that a plan is always complete.
+     */
+    public void write(File file) throws IOException, InterruptedException {
+        final MirrorOptions options = context.getOptions();
+        final String sourcePrefix = options.hasSourcePrefix() ? options.getSourcePrefix() : "";
+        final String destinationPrefix = getDestinationPrefix(options);
+        final int maxQueueCapacity = MirrorMaster.getMaxQueueCapacity(options);
+
+        final long start = System.currentTimeMillis();
+        final ListingCursor source = new ListingCursor(new KeyObjectLister(context, maxQueueCapacity, options.getSourceProfile(),
+                context.getSourceClient(), options.getSourceBucket(), sourcePrefix), "source");
+        final ListingCursor destination = new ListingCursor(new KeyObjectLister(context, maxQueueCapacity, options.getDestinationProfile(),
+                context.getDestinationClient(), options.getDestinationBucket(), destinationPrefix), "destination");
+
+        final File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), UTF_8))) {
+            writer.write(HEADER + "\n");
+            writer.write(SOURCE + getSourceName(options) + "\n");
+            writer.write(DESTINATION + getDestinationName(options) + "\n");
+
+            KeyObjectSummary s = source.next();
+            KeyObjectSummary d = destination.next();
+            while (s != null || d != null) {
+                final int c = s == null ? 1 : d == null ? -1
+                        : Shard.compareKeys(Shard.relativeKey(s.getKey(), sourcePrefix), Shard.relativeKey(d.getKey(), destinationPrefix));
+                if (c > 0) {
+                    if (options.isDeleteRemoved()) delete(writer, d);
+                    d = destination.next();
+                    continue;
+                }
+                if (options.hasCtime() && s.getLastModified() != null && s.getLastModified().getTime() < options.getMaxAge()) {
+                    tooOld++;
+                } else if (c < 0 || (options.isCompareSize() && s.getSize() != d.getSize())) {
+                    copy(writer, s);
+                } else {
+                    unchanged++;
+                }
+                s = source.next();
+                if (c == 0) d = destination.next();
+            }
+            listRequests = context.getStats().s3getCount.get();
+            listMillis = System.currentTimeMillis() - start;
+            requests.put(RetryPolicy.Operation.LIST, listRequests);
+            writer.write(toString().replaceAll("(?m)^", "# "));
+        } finally {
+            source.stop();
+            destination.stop();
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void copy(Writer writer, KeyObjectSummary summary) throws IOException {
+        writer.write(COPY + "\t" + FailureList.escape(summary.getKey()) + "\t" + summary.getSize() + "\t"
+                + (summary.getETag() == null ? "" : summary.getETag()) + "\n");
+        copies++;
+        copyBytes += summary.getSize();
+
+        // a HEAD of the destination by shouldTransfer, one of the source and a GET of its ACL by the copy
+        count(RetryPolicy.Operation.HEAD, 2);
+        if (!context.getOptions().isCrossAccountCopy()) count(RetryPolicy.Operation.ACL, 1);
+        final long maxSingleRequestSize = context.getOptions().getMaxSingleRequestUploadSize();
+        if (maxSingleRequestSize == 0 || summary.getSize() <= maxSingleRequestSize) {
+            if (serverSide) {
+                count(RetryPolicy.Operation.COPY, 1);
+            } else {
+                count(RetryPolicy.Operation.GET, 1);
+                count(RetryPolicy.Operation.PUT, 1);
+                transferBytes += summary.getSize();
+            }
+            return;
+        }
+        final long partSize = partSizer.getPartSize(summary.getSize(), serverSide);
+        final long parts = (summary.getSize() + partSize - 1) / partSize;
+        // initiate and complete
+        count(RetryPolicy.Operation.MULTIPART, 2);
+        if (serverSide) {
+            count(RetryPolicy.Operation.COPY_PART, parts);
+        } else {
+            count(RetryPolicy.Operation.GET, 1);
+            count(RetryPolicy.Operation.UPLOAD_PART, parts);
+            transferBytes += summary.getSize();
+        }
+    }
+
+    private void delete(Writer writer, KeyObjectSummary summary) throws IOException {
+        writer.write(DELETE + "\t" + FailureList.escape(summary.getKey()) + "\t" + summary.getSize() + "\t\n");
+        deletes++;
+        // KeyDeleteJob checks that the source doesn't have the key, the deletes are batched by the DeleteBatcher
+        count(RetryPolicy.Operation.HEAD, 1);
+        final int batchSize = DeleteBatcher.isSupported(context.getOptions()) ? context.getOptions().getDeleteBatchSize() : 1;
+        if ((deletes - 1) % batchSize == 0) count(RetryPolicy.Operation.DELETE, 1);
+    }
+
+    private void count(RetryPolicy.Operation operation, long n) {
+        requests.put(operation, requests.get(operation) + n);
+    }
+
+    /**
+     * @return the cost of executing the plan, without the LIST requests of the plan itself
+     */
+    public double getCost() {
+        final MirrorOptions options = context.getOptions();
+        double cost = (double) transferBytes / GB * options.getPriceEgressGb();
+        for (Map.Entry<RetryPolicy.Operation, Long> entry : requests.entrySet()) {
+            if (entry.getKey() == RetryPolicy.Operation.LIST || entry.getKey() == RetryPolicy.Operation.DELETE) continue;
+            final double price = PUT_CLASS.contains(entry.getKey()) ? options.getPricePut1000() : options.getPriceGet1000();
+            cost += entry.getValue() / 1000.0d * price;
+        }
+        return cost;
+    }
+
+    /**
+     * @return the estimated duration of executing the plan in milliseconds
+     */
+    public long getDurationMillis() throws IOException {
+        final MirrorOptions options = context.getOptions();
+        if (options.getPlanRates() != null) {
+            final MirrorStats rates = MirrorStats.read(new File(options.getPlanRates()));
+            final long millis = rates.getDurationMillis();
+            final double byKeys = rates.objectsCopied.get() == 0 ? 0 : (double) copies * millis / rates.objectsCopied.get();
+            final double byBytes = rates.bytesCopied.get() == 0 ? 0 : (double) copyBytes * millis / rates.bytesCopied.get();
+            return (long) Math.max(byKeys, byBytes);
+        }
+        // the two listings ran at the same time, every thread sends one request after the other
+        if (listRequests == 0) return 0;
+        final double latency = 2.0d * listMillis / listRequests;
+        long total = 0;
+        for (Map.Entry<RetryPolicy.Operation, Long> entry : requests.entrySet()) {
+            if (entry.getKey() != RetryPolicy.Operation.LIST) total += entry.getValue();
+        }
+        return (long) (total * latency / options.getMaxThreads());
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder b = new StringBuilder();
+        b.append("copies: ").append(copies).append(", ").append(MirrorStats.formatBytes(copyBytes)).append("\n");
+        b.append("deletes: ").append(deletes).append("\n");
+        b.append("unchanged: ").append(unchanged).append(", older than --ctime: ").append(tooOld).append("\n");
+        b.append("requests:");
+        for (Map.Entry<RetryPolicy.Operation, Long> entry : requests.entrySet()) {
+            if (entry.getKey() != RetryPolicy.Operation.LIST && entry.getValue() > 0) b.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        b.append("\n");
+        b.append("LIST requests of this plan: ").append(listRequests).append("\n");
+        b.append("bytes through this process: ").append(MirrorStats.formatBytes(transferBytes))
+                .append(serverSide ? "" : " (egress unless source and destination share a region)").append("\n");
+        b.append("estimated cost: ").append(String.format("%.2f", getCost())).append("\n");
+        String duration;
+        try {
+            final long millis = getDurationMillis();
+            duration = String.format("%d:%02d:%02d", millis / MirrorStats.HOUR, (millis % MirrorStats.HOUR) / MirrorStats.MINUTE,
+                    (millis % MirrorStats.MINUTE) / MirrorStats.SECOND)
+                    + (context.getOptions().getPlanRates() == null ? " (request latency only, see --plan-rates)" : "");
+        } catch (IOException e) {
+            duration = "n/a, " + e.getMessage();
+        }
+        b.append("estimated duration: ").append(duration).append("\n");
+        return b.toString();
+    }
+
+    /**
+     * Makes sure the --execute-plan was written for the source and destination of these options.
+     */
+    public static void checkPlan(File file, MirrorOptions options) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            if (!HEADER.equals(reader.readLine())) throw new IOException(file + " is not a plan");
+            final String source = reader.readLine();
+            final String destination = reader.readLine();
+            if (!(SOURCE + getSourceName(options)).equals(source) || !(DESTINATION + getDestinationName(options)).equals(destination)) {
+                throw new IOException(file + " is a plan for " + (source == null ? "" : source.substring(2)) + ", "
+                        + (destination == null ? "" : destination.substring(2)));
+            }
+        }
+    }
+}
@@ -1,11 +1,16 @@
 package org.cobbzilla.s3s3mirror;
 
 import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.*;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.cobbzilla.s3s3mirror.MirrorConstants.*;
 
 @Slf4j
@@ -17,16 +22,30 @@ public class MirrorStats {
 
     private static final String BANNER = "\n--------------------------------------------------------------------\n";
     public void logStats() {
-        log.info(BANNER + "STATS BEGIN\n" + toString() + "STATS END " + BANNER);
+        final String heading = label == null ? "STATS BEGIN\n" : "STATS BEGIN (" + label + ")\n";
+        log.info(BANNER + heading + toString() + "STATS END " + BANNER);
     }
 
-    private long start = System.currentTimeMillis();
+    private final long start;
+    // set for the stats of a finished run, see read
+    private volatile long end = 0;
+
+    public MirrorStats() { this(System.currentTimeMillis()); }
+
+    public MirrorStats(long start) { this.start = start; }
+
+    public long getDurationMillis() { return (end > 0 ? end : System.currentTimeMillis()) - start; }
+
+    // names the destination when there are several, see --extra-destination, or the pair of a --job-file
+    @Getter @Setter private volatile String label;
 
     public final AtomicLong objectsRead = new AtomicLong(0);
     public final AtomicLong objectsCopied = new AtomicLong(0);
     public final AtomicLong copyErrors = new AtomicLong(0);
     public final AtomicLong objectsDeleted = new AtomicLong(0);
     public final AtomicLong deleteErrors = new AtomicLong(0);
+    // directories and files of a local directory that couldn't be read, their keys are neither copied nor deleted
+    public final AtomicLong listErrors = new AtomicLong(0);
 
     public final AtomicLong s3copyCount = new AtomicLong(0);
     public final AtomicLong s3deleteCount = new AtomicLong(0);
@@ -34,12 +53,197 @@ public class MirrorStats {
     public final AtomicLong s3putCount = new AtomicLong(0);
     public final AtomicLong bytesCopied = new AtomicLong(0);
 
+    public final AtomicLong throttleErrors = new AtomicLong(0);
+    public final AtomicLong timeoutErrors = new AtomicLong(0);
+    public final AtomicLong headLatencyMillis = new AtomicLong(0);
+    public final AtomicLong headCount = new AtomicLong(0);
+    public final AtomicInteger concurrencyLimit = new AtomicInteger(0);
+
+    public final AtomicLong retryBudgetExhausted = new AtomicLong(0);
+    public final AtomicLong deferredRetries = new AtomicLong(0);
+    public final AtomicLong retryPassKeys = new AtomicLong(0);
+    public final AtomicLong copyFallbacks = new AtomicLong(0);
+    public final AtomicLong journalSkipped = new AtomicLong(0);
+    // streamed copies of --checksum whose MD5 was compared with the one of the source, and those that differed
+    public final AtomicLong checksumsVerified = new AtomicLong(0);
+    public final AtomicLong checksumMismatches = new AtomicLong(0);
+    // objects of --dedup copied within the destination, and the bytes that weren't transferred for them
+    public final AtomicLong dedupCopies = new AtomicLong(0);
+    public final AtomicLong dedupBytesSaved = new AtomicLong(0);
+    // parts of --delta copied from the old destination object instead of being transferred
+    public final AtomicLong deltaPartsReused = new AtomicLong(0);
+    public final AtomicLong deltaBytesReused = new AtomicLong(0);
+    // keys of the events of a --daemon with --events, and the time from the event until they were replicated
+    public final AtomicLong eventsReplicated = new AtomicLong(0);
+    public final AtomicLong eventLagMillis = new AtomicLong(0);
+    public final AtomicLong eventLagMaxMillis = new AtomicLong(0);
+    private final Map<RetryPolicy.Operation, AtomicLong> retries = new EnumMap<RetryPolicy.Operation, AtomicLong>(RetryPolicy.Operation.class);
+    {
+        for (RetryPolicy.Operation operation : RetryPolicy.Operation.values()) retries.put(operation, new AtomicLong(0));
+    }
+
+    public void recordRetry(RetryPolicy.Operation operation) { retries.get(operation).incrementAndGet(); }
+    public long getRetries(RetryPolicy.Operation operation) { return retries.get(operation).get(); }
+
+    public ErrorClass recordError(Throwable e) {
+        final ErrorClass errorClass = ErrorClass.of(e);
+        if (errorClass == ErrorClass.THROTTLE) throttleErrors.incrementAndGet();
+        if (errorClass == ErrorClass.TIMEOUT) timeoutErrors.incrementAndGet();
+        return errorClass;
+    }
+
+    public void recordHeadLatency(long millis) {
+        headCount.incrementAndGet();
+        headLatencyMillis.addAndGet(millis);
+    }
+
+    public final AtomicLong partsUploaded = new AtomicLong(0);
+    public final AtomicLong partBytesUploaded = new AtomicLong(0);
+    public final AtomicLong partUploadMillis = new AtomicLong(0);
+    public final AtomicLong partsCopied = new AtomicLong(0);
+    public final AtomicLong partBytesCopied = new AtomicLong(0);
+    public final AtomicLong partCopyMillis = new AtomicLong(0);
+
+    private final AtomicLong multipartObjects = new AtomicLong(0);
+    private final AtomicLong partSizeTotal = new AtomicLong(0);
+    private final AtomicLong partSizeMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong partSizeMax = new AtomicLong(0);
+
+    @Setter private boolean reportLanes = false;
+    private final Map<SizeClass, LaneStats> laneStats = new EnumMap<SizeClass, LaneStats>(SizeClass.class);
+    {
+        for (SizeClass sizeClass : SizeClass.values()) laneStats.put(sizeClass, new LaneStats());
+    }
+
+    public LaneStats getLaneStats(SizeClass sizeClass) { return laneStats.get(sizeClass); }
+
+    public static class LaneStats {
+        public final AtomicLong objects = new AtomicLong(0);
+        public final AtomicLong bytes = new AtomicLong(0);
+        public final AtomicLong busyMillis = new AtomicLong(0);
+        public final AtomicLong borrowed = new AtomicLong(0);
+
+        public void record(long bytesTransferred, long millis) {
+            objects.incrementAndGet();
+            bytes.addAndGet(bytesTransferred);
+            busyMillis.addAndGet(millis);
+        }
+    }
+
+    public void recordPartSize(long partSize) {
+        multipartObjects.incrementAndGet();
+        partSizeTotal.addAndGet(partSize);
+        partSizeMin.accumulateAndGet(partSize, Math::min);
+        partSizeMax.accumulateAndGet(partSize, Math::max);
+    }
+
+    public void recordEventLag(long millis) {
+        eventsReplicated.incrementAndGet();
+        eventLagMillis.addAndGet(millis);
+        eventLagMaxMillis.accumulateAndGet(millis, Math::max);
+    }
+
+    public void recordPartUpload(long bytes, long millis) {
+        partsUploaded.incrementAndGet();
+        partBytesUploaded.addAndGet(bytes);
+        partUploadMillis.addAndGet(millis);
+    }
+
+    public void recordPartCopy(long bytes, long millis) {
+        partsCopied.incrementAndGet();
+        partBytesCopied.addAndGet(bytes);
+        partCopyMillis.addAndGet(millis);
+    }
+
+    // the counters that add up over pairs and shards, by the names of the stats file
+    private Map<String, AtomicLong> getCounters() {
+        final Map<String, AtomicLong> counters = new LinkedHashMap<String, AtomicLong>();
+        counters.put("objectsRead", objectsRead);
+        counters.put("objectsCopied", objectsCopied);
+        counters.put("copyErrors", copyErrors);
+        counters.put("objectsDeleted", objectsDeleted);
+        counters.put("deleteErrors", deleteErrors);
+        counters.put("listErrors", listErrors);
+        counters.put("s3copyCount", s3copyCount);
+        counters.put("s3deleteCount", s3deleteCount);
+        counters.put("s3getCount", s3getCount);
+        counters.put("s3putCount", s3putCount);
+        counters.put("bytesCopied", bytesCopied);
+        counters.put("throttleErrors", throttleErrors);
+        counters.put("timeoutErrors", timeoutErrors);
+        for (Map.Entry<RetryPolicy.Operation, AtomicLong> entry : retries.entrySet()) {
+            counters.put("retries." + entry.getKey(), entry.getValue());
+        }
+        return counters;
+    }
+
+    /**
+     * Adds the object, request and error counts to total, for the stats of all pairs of a --job-file.
+     */
+    public void addTo(MirrorStats total) {
+        final Map<String, AtomicLong> totals = total.getCounters();
+        for (Map.Entry<String, AtomicLong> entry : getCounters().entrySet()) {
+            totals.get(entry.getKey()).addAndGet(entry.getValue().get());
+        }
+    }
+
+    /**
+     * Writes the counters and the time of the run as properties, see --stats-file.
+     */
+    public void write(File file) throws IOException {
+        final Properties properties = new Properties();
+        if (label != null) properties.setProperty("label", label);
+        properties.setProperty("start", Long.toString(start));
+        properties.setProperty("end", Long.toString(end > 0 ? end : System.currentTimeMillis()));
+        for (Map.Entry<String, AtomicLong> entry : getCounters().entrySet()) {
+            properties.setProperty(entry.getKey(), Long.toString(entry.getValue().get()));
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8)) {
+            properties.store(writer, "s3s3mirror stats");
+        }
+    }
+
+    public static MirrorStats read(File file) throws IOException {
+        final Properties properties = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), UTF_8)) {
+            properties.load(reader);
+        }
+        try {
+            final MirrorStats stats = new MirrorStats(Long.parseLong(properties.getProperty("start", "0")));
+            stats.end = Long.parseLong(properties.getProperty("end", "0"));
+            stats.label = properties.getProperty("label");
+            for (Map.Entry<String, AtomicLong> entry : stats.getCounters().entrySet()) {
+                entry.getValue().set(Long.parseLong(properties.getProperty(entry.getKey(), "0")));
+            }
+            return stats;
+        } catch (NumberFormatException e) {
+            throw new IOException(file + ": invalid stats file, " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the sum of the stats of several shards, from the first start to the last end
+     */
+    public static MirrorStats merge(List<MirrorStats> stats) {
+        long start = Long.MAX_VALUE;
+        long end = 0;
+        for (MirrorStats s : stats) {
+            start = Math.min(start, s.start);
+            end = Math.max(end, s.end);
+        }
+        final MirrorStats total = new MirrorStats(start);
+        total.end = end;
+        for (MirrorStats s : stats) s.addTo(total);
+        total.setLabel("merged " + stats.size() + " stats files");
+        return total;
+    }
+
     public static final long HOUR = TimeUnit.HOURS.toMillis(1);
     public static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
     public static final long SECOND = TimeUnit.SECONDS.toMillis(1);
 
     public String toString () {
-        final long durationMillis = System.currentTimeMillis() - start;
+        final long durationMillis = (end > 0 ? end : System.currentTimeMillis()) - start;
         final double durationMinutes = durationMillis / 60000.0d;
         final String duration = String.format("%d:%02d:%02d", durationMillis / HOUR, (durationMillis % HOUR) / MINUTE, (durationMillis % MINUTE) / SECOND);
         final double readRate = objectsRead.get() / durationMinutes;
@@ -50,6 +254,7 @@ public class MirrorStats {
                 + "copy errors: "+copyErrors+"\n"
                 + "deleted: "+objectsDeleted+"\n"
                 + "delete errors: "+deleteErrors+"\n"
+                + (listErrors.get() > 0 ? "list errors: "+listErrors+"\n" : "")
                 + "duration: "+duration+"\n"
                 + "read rate: "+readRate+"/minute\n"
                 + "copy rate: "+copyRate+"/minute\n"
@@ -58,10 +263,68 @@ public class MirrorStats {
                 + "GET operations: "+s3getCount+"\n"
                 + "PUT operations: "+s3putCount+"\n"
                 + "COPY operations: "+ s3copyCount+"\n"
-                + "DELETE operations: "+ s3deleteCount+"\n";
+                + "DELETE operations: "+ s3deleteCount+"\n"
+                + "throttled requests: "+ throttleErrors+"\n"
+                + "timed out requests: "+ timeoutErrors+"\n"
+                + "retries: "+ formatRetries()+"\n"
+                + (retryBudgetExhausted.get() > 0 ? "retries refused by budget: "+retryBudgetExhausted+"\n" : "")
+                + (deferredRetries.get() > 0 ? "deferred retries: "+deferredRetries+"\n" : "")
+                + (retryPassKeys.get() > 0 ? "keys tried again at end of run: "+retryPassKeys+"\n" : "")
+                + (copyFallbacks.get() > 0 ? "server-side copies denied (streamed instead): "+copyFallbacks+"\n" : "")
+                + (journalSkipped.get() > 0 ? "keys done by the resumed run: "+journalSkipped+"\n" : "")
+                + (checksumsVerified.get() > 0 || checksumMismatches.get() > 0 ? "checksums verified: "+checksumsVerified
+                        +", mismatched: "+checksumMismatches+"\n" : "")
+                + (dedupCopies.get() > 0 ? "copied from duplicates in the destination: "+dedupCopies+", "
+                        +formatBytes(dedupBytesSaved.get())+" not transferred\n" : "")
+                + (deltaPartsReused.get() > 0 ? "unchanged parts copied in the destination: "+deltaPartsReused+", "
+                        +formatBytes(deltaBytesReused.get())+" not uploaded\n" : "")
+                + (eventsReplicated.get() > 0 ? "events replicated: "+eventsReplicated+", lag "+(eventLagMillis.get() / eventsReplicated.get())
+                        +" ms average, "+eventLagMaxMillis+" ms max\n" : "")
+                + (concurrencyLimit.get() > 0 ? "concurrency limit: "+concurrencyLimit+"\n" : "")
+                + formatMultipartStats()
+                + formatLaneStats(durationMillis);
+    }
+
+    private String formatLaneStats(long durationMillis) {
+        if (!reportLanes) return "";
+        final StringBuilder b = new StringBuilder();
+        for (Map.Entry<SizeClass, LaneStats> entry : laneStats.entrySet()) {
+            final LaneStats lane = entry.getValue();
+            final double objectRate = lane.objects.get() / (durationMillis / 60000.0d);
+            b.append(entry.getKey().name().toLowerCase()).append(" lane: ")
+                    .append(lane.objects).append(" objects (").append(objectRate).append("/minute), ")
+                    .append(formatBytes(lane.bytes.get())).append(" (").append(formatRate(lane.bytes.get(), durationMillis)).append("), ")
+                    .append(lane.borrowed).append(" borrowed\n");
+        }
+        return b.toString();
+    }
+
+    private String formatRetries() {
+        final StringBuilder b = new StringBuilder();
+        for (Map.Entry<RetryPolicy.Operation, AtomicLong> entry : retries.entrySet()) {
+            if (entry.getValue().get() == 0) continue;
+            if (b.length() > 0) b.append(", ");
+            b.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return b.length() > 0 ? b.toString() : "0";
+    }
+
+    private String formatMultipartStats() {
+        final long objects = multipartObjects.get();
+        if (objects == 0) return "";
+        return "multipart objects: "+objects+"\n"
+                + "part size (min/avg/max): "+formatBytes(partSizeMin.get())+" / "+formatBytes(partSizeTotal.get() / objects)
+                    +" / "+formatBytes(partSizeMax.get())+"\n"
+                + "parts uploaded: "+partsUploaded+" ("+formatRate(partBytesUploaded.get(), partUploadMillis.get())+" per part stream)\n"
+                + "parts copied: "+partsCopied+" ("+formatRate(partBytesCopied.get(), partCopyMillis.get())+" per part copy)\n";
+    }
+
+    private String formatRate(long bytes, long millis) {
+        if (millis <= 0) return "n/a";
+        return formatBytes((long) (bytes * 1000.0d / millis))+"/s";
     }
 
-    private String formatBytes(long bytesCopied) {
+    static String formatBytes(long bytesCopied) {
         if (bytesCopied > EB) return ((double) bytesCopied) / ((double) EB) + " EB ("+bytesCopied+" bytes)";
         if (bytesCopied > PB) return ((double) bytesCopied) / ((double) PB) + " PB ("+bytesCopied+" bytes)";
         if (bytesCopied > TB) return ((double) bytesCopied) / ((double) TB) + " TB ("+bytesCopied+" bytes)";
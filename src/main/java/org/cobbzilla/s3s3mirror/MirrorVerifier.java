@@ -0,0 +1,272 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.SdkClientException;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+
+/**
+ * Checks that the destination is a faithful mirror, see --verify. The source and the destination are listed side by
+ * side like for a MirrorPlan. A key that's missing or has another size at the destination is a mismatch. A key with
+ * another ETag (multipart uploads and SSE-C give other ETags for the same data) and a --verify-sample of the others are
+ * read on both sides: ranges of DIGEST_PART_SIZE are digested in parallel and the digests of the parts are digested
+ * again, so memory stays at a buffer per range read. With client-side encryption the listed sizes and ETags differ by
+ * design, the objects are decrypted and read as a whole, and only the sampled keys are read. With --checksum the MD5s
+ * known for both sides (see ContentDigest) are compared by HEAD instead of reading the objects.
+ *
+ * The mismatches are written as a --key-list, so that mirroring with it repairs them. A key that can't be read is
+ * written as a mismatch too, copying it again is the way to know. Keys at the destination that the source doesn't
+ * have are counted only, --delete-removed deletes them.
+ */
+@Slf4j
+public class MirrorVerifier {
+
+    public static final long DIGEST_PART_SIZE = 16 * MB;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final MirrorContext context;
+    private final boolean cse;
+
+    @Getter private final AtomicLong checked = new AtomicLong(0);
+    @Getter private final AtomicLong missing = new AtomicLong(0);
+    @Getter private final AtomicLong sizeMismatches = new AtomicLong(0);
+    @Getter private final AtomicLong contentChecked = new AtomicLong(0);
+    @Getter private final AtomicLong contentMismatches = new AtomicLong(0);
+    @Getter private final AtomicLong digestsCompared = new AtomicLong(0);
+    @Getter private final AtomicLong unreadable = new AtomicLong(0);
+    @Getter private final AtomicLong extra = new AtomicLong(0);
+    @Getter private final AtomicLong errors = new AtomicLong(0);
+
+    private Writer report;
+
+    public MirrorVerifier(MirrorContext context) {
+        this.context = context;
+        final MirrorOptions options = context.getOptions();
+        this.cse = MirrorEncryption.isCSE(options.getSourceProfile().getEncryption())
+                || MirrorEncryption.isCSE(options.getDestinationProfile().getEncryption());
+    }
+
+    public long getMismatches() { return missing.get() + sizeMismatches.get() + contentMismatches.get() + unreadable.get(); }
+
+    /**
+     * Compares the buckets and writes the keys that don't match to the report, through a temporary file. The report
+     * is moved into place even if the listing fails, it has the mismatches found until then.
+     */
+    public void verify(File file) throws IOException, InterruptedException {
+        final MirrorOptions options = context.getOptions();
+        final String sourcePrefix = options.hasSourcePrefix() ? options.getSourcePrefix() : "";
+        final String destinationPrefix = options.hasDestinationPrefix() ? options.getDestinationPrefix() : sourcePrefix;
+        final int maxQueueCapacity = MirrorMaster.getMaxQueueCapacity(options);
+        final int threads = options.getMaxThreads();
+
+        final ListingCursor source = new ListingCursor(new KeyObjectLister(context, maxQueueCapacity, options.getSourceProfile(),
+                context.getSourceClient(), options.getSourceBucket(), sourcePrefix), "source");
+        final ListingCursor destination = new ListingCursor(new KeyObjectLister(context, maxQueueCapacity, options.getDestinationProfile(),
+                context.getDestinationClient(), options.getDestinationBucket(), destinationPrefix), "destination");
+
+        // the keys are compared on one pool, their ranges are read on another, so that a key never waits for a thread
+        // that waits for it
+        final ExecutorService keys = Executors.newFixedThreadPool(Math.max(1, threads / 2));
+        final ExecutorService ranges = Executors.newFixedThreadPool(threads);
+        final Semaphore keysInFlight = new Semaphore(threads);
+
+        final File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), UTF_8))) {
+            report = writer;
+            KeyObjectSummary s = source.next();
+            KeyObjectSummary d = destination.next();
+            while (s != null || d != null) {
+                final int c = s == null ? 1 : d == null ? -1
+                        : Shard.compareKeys(Shard.relativeKey(s.getKey(), sourcePrefix), Shard.relativeKey(d.getKey(), destinationPrefix));
+                if (c > 0) {
+                    extra.incrementAndGet();
+                    if (options.isVerbose()) log.info("Key {} isn't in the source.", d.getKey());
+                    d = destination.next();
+                    continue;
+                }
+                checked.incrementAndGet();
+                if (c < 0) {
+                    mismatch(s, "missing", missing);
+                } else if (!cse && s.getSize() != d.getSize()) {
+                    mismatch(s, "size " + s.getSize() + " != " + d.getSize(), sizeMismatches);
+                } else if ((!cse && !KeyCopyJob.hasSameETag(s, d.getETag())) || isSampled()) {
+                    final KeyObjectSummary summary = s;
+                    final String destinationKey = d.getKey();
+                    keysInFlight.acquire();
+                    keys.execute(new Runnable() {
+                        @Override public void run() {
+                            try {
+                                compareContent(summary, destinationKey, ranges);
+                            } finally {
+                                keysInFlight.release();
+                            }
+                        }
+                    });
+                }
+                s = source.next();
+                if (c == 0) d = destination.next();
+            }
+            keys.shutdown();
+            keys.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } finally {
+            keys.shutdownNow();
+            ranges.shutdownNow();
+            source.stop();
+            destination.stop();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (errors.get() > 0) throw new IOException(errors.get() + " keys couldn't be written to the report, see the log");
+    }
+
+    private boolean isSampled() {
+        final double sample = context.getOptions().getVerifySample();
+        return sample >= 1 || (sample > 0 && ThreadLocalRandom.current().nextDouble() < sample);
+    }
+
+    private void mismatch(KeyObjectSummary summary, String reason, AtomicLong counter) {
+        counter.incrementAndGet();
+        log.info("Mismatch of {}: {}.", summary.getKey(), reason);
+        synchronized (this) {
+            try {
+                // without the ETag, so that a destination with the same ETag but other content is repaired too
+                report.write(FailureList.escape(summary.getKey()) + "\t" + summary.getSize() + "\n");
+            } catch (IOException e) {
+                log.error("Error writing {} to the report.", summary.getKey(), e);
+                errors.incrementAndGet();
+            }
+        }
+    }
+
+    private void compareContent(KeyObjectSummary summary, String destinationKey, ExecutorService ranges) {
+        try {
+            if (context.getOptions().isChecksum()) {
+                final Boolean same = compareDigests(summary.getKey(), destinationKey);
+                if (same != null) {
+                    digestsCompared.incrementAndGet();
+                    if (!same) mismatch(summary, "MD5 differs", contentMismatches);
+                    return;
+                }
+            }
+            final long size = summary.getSize();
+            // the ranges of both sides are read at the same time
+            final List<Future<byte[]>> sourceParts = digestParts(context.getSourceBackend(), summary.getKey(), size, ranges);
+            final List<Future<byte[]>> destinationParts = digestParts(context.getDestinationBackend(), destinationKey, size, ranges);
+            final boolean same;
+            try {
+                same = MessageDigest.isEqual(digest(sourceParts), digest(destinationParts));
+            } finally {
+                cancel(sourceParts);
+                cancel(destinationParts);
+            }
+            contentChecked.incrementAndGet();
+            if (!same) mismatch(summary, "content differs", contentMismatches);
+        } catch (FileNotFoundException e) {
+            log.warn("Key {} not found anymore, not verified.", summary.getKey());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FileNotFoundException) {
+                // deleted or replaced since it was listed
+                log.warn("Key {} not found anymore, not verified.", summary.getKey());
+                return;
+            }
+            log.error("Error reading {}.", summary.getKey(), e.getCause());
+            mismatch(summary, "can't be read", unreadable);
+        } catch (Exception e) {
+            log.error("Error verifying {}.", summary.getKey(), e);
+            mismatch(summary, "can't be verified", unreadable);
+        }
+    }
+
+    /**
+     * @return whether the MD5s of both sides are the same, null if one of them isn't known, see ContentDigest
+     */
+    private Boolean compareDigests(String key, String destinationKey) throws IOException {
+        final MirrorOptions options = context.getOptions();
+        final String source = ContentDigest.of(context.getSourceBackend().head(key),
+                MirrorEncryption.isCSE(options.getSourceProfile().getEncryption()));
+        if (source == null) return null;
+        final String destination = ContentDigest.of(context.getDestinationBackend().head(destinationKey),
+                MirrorEncryption.isCSE(options.getDestinationProfile().getEncryption()));
+        return destination == null ? null : source.equals(destination);
+    }
+
+    /**
+     * Submits the reads of the parts of the object.
+     *
+     * @return the digests of the parts, read in parallel
+     */
+    private List<Future<byte[]>> digestParts(final StorageBackend backend, final String key, final long size, final ExecutorService ranges) {
+        final List<Future<byte[]>> parts = new ArrayList<Future<byte[]>>();
+        // a client-side encrypted object can only be decrypted from its start
+        final long partSize = cse ? Math.max(size, 1) : DIGEST_PART_SIZE;
+        for (long offset = 0; offset == 0 || offset < size; offset += partSize) {
+            final long start = offset;
+            final long length = cse ? -1 : Math.min(partSize, size - offset);
+            parts.add(ranges.submit(new Callable<byte[]>() {
+                @Override public byte[] call() throws Exception { return digestRange(backend, key, start, length); }
+            }));
+        }
+        return parts;
+    }
+
+    /**
+     * Waits for the parts, which takes no thread of the pool that reads them.
+     *
+     * @return the digest of the digests of the parts
+     */
+    private static byte[] digest(List<Future<byte[]>> parts) throws Exception {
+        final MessageDigest digest = newDigest();
+        for (Future<byte[]> part : parts) digest.update(part.get());
+        return digest.digest();
+    }
+
+    private static void cancel(List<Future<byte[]>> parts) {
+        for (Future<byte[]> part : parts) part.cancel(true);
+    }
+
+    private byte[] digestRange(StorageBackend backend, String key, long offset, long length) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        final RetryPolicy.Retry retry = context.getRetryPolicy().begin(RetryPolicy.Operation.GET, backend.getProfile());
+        for (int tries = 1; ; tries++) {
+            final MessageDigest digest = newDigest();
+            try (InputStream in = backend.get(key, offset, length == 0 ? -1 : length)) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) digest.update(buffer, 0, read);
+                retry.succeeded();
+                return digest.digest();
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException | SdkClientException e) {
+                log.warn("Error reading {} of {} (try #{}).", offset, key, tries, e);
+                if (tries >= options.getMaxRetries() || !retry.backoff(e)) throw e;
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("MD5");
+    }
+
+    @Override
+    public String toString() {
+        return "keys checked: " + checked + "\n"
+                + "missing at the destination: " + missing + "\n"
+                + "other size: " + sizeMismatches + "\n"
+                + "content read: " + contentChecked + ", MD5s compared: " + digestsCompared + ", differs: " + contentMismatches + "\n"
+                + "can't be read: " + unreadable + "\n"
+                + "only at the destination: " + extra + "\n"
+                + "errors: " + errors + "\n";
+    }
+}
@@ -1,11 +1,14 @@
 package org.cobbzilla.s3s3mirror;
 
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.ResetException;
 import com.amazonaws.SdkClientException;
 import com.amazonaws.services.s3.model.*;
 import lombok.extern.slf4j.Slf4j;
 
-import java.io.FileNotFoundException;
+import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -14,7 +17,7 @@ import static java.lang.Math.toIntExact;
 @Slf4j
 public class MultipartKeyCopyJob extends KeyCopyJob {
 
-    public MultipartKeyCopyJob(MirrorContext context, KeyObjectSummary summary, Object notifyLock) {
+    public MultipartKeyCopyJob(MirrorContext context, KeyObjectSummary summary, JobSignal notifyLock) {
         super(context, summary, notifyLock);
     }
 
@@ -40,6 +43,84 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
         return context.getDestinationClient().initiateMultipartUpload(initiateRequest);
     }
 
+    /**
+     * @return the parts recorded for the destination object, null if there are none or the object changed since
+     */
+    private DeltaParts getPreviousParts(File dir, long objectSize) {
+        final DeltaParts parts = DeltaParts.load(dir, keydest);
+        if (parts == null) return null;
+        // a part is held in memory, and S3 takes no more than MAX_PARTS
+        if (parts.getPartSize() < PartSizer.MIN_PART_SIZE || parts.getPartSize() > DeltaParts.MAX_PART_SIZE
+                || PartSizer.ceilDiv(objectSize, parts.getPartSize()) > PartSizer.MAX_PARTS) return null;
+        try {
+            if (parts.describes(getDestinationObjectMetadata(keydest).getETag())) return parts;
+            if (context.getOptions().isVerbose()) log.info("Destination {} changed since its parts were recorded.", keydest);
+        } catch (FileNotFoundException e) {
+            if (context.getOptions().isVerbose()) log.info("Destination {} not found, its parts can't be copied.", keydest);
+        } catch (SdkClientException e) {
+            log.warn("Error getting metadata for {}, not copying its parts.", keydest, e);
+        }
+        return null;
+    }
+
+    private PartETag uploadPart(String uploadId, int partNumber, InputStream in, long partSize, boolean isLast, String digest) {
+        final UploadPartRequest uploadRequest = new UploadPartRequest()
+                .withBucketName(context.getOptions().getDestinationBucket())
+                .withKey(keydest)
+                .withUploadId(uploadId)
+                .withInputStream(in)
+                .withPartSize(partSize)
+                .withPartNumber(partNumber)
+                .withLastPart(isLast);
+        // a part read into memory is checked by S3 like a single PUT with --checksum
+        if (digest != null) uploadRequest.setMd5Digest(ContentDigest.toContentMD5(digest));
+
+        uploadRequest.getRequestClientOptions().setReadLimit(toIntExact(partSize) + 1);
+
+        setupSSEEncryption(uploadRequest, context.getDestinationSSEKey());
+
+        final MirrorStats stats = context.getStats();
+        stats.s3putCount.incrementAndGet();
+        final long partStart = System.currentTimeMillis();
+        final UploadPartResult uploadPartResult = context.getDestinationClient().uploadPart(uploadRequest);
+        stats.recordPartUpload(partSize, System.currentTimeMillis() - partStart);
+        return uploadPartResult.getPartETag();
+    }
+
+    /**
+     * Copies a part that didn't change from the old destination object, as long as it's the one the parts describe.
+     * @return null if the old object was replaced or deleted
+     */
+    private PartETag copyUnchangedPart(DeltaParts previous, String uploadId, int partNumber, long firstByte, long lastByte) {
+        final String bucket = context.getOptions().getDestinationBucket();
+        final CopyPartRequest copyRequest = new CopyPartRequest()
+                .withSourceBucketName(bucket)
+                .withSourceKey(keydest)
+                .withDestinationBucketName(bucket)
+                .withDestinationKey(keydest)
+                .withUploadId(uploadId)
+                .withFirstByte(firstByte)
+                .withLastByte(lastByte)
+                .withPartNumber(partNumber)
+                .withMatchingETagConstraint("\"" + previous.getEtag() + "\"");
+        setupSSEEncryption(copyRequest, context.getDestinationSSEKey(), context.getDestinationSSEKey());
+
+        final MirrorStats stats = context.getStats();
+        stats.s3copyCount.incrementAndGet();
+        final CopyPartResult result;
+        try {
+            result = context.getDestinationClient().copyPart(copyRequest);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != 404) throw e;
+            return null;
+        }
+        if (result == null) return null;
+        stats.deltaPartsReused.incrementAndGet();
+        stats.deltaBytesReused.addAndGet(lastByte - firstByte + 1);
+        if (context.getOptions().isVerbose()) log.info("Copied unchanged part {} of {}.", partNumber, keydest);
+        return result.getPartETag();
+    }
+
     @Override
     boolean copyKey() {
     	String key = summary.getKey();
@@ -60,6 +141,8 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
         }
         long objectSize = getRealObjectSize(sourceMetadata);
         final ObjectMetadata destinationMetadata = buildDestinationMetadata(sourceMetadata);
+        final String sourceDigest = getSourceDigest(sourceMetadata);
+        if (!useCopy() && copyFromDuplicate(destinationMetadata)) return true;
 
         if (verbose) {
             logMetadata("source", sourceMetadata);
@@ -67,7 +150,7 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
         }
 
         AccessControlList destinationAcl = null;
-        if (!options.isCrossAccountCopy() && useCopy()) {
+        if (!options.isCrossAccountCopy() && !context.getServerSideCopy().isCrossProfile() && useCopy()) {
             try {
                 destinationAcl = getSourceAccessControlList(key);
             } catch (Exception e) {
@@ -77,12 +160,17 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
         }
 
         List<PartETag> partETags = new ArrayList<PartETag>();
-        long partSize = options.getUploadPartSize();
+        long partSize = new PartSizer(options, stats).getPartSize(objectSize, useCopy());
         InitiateMultipartUploadResult initResult = null;
 
+        if (verbose) log.info("Using part size {} for {} (size {}, {} parts).", partSize, keydest, objectSize,
+                PartSizer.ceilDiv(objectSize, partSize));
+
+        boolean copyDenied = false;
         if (useCopy()) {
             initResult = setupMultipartUpload(destinationMetadata, destinationAcl);
             long bytePosition = 0;
+            copyParts:
             for (int i = 1; bytePosition < objectSize; i++) {
             	long lastByte = Math.min(objectSize - 1, bytePosition + partSize - 1);
             	long currentPartSize = Math.min(objectSize - bytePosition, partSize);
@@ -99,27 +187,45 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
                 setupSSEEncryption(copyRequest, context.getSourceSSEKey(), context.getDestinationSSEKey());
 
                 boolean copyPartOkay = false;
+                final RetryPolicy.Retry retry = beginRetry(RetryPolicy.Operation.COPY_PART, options.getDestinationProfile());
                 for (int tries = 1; tries <= maxRetries; tries++) {
+                    SdkClientException lastException;
                     try {
                         if (verbose) log.info("Copying to {}: {} to {} (currentPartSize {}, try#{})", keydest, bytePosition, lastByte,
                                 currentPartSize, tries);
 
                         stats.s3copyCount.incrementAndGet();
+                        final long partStart = System.currentTimeMillis();
                         CopyPartResult copyPartResult = context.getDestinationClient().copyPart(copyRequest);
+                        stats.recordPartCopy(currentPartSize, System.currentTimeMillis() - partStart);
                         partETags.add(copyPartResult.getPartETag());
                         
                         if (verbose) log.info("Completed copying to {}: {} to {} (currentPartSize {})", keydest,
                                 bytePosition, lastByte, currentPartSize);
+                        context.getServerSideCopy().succeeded();
+                        retry.succeeded();
                         copyPartOkay = true;
                         break;
+                    } catch (AmazonServiceException e) {
+                        if (context.getServerSideCopy().shouldStream(key, e)) {
+                            context.getDestinationClient().abortMultipartUpload(new AbortMultipartUploadRequest(
+                                    destinationBucket, keydest, initResult.getUploadId()));
+                            streamOnly = true;
+                            copyDenied = true;
+                            break copyParts;
+                        }
+                        lastException = e;
+                        log.error("Service exception copying to {} (try#{}).", keydest, tries, e);
                     } catch (ResetException e) {
+                        lastException = e;
                         // ResetException can occur when there is a transient, retryable failure.
                         if (verbose) log.info("Reset exception copying to {} (try#{}).", keydest, tries, e);
                     } catch (SdkClientException e) {
+                        lastException = e;
                         log.error("Client exception copying from to {} (try#{}).", keydest, tries, e);
                     }
 
-                    if (tries < maxRetries && Sleep.sleep(50)) break;
+                    if (!retry.backoff(lastException)) break;
                 }
 
                 if (!copyPartOkay) {
@@ -131,13 +237,35 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
 
                 bytePosition += partSize;
             }
-        } else {
+        }
+
+        if (copyDenied) {
+            // copying on the server was denied, stream the object like with different endpoints
+            partETags.clear();
+            destinationAcl = null;
+            partSize = new PartSizer(options, stats).getPartSize(objectSize, false);
+        }
+
+        // with --delta the MD5s of the parts are recorded, and the unchanged parts of an object recorded before are
+        // copied from the old destination object, which is read part by part into memory for that. Objects with
+        // parts too large for memory are copied whole and not recorded.
+        final File deltaDir = options.hasDelta() && partSize <= DeltaParts.MAX_PART_SIZE ? new File(options.getDelta()) : null;
+        final List<String> partDigests = new ArrayList<String>();
+        long reusedBytes = 0;
+
+        if (!useCopy()) {
             final GetObjectRequest getRequest =  new GetObjectRequest(sourceBucket, key);
             setupSSEEncryption(getRequest, context.getSourceSSEKey());
 
+            final DeltaParts previous = deltaDir != null ? getPreviousParts(deltaDir, objectSize) : null;
+            if (previous != null) partSize = previous.getPartSize();
+            final byte[] buffer = previous != null ? new byte[toIntExact(partSize)] : null;
+
             boolean uploadOkay = false;
+            final RetryPolicy.Retry retry = beginRetry(RetryPolicy.Operation.UPLOAD_PART, options.getDestinationProfile());
             for (int tries = 1; tries <= maxRetries; tries++) {
                 S3ObjectInputStream objectStream = null;
+                SdkClientException lastException;
                 try {
                     if (verbose) log.info("try :" + tries);
 
@@ -151,6 +279,16 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
                     stats.s3getCount.incrementAndGet();
                     S3Object object = context.getSourceClient().getObject(getRequest);
                     objectStream = object.getObjectContent();
+                    // the parts are read in order, so the MD5 of the whole object is computed on the way, the SDK
+                    // checks the MD5 of every part against its ETag
+                    final DigestInputStream digestStream = options.isChecksum()
+                            ? new DigestInputStream(objectStream, ContentDigest.newDigest()) : null;
+                    InputStream in = digestStream != null ? digestStream : objectStream;
+                    final MessageDigest partDigest = deltaDir != null ? ContentDigest.newDigest() : null;
+                    if (partDigest != null) in = new DigestInputStream(in, partDigest);
+                    partDigests.clear();
+                    reusedBytes = 0;
+                    boolean reuse = previous != null;
 
                     long bytePosition = 0;
                     for (int i = 1; bytePosition < objectSize; i++) {
@@ -161,22 +299,26 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
                         if (verbose) log.info("Uploading {}: {} to {} (currentPartSize {}, isLast {})", keydest,
                                 bytePosition, lastByte, currentPartSize, isLast);
 
-                        UploadPartRequest uploadRequest = new UploadPartRequest()
-                                .withBucketName(destinationBucket)
-                                .withKey(keydest)
-                                .withUploadId(initResult.getUploadId())
-                                .withInputStream(objectStream)
-                                .withPartSize(currentPartSize)
-                                .withPartNumber(i)
-                                .withLastPart(isLast);
-
-                        uploadRequest.getRequestClientOptions().setReadLimit(toIntExact(currentPartSize) + 1);
-
-                        setupSSEEncryption(uploadRequest, context.getDestinationSSEKey());
-
-                        stats.s3putCount.incrementAndGet();
-                        UploadPartResult uploadPartResult = context.getDestinationClient().uploadPart(uploadRequest);
-                        partETags.add(uploadPartResult.getPartETag());
+                        PartETag partETag = null;
+                        if (buffer != null) {
+                            readFully(in, buffer, toIntExact(currentPartSize));
+                            final String digest = ContentDigest.toHex(partDigest);
+                            partDigests.add(digest);
+                            if (reuse && previous.hasPart(i, currentPartSize, digest)) {
+                                partETag = copyUnchangedPart(previous, initResult.getUploadId(), i, bytePosition, lastByte);
+                                // the old object was replaced, none of its parts can be copied anymore
+                                if (partETag == null) reuse = false;
+                                else reusedBytes += currentPartSize;
+                            }
+                            if (partETag == null) {
+                                partETag = uploadPart(initResult.getUploadId(), i, new ByteArrayInputStream(buffer, 0, toIntExact(currentPartSize)),
+                                        currentPartSize, isLast, digest);
+                            }
+                        } else {
+                            partETag = uploadPart(initResult.getUploadId(), i, in, currentPartSize, isLast, null);
+                            if (partDigest != null) partDigests.add(ContentDigest.toHex(partDigest));
+                        }
+                        partETags.add(partETag);
 
                         bytePosition += partSize;
                         if (verbose) log.info("Completed uploading {}: {} to {} (currentPartSize {}, isLast {})", keydest,
@@ -185,9 +327,13 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
 
                     // Stream is closed when we reached EOF
                     objectStream = null;
+                    // before completing, the destination keeps its old object if the copy differs
+                    if (digestStream != null) checkDigest(digestStream, sourceDigest);
+                    retry.succeeded();
                     uploadOkay = true;
                     break;
                 } catch (ResetException e) {
+                    lastException = e;
                     if (initResult != null) {
                         context.getDestinationClient().abortMultipartUpload(new AbortMultipartUploadRequest(
                                 destinationBucket, keydest, initResult.getUploadId()));
@@ -196,6 +342,7 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
                     // ResetException can occur when there is a transient, retryable failure.
                     if (verbose) log.info("Reset exception uploading to {} (try#{}).", keydest, tries, e);
                 } catch (SdkClientException e) {
+                    lastException = e;
                     if (initResult != null) {
                         context.getDestinationClient().abortMultipartUpload(new AbortMultipartUploadRequest(
                                 destinationBucket, keydest, initResult.getUploadId()));
@@ -208,7 +355,7 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
                     }
                 }
 
-                if (tries < maxRetries && Sleep.sleep(50)) break;
+                if (!retry.backoff(lastException)) break;
             }
 
             if (!uploadOkay) {
@@ -219,10 +366,17 @@ public class MultipartKeyCopyJob extends KeyCopyJob {
 
         CompleteMultipartUploadRequest completeRequest = new CompleteMultipartUploadRequest(destinationBucket, keydest,
                 initResult.getUploadId(), partETags);
-        context.getDestinationClient().completeMultipartUpload(completeRequest);
+        final CompleteMultipartUploadResult completeResult = context.getDestinationClient().completeMultipartUpload(completeRequest);
         
-        stats.bytesCopied.addAndGet(objectSize);
+        addBytesCopied(objectSize - reusedBytes);
         if(verbose) log.info("Completed multipart request for {}.", keydest);
+        if (!partDigests.isEmpty()) {
+            try {
+                new DeltaParts(keydest, completeResult.getETag(), sourceMetadata.getETag(), objectSize, partSize, partDigests).save(deltaDir);
+            } catch (IOException e) {
+                log.warn("Error recording the parts of {}, it's copied whole next time.", keydest, e);
+            }
+        }
         
         return true;
     }
@@ -0,0 +1,105 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.util.Base64;
+import com.amazonaws.util.json.Jackson;
+import lombok.Getter;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The encryption client uploads the parts of a client-side encrypted object one after the other, because the cipher
+ * runs over the whole object. For destinations with AES/GCM, ParallelCseUploadJob encrypts the parts of large
+ * objects on several threads with GcmParts instead, and uploads them with a client without encryption. The envelope
+ * is the one the encryption client writes itself (a content key wrapped with AESWrap, the IV, a 128 bit tag), so the
+ * objects are decrypted by the SDK like any other.
+ */
+public class ParallelCse {
+
+    public static final String CEK_ALGORITHM = "AES/GCM/NoPadding";
+    public static final String WRAP_ALGORITHM = "AESWrap";
+    public static final String INSTRUCTION_SUFFIX = CsePassthrough.INSTRUCTION_SUFFIX;
+
+    private final SecureRandom random = new SecureRandom();
+
+    @Getter private AmazonS3 destinationClient;
+
+    public static boolean isPossible(MirrorOptions options) {
+        if (options.getCsePartThreads() <= 1 || options.hasLocalBackend() || options.hasExtraDestinations()) return false;
+        final MirrorProfile destination = options.getDestinationProfile();
+        // AES/CBC of CSE_AES_256 can't be split up
+        return (destination.getEncryption() == MirrorEncryption.CSE_AES_GCM_256
+                || destination.getEncryption() == MirrorEncryption.CSE_AES_GCM_256_STRICT)
+                && destination.getEncryptionKey() != null;
+    }
+
+    /**
+     * @param destinationClient a client of the destination profile without client-side encryption
+     */
+    public void setDestinationClient(AmazonS3 destinationClient) { this.destinationClient = destinationClient; }
+
+    public boolean isEnabled() { return destinationClient != null; }
+
+    public boolean isEnabled(KeyObjectSummary summary) {
+        return isEnabled() && summary.getSize() <= GcmParts.MAX_PLAINTEXT;
+    }
+
+    /**
+     * @return a new content key and IV for a single object
+     */
+    public GcmParts newParts() {
+        try {
+            final KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(256, random);
+            final byte[] iv = new byte[GcmParts.IV_LENGTH];
+            random.nextBytes(iv);
+            return new GcmParts(generator.generateKey(), iv);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not generate a content key.", e);
+        }
+    }
+
+    /**
+     * @param parts the content key and IV of the object
+     * @param keyEncryptionKey the key of the destination profile
+     * @return the envelope, stored as user metadata or in the instruction file
+     */
+    public Map<String, String> getEnvelope(GcmParts parts, SecretKey keyEncryptionKey) {
+        final byte[] wrappedKey;
+        try {
+            final Cipher wrap = Cipher.getInstance(WRAP_ALGORITHM);
+            wrap.init(Cipher.WRAP_MODE, keyEncryptionKey, random);
+            wrappedKey = wrap.wrap(parts.getKey());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not wrap the content key.", e);
+        }
+
+        final Map<String, String> envelope = new LinkedHashMap<String, String>();
+        envelope.put(Headers.CRYPTO_KEY_V2, Base64.encodeAsString(wrappedKey));
+        envelope.put(Headers.CRYPTO_IV, Base64.encodeAsString(parts.getIv()));
+        envelope.put(Headers.MATERIALS_DESCRIPTION, Jackson.toJsonString(Collections.emptyMap()));
+        envelope.put(Headers.CRYPTO_CEK_ALGORITHM, CEK_ALGORITHM);
+        envelope.put(Headers.CRYPTO_TAG_LENGTH, String.valueOf(GcmParts.TAG_LENGTH * 8));
+        envelope.put(Headers.CRYPTO_KEYWRAP_ALGORITHM, WRAP_ALGORITHM);
+        return envelope;
+    }
+
+    /**
+     * @return the metadata of an instruction file that holds the envelope
+     */
+    public static ObjectMetadata getInstructionFileMetadata(byte[] contents) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentLength(contents.length);
+        metadata.addUserMetadata(Headers.CRYPTO_INSTRUCTION_FILE, "");
+        return metadata;
+    }
+}
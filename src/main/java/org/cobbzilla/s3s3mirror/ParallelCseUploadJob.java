@@ -0,0 +1,249 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.AbortedException;
+import com.amazonaws.ResetException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.json.Jackson;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.cobbzilla.s3s3mirror.MirrorConstants.GB;
+
+/**
+ * Uploads a large object to a destination with AES/GCM client-side encryption, encrypting and uploading up to
+ * --cse-part-threads parts at the same time, see ParallelCse. The source is read in order, one part after the other.
+ * The tag depends on every part, so the last part is uploaded when all others are encrypted.
+ */
+@Slf4j
+public class ParallelCseUploadJob extends KeyCopyJob {
+
+    // parts are buffered in byte arrays
+    public static final long MAX_PART_SIZE = GB;
+
+    public ParallelCseUploadJob(MirrorContext context, KeyObjectSummary summary, JobSignal notifyLock) {
+        super(context, summary, notifyLock);
+    }
+
+    @Override public Logger getLog() { return log; }
+
+    // the source GET and a part upload per thread
+    @Override public int getConnectionsNeeded() { return 1 + context.getOptions().getCsePartThreads(); }
+
+    @Override
+    boolean useCopy() { return false; }
+
+    static long getPartSize(long partSize) {
+        final long size = Math.min(partSize, MAX_PART_SIZE);
+        // every part but the last must be a whole number of cipher blocks
+        return GcmParts.blocks(size) * GcmParts.BLOCK_SIZE;
+    }
+
+    @Override
+    boolean copyKey() {
+        final String key = summary.getKey();
+        final MirrorOptions options = context.getOptions();
+        final MirrorStats stats = context.getStats();
+
+        final ObjectMetadata sourceMetadata;
+        try {
+            sourceMetadata = getSourceObjectMetadata(key);
+        } catch (FileNotFoundException e) {
+            log.error("Key {} not found anymore.", key, e);
+            return false;
+        }
+        final long objectSize = getRealObjectSize(sourceMetadata);
+        final ObjectMetadata destinationMetadata = buildDestinationMetadata(sourceMetadata);
+        if (options.isVerbose()) {
+            logMetadata("source", sourceMetadata);
+            logMetadata("destination", destinationMetadata);
+        }
+
+        final long partSize = getPartSize(new PartSizer(options, stats).getPartSize(objectSize, false));
+        if (options.isVerbose()) log.info("Using part size {} for {} (size {}, {} parts, {} threads).", partSize, keydest,
+                objectSize, PartSizer.ceilDiv(objectSize, partSize), options.getCsePartThreads());
+
+        final RetryPolicy.Retry retry = beginRetry(RetryPolicy.Operation.UPLOAD_PART, options.getDestinationProfile());
+        for (int tries = 1; tries <= options.getMaxRetries(); tries++) {
+            SdkClientException lastException;
+            try {
+                upload(destinationMetadata, objectSize, partSize, tries);
+                retry.succeeded();
+                addBytesCopied(objectSize);
+                return true;
+            } catch (ResetException e) {
+                lastException = e;
+                if (options.isVerbose()) log.info("Reset exception uploading to {} (try#{}).", keydest, tries, e);
+            } catch (SdkClientException e) {
+                lastException = e;
+                log.error("Client exception uploading to {} (try#{}).", keydest, tries, e);
+            }
+            if (!retry.backoff(lastException)) break;
+        }
+        log.error("Giving up on multi-part upload to {}.", keydest);
+        return false;
+    }
+
+    private void upload(ObjectMetadata destinationMetadata, long objectSize, long partSize, int tries) {
+        final MirrorOptions options = context.getOptions();
+        final MirrorStats stats = context.getStats();
+        final ParallelCse parallelCse = context.getParallelCse();
+        final AmazonS3 client = parallelCse.getDestinationClient();
+        final String destinationBucket = options.getDestinationBucket();
+        final boolean instructionFile = options.getDestinationProfile().hasOption(MirrorProfileOptions.CSM_INSTRUCTION_FILE);
+        if (options.isVerbose()) log.info("Uploading {} in parallel encrypted parts (try #{}).", keydest, tries);
+
+        final GcmParts gcm = parallelCse.newParts();
+        final Map<String, String> envelope = parallelCse.getEnvelope(gcm, options.getDestinationProfile().getEncryptionKey());
+
+        final ObjectMetadata metadata = destinationMetadata.clone();
+        if (!instructionFile) {
+            for (Map.Entry<String, String> entry : envelope.entrySet()) metadata.addUserMetadata(entry.getKey(), entry.getValue());
+        }
+        final InitiateMultipartUploadRequest initiateRequest = new InitiateMultipartUploadRequest(destinationBucket, keydest)
+                .withObjectMetadata(metadata)
+                .withCannedACL(CannedAccessControlList.BucketOwnerFullControl)
+                .withStorageClass(StorageClass.valueOf(options.getStorageClass()));
+        final String uploadId = client.initiateMultipartUpload(initiateRequest).getUploadId();
+
+        final int partCount = toPartCount(objectSize, partSize);
+        final byte[][] partials = new byte[partCount][];
+        final long[] lengths = new long[partCount];
+        final List<Future<PartETag>> uploads = new ArrayList<Future<PartETag>>();
+
+        // the threads encrypting or uploading a part, and the part being read
+        final int threads = options.getCsePartThreads();
+        final Semaphore buffers = new Semaphore(threads + 1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "cse-part-" + keydest);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        boolean completed = false;
+        S3ObjectInputStream objectStream = null;
+        try {
+            final GetObjectRequest getRequest = new GetObjectRequest(options.getSourceBucket(), summary.getKey());
+            setupSSEEncryption(getRequest, context.getSourceSSEKey());
+            stats.s3getCount.incrementAndGet();
+            objectStream = context.getSourceClient().getObject(getRequest).getObjectContent();
+
+            byte[] lastPart = null;
+            for (int i = 0; i < partCount; i++) {
+                final long offset = i * partSize;
+                final int length = (int) Math.min(partSize, objectSize - offset);
+                final boolean isLast = i == partCount - 1;
+
+                acquire(buffers);
+                checkFailed(uploads);
+                // room for the tag after the last part
+                final byte[] data = new byte[isLast ? length + GcmParts.TAG_LENGTH : length];
+                readFully(objectStream, data, length);
+                lengths[i] = length;
+                if (isLast) lastPart = data;
+
+                final int index = i;
+                uploads.add(executor.submit(new Callable<PartETag>() {
+                    @Override public PartETag call() {
+                        try {
+                            partials[index] = gcm.encrypt(offset, data, length);
+                            return isLast ? null : uploadPart(client, uploadId, index + 1, data, length);
+                        } finally {
+                            if (!isLast) buffers.release();
+                        }
+                    }
+                }));
+            }
+            closeS3ObjectInputStream(objectStream);
+            objectStream = null;
+
+            final List<PartETag> partETags = new ArrayList<PartETag>();
+            for (Future<PartETag> upload : uploads) {
+                final PartETag partETag = await(upload);
+                if (partETag != null) partETags.add(partETag);
+            }
+
+            final byte[] tag = gcm.tag(partials, lengths);
+            System.arraycopy(tag, 0, lastPart, lastPart.length - GcmParts.TAG_LENGTH, GcmParts.TAG_LENGTH);
+            partETags.add(uploadPart(client, uploadId, partCount, lastPart, lastPart.length));
+
+            if (instructionFile) {
+                final byte[] contents = Jackson.toJsonString(envelope).getBytes(UTF_8);
+                stats.s3putCount.incrementAndGet();
+                client.putObject(new PutObjectRequest(destinationBucket, keydest + ParallelCse.INSTRUCTION_SUFFIX,
+                        new ByteArrayInputStream(contents), ParallelCse.getInstructionFileMetadata(contents))
+                        .withCannedAcl(CannedAccessControlList.BucketOwnerFullControl));
+            }
+
+            client.completeMultipartUpload(new CompleteMultipartUploadRequest(destinationBucket, keydest, uploadId, partETags));
+            completed = true;
+            if (options.isVerbose()) log.info("Completed multipart request for {}.", keydest);
+        } finally {
+            executor.shutdownNow();
+            if (objectStream != null) closeS3ObjectInputStream(objectStream);
+            if (!completed) client.abortMultipartUpload(new AbortMultipartUploadRequest(destinationBucket, keydest, uploadId));
+        }
+    }
+
+    private PartETag uploadPart(AmazonS3 client, String uploadId, int partNumber, byte[] data, int length) {
+        final MirrorOptions options = context.getOptions();
+        if (options.isVerbose()) log.info("Uploading part {} of {} ({} bytes).", partNumber, keydest, length);
+
+        final UploadPartRequest uploadRequest = new UploadPartRequest()
+                .withBucketName(options.getDestinationBucket())
+                .withKey(keydest)
+                .withUploadId(uploadId)
+                .withInputStream(new ByteArrayInputStream(data, 0, length))
+                .withPartSize(length)
+                .withPartNumber(partNumber);
+
+        context.getStats().s3putCount.incrementAndGet();
+        final long partStart = System.currentTimeMillis();
+        final UploadPartResult result = client.uploadPart(uploadRequest);
+        context.getStats().recordPartUpload(length, System.currentTimeMillis() - partStart);
+        return result.getPartETag();
+    }
+
+    static int toPartCount(long objectSize, long partSize) {
+        return (int) Math.max(1, PartSizer.ceilDiv(objectSize, partSize));
+    }
+
+    private static void acquire(Semaphore semaphore) {
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException("Interrupted waiting for a part buffer", e);
+        }
+    }
+
+    // stop reading the source as soon as a part failed
+    private static void checkFailed(List<Future<PartETag>> uploads) {
+        for (Future<PartETag> upload : uploads) {
+            if (upload.isDone()) await(upload);
+        }
+    }
+
+    private static PartETag await(Future<PartETag> upload) {
+        try {
+            return upload.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AbortedException("Interrupted waiting for a part upload", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new SdkClientException("Error uploading a part: " + e.getCause(), e.getCause());
+        }
+    }
+}
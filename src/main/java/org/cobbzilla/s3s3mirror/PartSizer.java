@@ -0,0 +1,104 @@
+package org.cobbzilla.s3s3mirror;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.GB;
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+
+/**
+ * Chooses the part size of a multipart upload or copy for a single object.
+ *
+ * The part count limit of S3 is always honoured. With --adaptive-part-size the preferred part size is derived from
+ * the part throughput measured so far in this run and capped by the memory budget, and the parts of an object are
+ * balanced so that the last part is not much smaller than the others.
+ */
+public class PartSizer {
+
+    public static final long MIN_PART_SIZE = 5 * MB;
+    public static final long MAX_PART_SIZE = 5 * GB;
+    public static final int MAX_PARTS = 10000;
+
+    // Aim for parts that take about this long to transfer: long enough to amortize the per-request overhead, short
+    // enough to keep the cost of retrying a part low.
+    public static final long TARGET_PART_MILLIS = 30 * 1000L;
+
+    // Don't trust the throughput measurement until we have seen this many parts.
+    public static final int MIN_MEASURED_PARTS = 4;
+
+    private final MirrorOptions options;
+    private final MirrorStats stats;
+
+    public PartSizer(MirrorOptions options, MirrorStats stats) {
+        this.options = options;
+        this.stats = stats;
+    }
+
+    /**
+     * @param objectSize the size of the object to transfer
+     * @param serverSide true for UploadPartCopy, false for parts that are streamed through this process
+     * @return the part size to use for this object
+     */
+    public long getPartSize(long objectSize, boolean serverSide) {
+        final long partSize = peekPartSize(objectSize, serverSide);
+        stats.recordPartSize(partSize);
+        return partSize;
+    }
+
+    /**
+     * @return the part size getPartSize would choose now, without recording it in the stats
+     */
+    public long peekPartSize(long objectSize, boolean serverSide) {
+        if (options.isAdaptivePartSize()) {
+            // Parts copied server-side are never buffered here, so the memory budget doesn't apply to them.
+            final long maxPartSize = serverSide ? MAX_PART_SIZE : getMemoryBudgetPartSize();
+            return choosePartSize(objectSize, getPreferredPartSize(serverSide), maxPartSize, true);
+        }
+        return choosePartSize(objectSize, options.getUploadPartSize(), MAX_PART_SIZE, false);
+    }
+
+    long getPreferredPartSize(boolean serverSide) {
+        final long parts = serverSide ? stats.partsCopied.get() : stats.partsUploaded.get();
+        final long millis = serverSide ? stats.partCopyMillis.get() : stats.partUploadMillis.get();
+        final long bytes = serverSide ? stats.partBytesCopied.get() : stats.partBytesUploaded.get();
+
+        if (parts < MIN_MEASURED_PARTS || millis <= 0) return options.getUploadPartSize();
+
+        // bytes per millisecond of a single part stream, scaled to the target duration of a part
+        return (long) (((double) bytes / (double) millis) * TARGET_PART_MILLIS);
+    }
+
+    long getMemoryBudgetPartSize() {
+        long budget = options.getPartMemoryBudget();
+        if (budget <= 0) budget = Runtime.getRuntime().maxMemory() / 2;
+
+        // Every thread may be streaming a part at the same time and the SDK keeps the whole part for resetting the
+        // stream on a retry.
+        return budget / Math.max(1, options.getMaxThreads());
+    }
+
+    /**
+     * @param objectSize the size of the object
+     * @param preferredPartSize the part size we'd like to use
+     * @param maxPartSize the largest part size we're willing to use (the part count limit may override this)
+     * @param balance if true, round to whole megabytes and spread the object evenly over the parts
+     * @return the part size
+     */
+    static long choosePartSize(long objectSize, long preferredPartSize, long maxPartSize, boolean balance) {
+        final long minPartSize = Math.max(MIN_PART_SIZE, ceilDiv(objectSize, MAX_PARTS));
+
+        long partSize = Math.min(preferredPartSize, maxPartSize);
+        partSize = Math.min(partSize, MAX_PART_SIZE);
+        partSize = Math.max(partSize, minPartSize);
+
+        if (balance && objectSize > 0) {
+            final long parts = ceilDiv(objectSize, partSize);
+            partSize = ceilDiv(objectSize, parts);
+            partSize = ceilDiv(partSize, MB) * MB;
+            partSize = Math.max(partSize, MIN_PART_SIZE);
+        }
+
+        return partSize;
+    }
+
+    static long ceilDiv(long dividend, long divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+}
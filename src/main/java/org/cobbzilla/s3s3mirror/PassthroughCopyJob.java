@@ -0,0 +1,158 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.*;
+import lombok.extern.slf4j.Slf4j;
+import org.slf4j.Logger;
+
+import java.io.FileNotFoundException;
+
+/**
+ * Copies a client-side encrypted object without decrypting it, see CsePassthrough. Checks the same conditions as
+ * KeyCopyJob before it copies.
+ */
+@Slf4j
+public class PassthroughCopyJob extends KeyCopyJob {
+
+    public PassthroughCopyJob(MirrorContext context, KeyObjectSummary summary, JobSignal notifyLock) {
+        super(context, summary, notifyLock);
+    }
+
+    @Override public Logger getLog() { return log; }
+
+    @Override
+    public void run() {
+        if (isInstructionFile()) {
+            // copied along with its object
+            if (context.getOptions().isVerbose()) log.info("Skipping instruction file {}.", summary.getKey());
+            notifyLock.signalAll();
+            return;
+        }
+        super.run();
+    }
+
+    private boolean isInstructionFile() {
+        return context.getOptions().getSourceProfile().hasOption(MirrorProfileOptions.CSM_INSTRUCTION_FILE)
+                && summary.getKey().endsWith(CsePassthrough.INSTRUCTION_SUFFIX);
+    }
+
+    @Override
+    boolean useCopy() {
+        return !streamOnly && context.getServerSideCopy().isPossible(true);
+    }
+
+    @Override
+    boolean copyKey() {
+        final String key = summary.getKey();
+        final MirrorOptions options = context.getOptions();
+
+        final ObjectMetadata sourceMetadata;
+        try {
+            sourceMetadata = getSourceObjectMetadata(key);
+        } catch (FileNotFoundException e) {
+            log.error("Key {} not found anymore.", key, e);
+            return false;
+        }
+        if (options.isVerbose()) logMetadata("source", sourceMetadata);
+
+        // the instruction file goes first, an object without it can't be decrypted
+        if (options.getSourceProfile().hasOption(MirrorProfileOptions.CSM_INSTRUCTION_FILE)
+                && !copyRaw(key + CsePassthrough.INSTRUCTION_SUFFIX, keydest + CsePassthrough.INSTRUCTION_SUFFIX)) {
+            return false;
+        }
+        if (!copyRaw(key, keydest)) return false;
+
+        addBytesCopied(getRealObjectSize(sourceMetadata));
+        return true;
+    }
+
+    private boolean copyRaw(String key, String keydest) {
+        final MirrorOptions options = context.getOptions();
+        final RetryPolicy.Retry retry = beginRetry(useCopy() ? RetryPolicy.Operation.COPY : RetryPolicy.Operation.PUT,
+                options.getDestinationProfile());
+        for (int tries = 1; tries <= options.getMaxRetries(); tries++) {
+            SdkClientException lastException;
+            try {
+                if (!useCopy() || !copyOnServer(key, keydest, tries)) stream(key, keydest, tries);
+                retry.succeeded();
+                if (options.isVerbose()) log.info("Completed copying {} to {}.", key, keydest);
+                return true;
+            } catch (SdkClientException e) {
+                lastException = e;
+                log.error("Client exception copying {} to {} (try#{}).", key, keydest, tries, e);
+            }
+            if (!retry.backoff(lastException)) break;
+        }
+        log.error("Giving up on copying {} to {}.", key, keydest);
+        return false;
+    }
+
+    /**
+     * Copies the object with all of its metadata, which includes the envelope.
+     *
+     * @return false if the copy was denied and the object has to be streamed instead
+     */
+    private boolean copyOnServer(String key, String keydest, int tries) {
+        final MirrorOptions options = context.getOptions();
+        if (options.isVerbose()) log.info("Copying {} to {} as it is (try #{}).", key, keydest, tries);
+
+        final CopyObjectRequest copyRequest = new CopyObjectRequest(options.getSourceBucket(), key, options.getDestinationBucket(), keydest)
+                .withStorageClass(StorageClass.valueOf(options.getStorageClass()));
+
+        final ServerSideCopy serverSideCopy = context.getServerSideCopy();
+        if (options.isCrossAccountCopy() || serverSideCopy.isCrossProfile()) {
+            copyRequest.setCannedAccessControlList(CannedAccessControlList.BucketOwnerFullControl);
+        } else {
+            copyRequest.setAccessControlList(getSourceAccessControlList(key));
+        }
+
+        try {
+            context.getStats().s3copyCount.incrementAndGet();
+            context.getCsePassthrough().getCopyClient().copyObject(copyRequest);
+            serverSideCopy.succeeded();
+            return true;
+        } catch (AmazonServiceException e) {
+            if (!serverSideCopy.shouldStream(key, e)) throw e;
+            streamOnly = true;
+            return false;
+        }
+    }
+
+    /**
+     * Downloads the encrypted bytes and uploads them with the user metadata of the source, envelope included.
+     */
+    private void stream(String key, String keydest, int tries) {
+        final MirrorOptions options = context.getOptions();
+        final MirrorStats stats = context.getStats();
+        final CsePassthrough passthrough = context.getCsePassthrough();
+        if (options.isVerbose()) log.info("Uploading {} to {} as it is (try #{}).", key, keydest, tries);
+
+        stats.s3getCount.incrementAndGet();
+        final S3Object object = passthrough.getSourceClient().getObject(new GetObjectRequest(options.getSourceBucket(), key));
+        S3ObjectInputStream objectStream = object.getObjectContent();
+        try {
+            final ObjectMetadata sourceMetadata = object.getObjectMetadata();
+            final ObjectMetadata metadata = new ObjectMetadata();
+            if (sourceMetadata.getContentType() != null) metadata.setContentType(sourceMetadata.getContentType());
+            if (sourceMetadata.getCacheControl() != null) metadata.setCacheControl(sourceMetadata.getCacheControl());
+            if (sourceMetadata.getContentEncoding() != null) metadata.setContentEncoding(sourceMetadata.getContentEncoding());
+            if (sourceMetadata.getContentLanguage() != null) metadata.setContentLanguage(sourceMetadata.getContentLanguage());
+            if (sourceMetadata.getContentDisposition() != null) metadata.setContentDisposition(sourceMetadata.getContentDisposition());
+            if (sourceMetadata.getHttpExpiresDate() != null) metadata.setHttpExpiresDate(sourceMetadata.getHttpExpiresDate());
+            metadata.setUserMetadata(sourceMetadata.getUserMetadata());
+            metadata.setContentLength(sourceMetadata.getContentLength());
+
+            final PutObjectRequest putRequest = new PutObjectRequest(options.getDestinationBucket(), keydest, objectStream, metadata)
+                    .withCannedAcl(CannedAccessControlList.BucketOwnerFullControl)
+                    .withStorageClass(StorageClass.valueOf(options.getStorageClass()));
+
+            stats.s3putCount.incrementAndGet();
+            passthrough.getDestinationClient().putObject(putRequest);
+            // Stream is closed when we reached EOF
+            objectStream = null;
+        } finally {
+            if (objectStream != null) closeS3ObjectInputStream(objectStream);
+        }
+    }
+}
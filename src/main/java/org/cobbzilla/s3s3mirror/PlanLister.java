@@ -0,0 +1,101 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Streams the copies or the deletes of an --execute-plan, see MirrorPlan. Copies are marked as changed, so they're
+ * copied even if the destination has a key of the same size by now, unless it has the same ETag.
+ */
+@Slf4j
+public class PlanLister extends KeyLister {
+
+    private final MirrorContext context;
+    private final int maxQueueCapacity;
+    private final String file;
+    private final char operation;
+
+    private final List<KeyObjectSummary> summaries = new ArrayList<KeyObjectSummary>();
+    private final AtomicBoolean done = new AtomicBoolean(false);
+
+    /**
+     * @param operation MirrorPlan.COPY for the source keys to copy, MirrorPlan.DELETE for the destination keys to delete
+     */
+    public PlanLister(MirrorContext context, int maxQueueCapacity, String file, char operation) {
+        this.context = context;
+        this.maxQueueCapacity = maxQueueCapacity;
+        this.file = file;
+        this.operation = operation;
+    }
+
+    @Override
+    public boolean isDone() { return done.get(); }
+
+    @Override
+    public void run() {
+        final MirrorOptions options = context.getOptions();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            long count = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.length() == 0 || line.charAt(0) != operation) continue;
+
+                final String[] fields = line.split("\t", -1);
+                if (fields.length != 4) throw new IOException(file + ":" + lineNumber + ": expected an operation, key, size and ETag separated by tabs");
+                final KeyObjectSummary summary = new KeyObjectSummary();
+                summary.setKey(FailureList.unescape(fields[1]));
+                try {
+                    summary.setSize(Long.parseLong(fields[2]));
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ":" + lineNumber + ": invalid size " + fields[2]);
+                }
+                if (fields[3].length() > 0) summary.setETag(fields[3]);
+                if (operation == MirrorPlan.COPY) {
+                    summary.setBucketName(options.getSourceBucket());
+                    summary.setChanged(true);
+                } else {
+                    summary.setBucketName(options.getDestinationBucket());
+                }
+
+                // wait until the KeyMaster has taken some of the keys, like the other listers do
+                while (getSize() >= maxQueueCapacity) {
+                    if (Sleep.sleep(50)) return;
+                }
+                synchronized (summaries) {
+                    summaries.add(summary);
+                }
+                context.getStats().objectsRead.incrementAndGet();
+                count++;
+            }
+            log.info("Read {} {} of plan {}.", count, operation == MirrorPlan.COPY ? "copies" : "deletes", file);
+        } catch (Exception e) {
+            log.error("Error reading plan {}, PlanLister thread exiting now.", file, e);
+        } finally {
+            done.set(true);
+        }
+    }
+
+    @Override
+    protected int getSize() {
+        synchronized (summaries) {
+            return summaries.size();
+        }
+    }
+
+    @Override
+    public List<KeyObjectSummary> getNextBatch() {
+        synchronized (summaries) {
+            final List<KeyObjectSummary> copy = new ArrayList<KeyObjectSummary>(summaries);
+            summaries.clear();
+            return copy;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed request is retried and how long to wait before the next try.
+ *
+ * Errors are classified by ErrorClass: permanent errors are never retried, throttling backs off from a higher base
+ * delay than other transient errors. The delay grows exponentially with decorrelated jitter, i.e. it's chosen at
+ * random between the base delay and three times the previous delay, capped at --retry-max-delay.
+ *
+ * Every endpoint has a retry budget. Each retry takes tokens from it, each successful request puts some back. When the
+ * budget of an endpoint is exhausted, requests to it fail without retrying until enough requests succeed again, so
+ * that a struggling endpoint isn't flooded with retries.
+ */
+@Slf4j
+public class RetryPolicy {
+
+    public enum Operation { LIST, HEAD, ACL, GET, PUT, COPY, MULTIPART, UPLOAD_PART, COPY_PART, DELETE }
+
+    // throttled requests start backing off from this multiple of the base delay
+    public static final int THROTTLE_DELAY_FACTOR = 10;
+
+    public static final int RETRY_COST = 5;
+    public static final int TIMEOUT_RETRY_COST = 10;
+    public static final int SUCCESS_REFILL = 1;
+
+    private final MirrorContext context;
+    private final ConcurrentMap<String, Budget> budgets = new ConcurrentHashMap<String, Budget>();
+
+    public RetryPolicy(MirrorContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Starts tracking the tries of a single request.
+     *
+     * @param operation what kind of request this is (for the stats)
+     * @param profile the profile of the endpoint the request goes to
+     */
+    public Retry begin(Operation operation, MirrorProfile profile) {
+        return begin(operation, profile, null);
+    }
+
+    /**
+     * @param job the job that sends the request, it's told about the class of the last error. With --deferred-retry
+     *            requests of jobs are never retried inline, the RetryQueue retries the whole job later.
+     */
+    public Retry begin(Operation operation, MirrorProfile profile, KeyJob job) {
+        return new Retry(operation, getBudget(profile), job);
+    }
+
+    Budget getBudget(MirrorProfile profile) {
+        final String endpoint = profile == null ? "default"
+                : profile.getEndpoint() != null ? profile.getEndpoint() : "aws/" + profile.getRegion();
+        Budget budget = budgets.get(endpoint);
+        if (budget == null) {
+            budgets.putIfAbsent(endpoint, new Budget(endpoint, context.getOptions().getRetryBudget()));
+            budget = budgets.get(endpoint);
+        }
+        return budget;
+    }
+
+    /**
+     * @return how long a job that failed with errorClass waits on the RetryQueue
+     */
+    public long getDeferredDelay(ErrorClass errorClass, long previousDelay) {
+        final MirrorOptions options = context.getOptions();
+        final long baseDelay = options.getRetryBaseDelay() * (errorClass == ErrorClass.THROTTLE ? THROTTLE_DELAY_FACTOR : 1);
+        return nextDelay(baseDelay, Math.max(baseDelay, options.getRetryMaxDelay()), previousDelay);
+    }
+
+    static long nextDelay(long baseDelay, long maxDelay, long previousDelay) {
+        final long upper = Math.max(baseDelay, Math.min(maxDelay, previousDelay * 3));
+        final long delay = upper > baseDelay ? ThreadLocalRandom.current().nextLong(baseDelay, upper + 1) : baseDelay;
+        return Math.min(maxDelay, delay);
+    }
+
+    public class Retry {
+        private final Operation operation;
+        private final Budget budget;
+        private final KeyJob job;
+        private int tries = 0;
+        private int lastCost = 0;
+        private long previousDelay = 0;
+
+        Retry(Operation operation, Budget budget, KeyJob job) {
+            this.operation = operation;
+            this.budget = budget;
+            this.job = job;
+        }
+
+        /**
+         * Call after the request succeeded. Returns the cost of the last retry to the budget, or SUCCESS_REFILL if
+         * there was none.
+         */
+        public void succeeded() {
+            budget.release(lastCost > 0 ? lastCost : SUCCESS_REFILL);
+            lastCost = 0;
+        }
+
+        /**
+         * Call after the request failed. Sleeps before returning true.
+         *
+         * @return true if the request should be tried again
+         */
+        public boolean backoff(Exception e) {
+            final MirrorOptions options = context.getOptions();
+            final MirrorStats stats = context.getStats();
+            tries++;
+
+            final ErrorClass errorClass = stats.recordError(e);
+            if (job != null) job.setLastError(errorClass);
+            if (!errorClass.isRetryable()) {
+                if (options.isVerbose()) log.info("Not retrying {} request after permanent error: {}", operation, e.toString());
+                return false;
+            }
+            if (tries >= options.getMaxRetries()) return false;
+            if (job != null && options.isDeferredRetry()) return false;
+
+            final int cost = errorClass == ErrorClass.TIMEOUT ? TIMEOUT_RETRY_COST : RETRY_COST;
+            if (!budget.acquire(cost)) {
+                stats.retryBudgetExhausted.incrementAndGet();
+                log.warn("Retry budget of {} is exhausted, not retrying {} request.", budget.endpoint, operation);
+                return false;
+            }
+            lastCost = cost;
+
+            final long baseDelay = options.getRetryBaseDelay() * (errorClass == ErrorClass.THROTTLE ? THROTTLE_DELAY_FACTOR : 1);
+            final long delay = nextDelay(baseDelay, Math.max(baseDelay, options.getRetryMaxDelay()), previousDelay);
+            previousDelay = delay;
+
+            stats.recordRetry(operation);
+            if (options.isVerbose()) log.info("Retrying {} request in {} ms after {} error (try #{}).", operation, delay, errorClass, tries);
+            return !Sleep.sleep((int) delay);
+        }
+    }
+
+    static class Budget {
+        private final String endpoint;
+        private final int capacity;
+        private int tokens;
+
+        Budget(String endpoint, int capacity) {
+            this.endpoint = endpoint;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        synchronized boolean acquire(int cost) {
+            if (tokens < cost) return false;
+            tokens -= cost;
+            return true;
+        }
+
+        synchronized void release(int amount) {
+            tokens = Math.min(capacity, tokens + amount);
+        }
+
+        synchronized int getTokens() { return tokens; }
+    }
+}
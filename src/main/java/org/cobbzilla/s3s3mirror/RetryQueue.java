@@ -0,0 +1,207 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Takes the jobs that failed and decides what happens to them.
+ *
+ * With --deferred-retry a job that failed with a retryable error waits on a delay queue, and a scheduler thread puts
+ * it back into its lane when the delay has passed. The worker thread goes on with other keys in the meantime instead
+ * of sleeping through the backoff. With --retry-pass the jobs that still failed are tried once more after all other
+ * keys are done. Jobs that are given up are counted as errors and, for copies, written to the --failure-list.
+ */
+@Slf4j
+public class RetryQueue implements Runnable {
+
+    private final MirrorContext context;
+    private final MirrorLanes lanes;
+
+    private final DelayQueue<Deferred> queue = new DelayQueue<Deferred>();
+
+    // jobs that are waiting on the queue or running again
+    private final AtomicInteger pending = new AtomicInteger(0);
+
+    private final List<KeyJob> retryPass = new ArrayList<KeyJob>();
+    private final List<KeyObjectSummary> failures = new ArrayList<KeyObjectSummary>();
+
+    private Thread thread;
+
+    public RetryQueue(MirrorContext context, MirrorLanes lanes) {
+        this.context = context;
+        this.lanes = lanes;
+    }
+
+    public boolean hasPending() { return pending.get() > 0; }
+
+    /**
+     * Called by the lane after a job has run.
+     */
+    void done(KeyJob job) {
+        final boolean wasRetrying = job.retrying;
+        job.retrying = false;
+        if (job.isFailed()) {
+            failed(job);
+        } else if (job.doneListener != null) {
+            job.doneListener.completed(job.summary);
+        }
+        // decrement last, so that a job that's deferred again is never missing from pending
+        if (wasRetrying) pending.decrementAndGet();
+    }
+
+    private void failed(KeyJob job) {
+        final MirrorOptions options = context.getOptions();
+        final ErrorClass error = job.getLastError();
+
+        if (options.isDeferredRetry() && !job.lastChance && error != null && error.isRetryable()
+                && job.deferrals + 1 < options.getMaxRetries()) {
+            job.deferrals++;
+            job.deferredDelay = context.getRetryPolicy().getDeferredDelay(error, job.deferredDelay);
+            context.getStats().deferredRetries.incrementAndGet();
+            if (options.isVerbose()) log.info("Retrying {} in {} ms after {} error (try #{}).", job, job.deferredDelay, error, job.deferrals + 1);
+
+            pending.incrementAndGet();
+            queue.add(new Deferred(job, System.currentTimeMillis() + job.deferredDelay));
+            startScheduler();
+            return;
+        }
+
+        if (options.isRetryPass() && !job.lastChance && (error == null || error.isRetryable())) {
+            synchronized (retryPass) {
+                retryPass.add(job);
+            }
+            return;
+        }
+
+        giveUp(job);
+    }
+
+    private void giveUp(KeyJob job) {
+        job.countFailure();
+        if (job instanceof KeyCopyJob || job instanceof BackendCopyJob) recordFailure(job.summary);
+        if (job.doneListener != null) job.doneListener.failed(job.summary);
+    }
+
+    /**
+     * Adds a key that couldn't be copied to the --failure-list.
+     */
+    public void recordFailure(KeyObjectSummary summary) {
+        synchronized (failures) {
+            failures.add(summary);
+        }
+    }
+
+    private synchronized void startScheduler() {
+        if (thread != null) return;
+        thread = new Thread(this, "RetryQueue");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                resubmit(queue.take().job);
+            }
+        } catch (InterruptedException e) {
+            if (context.getOptions().isVerbose()) log.info("RetryQueue interrupted, exiting.");
+        }
+    }
+
+    private void resubmit(KeyJob job) throws InterruptedException {
+        job.resetFailure();
+        job.retrying = true;
+        while (lanes.isFull(job)) {
+            if (Sleep.sleep(50)) throw new InterruptedException();
+        }
+        lanes.submit(job);
+    }
+
+    /**
+     * Tries every job that was kept for the retry pass once more and waits until they're done.
+     */
+    public void runRetryPass() {
+        final List<KeyJob> jobs;
+        synchronized (retryPass) {
+            jobs = new ArrayList<KeyJob>(retryPass);
+            retryPass.clear();
+        }
+        if (jobs.isEmpty()) return;
+
+        log.info("Retrying {} failed keys.", jobs.size());
+        context.getStats().retryPassKeys.addAndGet(jobs.size());
+        try {
+            for (KeyJob job : jobs) {
+                job.lastChance = true;
+                pending.incrementAndGet();
+                resubmit(job);
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while retrying failed keys.");
+            return;
+        }
+
+        while (!lanes.isIdle()) {
+            if (Sleep.sleep(100)) return;
+        }
+    }
+
+    /**
+     * Gives up on all jobs that are still waiting and writes the --failure-list.
+     */
+    public void finish() {
+        if (thread != null) thread.interrupt();
+
+        final List<KeyJob> remaining = new ArrayList<KeyJob>();
+        for (Deferred deferred : queue) remaining.add(deferred.job);
+        queue.clear();
+        synchronized (retryPass) {
+            remaining.addAll(retryPass);
+            retryPass.clear();
+        }
+        for (KeyJob job : remaining) giveUp(job);
+
+        final MirrorOptions options = context.getOptions();
+        if (options.hasFailureList()) {
+            final List<KeyObjectSummary> summaries;
+            synchronized (failures) {
+                summaries = new ArrayList<KeyObjectSummary>(failures);
+            }
+            try {
+                FailureList.write(new File(options.getFailureList()), summaries);
+                log.info("Wrote {} failed keys to {}.", summaries.size(), options.getFailureList());
+            } catch (IOException e) {
+                log.error("Error writing failed keys to {}.", options.getFailureList(), e);
+            }
+        }
+    }
+
+    private static class Deferred implements Delayed {
+        private final KeyJob job;
+        private final long due;
+
+        Deferred(KeyJob job, long due) {
+            this.job = job;
+            this.due = due;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+}
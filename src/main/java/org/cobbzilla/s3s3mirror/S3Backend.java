@@ -0,0 +1,216 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * A bucket, accessed with the AmazonS3 client of a profile. The methods send a single request each, retrying is up to
+ * the caller.
+ */
+@Slf4j
+public class S3Backend implements StorageBackend {
+
+    private final MirrorContext context;
+    private final AmazonS3 client;
+    @Getter private final MirrorProfile profile;
+    private final String bucket;
+    private final SSECustomerKey sseKey;
+
+    public S3Backend(MirrorContext context, AmazonS3 client, MirrorProfile profile, String bucket, SSECustomerKey sseKey) {
+        this.context = context;
+        this.client = client;
+        this.profile = profile;
+        this.bucket = bucket;
+        this.sseKey = sseKey;
+    }
+
+    @Override public String getName() { return bucket; }
+
+    @Override public String toString() { return "s3://" + bucket; }
+
+    @Override
+    public KeyLister newLister(MirrorContext context, int maxQueueCapacity, String prefix) {
+        return new KeyObjectLister(context, maxQueueCapacity, profile, client, bucket, prefix);
+    }
+
+    @Override
+    public ObjectMetadata head(String key) throws IOException {
+        final GetObjectMetadataRequest request = new GetObjectMetadataRequest(bucket, key);
+        if (sseKey != null) request.setSSECustomerKey(sseKey);
+        try {
+            context.getStats().s3getCount.incrementAndGet();
+            final long start = System.currentTimeMillis();
+            final ObjectMetadata metadata = client.getObjectMetadata(request);
+            context.getStats().recordHeadLatency(System.currentTimeMillis() - start);
+            return metadata;
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) throw new FileNotFoundException("Key " + bucket + "/" + key + " not found.");
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        final GetObjectRequest request = new GetObjectRequest(bucket, key);
+        if (sseKey != null) request.setSSECustomerKey(sseKey);
+        if (length >= 0) {
+            request.setRange(offset, offset + length - 1);
+        } else if (offset > 0) {
+            request.setRange(offset);
+        }
+        try {
+            context.getStats().s3getCount.incrementAndGet();
+            return client.getObject(request).getObjectContent();
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) throw new FileNotFoundException("Key " + bucket + "/" + key + " not found.");
+            throw e;
+        }
+    }
+
+    @Override
+    public void put(String key, StorageBackend source, String sourceKey, ObjectMetadata metadata) throws IOException {
+        final MirrorOptions options = context.getOptions();
+        final long size = metadata.getContentLength();
+
+        if (source instanceof LocalBackend) {
+            final Path path = ((LocalBackend) source).getPath(sourceKey);
+            final long maxSingleRequestSize = options.getMaxSingleRequestUploadSize();
+            if (maxSingleRequestSize != 0 && size > maxSingleRequestSize) {
+                uploadParts(key, path, metadata);
+            } else {
+                // the SDK reads the file itself and can start over when a request is retried
+                final PutObjectRequest request = new PutObjectRequest(bucket, key, path.toFile()).withMetadata(metadata);
+                setupPut(request);
+                context.getStats().s3putCount.incrementAndGet();
+                client.putObject(request);
+            }
+            return;
+        }
+
+        try (InputStream in = source.get(sourceKey, 0, -1)) {
+            final PutObjectRequest request = new PutObjectRequest(bucket, key, in, metadata);
+            setupPut(request);
+            context.getStats().s3putCount.incrementAndGet();
+            client.putObject(request);
+        }
+    }
+
+    private void setupPut(PutObjectRequest request) {
+        request.setCannedAcl(CannedAccessControlList.BucketOwnerFullControl);
+        request.setStorageClass(StorageClass.valueOf(context.getOptions().getStorageClass()));
+        if (sseKey != null) request.setSSECustomerKey(sseKey);
+    }
+
+    /**
+     * Uploads a large file in parts. Every part is read from a memory-mapped region of the file, so the data goes from
+     * the page cache to the socket without being copied into the heap first.
+     */
+    private void uploadParts(String key, Path path, ObjectMetadata metadata) throws IOException {
+        final MirrorStats stats = context.getStats();
+        final long size = metadata.getContentLength();
+        final long partSize = new PartSizer(context.getOptions(), stats).getPartSize(size, false);
+
+        final InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(bucket, key, metadata)
+                .withCannedACL(CannedAccessControlList.BucketOwnerFullControl)
+                .withStorageClass(StorageClass.valueOf(context.getOptions().getStorageClass()));
+        if (sseKey != null) initRequest.setSSECustomerKey(sseKey);
+        stats.s3putCount.incrementAndGet();
+        final String uploadId = client.initiateMultipartUpload(initRequest).getUploadId();
+
+        boolean completed = false;
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            final List<PartETag> etags = new ArrayList<PartETag>();
+            int partNumber = 1;
+            for (long offset = 0; offset < size; offset += partSize, partNumber++) {
+                final long length = Math.min(partSize, size - offset);
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                final UploadPartRequest partRequest = new UploadPartRequest()
+                        .withBucketName(bucket).withKey(key).withUploadId(uploadId)
+                        .withPartNumber(partNumber).withPartSize(length)
+                        .withInputStream(new ByteBufferInputStream(buffer));
+                if (sseKey != null) partRequest.setSSECustomerKey(sseKey);
+                stats.s3putCount.incrementAndGet();
+                etags.add(client.uploadPart(partRequest).getPartETag());
+                stats.partsUploaded.incrementAndGet();
+            }
+
+            stats.s3putCount.incrementAndGet();
+            client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, etags));
+            completed = true;
+        } finally {
+            if (!completed) {
+                try {
+                    client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+                } catch (Exception e) {
+                    log.warn("Error aborting upload {} of {}.", uploadId, key, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void copy(String sourceKey, String key, ObjectMetadata metadata) {
+        final CopyObjectRequest request = new CopyObjectRequest(bucket, sourceKey, bucket, key)
+                .withStorageClass(StorageClass.valueOf(context.getOptions().getStorageClass()))
+                .withNewObjectMetadata(metadata)
+                .withCannedAccessControlList(CannedAccessControlList.BucketOwnerFullControl);
+        if (sseKey != null) {
+            request.setSourceSSECustomerKey(sseKey);
+            request.setDestinationSSECustomerKey(sseKey);
+        }
+        context.getStats().s3copyCount.incrementAndGet();
+        client.copyObject(request);
+    }
+
+    @Override
+    public void delete(String key) {
+        context.getStats().s3deleteCount.incrementAndGet();
+        client.deleteObject(bucket, key);
+    }
+
+    /**
+     * Reads a buffer without copying it, supports mark/reset so that the SDK can retry a part.
+     */
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) { this.buffer = buffer; }
+
+        @Override public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override public long skip(long n) {
+            final int skipped = (int) Math.min(n, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override public int available() { return buffer.remaining(); }
+        @Override public boolean markSupported() { return true; }
+        @Override public void mark(int readLimit) { buffer.mark(); }
+        @Override public void reset() { buffer.reset(); }
+    }
+}
@@ -0,0 +1,63 @@
+package org.cobbzilla.s3s3mirror;
+
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * The order in which the jobs of a window of listed keys are run.
+ */
+public enum ScheduleMode {
+
+    // listing order
+    FIFO,
+
+    // most expensive first, so that the largest objects don't start last and leave the run with a long tail
+    LARGEST_FIRST,
+
+    // most recently modified first, for runs that care more about freshness than about the total duration
+    NEWEST_FIRST;
+
+    /**
+     * @return the order of the jobs, or null for listing order
+     */
+    public Comparator<KeyObjectSummary> getComparator(final MirrorOptions options) {
+        switch (this) {
+            case LARGEST_FIRST:
+                return new Comparator<KeyObjectSummary>() {
+                    @Override public int compare(KeyObjectSummary s1, KeyObjectSummary s2) {
+                        final int c = Long.compare(getExpectedCost(options, s2), getExpectedCost(options, s1));
+                        return c != 0 ? c : s1.getKey().compareTo(s2.getKey());
+                    }
+                };
+            case NEWEST_FIRST:
+                return new Comparator<KeyObjectSummary>() {
+                    @Override public int compare(KeyObjectSummary s1, KeyObjectSummary s2) {
+                        final int c = Long.compare(getTime(s2.getLastModified()), getTime(s1.getLastModified()));
+                        return c != 0 ? c : s1.getKey().compareTo(s2.getKey());
+                    }
+                };
+            default:
+                return null;
+        }
+    }
+
+    private static long getTime(Date date) { return date == null ? 0 : date.getTime(); }
+
+    /**
+     * The expected cost of mirroring an object, expressed in bytes: its size plus a fixed overhead for every request
+     * needed to mirror it (metadata lookups on both sides, the upload or the parts of a multipart upload).
+     */
+    public static long getExpectedCost(MirrorOptions options, KeyObjectSummary summary) {
+        final long size = summary.getSize();
+        final long maxSingleRequestSize = options.getMaxSingleRequestUploadSize();
+
+        long requests = 2;
+        if (maxSingleRequestSize != 0 && size > maxSingleRequestSize) {
+            requests += 2 + PartSizer.ceilDiv(size, Math.max(PartSizer.MIN_PART_SIZE, options.getUploadPartSize()));
+        } else {
+            requests += 1;
+        }
+
+        return size + requests * options.getRequestOverheadBytes();
+    }
+}
@@ -0,0 +1,114 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decides whether objects are copied on the server with CopyObject/UploadPartCopy or streamed through this process.
+ *
+ * With the same profile on both sides the source client copies, like it always did. With different profiles that
+ * point to the same endpoint and region the destination client copies, which works if the destination credentials
+ * can read the source bucket. That's not known in advance: the first copy is the probe. If it's denied, all other
+ * objects are streamed. Once a copy went through, a denied copy only makes that object fall back to streaming, since
+ * the object may have an ACL of its own.
+ */
+@Slf4j
+public class ServerSideCopy {
+
+    // stands for the default endpoint of the SDK
+    private static final String AWS_ENDPOINT = "aws";
+
+    private final MirrorContext context;
+
+    private final AtomicBoolean confirmed = new AtomicBoolean(false);
+    private final AtomicBoolean denied = new AtomicBoolean(false);
+
+    public ServerSideCopy(MirrorContext context) { this.context = context; }
+
+    private boolean isSameClient() {
+        return context.getSourceClient() == context.getDestinationClient();
+    }
+
+    /**
+     * @return true if objects should be copied on the server
+     */
+    public boolean isPossible() { return isPossible(false); }
+
+    /**
+     * @param ciphertext true if client-side encrypted objects are copied as they are, see CsePassthrough
+     * @return true if objects should be copied on the server
+     */
+    public boolean isPossible(boolean ciphertext) {
+        final MirrorOptions options = context.getOptions();
+        if (!ciphertext && MirrorEncryption.isCSE(options.getSourceProfile().getEncryption())) return false;
+        if (isSameClient()) return true;
+        return isCrossProfile() && !denied.get();
+    }
+
+    /**
+     * @return true if the profiles differ but share an endpoint and region
+     */
+    public boolean isCrossProfile() {
+        final MirrorOptions options = context.getOptions();
+        if (isSameClient() || options.isDisableCrossProfileCopy() || options.hasLocalBackend()) return false;
+        if (MirrorEncryption.isCSE(options.getDestinationProfile().getEncryption()) && !context.getCsePassthrough().isEnabled()) return false;
+        return isSameEndpoint(options.getSourceProfile(), options.getDestinationProfile());
+    }
+
+    /**
+     * A profile without an endpoint uses AWS, so two of them share an endpoint if their regions are the same.
+     */
+    static boolean isSameEndpoint(MirrorProfile source, MirrorProfile destination) {
+        return normalize(source.getEndpoint()).equals(normalize(destination.getEndpoint()))
+                && String.valueOf(getRegionId(source)).equalsIgnoreCase(String.valueOf(getRegionId(destination)));
+    }
+
+    private static String getRegionId(MirrorProfile profile) {
+        return profile.getRegion() == null ? null : AsyncEngine.getRegionId(profile.getRegion());
+    }
+
+    private static String normalize(String endpoint) {
+        if (endpoint == null) return AWS_ENDPOINT;
+        String normalized = endpoint.trim().toLowerCase();
+        while (normalized.endsWith("/")) normalized = normalized.substring(0, normalized.length() - 1);
+        return normalized;
+    }
+
+    /**
+     * @return the client that sends CopyObject requests
+     */
+    public AmazonS3 getCopyClient() {
+        return isSameClient() ? context.getSourceClient() : context.getDestinationClient();
+    }
+
+    public void succeeded() {
+        if (!isSameClient()) confirmed.set(true);
+    }
+
+    /**
+     * Call when a copy failed.
+     *
+     * @return true if the error means the destination credentials can't read the object, so it has to be streamed
+     */
+    public boolean shouldStream(String key, Exception e) {
+        if (!isCrossProfile() || !isAccessDenied(e)) return false;
+
+        if (!confirmed.get() && denied.compareAndSet(false, true)) {
+            log.warn("The credentials of profile {} can't copy from bucket {}, streaming all objects instead.",
+                    context.getOptions().getDestinationProfile().getName(), context.getOptions().getSourceBucket());
+        } else if (context.getOptions().isVerbose()) {
+            log.info("Copying {} on the server was denied, streaming it instead.", key);
+        }
+        context.getStats().copyFallbacks.incrementAndGet();
+        return true;
+    }
+
+    static boolean isAccessDenied(Exception e) {
+        if (!(e instanceof AmazonServiceException)) return false;
+        final AmazonServiceException ase = (AmazonServiceException) e;
+        return ase.getStatusCode() == 403 || "AccessDenied".equals(ase.getErrorCode());
+    }
+}
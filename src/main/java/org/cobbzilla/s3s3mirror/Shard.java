@@ -0,0 +1,205 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * One of N slices of the keys, see --shard. Without splits a key belongs to the shard its jump consistent hash points
+ * to, so every shard still lists all keys but only copies its own. With --shard-splits the N-1 split keys cut the
+ * keys into N ranges, and every shard lists only its own range. Keys are compared after the source or destination
+ * prefix, so that both sides of a mirror agree on the shard of a key, and in code point order, which is the UTF-8
+ * byte order S3 lists keys in.
+ */
+@Slf4j
+public class Shard {
+
+    // the most keys kept in memory to sample the splits of a bucket
+    public static final int MAX_SAMPLE = 100000;
+
+    public static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        @Override public int compare(String a, String b) { return compareKeys(a, b); }
+    };
+
+    @Getter private final int index;
+    @Getter private final int count;
+    // null for shards by hash
+    private final List<String> splits;
+
+    public Shard(int index, int count, List<String> splits) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Invalid shard " + index + "/" + count + ", expected 0 <= i < N");
+        }
+        if (splits != null) {
+            if (splits.size() != count - 1) {
+                throw new IllegalArgumentException(count + " shards need " + (count - 1) + " splits, not " + splits.size());
+            }
+            for (int i = 1; i < splits.size(); i++) {
+                if (compareKeys(splits.get(i - 1), splits.get(i)) >= 0) {
+                    throw new IllegalArgumentException("Splits must be sorted and distinct: " + splits.get(i - 1) + ", " + splits.get(i));
+                }
+            }
+        }
+        this.index = index;
+        this.count = count;
+        this.splits = splits;
+    }
+
+    /**
+     * @param spec i/N
+     */
+    public static Shard parse(String spec) {
+        final int slash = spec.indexOf('/');
+        if (slash <= 0) throw new IllegalArgumentException("Invalid shard " + spec + ", expected i/N");
+        try {
+            return new Shard(Integer.parseInt(spec.substring(0, slash).trim()), Integer.parseInt(spec.substring(slash + 1).trim()), null);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid shard " + spec + ", expected i/N");
+        }
+    }
+
+    public Shard withSplits(List<String> splits) { return new Shard(index, count, splits); }
+
+    public boolean isRange() { return splits != null; }
+
+    /**
+     * @return the split before this shard (keys must be greater), null for the first shard or shards by hash
+     */
+    public String getLowerBound() { return isRange() && index > 0 ? splits.get(index - 1) : null; }
+
+    /**
+     * @return the split after this shard (keys may be equal), null for the last shard or shards by hash
+     */
+    public String getUpperBound() { return isRange() && index < count - 1 ? splits.get(index) : null; }
+
+    /**
+     * @param key the key after the prefix
+     */
+    public boolean contains(String key) {
+        if (!isRange()) return hash(key, count) == index;
+        final String lower = getLowerBound();
+        final String upper = getUpperBound();
+        return (lower == null || compareKeys(key, lower) > 0) && (upper == null || compareKeys(key, upper) <= 0);
+    }
+
+    /**
+     * @return the key after the prefix, or the key itself if it doesn't start with the prefix
+     */
+    public static String relativeKey(String key, String prefix) {
+        if (prefix == null || !key.startsWith(prefix)) return key;
+        return key.substring(prefix.length());
+    }
+
+    /**
+     * Jump consistent hash (Lamping and Veach) of the 64 bit FNV-1a hash of the key. When N grows, only the keys that
+     * move to the new shards change their shard.
+     */
+    static int hash(String key, int buckets) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        long bucket = -1, jump = 0;
+        while (jump < buckets) {
+            bucket = jump;
+            h = h * 2862933555777941757L + 1;
+            jump = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((h >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+
+    static int compareKeys(String a, String b) {
+        final int n = Math.min(a.length(), b.length());
+        for (int i = 0; i < n; i++) {
+            final char ca = a.charAt(i);
+            final char cb = b.charAt(i);
+            if (ca == cb) continue;
+            // surrogates come after all other chars of the basic plane in code point order
+            final boolean sa = Character.isSurrogate(ca);
+            final boolean sb = Character.isSurrogate(cb);
+            if (sa != sb) return sa ? 1 : -1;
+            return ca - cb;
+        }
+        return a.length() - b.length();
+    }
+
+    public static List<String> readSplits(File file) throws IOException {
+        final List<String> splits = new ArrayList<String>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) splits.add(FailureList.unescape(line));
+            }
+        }
+        return splits;
+    }
+
+    public static void writeSplits(File file, List<String> splits) throws IOException {
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8))) {
+            for (String split : splits) {
+                writer.write(FailureList.escape(split));
+                writer.write('\n');
+            }
+        }
+    }
+
+    /**
+     * Lists the source and picks the N-1 keys that split it into N shards of about the same number of keys. Buckets
+     * with more than MAX_SAMPLE keys are sampled.
+     */
+    public static List<String> sampleSplits(MirrorContext context, int count) throws Exception {
+        final MirrorOptions options = context.getOptions();
+        final String prefix = options.getSourcePrefix();
+        final KeyLister lister = context.getSourceBackend().newLister(context, MirrorMaster.getMaxQueueCapacity(options), prefix);
+        final Thread listerThread = new Thread(lister, "ShardSampler-lister");
+        listerThread.start();
+
+        final Random random = new Random();
+        final List<String> sample = new ArrayList<String>();
+        long seen = 0;
+        try {
+            while (true) {
+                final List<KeyObjectSummary> summaries = lister.getNextBatch();
+                for (KeyObjectSummary summary : summaries) {
+                    final String key = relativeKey(summary.getKey(), prefix);
+                    seen++;
+                    // reservoir sampling keeps every key with the same chance
+                    if (sample.size() < MAX_SAMPLE) {
+                        sample.add(key);
+                    } else {
+                        final long slot = (long) (random.nextDouble() * seen);
+                        if (slot < MAX_SAMPLE) sample.set((int) slot, key);
+                    }
+                }
+                if (summaries.isEmpty()) {
+                    if (lister.isDone() && lister.getSize() == 0) break;
+                    if (Sleep.sleep(50)) throw new InterruptedException("Interrupted while sampling the splits");
+                }
+            }
+        } finally {
+            if (listerThread.isAlive()) listerThread.interrupt();
+        }
+
+        if (sample.size() < count) {
+            throw new IllegalStateException("Can't split " + sample.size() + " keys into " + count + " shards");
+        }
+        Collections.sort(sample, KEY_ORDER);
+        final List<String> splits = new ArrayList<String>();
+        for (int i = 1; i < count; i++) {
+            splits.add(sample.get((int) ((long) i * sample.size() / count) - 1));
+        }
+        log.info("Sampled {} of {} keys for the splits of {} shards.", sample.size(), seen, count);
+        return splits;
+    }
+
+    @Override public String toString() { return index + "/" + count + (isRange() ? " (range)" : ""); }
+}
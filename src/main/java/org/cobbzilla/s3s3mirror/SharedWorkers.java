@@ -0,0 +1,122 @@
+package org.cobbzilla.s3s3mirror;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the jobs that the pairs of a --job-file run at the same time, see JobMain. Every pair that runs gets an
+ * even share of the workers. A pair may use more than its share while no other pair waits for a worker, and a waiting
+ * pair below its share gets the next free worker. A pair with few keys doesn't wait behind a pair with many keys, and
+ * the workers are never idle while some pair has work. Uses a lock instead of synchronized, like JobSignal.
+ */
+public class SharedWorkers {
+
+    private final int workers;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    private final Map<Object, Share> shares = new HashMap<Object, Share>();
+    private int running = 0;
+
+    private static class Share {
+        int running = 0;
+        int waiting = 0;
+    }
+
+    public SharedWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    public void register(Object pair) {
+        lock.lock();
+        try {
+            if (!shares.containsKey(pair)) shares.put(pair, new Share());
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void unregister(Object pair) {
+        lock.lock();
+        try {
+            shares.remove(pair);
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void acquire(Object pair) throws InterruptedException {
+        lock.lock();
+        try {
+            Share share = shares.get(pair);
+            if (share == null) {
+                share = new Share();
+                shares.put(pair, share);
+            }
+            share.waiting++;
+            try {
+                while (!mayRun(share)) released.await();
+            } finally {
+                share.waiting--;
+            }
+            share.running++;
+            running++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(Object pair) {
+        lock.lock();
+        try {
+            final Share share = shares.get(pair);
+            if (share != null) share.running--;
+            running--;
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the pairs that wait for a worker, once per call of acquire
+     */
+    public int getWaiting() {
+        lock.lock();
+        try {
+            int waiting = 0;
+            for (Share share : shares.values()) waiting += share.waiting;
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // called with the lock held
+    private boolean mayRun(Share share) {
+        if (running >= workers) return false;
+        if (share.running < getFairShare()) return true;
+        // above its share, only if no other pair waits below its own
+        for (Share other : shares.values()) {
+            if (other != share && other.waiting > 0 && other.running < getFairShare()) return false;
+        }
+        return true;
+    }
+
+    private int getFairShare() {
+        return Math.max(1, (workers + shares.size() - 1) / Math.max(1, shares.size()));
+    }
+}
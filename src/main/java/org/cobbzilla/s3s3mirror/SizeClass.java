@@ -0,0 +1,11 @@
+package org.cobbzilla.s3s3mirror;
+
+public enum SizeClass {
+    SMALL, MEDIUM, LARGE;
+
+    public static SizeClass of(MirrorOptions options, long size) {
+        if (size <= options.getSmallObjectSize()) return SMALL;
+        if (size > options.getLargeObjectSize()) return LARGE;
+        return MEDIUM;
+    }
+}
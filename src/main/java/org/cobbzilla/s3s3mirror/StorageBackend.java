@@ -0,0 +1,48 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Where objects are read from or written to: an S3 bucket or a directory on a local filesystem.
+ *
+ * Keys are always separated by slashes. Methods that read a key throw FileNotFoundException if it doesn't exist.
+ */
+public interface StorageBackend {
+
+    /**
+     * @return the bucket, or the root directory of a local backend
+     */
+    String getName();
+
+    /**
+     * @return the profile that requests to this backend are retried for, null for local backends
+     */
+    MirrorProfile getProfile();
+
+    KeyLister newLister(MirrorContext context, int maxQueueCapacity, String prefix) throws IOException;
+
+    ObjectMetadata head(String key) throws IOException;
+
+    /**
+     * @return length bytes of the object starting at offset, or all of it if length is negative
+     */
+    InputStream get(String key, long offset, long length) throws IOException;
+
+    /**
+     * Transfers an object from another backend. Every backend picks the cheapest way to read from the source it
+     * knows, e.g. a file is uploaded straight from the disk.
+     *
+     * @param metadata the metadata of the destination object, the content length is the size of the source
+     */
+    void put(String key, StorageBackend source, String sourceKey, ObjectMetadata metadata) throws IOException;
+
+    /**
+     * Copies an object within this backend.
+     */
+    void copy(String sourceKey, String key, ObjectMetadata metadata) throws IOException;
+
+    void delete(String key) throws IOException;
+}
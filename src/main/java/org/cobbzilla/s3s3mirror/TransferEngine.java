@@ -0,0 +1,16 @@
+package org.cobbzilla.s3s3mirror;
+
+/**
+ * How the jobs for keys are run, see --engine.
+ */
+public enum TransferEngine {
+
+    // a blocking KeyJob per key on the threads of the MirrorLanes
+    THREADS,
+
+    // a blocking KeyJob per key on a virtual thread of the MirrorLanes, needs Java 21
+    VIRTUAL,
+
+    // a chain of non-blocking requests per key on the AsyncEngine
+    ASYNC
+}
@@ -0,0 +1,44 @@
+package org.cobbzilla.s3s3mirror;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates executors that start a virtual thread per task. Virtual threads need Java 21, and as s3s3mirror is built
+ * for Java 8 the methods are looked up by reflection.
+ */
+@Slf4j
+public class VirtualThreads {
+
+    public static boolean isAvailable() {
+        try {
+            Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param prefix the name of the threads, followed by a counter
+     * @return an executor that runs every task on a new virtual thread
+     * @throws IllegalStateException if virtual threads are not available
+     */
+    public static ExecutorService newExecutor(String prefix) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            final ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            final Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (Exception e) {
+            throw new IllegalStateException("Virtual threads are not available on Java " + System.getProperty("java.version"), e);
+        }
+    }
+}
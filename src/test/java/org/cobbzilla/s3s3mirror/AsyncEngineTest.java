@@ -0,0 +1,63 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Test;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.s3.model.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.Assert.*;
+
+public class AsyncEngineTest {
+
+    private static Grant grant(Grantee grantee, Permission permission) {
+        return Grant.builder().grantee(grantee).permission(permission).build();
+    }
+
+    @Test
+    public void testGrantHeaders() throws Exception {
+        final Grantee owner = Grantee.builder().type(Type.CANONICAL_USER).id("abc").build();
+        final Grantee allUsers = Grantee.builder().type(Type.GROUP).uri("http://acs.amazonaws.com/groups/global/AllUsers").build();
+        final Grantee someone = Grantee.builder().type(Type.AMAZON_CUSTOMER_BY_EMAIL).emailAddress("someone@example.com").build();
+
+        final Map<Permission, String> headers = AsyncEngine.getGrantHeaders(Arrays.asList(
+                grant(owner, Permission.FULL_CONTROL),
+                grant(allUsers, Permission.READ),
+                grant(someone, Permission.READ)));
+
+        assertEquals("id=\"abc\"", headers.get(Permission.FULL_CONTROL));
+        assertEquals("uri=\"http://acs.amazonaws.com/groups/global/AllUsers\", emailAddress=\"someone@example.com\"",
+                headers.get(Permission.READ));
+        assertNull(headers.get(Permission.WRITE_ACP));
+    }
+
+    @Test
+    public void testRegionId() throws Exception {
+        assertEquals("us-east-1", AsyncEngine.getRegionId("US_EAST_1"));
+        assertEquals("eu-central-1", AsyncEngine.getRegionId("eu-central-1"));
+        assertEquals("minio", AsyncEngine.getRegionId("minio"));
+    }
+
+    @Test
+    public void testUserMetadata() throws Exception {
+        final Map<String, String> source = new HashMap<String, String>();
+        source.put("owner", "me");
+        source.put("x-amz-unencrypted-content-length", "42");
+        assertEquals(1, AsyncEngine.getUserMetadata(source).size());
+        assertEquals("me", AsyncEngine.getUserMetadata(source).get("owner"));
+    }
+
+    @Test
+    public void testErrorClasses() throws Exception {
+        final S3Exception slowDown = (S3Exception) S3Exception.builder().statusCode(503)
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode("SlowDown").build()).build();
+        final S3Exception denied = (S3Exception) S3Exception.builder().statusCode(403)
+                .awsErrorDetails(AwsErrorDetails.builder().errorCode("AccessDenied").build()).build();
+
+        assertEquals(ErrorClass.THROTTLE, ErrorClass.of(new CompletionException(slowDown)));
+        assertEquals(ErrorClass.PERMANENT, ErrorClass.of(new CompletionException(denied)));
+    }
+}
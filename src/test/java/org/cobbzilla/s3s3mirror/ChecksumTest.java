@@ -0,0 +1,75 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+import static org.junit.Assert.*;
+
+/**
+ * Streams objects between buckets of the LocalS3Stub with --checksum, then finds a changed object by its MD5 and
+ * verifies the mirror without reading it.
+ */
+public class ChecksumTest extends StubMirrorTest {
+
+    private byte[] large;
+
+    @Before
+    public void setUp() {
+        large = new byte[(int) (11 * MB)];
+        new Random(1).nextBytes(large);
+        stub.put(SOURCE, "small", "small value".getBytes(UTF_8));
+        stub.put(SOURCE, "large", large);
+    }
+
+    @Test
+    public void testChecksum() throws Exception {
+        MirrorContext context = mirror(false);
+        assertFalse(context.hasErrors());
+        assertEquals(2, context.getStats().objectsCopied.get());
+        assertEquals(2, context.getStats().checksumsVerified.get());
+        // the large object is uploaded in parts, S3 checks the Content-MD5 of the small one
+        assertEquals(1, stub.getContentMD5Requests().get());
+        assertEquals(md5Hex("small value".getBytes(UTF_8)), stub.bucket(DESTINATION).get("small").getMetadata().get(ContentDigest.USER_METADATA_KEY));
+        assertEquals(md5Hex(large), stub.bucket(DESTINATION).get("large").getMetadata().get(ContentDigest.USER_METADATA_KEY));
+
+        // same size, other content: only the MD5 tells
+        stub.put(DESTINATION, "small", "other value".getBytes(UTF_8));
+        context = mirror(true);
+        assertFalse(context.hasErrors());
+        assertEquals(1, context.getStats().objectsCopied.get());
+        assertEquals("small value", content(DESTINATION, "small"));
+
+        // every key is sampled, the MD5s compared instead of reading it
+        final long gets = stub.getObjectGets().get();
+        final File report = File.createTempFile("ChecksumTest", ".txt");
+        try {
+            final MirrorMain main = newMain();
+            main.getOptions().setChecksum(true);
+            main.getOptions().setVerify(report.getPath());
+            main.getOptions().setVerifySample(1);
+            final MirrorVerifier verifier = new MirrorVerifier(newContext(main));
+            verifier.verify(report);
+            assertEquals(0, verifier.getMismatches());
+            assertEquals(2, verifier.getDigestsCompared().get());
+            assertEquals(gets, stub.getObjectGets().get());
+        } finally {
+            if (!report.delete()) report.deleteOnExit();
+        }
+    }
+
+    private MirrorContext mirror(boolean compareSize) {
+        final MirrorMain main = newMain();
+        final MirrorOptions options = main.getOptions();
+        options.setChecksum(true);
+        options.setCompareSize(compareSize);
+        options.setDisableCrossProfileCopy(true);
+        options.setMaxSingleRequestUploadSize(6 * MB);
+        options.setUploadPartSize(5 * MB);
+        return mirror(main);
+    }
+}
@@ -0,0 +1,77 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds the ConcurrencyController throttles and HEAD latencies and checks how it moves the limit, with lanes that are
+ * always saturated.
+ */
+public class ConcurrencyControllerTest {
+
+    private static final int FLOOR = 2;
+    private static final int CEILING = 20;
+
+    private MirrorContext context;
+    private MirrorLanes lanes;
+    private ConcurrencyController controller;
+
+    @Before
+    public void setUp() {
+        final MirrorOptions options = new MirrorOptions();
+        options.setMaxThreads(CEILING);
+        options.setMinThreads(FLOOR);
+        context = new MirrorContext(options, null, null, null, null);
+        lanes = new MirrorLanes(context) {
+            @Override public int getActiveCount() { return getPoolSize(); }
+        };
+        controller = new ConcurrencyController(context, lanes);
+    }
+
+    @After
+    public void tearDown() {
+        lanes.shutdown();
+    }
+
+    @Test
+    public void testAdjust() {
+        // starts at half the ceiling and grows while nothing goes wrong
+        heads(10, 10);
+        controller.adjust();
+        assertEquals(CEILING / 2 + 1, getLimit());
+
+        context.getStats().throttleErrors.addAndGet(3);
+        controller.adjust();
+        assertEquals((int) ((CEILING / 2 + 1) * ConcurrencyController.DECREASE_FACTOR), getLimit());
+
+        for (int i = 0; i < 10; i++) {
+            context.getStats().timeoutErrors.incrementAndGet();
+            controller.adjust();
+            assertTrue(getLimit() >= FLOOR);
+        }
+        assertEquals(FLOOR, getLimit());
+
+        for (int i = 0; i < 2 * CEILING; i++) {
+            heads(10, 10);
+            controller.adjust();
+            assertTrue(getLimit() <= CEILING);
+        }
+        assertEquals(CEILING, getLimit());
+
+        // a latency spike without errors
+        heads(10, 10 * ConcurrencyController.LATENCY_SPIKE_FACTOR + 1);
+        controller.adjust();
+        assertEquals((int) (CEILING * ConcurrencyController.DECREASE_FACTOR), getLimit());
+        assertEquals(getLimit(), lanes.getPoolSize());
+    }
+
+    private void heads(int count, double millis) {
+        context.getStats().headCount.addAndGet(count);
+        context.getStats().headLatencyMillis.addAndGet(Math.round(count * millis));
+    }
+
+    private int getLimit() { return context.getStats().concurrencyLimit.get(); }
+}
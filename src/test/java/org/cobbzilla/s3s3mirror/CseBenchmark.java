@@ -0,0 +1,107 @@
+package org.cobbzilla.s3s3mirror;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+
+/**
+ * Measures the AES/GCM encryption throughput of a single cipher over the whole object, like the encryption client
+ * uploads it, against GcmParts on one and on several threads. Not run by the tests, start it with the test classpath:
+ *
+ *   java -cp target/classes:target/test-classes:$(cat cp.txt) org.cobbzilla.s3s3mirror.CseBenchmark [part MB] [parts] [threads] [rounds]
+ *
+ * where cp.txt is written by mvn dependency:build-classpath -Dmdep.outputFile=cp.txt. The first rounds warm up the JIT,
+ * the best round is reported.
+ */
+public class CseBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int partSize = (int) ((args.length > 0 ? Integer.parseInt(args[0]) : 16) * MB);
+        final int parts = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        final int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        final int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        final KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        final SecretKey key = generator.generateKey();
+        final byte[] iv = new byte[GcmParts.IV_LENGTH];
+        new Random().nextBytes(iv);
+
+        final byte[][] data = new byte[parts][partSize];
+        for (byte[] part : data) new Random().nextBytes(part);
+
+        System.out.printf("%d parts of %d MB, %d cores, Java %s%n", parts, partSize / MB,
+                Runtime.getRuntime().availableProcessors(), System.getProperty("java.version"));
+        System.out.printf("%-16s %8s %10s %14s%n", "mode", "threads", "MB/s", "MB/s per core");
+
+        report("cipher", 1, best(rounds, parts * (long) partSize, new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GcmParts.TAG_LENGTH * 8, iv));
+                final byte[] out = new byte[partSize];
+                for (byte[] part : data) cipher.update(part, 0, part.length, out, 0);
+                cipher.doFinal();
+                return null;
+            }
+        }));
+        report("parts", 1, runParts(key, iv, data, 1, rounds));
+        if (threads > 1) report("parts", threads, runParts(key, iv, data, threads, rounds));
+    }
+
+    private static double runParts(SecretKey key, byte[] iv, final byte[][] data, int threads, int rounds) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final GcmParts gcm = new GcmParts(key, iv);
+            return best(rounds, data.length * (long) data[0].length, new Callable<Void>() {
+                @Override public Void call() throws Exception {
+                    final byte[][] partials = new byte[data.length][];
+                    final long[] lengths = new long[data.length];
+                    final List<Future<?>> futures = new ArrayList<Future<?>>();
+                    for (int i = 0; i < data.length; i++) {
+                        final int index = i;
+                        futures.add(executor.submit(new Runnable() {
+                            @Override public void run() {
+                                final byte[] part = data[index].clone();
+                                partials[index] = gcm.encrypt(index * (long) part.length, part, part.length);
+                                lengths[index] = part.length;
+                            }
+                        }));
+                    }
+                    for (Future<?> future : futures) future.get();
+                    gcm.tag(partials, lengths);
+                    return null;
+                }
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the best throughput in MB/s
+     */
+    private static double best(int rounds, long bytes, Callable<Void> round) throws Exception {
+        double best = 0;
+        for (int i = 0; i < rounds; i++) {
+            final long start = System.nanoTime();
+            round.call();
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            best = Math.max(best, bytes / (double) MB / seconds);
+        }
+        return best;
+    }
+
+    private static void report(String mode, int threads, double mbPerSecond) {
+        System.out.printf("%-16s %8d %10.1f %14.1f%n", mode, threads, mbPerSecond, mbPerSecond / threads);
+    }
+}
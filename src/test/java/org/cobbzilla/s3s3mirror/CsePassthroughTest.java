@@ -0,0 +1,77 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Mirrors client-side encrypted objects between two profiles with the same key on the LocalS3Stub.
+ */
+public class CsePassthroughTest extends StubMirrorTest {
+
+    private static final int KEYS = 20;
+
+    private MirrorMain newMain(boolean instructionFile) {
+        final MirrorMain main = newMain();
+        main.getOptions().setMaxThreads(4);
+        main.getOptions().setMaxRetries(2);
+        for (MirrorProfile profile : Arrays.asList(main.getOptions().getSourceProfile(), main.getOptions().getDestinationProfile())) {
+            profile.setEncryption(MirrorEncryption.CSE_AES_GCM_256.name());
+            profile.setEncryptionKey("passthrough");
+            if (instructionFile) profile.addOption(MirrorProfileOptions.CSM_INSTRUCTION_FILE);
+        }
+        return main;
+    }
+
+    private MirrorContext mirror(boolean instructionFile) {
+        final MirrorMain main = newMain(instructionFile);
+        final MirrorContext context = newContext(main);
+        assertTrue(context.getCsePassthrough().isEnabled());
+        for (int i = 0; i < KEYS; i++) {
+            context.getSourceClient().putObject(SOURCE, "key-" + i, "secret " + i);
+        }
+        new MirrorMaster(context).mirror();
+
+        assertEquals(KEYS, context.getStats().objectsCopied.get());
+        assertEquals(0, context.getStats().copyErrors.get());
+        for (int i = 0; i < KEYS; i++) {
+            final String key = "key-" + i;
+            assertTrue(Arrays.equals(stub.bucket(SOURCE).get(key).getData(), stub.bucket(DESTINATION).get(key).getData()));
+            assertEquals("secret " + i, context.getDestinationClient().getObjectAsString(DESTINATION, key));
+        }
+        return context;
+    }
+
+    @Test
+    public void testCopiesOnServer() throws Exception {
+        mirror(false);
+        assertEquals(KEYS, stub.getCopyRequests().get());
+    }
+
+    @Test
+    public void testStreamsWhenDenied() throws Exception {
+        stub.denyCopy("stub-destination");
+        final MirrorContext context = mirror(false);
+        assertEquals(stub.getCopyRequests().get(), context.getStats().copyFallbacks.get());
+    }
+
+    @Test
+    public void testInstructionFile() throws Exception {
+        mirror(true);
+        assertEquals(2 * KEYS, stub.bucket(DESTINATION).size());
+        assertNotNull(stub.bucket(DESTINATION).get("key-0" + CsePassthrough.INSTRUCTION_SUFFIX));
+    }
+
+    @Test
+    public void testNeedsSameKey() {
+        final MirrorMain main = newMain(false);
+        assertTrue(CsePassthrough.isPossible(main.getOptions()));
+        main.getOptions().getDestinationProfile().setEncryptionKey("other");
+        assertFalse(CsePassthrough.isPossible(main.getOptions()));
+        main.getOptions().setDisableCsePassthrough(true);
+        main.getOptions().getDestinationProfile().setEncryptionKey("passthrough");
+        assertFalse(CsePassthrough.isPossible(main.getOptions()));
+    }
+}
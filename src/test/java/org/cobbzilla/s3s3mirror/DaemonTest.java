@@ -0,0 +1,118 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Runs a --daemon against a LocalS3Stub: a full cycle, an incremental one and a sync of a prefix on demand.
+ */
+public class DaemonTest extends StubMirrorTest {
+
+    private static final int KEYS = 20;
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(20);
+
+    private File stateFile;
+
+    @Before
+    public void setUp() throws Exception {
+        putKeys(SOURCE, "data/", KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            stub.put(SOURCE, "sub/key-" + i, ("sub " + i).getBytes(UTF_8));
+        }
+        stateFile = File.createTempFile("DaemonTest", ".properties");
+        if (!stateFile.delete()) fail("can't delete " + stateFile);
+    }
+
+    @After
+    public void tearDown() {
+        if (stateFile.exists() && !stateFile.delete()) stateFile.deleteOnExit();
+    }
+
+    @Test
+    public void testCycles() throws Exception {
+        final Daemon daemon = new Daemon(new String[0]);
+        newContext(daemon);
+        daemon.getOptions().setMaxThreads(2);
+        daemon.getOptions().setCompareSize(true);
+        daemon.getOptions().setDaemonListen("0");
+        daemon.getOptions().setDaemonState(stateFile.getPath());
+        final Thread thread = new Thread() {
+            @Override public void run() { daemon.run(); }
+        };
+        thread.start();
+        try {
+            awaitHealth(daemon, "cycles: 1");
+            final Map<String, LocalS3Stub.StubObject> destination = stub.bucket(DESTINATION);
+            assertEquals(2 * KEYS, destination.size());
+
+            // only the keys modified since the last sync are checked
+            final long old = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2);
+            for (String key : stub.bucket(SOURCE).keySet()) stub.setLastModified(SOURCE, key, old);
+            stub.put(SOURCE, "data/key-0", "changed value".getBytes(UTF_8));
+            stub.put(SOURCE, "data/new", "new".getBytes(UTF_8));
+            assertEquals(202, post(daemon, "/sync"));
+            awaitHealth(daemon, "cycles: 2");
+            assertEquals("changed value", content(DESTINATION, "data/key-0"));
+            assertTrue(destination.containsKey("data/new"));
+            // a HEAD of the source and the destination for each of the two keys
+            assertEquals(4, daemon.getContext().getStats().headCount.get());
+            assertEquals(2 * KEYS + 1, daemon.getContext().getStats().objectsRead.get());
+
+            // a sync of a prefix lists only the prefix and checks all of its keys
+            stub.put(SOURCE, "sub/old", "old".getBytes(UTF_8));
+            stub.setLastModified(SOURCE, "sub/old", old);
+            assertEquals(202, post(daemon, "/sync?prefix=sub%2F"));
+            awaitHealth(daemon, "sync of sub/ ok");
+            assertTrue(destination.containsKey("sub/old"));
+            assertEquals(KEYS + 1, daemon.getContext().getStats().objectsRead.get());
+
+            assertEquals(405, post(daemon, "/health"));
+        } finally {
+            daemon.shutdown();
+            thread.join(TIMEOUT);
+        }
+        assertFalse(thread.isAlive());
+        assertTrue(stateFile.exists());
+    }
+
+    private static void awaitHealth(Daemon daemon, String expected) throws Exception {
+        final long start = System.currentTimeMillis();
+        String health = "";
+        while (System.currentTimeMillis() - start < TIMEOUT) {
+            final InetSocketAddress address = daemon.getAddress();
+            if (address != null) {
+                final HttpURLConnection connection = open(address, "/health");
+                assertEquals(200, connection.getResponseCode());
+                try (InputStream in = connection.getInputStream()) {
+                    health = IOUtils.toString(in, UTF_8);
+                }
+                if (health.contains(expected)) return;
+            }
+            Thread.sleep(50);
+        }
+        fail("no " + expected + " in health: " + health);
+    }
+
+    private static int post(Daemon daemon, String path) throws Exception {
+        final HttpURLConnection connection = open(daemon.getAddress(), path);
+        connection.setRequestMethod("POST");
+        return connection.getResponseCode();
+    }
+
+    private static HttpURLConnection open(InetSocketAddress address, String path) throws Exception {
+        return (HttpURLConnection) new URL("http://127.0.0.1:" + address.getPort() + path).openConnection();
+    }
+}
@@ -0,0 +1,69 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+import static org.junit.Assert.*;
+
+/**
+ * Mirrors renamed and duplicated objects between buckets of the LocalS3Stub with --dedup.
+ */
+public class DedupTest extends StubMirrorTest {
+
+    private byte[] large;
+    private byte[] medium;
+
+    @Before
+    public void setUp() {
+        final Random random = new Random(1);
+        large = new byte[(int) (7 * MB)];
+        random.nextBytes(large);
+        medium = new byte[(int) (2 * MB)];
+        random.nextBytes(medium);
+
+        stub.put(SOURCE, "a/large", large);
+        stub.put(SOURCE, "a/medium", medium);
+        stub.put(SOURCE, "a/tiny", "tiny".getBytes(UTF_8));
+        stub.put(SOURCE, "b/large-copy", large);
+        stub.put(SOURCE, "b/tiny-copy", "tiny".getBytes(UTF_8));
+        // the name of a/large before it was renamed
+        stub.put(DESTINATION, "old/large", large);
+    }
+
+    @Test
+    public void testDedup() throws Exception {
+        final MirrorMain main = newMain();
+        final MirrorOptions options = main.getOptions();
+        options.setMaxThreads(1);
+        options.setDedup(true);
+        options.setDisableCrossProfileCopy(true);
+        options.setMaxSingleRequestUploadSize(6 * MB);
+        options.setUploadPartSize(5 * MB);
+        final MirrorContext context = newContext(main);
+
+        final DedupIndex index = context.getDedupIndex();
+        index.load(context);
+        assertEquals(1, index.size());
+        // a duplicate that's gone by the time it's needed
+        index.add(md5Hex(medium), medium.length, "gone");
+
+        new MirrorMaster(context).mirror();
+        assertFalse(context.hasErrors());
+        assertEquals(5, context.getStats().objectsCopied.get());
+        assertEquals(2, context.getStats().dedupCopies.get());
+        assertEquals(2 * large.length, context.getStats().dedupBytesSaved.get());
+        assertEquals(medium.length + 2 * "tiny".length(), context.getStats().bytesCopied.get());
+
+        assertTrue(Arrays.equals(large, stub.bucket(DESTINATION).get("a/large").getData()));
+        assertTrue(Arrays.equals(large, stub.bucket(DESTINATION).get("b/large-copy").getData()));
+        assertTrue(Arrays.equals(medium, stub.bucket(DESTINATION).get("a/medium").getData()));
+        assertEquals("tiny", content(DESTINATION, "b/tiny-copy"));
+        // the transferred object replaced the entry of the missing one
+        assertEquals("a/medium", index.find(md5Hex(medium), medium.length));
+    }
+}
@@ -0,0 +1,111 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Deletes removed keys from a bucket of the LocalS3Stub with DeleteObjects requests.
+ */
+public class DeleteBatcherTest extends StubMirrorTest {
+
+    private static final int KEPT = 10;
+    private static final int REMOVED = 2500;
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < KEPT; i++) {
+            stub.put(SOURCE, "kept-" + i, "kept".getBytes(UTF_8));
+            stub.put(DESTINATION, "kept-" + i, "kept".getBytes(UTF_8));
+        }
+        for (int i = 0; i < REMOVED; i++) {
+            stub.put(DESTINATION, "removed-" + i, "removed".getBytes(UTF_8));
+        }
+    }
+
+    @Test
+    public void testBatchedDeletes() throws Exception {
+        stub.failDelete("removed-7", "AccessDenied", Integer.MAX_VALUE);
+        stub.failDelete("removed-8", "InternalError", 1);
+
+        final MirrorMain main = newMain();
+        main.getOptions().setMaxThreads(10);
+        main.getOptions().setMaxRetries(3);
+        main.getOptions().setRetryBaseDelay(1);
+        main.getOptions().setDeleteRemoved(true);
+
+        final MirrorContext context = mirror(main, true);
+
+        assertEquals(KEPT + 1, stub.bucket(DESTINATION).size());
+        assertTrue(stub.bucket(DESTINATION).containsKey("removed-7"));
+        assertEquals(REMOVED - 1, context.getStats().objectsDeleted.get());
+        assertEquals(1, context.getStats().deleteErrors.get());
+        // three batches and one more round for the key with the temporary error
+        assertEquals(4, stub.getDeleteObjectsRequests().get());
+    }
+
+    @Test
+    public void testDoneOnceAfterBatch() throws Exception {
+        stub.failDelete("removed-1", "AccessDenied", Integer.MAX_VALUE);
+
+        final MirrorMain main = newMain();
+        main.getOptions().setMaxThreads(5);
+        main.getOptions().setMaxRetries(2);
+        main.getOptions().setRetryBaseDelay(1);
+        main.getOptions().setDeleteRemoved(true);
+        final MirrorContext context = newContext(main, true);
+
+        final Map<String, AtomicInteger> completed = new ConcurrentHashMap<String, AtomicInteger>();
+        final Map<String, AtomicInteger> failed = new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger early = new AtomicInteger(0);
+        final KeyDoneListener listener = new KeyDoneListener() {
+            @Override public void completed(KeyObjectSummary summary) {
+                if (stub.bucket(DESTINATION).containsKey(summary.getKey())) early.incrementAndGet();
+                count(completed, summary.getKey());
+            }
+            @Override public void failed(KeyObjectSummary summary) { count(failed, summary.getKey()); }
+        };
+
+        final MirrorLanes lanes = new MirrorLanes(context);
+        final DeleteBatcher batcher = new DeleteBatcher(context, lanes.getRetryQueue());
+        try {
+            for (int i = 0; i < 5; i++) {
+                final KeyObjectSummary summary = new KeyObjectSummary();
+                summary.setKey("removed-" + i);
+                final KeyDeleteJob job = new KeyDeleteJob(context, summary, new JobSignal(), batcher);
+                job.doneListener = listener;
+                lanes.submit(job);
+            }
+            while (!lanes.isIdle()) Thread.sleep(10);
+            // the keys wait for their batch, nothing is done yet
+            assertTrue(completed.isEmpty());
+            assertTrue(failed.isEmpty());
+
+            batcher.flush();
+            while (!batcher.isIdle()) Thread.sleep(10);
+        } finally {
+            batcher.shutdown();
+            lanes.shutdown();
+        }
+
+        assertEquals(4, completed.size());
+        for (AtomicInteger count : completed.values()) assertEquals(1, count.get());
+        assertEquals(0, early.get());
+        assertFalse(completed.containsKey("removed-1"));
+        assertEquals(1, failed.size());
+        assertEquals(1, failed.get("removed-1").get());
+        assertEquals(1, context.getStats().deleteErrors.get());
+        assertEquals(4, context.getStats().objectsDeleted.get());
+    }
+
+    private static void count(Map<String, AtomicInteger> counts, String key) {
+        counts.putIfAbsent(key, new AtomicInteger(0));
+        counts.get(key).incrementAndGet();
+    }
+}
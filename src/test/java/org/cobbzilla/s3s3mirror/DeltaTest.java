@@ -0,0 +1,93 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+import static org.junit.Assert.*;
+
+/**
+ * Streams an object in parts between buckets of the LocalS3Stub with --delta, changes a part of it and mirrors it
+ * again.
+ */
+public class DeltaTest extends StubMirrorTest {
+
+    private File deltaDir;
+    private File keyList;
+    private byte[] archive;
+
+    @Before
+    public void setUp() throws Exception {
+        archive = new byte[(int) (12 * MB)];
+        new Random(1).nextBytes(archive);
+        stub.put(SOURCE, "archive", archive);
+        deltaDir = Files.createTempDirectory("DeltaTest").toFile();
+        keyList = File.createTempFile("DeltaTest", ".txt");
+        Files.write(keyList.toPath(), Collections.singletonList("archive"), UTF_8);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : deltaDir.listFiles()) file.delete();
+        deltaDir.delete();
+        keyList.delete();
+    }
+
+    @Test
+    public void testDelta() throws Exception {
+        MirrorContext context = deltaMirror(null);
+        assertFalse(context.hasErrors());
+        assertEquals(archive.length, context.getStats().bytesCopied.get());
+        final DeltaParts parts = DeltaParts.load(deltaDir, "archive");
+        assertNotNull(parts);
+        assertEquals(3, parts.getPartCount());
+        assertTrue(parts.describes(etag(DESTINATION, "archive")));
+        assertFalse(parts.isOtherSource(etag(SOURCE, "archive")));
+
+        // only the second part changes, the size stays the same
+        archive[(int) (7 * MB)] ^= 1;
+        stub.put(SOURCE, "archive", archive);
+        context = deltaMirror(null);
+        assertFalse(context.hasErrors());
+        assertEquals(2, context.getStats().deltaPartsReused.get());
+        assertEquals(5 * MB, context.getStats().bytesCopied.get());
+        assertTrue(Arrays.equals(archive, stub.bucket(DESTINATION).get("archive").getData()));
+        assertTrue(DeltaParts.load(deltaDir, "archive").describes(etag(DESTINATION, "archive")));
+
+        // nothing changed
+        context = deltaMirror(null);
+        assertFalse(context.hasErrors());
+        assertEquals(0, context.getStats().objectsCopied.get());
+
+        // the parts recorded don't describe an object written by someone else
+        stub.put(DESTINATION, "archive", new byte[archive.length]);
+        context = deltaMirror(keyList);
+        assertFalse(context.hasErrors());
+        assertEquals(0, context.getStats().deltaPartsReused.get());
+        assertEquals(archive.length, context.getStats().bytesCopied.get());
+        assertTrue(Arrays.equals(archive, stub.bucket(DESTINATION).get("archive").getData()));
+    }
+
+    private MirrorContext deltaMirror(File keyList) {
+        final MirrorMain main = newMain();
+        final MirrorOptions options = main.getOptions();
+        options.setDelta(deltaDir.getPath());
+        options.setDisableCrossProfileCopy(true);
+        options.setMaxSingleRequestUploadSize(6 * MB);
+        options.setUploadPartSize(5 * MB);
+        if (keyList != null) options.setKeyList(keyList.getPath());
+        return mirror(main);
+    }
+
+    private String etag(String bucket, String key) {
+        return newContext(newMain()).getDestinationClient().getObjectMetadata(bucket, key).getETag();
+    }
+}
@@ -0,0 +1,76 @@
+package org.cobbzilla.s3s3mirror;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compares the engines on a LocalS3Stub that answers every request after a fixed latency, so the number of requests
+ * in flight decides the throughput. Not run by the tests, start it with the test classpath:
+ *
+ *   java -cp target/classes:target/test-classes:$(cat cp.txt) org.cobbzilla.s3s3mirror.EngineBenchmark [keys] [latency ms] [platform threads] [virtual threads]
+ *
+ * where cp.txt is written by mvn dependency:build-classpath -Dmdep.outputFile=cp.txt. VIRTUAL needs Java 21.
+ */
+public class EngineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int keys = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        final int latency = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        final int platformThreads = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        final int virtualThreads = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+
+        final LocalS3Stub stub = new LocalS3Stub(latency);
+        try {
+            final byte[] data = "benchmark".getBytes(UTF_8);
+            for (int i = 0; i < keys; i++) stub.put("source", String.format("key-%08d", i), data);
+
+            System.out.printf("%d keys, %d ms latency per request, Java %s%n", keys, latency, System.getProperty("java.version"));
+            System.out.printf("%-8s %8s %10s %10s %10s %10s %10s%n", "engine", "limit", "seconds", "keys/s", "in flight", "threads", "heap MB");
+
+            run(stub, TransferEngine.THREADS, platformThreads, keys);
+            if (VirtualThreads.isAvailable()) {
+                run(stub, TransferEngine.VIRTUAL, platformThreads, keys);
+                run(stub, TransferEngine.VIRTUAL, virtualThreads, keys);
+            } else {
+                System.out.println("VIRTUAL skipped, virtual threads need Java 21");
+            }
+            run(stub, TransferEngine.ASYNC, virtualThreads, keys);
+        } finally {
+            stub.stop();
+        }
+    }
+
+    private static void run(LocalS3Stub stub, TransferEngine engine, int limit, int keys) {
+        stub.bucket("destination").clear();
+        stub.resetStats();
+
+        final MirrorMain main = new MirrorMain(new String[0]);
+        final MirrorOptions options = main.getOptions();
+        options.setEngine(engine);
+        options.setMaxThreads(engine == TransferEngine.ASYNC ? 10 : limit);
+        options.setAsyncRequests(limit);
+        options.setMaxConnections(limit);
+        final MirrorContext context = stub.newContext(main, "source", "destination", true);
+
+        System.gc();
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        final long heapBefore = usedHeap();
+
+        final long start = System.nanoTime();
+        new MirrorMaster(context).mirror();
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        final long copied = context.getStats().objectsCopied.get();
+        if (copied != keys) System.out.printf("%s copied %d of %d keys%n", engine, copied, keys);
+        System.out.printf("%-8s %8d %10.2f %10.0f %10d %10d %10d%n", engine, limit, seconds, copied / seconds,
+                stub.getMaxInFlight(), threads.getPeakThreadCount(), Math.max(0, usedHeap() - heapBefore) >> 20);
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,171 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Runs a --daemon with --events against a LocalS3Stub: notifications POSTed by a webhook and appended to a file.
+ */
+public class EventsTest extends StubMirrorTest {
+
+    private static final int KEYS = 10;
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(20);
+
+    private File eventsFile;
+
+    @Before
+    public void setUp() throws Exception {
+        putKeys(SOURCE, "data/", KEYS);
+        eventsFile = File.createTempFile("EventsTest", ".jsonl");
+    }
+
+    @After
+    public void tearDown() {
+        if (!eventsFile.delete()) eventsFile.deleteOnExit();
+    }
+
+    @Test
+    public void testEvents() throws Exception {
+        final Daemon daemon = new Daemon(new String[0]);
+        newContext(daemon);
+        daemon.getOptions().setMaxThreads(2);
+        daemon.getOptions().setDeleteRemoved(true);
+        daemon.getOptions().setDaemonListen("0");
+        daemon.getOptions().setEvents(true);
+        daemon.getOptions().setEventsFile(eventsFile.getPath());
+        daemon.getOptions().setEventsWindow(200);
+        final Thread thread = new Thread() {
+            @Override public void run() { daemon.run(); }
+        };
+        thread.start();
+        try {
+            final Map<String, LocalS3Stub.StubObject> destination = stub.bucket(DESTINATION);
+            awaitCondition(new Condition() {
+                @Override public boolean isTrue() { return daemon.getCycles() == 1 && daemon.getAddress() != null; }
+            });
+            assertEquals(KEYS, destination.size());
+
+            // an overwrite of the same size and two events of the same key, the later one wins
+            stub.put(SOURCE, "data/key-0", "value X".getBytes(UTF_8));
+            stub.put(SOURCE, "data/new", "new".getBytes(UTF_8));
+            final String events = "{\"Records\":["
+                    + record("source", "s3:ObjectCreated:Put", "data/key-0", "value X", "0055AED6DCD90281E6") + ","
+                    + record("source", "s3:ObjectCreated:Put", "data/key-0", "value 0", "0055AED6DCD90281E5") + ","
+                    + record("source", "s3:ObjectCreated:Put", "data/new", "new", null) + ","
+                    + record("other", "s3:ObjectCreated:Put", "data/other", "other", null) + "]}";
+            assertEquals(200, post(daemon, "/events", events));
+            assertEquals(400, post(daemon, "/events", "{not json"));
+
+            // a removed key, written in two parts, the second after the daemon read the first
+            stub.bucket(SOURCE).remove("data/key-1");
+            final String removed = "{\"Records\":[" + record("source", "ObjectRemoved:Delete", "data/key-1", null, null) + "]}\n";
+            try (OutputStream out = new FileOutputStream(eventsFile, true)) {
+                out.write(removed.substring(0, 20).getBytes(UTF_8));
+                out.flush();
+                awaitCondition(new Condition() {
+                    @Override public boolean isTrue() { return daemon.getEventsFileOffset() == 20; }
+                });
+                out.write(removed.substring(20).getBytes(UTF_8));
+            }
+
+            awaitCondition(new Condition() {
+                @Override public boolean isTrue() {
+                    return destination.containsKey("data/new") && !destination.containsKey("data/key-1")
+                            && content(DESTINATION, "data/key-0").equals("value X");
+                }
+            });
+            final EventQueue queue = daemon.getEvents();
+            assertEquals(5, queue.getReceived().get());
+            assertEquals(1, queue.getCoalesced().get());
+            assertEquals(1, queue.getIgnored().get());
+            assertEquals(1, daemon.getCycles());
+            assertTrue(getHealth(daemon).contains("events: 0 queued"));
+        } finally {
+            daemon.shutdown();
+            thread.join(TIMEOUT);
+        }
+        assertFalse(thread.isAlive());
+    }
+
+    @Test
+    public void testAsyncDeleteLag() throws Exception {
+        stub.put(DESTINATION, "data/key-1", "value 1".getBytes(UTF_8));
+        stub.put(DESTINATION, "data/gone", "gone".getBytes(UTF_8));
+        final MirrorContext context = newContext(newMain());
+        context.getOptions().setEngine(TransferEngine.ASYNC);
+        context.getOptions().setDeleteRemoved(true);
+        final long eventTime = System.currentTimeMillis();
+        final MirrorMaster master = new MirrorMaster(context);
+        master.setEventBatch(new EventBatch(Arrays.asList(
+                new EventQueue.Event("data/gone", true, 0, null, eventTime, null),
+                new EventQueue.Event("data/key-1", true, 0, null, eventTime, null))));
+        master.mirror();
+
+        assertFalse(stub.bucket(DESTINATION).containsKey("data/gone"));
+        // the source still has data/key-1, its event is done without a delete
+        assertTrue(stub.bucket(DESTINATION).containsKey("data/key-1"));
+        assertEquals(2, context.getStats().eventsReplicated.get());
+    }
+
+    private static String record(String bucket, String eventName, String key, String data, String sequencer) throws Exception {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return "{\"eventVersion\":\"2.0\",\"eventSource\":\"minio:s3\",\"eventTime\":\"" + format.format(new Date()) + "\","
+                + "\"eventName\":\"" + eventName + "\",\"s3\":{\"bucket\":{\"name\":\"" + bucket + "\"},"
+                + "\"object\":{\"key\":\"" + URLEncoder.encode(key, "UTF-8") + "\""
+                + (data == null ? "" : ",\"size\":" + data.length() + ",\"eTag\":\"" + md5Hex(data.getBytes(UTF_8)) + "\"")
+                + (sequencer == null ? "" : ",\"sequencer\":\"" + sequencer + "\"") + "}}}";
+    }
+
+    private interface Condition {
+        boolean isTrue();
+    }
+
+    private static void awaitCondition(Condition condition) throws Exception {
+        final long start = System.currentTimeMillis();
+        while (!condition.isTrue()) {
+            if (System.currentTimeMillis() - start > TIMEOUT) fail("timed out");
+            Thread.sleep(50);
+        }
+    }
+
+    private static String getHealth(Daemon daemon) throws Exception {
+        final HttpURLConnection connection = open(daemon, "/health");
+        try (InputStream in = connection.getInputStream()) {
+            return IOUtils.toString(in, UTF_8);
+        }
+    }
+
+    private static int post(Daemon daemon, String path, String body) throws Exception {
+        final HttpURLConnection connection = open(daemon, path);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(UTF_8));
+        }
+        return connection.getResponseCode();
+    }
+
+    private static HttpURLConnection open(Daemon daemon, String path) throws Exception {
+        return (HttpURLConnection) new URL("http://127.0.0.1:" + daemon.getAddress().getPort() + path).openConnection();
+    }
+}
@@ -0,0 +1,41 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FailureListTest {
+
+    private static KeyObjectSummary summary(String key, long size, String eTag) {
+        final KeyObjectSummary summary = new KeyObjectSummary();
+        summary.setKey(key);
+        summary.setSize(size);
+        summary.setETag(eTag);
+        return summary;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final File file = File.createTempFile("failures", ".tsv");
+        file.deleteOnExit();
+
+        final List<KeyObjectSummary> written = Arrays.asList(
+                summary("plain/key.txt", 1234, "d41d8cd98f00b204e9800998ecf8427e"),
+                summary("weird\tkey\nwith\\escapes\\t", 0, null),
+                summary("\u00fcn\u00efcode key ", 5L * MirrorConstants.GB, "abc-12"));
+        FailureList.write(file, written);
+
+        final List<KeyObjectSummary> read = FailureList.read(file, "bucket");
+        assertEquals(written.size(), read.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertEquals("bucket", read.get(i).getBucketName());
+            assertEquals(written.get(i).getKey(), read.get(i).getKey());
+            assertEquals(written.get(i).getSize(), read.get(i).getSize());
+            assertEquals(written.get(i).getETag(), read.get(i).getETag());
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+import static org.junit.Assert.*;
+
+/**
+ * Mirrors a LocalS3Stub bucket to two destinations at the same time.
+ */
+public class FanOutTest extends StubMirrorTest {
+
+    private static final int KEYS = 20;
+    private static final String LARGE_KEY = "large";
+
+    private byte[] large;
+
+    @Before
+    public void setUp() {
+        putKeys(SOURCE, "", KEYS);
+        large = new byte[(int) (12 * MB) + 123];
+        new Random(7).nextBytes(large);
+        stub.put(SOURCE, LARGE_KEY, large);
+    }
+
+    private MirrorContext fanOut(MirrorMain main) {
+        final MirrorOptions options = main.getOptions();
+        options.setMaxThreads(4);
+        options.setMaxRetries(2);
+        options.setUploadPartSize(5 * MB);
+        options.setMaxSingleRequestUploadSize(6 * MB);
+        final MirrorContext context = newContext(main);
+
+        final MirrorProfile extraProfile = new MirrorProfile();
+        stub.configure(extraProfile, "stub-extra");
+        main.addExtraDestination(context, options.forExtraDestination(extraProfile, "destination2"));
+
+        new MirrorMaster(context).mirror();
+        return context;
+    }
+
+    private void assertMirrored(String bucket) {
+        assertEquals(KEYS + 1, stub.bucket(bucket).size());
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals("value " + i, content(bucket, "key-" + i));
+        }
+        assertTrue(Arrays.equals(large, stub.bucket(bucket).get(LARGE_KEY).getData()));
+    }
+
+    @Test
+    public void testReadsSourceOnce() throws Exception {
+        final MirrorContext context = fanOut(newMain());
+        assertMirrored(DESTINATION);
+        assertMirrored("destination2");
+
+        final MirrorContext extra = context.getExtraDestinations().get(0);
+        assertEquals(KEYS + 1, context.getStats().objectsCopied.get());
+        assertEquals(KEYS + 1, extra.getStats().objectsCopied.get());
+        assertEquals(0, context.getStats().copyErrors.get());
+        assertEquals(0, extra.getStats().copyErrors.get());
+        assertEquals(KEYS + 1, stub.getObjectGets().get());
+    }
+
+    @Test
+    public void testCopiesOnlyWhereMissing() throws Exception {
+        putKeys("destination2", "", KEYS);
+        stub.put("destination2", "removed", "gone".getBytes(UTF_8));
+
+        final MirrorMain main = newMain();
+        main.getOptions().setDeleteRemoved(true);
+        final MirrorContext context = fanOut(main);
+        assertMirrored(DESTINATION);
+        assertMirrored("destination2");
+
+        final MirrorContext extra = context.getExtraDestinations().get(0);
+        assertEquals(KEYS + 1, context.getStats().objectsCopied.get());
+        assertEquals(1, extra.getStats().objectsCopied.get());
+        assertEquals(1, extra.getStats().objectsDeleted.get());
+    }
+
+    @Test
+    public void testChecksum() throws Exception {
+        final MirrorMain main = newMain();
+        main.getOptions().setChecksum(true);
+        final MirrorContext context = fanOut(main);
+        assertMirrored(DESTINATION);
+        assertMirrored("destination2");
+
+        // read once, so compared once, and every PUT and part to both destinations carries a Content-MD5
+        assertEquals(KEYS + 1, context.getStats().checksumsVerified.get());
+        assertEquals(0, context.getStats().checksumMismatches.get());
+        assertEquals(2 * (KEYS + 3), stub.getContentMD5Requests().get());
+        assertEquals(md5Hex(large), stub.bucket("destination2").get(LARGE_KEY).getMetadata().get(ContentDigest.USER_METADATA_KEY));
+    }
+}
@@ -0,0 +1,135 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Runs a job file with two pairs against a LocalS3Stub.
+ */
+public class JobMainTest extends StubMirrorTest {
+
+    private static final int KEYS = 20;
+
+    private File jobFile;
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < KEYS; i++) {
+            stub.put("source1", "key-" + i, ("one " + i).getBytes(UTF_8));
+            stub.put("source2", "sub/key-" + i, ("two " + i).getBytes(UTF_8));
+            stub.put("source2", "other/key-" + i, ("other " + i).getBytes(UTF_8));
+        }
+        jobFile = File.createTempFile("JobMainTest", ".txt");
+        Files.write(jobFile.toPath(), Arrays.asList(
+                "# bucket pairs",
+                "-Y stub -Z stub-destination source1 destination1",
+                "",
+                "-Y stub -Z stub-destination --source-prefix sub/ source2 \"destination2/copy of sub/\""), UTF_8);
+    }
+
+    @After
+    public void tearDown() {
+        if (!jobFile.delete()) jobFile.deleteOnExit();
+    }
+
+    @Test
+    public void testTokenize() {
+        assertEquals(Arrays.asList("-Y", "a", "b/c d", ""), JobMain.tokenize("  -Y  a \"b/c d\" \"\" "));
+    }
+
+    @Test
+    public void testRunsAllPairs() throws Exception {
+        final AtomicInteger profileLoads = new AtomicInteger(0);
+        final JobMain job = new JobMain(new String[]{MirrorOptions.LONGOPT_JOB_FILE, jobFile.getPath(), MirrorOptions.OPT_MAX_THREADS, "4"}) {
+            @Override protected MirrorProfile loadProfile(Pair pair, String name) {
+                profileLoads.incrementAndGet();
+                final MirrorProfile profile = new MirrorProfile();
+                stub.configure(profile, name);
+                return profile;
+            }
+        };
+        job.parsePairs();
+        assertEquals(2, job.getPairs().size());
+        assertEquals(4, job.getPairs().get(1).getLine());
+        assertEquals(4, job.getWorkers());
+
+        job.run();
+
+        final Map<String, LocalS3Stub.StubObject> destination1 = stub.bucket("destination1");
+        final Map<String, LocalS3Stub.StubObject> destination2 = stub.bucket("destination2");
+        assertEquals(KEYS, destination1.size());
+        assertEquals(KEYS, destination2.size());
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals("one " + i, new String(destination1.get("key-" + i).getData(), UTF_8));
+            assertEquals("two " + i, new String(destination2.get("copy of sub/key-" + i).getData(), UTF_8));
+        }
+
+        // both pairs use the same two profiles and clients
+        assertEquals(2, profileLoads.get());
+        assertSame(job.getPairs().get(0).getContext().getSourceClient(), job.getPairs().get(1).getContext().getSourceClient());
+        assertEquals(2 * KEYS, job.getTotalStats().objectsCopied.get());
+        assertEquals(KEYS, job.getPairs().get(1).getContext().getStats().objectsCopied.get());
+    }
+
+    @Test
+    public void testSharedWorkers() throws Exception {
+        final SharedWorkers workers = new SharedWorkers(4);
+        final Object busy = "busy";
+        final Object small = "small";
+        workers.register(busy);
+        workers.register(small);
+
+        // with nobody else waiting a pair may use all workers
+        for (int i = 0; i < 4; i++) workers.acquire(busy);
+
+        final CountDownLatch smallRuns = new CountDownLatch(1);
+        final CountDownLatch busyRuns = new CountDownLatch(1);
+        startAcquire(workers, small, smallRuns);
+        awaitWaiting(workers, 1);
+        startAcquire(workers, busy, busyRuns);
+        awaitWaiting(workers, 2);
+        assertEquals(1, smallRuns.getCount());
+
+        // the pair below its share gets the next worker, even though the other one waits too
+        workers.release(busy);
+        assertTrue(smallRuns.await(5, TimeUnit.SECONDS));
+        assertEquals(1, busyRuns.getCount());
+
+        workers.release(busy);
+        assertTrue(busyRuns.await(5, TimeUnit.SECONDS));
+        assertEquals(4, workers.getRunning());
+    }
+
+    private static void awaitWaiting(SharedWorkers workers, int waiting) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        while (workers.getWaiting() != waiting) {
+            if (System.currentTimeMillis() - start > TimeUnit.SECONDS.toMillis(5)) fail("timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private static void startAcquire(final SharedWorkers workers, final Object pair, final CountDownLatch acquired) {
+        final Thread thread = new Thread() {
+            @Override public void run() {
+                try {
+                    workers.acquire(pair);
+                    acquired.countDown();
+                } catch (InterruptedException ignored) {}
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
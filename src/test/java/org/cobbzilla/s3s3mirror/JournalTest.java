@@ -0,0 +1,119 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Stops a mirror with a --journal halfway and resumes it against a LocalS3Stub.
+ */
+public class JournalTest extends StubMirrorTest {
+
+    private static final int KEYS = 40;
+
+    private File journalFile;
+
+    @Override
+    protected long getLatency() { return 10; }
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < KEYS; i++) {
+            stub.put(SOURCE, String.format("key-%03d", i), ("value " + i).getBytes(UTF_8));
+        }
+        journalFile = File.createTempFile("JournalTest", ".journal");
+    }
+
+    @After
+    public void tearDown() {
+        if (!journalFile.delete()) journalFile.deleteOnExit();
+    }
+
+    @Test
+    public void testMarkerDoneAndFailed() throws Exception {
+        Journal journal = Journal.open(journalFile, false);
+        Journal.Partition partition = journal.partition("copy\tsource/");
+        for (String key : new String[]{"a", "b", "c", "d\nnewline"}) partition.listed(key);
+        partition.completed(summary("a"));
+        partition.failed(summary("b"));
+        partition.completed(summary("d\nnewline"));
+        journal.close();
+
+        journal = Journal.open(journalFile, true);
+        partition = journal.partition("copy\tsource/");
+        // a failed key doesn't hold back the marker, but one that's still running does
+        assertEquals("b", partition.getMarker());
+        assertTrue(partition.isDone("a"));
+        assertFalse(partition.isDone("c"));
+        assertTrue(partition.isDone("d\nnewline"));
+        final List<KeyObjectSummary> failed = partition.takeFailed();
+        assertEquals(1, failed.size());
+        assertEquals("b", failed.get(0).getKey());
+        assertEquals(5, failed.get(0).getSize());
+        journal.close();
+    }
+
+    private static KeyObjectSummary summary(String key) {
+        final KeyObjectSummary summary = new KeyObjectSummary();
+        summary.setKey(key);
+        summary.setSize(5);
+        return summary;
+    }
+
+    @Test
+    public void testResumeAfterStop() throws Exception {
+        final MirrorContext first = newContext(false);
+        final MirrorMaster master = new MirrorMaster(first);
+        final Thread mirror = new Thread() {
+            @Override public void run() { master.mirror(); }
+        };
+        mirror.start();
+        while (first.getStats().objectsCopied.get() < KEYS / 4) Thread.sleep(10);
+        master.requestStop();
+        master.awaitStop(10000);
+        mirror.join(10000);
+        assertFalse(mirror.isAlive());
+
+        final long copied = first.getStats().objectsCopied.get();
+        assertTrue(copied < KEYS);
+        assertEquals(copied, stub.bucket(DESTINATION).size());
+
+        final MirrorContext second = newContext(true);
+        new MirrorMaster(second).mirror();
+        assertEquals(KEYS, stub.bucket(DESTINATION).size());
+        // the keys done by the first run are neither listed nor checked again
+        assertEquals(KEYS - copied, second.getStats().objectsCopied.get());
+        assertEquals(KEYS - copied, second.getStats().headCount.get());
+        assertTrue(second.getStats().objectsRead.get() < KEYS);
+    }
+
+    @Test
+    public void testAsyncDeletes() throws Exception {
+        for (int i = 0; i < 5; i++) stub.put(DESTINATION, "stale-" + i, "stale".getBytes(UTF_8));
+        final MirrorContext context = newContext(false);
+        context.getOptions().setEngine(TransferEngine.ASYNC);
+        context.getOptions().setDeleteRemoved(true);
+        new MirrorMaster(context).mirror();
+        assertEquals(KEYS, stub.bucket(DESTINATION).size());
+        assertEquals(5, context.getStats().objectsDeleted.get());
+
+        // the deleted keys are done, so a resumed run lists the destination after them
+        final Journal journal = Journal.open(journalFile, true);
+        assertEquals("stale-4", journal.partition("DeleteMaster destination/").getMarker());
+        journal.close();
+    }
+
+    private MirrorContext newContext(boolean resume) {
+        final MirrorMain main = newMain();
+        main.getOptions().setMaxThreads(1);
+        main.getOptions().setJournal(journalFile.getPath());
+        main.getOptions().setResume(resume);
+        return newContext(main);
+    }
+}
@@ -0,0 +1,108 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Copies the keys of a --key-list from a bucket of the LocalS3Stub without listing it.
+ */
+public class KeyListTest extends StubMirrorTest {
+
+    private static final int KEYS = 3000;
+
+    private File keyList;
+
+    @Before
+    public void setUp() throws Exception {
+        putKeys(SOURCE, "data/", KEYS);
+        stub.put(SOURCE, "other/key", "other".getBytes(UTF_8));
+        keyList = File.createTempFile("KeyListTest", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        if (!keyList.delete()) keyList.deleteOnExit();
+    }
+
+    @Test
+    public void testKeyList() throws Exception {
+        Files.write(keyList.toPath(), Arrays.asList(
+                "data/key-1",
+                "data/key-2\t7",
+                "data/key-3\t7\t" + "abc",
+                "",
+                "data/missing",
+                "other/key",
+                FailureList.escape("data/key-4")), UTF_8);
+
+        final MirrorMain main = newMain();
+        main.getOptions().setMaxThreads(4);
+        main.getOptions().setSourcePrefix("data/");
+        main.getOptions().setKeyList(keyList.getPath());
+        final MirrorContext context = mirror(main, true);
+
+        assertEquals(0, stub.getListRequests().get());
+        assertEquals(4, stub.bucket(DESTINATION).size());
+        for (int i = 1; i <= 4; i++) {
+            assertEquals("value " + i, content(DESTINATION, "data/key-" + i));
+        }
+        // the keys outside of the prefix are skipped, the missing key after its HEAD
+        assertEquals(4, context.getStats().objectsRead.get());
+        assertEquals(0, context.getStats().copyErrors.get());
+    }
+
+    @Test
+    public void testBadLines() throws Exception {
+        Files.write(keyList.toPath(), Arrays.asList(
+                "data/key-1",
+                "data/key-2\tseven",
+                "data/key-3\t7\tabc\textra",
+                "data/key-4"), UTF_8);
+
+        final MirrorMain main = newMain();
+        main.getOptions().setKeyList(keyList.getPath());
+        final MirrorContext context = mirror(main, true);
+
+        // the lines after a bad one are still read
+        assertEquals(2, stub.bucket(DESTINATION).size());
+        assertTrue(stub.bucket(DESTINATION).containsKey("data/key-4"));
+        assertEquals(2, context.getStats().copyErrors.get());
+        assertTrue(context.hasErrors());
+    }
+
+    @Test
+    public void testHeadFails() throws Exception {
+        Files.write(keyList.toPath(), Arrays.asList("data/key-1", "data/key-2"), UTF_8);
+        stub.failRequests("HEAD", "data/key-2", 400, "ServiceUnavailable", Integer.MAX_VALUE);
+        final File failureList = File.createTempFile("KeyListTest", ".tsv");
+        try {
+            final MirrorMain main = newMain();
+            main.getOptions().setMaxRetries(2);
+            main.getOptions().setRetryBaseDelay(1);
+            main.getOptions().setKeyList(keyList.getPath());
+            main.getOptions().setFailureList(failureList.getPath());
+            final MirrorContext context = mirror(main, true);
+
+            assertEquals(1, stub.bucket(DESTINATION).size());
+            assertTrue(stub.bucket(DESTINATION).containsKey("data/key-1"));
+            assertEquals(1, context.getStats().copyErrors.get());
+
+            // the size stays unknown, so the key is looked up again when the list is used as a --key-list
+            final List<KeyObjectSummary> failures = FailureList.read(failureList, SOURCE);
+            assertEquals(1, failures.size());
+            assertEquals("data/key-2", failures.get(0).getKey());
+            assertEquals(-1, failures.get(0).getSize());
+        } finally {
+            if (!failureList.delete()) failureList.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+import static org.junit.Assert.*;
+
+/**
+ * Mirrors between a local directory and a bucket of the LocalS3Stub, in both directions.
+ */
+public class LocalBackendTest extends StubMirrorTest {
+
+    private static final int LARGE_SIZE = (int) (12 * MB);
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] large;
+
+    @Before
+    public void setUp() {
+        large = new byte[LARGE_SIZE];
+        new Random(42).nextBytes(large);
+    }
+
+    private MirrorContext newContext(File source, String destinationBucket, boolean upload) {
+        final MirrorMain main = newMain();
+        final MirrorOptions options = main.getOptions();
+        options.setMaxThreads(4);
+        options.setMaxRetries(2);
+        options.setDeleteRemoved(true);
+        options.setCompareSize(true);
+        // parts of 5 MB, so the large file is uploaded in parts and downloaded in ranges
+        options.setUploadPartSize(5 * MB);
+        options.setMaxSingleRequestUploadSize(6 * MB);
+
+        final MirrorProfile profile = upload ? options.getDestinationProfile() : options.getSourceProfile();
+        stub.configure(profile, "stub");
+        options.setSourceBucket(upload ? MirrorOptions.LOCAL_PREFIX + source : destinationBucket);
+        options.setDestinationBucket(upload ? destinationBucket : MirrorOptions.LOCAL_PREFIX + source);
+        options.initDerivedFields();
+
+        final AmazonS3 client = main.getAmazonS3Client(profile);
+        return upload
+                ? new MirrorContext(options, null, client, null, null)
+                : new MirrorContext(options, client, null, null, null);
+    }
+
+    @Test
+    public void testUpload() throws Exception {
+        final File dir = folder.newFolder("upload");
+        new File(dir, "a/b").mkdirs();
+        Files.write(new File(dir, "a/b/small").toPath(), "small".getBytes(UTF_8));
+        Files.write(new File(dir, "a/large").toPath(), large);
+        Files.write(new File(dir, "top").toPath(), "top".getBytes(UTF_8));
+        stub.put("bucket", "removed", "removed".getBytes(UTF_8));
+
+        final MirrorContext context = newContext(dir, "bucket", true);
+        new MirrorMaster(context).mirror();
+
+        assertEquals(3, stub.bucket("bucket").size());
+        assertEquals("small", content("bucket", "a/b/small"));
+        assertEquals("top", content("bucket", "top"));
+        assertTrue(Arrays.equals(large, stub.bucket("bucket").get("a/large").getData()));
+        assertEquals(3, context.getStats().partsUploaded.get());
+        assertEquals(1, context.getStats().objectsDeleted.get());
+        assertEquals(0, context.getStats().copyErrors.get());
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        final File dir = folder.newFolder("download");
+        new File(dir, "old/dir").mkdirs();
+        Files.write(new File(dir, "old/dir/removed").toPath(), "removed".getBytes(UTF_8));
+        Files.write(new File(dir, "same").toPath(), "same".getBytes(UTF_8));
+        Files.write(new File(dir, "changed").toPath(), "outdated".getBytes(UTF_8));
+        stub.put("bucket", "same", "same".getBytes(UTF_8));
+        stub.put("bucket", "changed", "new".getBytes(UTF_8));
+        stub.put("bucket", "x/y/large", large);
+
+        final MirrorContext context = newContext(dir, "bucket", false);
+        new MirrorMaster(context).mirror();
+
+        assertEquals("new", new String(Files.readAllBytes(new File(dir, "changed").toPath()), UTF_8));
+        assertTrue(Arrays.equals(large, Files.readAllBytes(new File(dir, "x/y/large").toPath())));
+        assertFalse("empty directories are removed", new File(dir, "old").exists());
+        assertEquals(2, context.getStats().objectsCopied.get());
+        assertEquals(1, context.getStats().objectsDeleted.get());
+        assertEquals(0, context.getStats().copyErrors.get());
+        assertEquals(0, context.getStats().deleteErrors.get());
+    }
+
+    @Test
+    public void testUnreadableFile() throws Exception {
+        final File dir = folder.newFolder("unreadable");
+        Files.write(new File(dir, "ok").toPath(), "ok".getBytes(UTF_8));
+        // its attributes can't be read
+        Files.createSymbolicLink(new File(dir, "dangling").toPath(), new File(dir, "missing").toPath());
+
+        final MirrorContext context = newContext(dir, "bucket", true);
+        new MirrorMaster(context).mirror();
+
+        assertEquals(1, stub.bucket("bucket").size());
+        assertEquals(1, context.getStats().listErrors.get());
+        assertTrue(context.hasErrors());
+    }
+
+    @Test
+    public void testDownloadConnections() throws Exception {
+        final MirrorContext context = newContext(folder.newFolder("connections"), "bucket", false);
+        // ranges of 5 MB
+        assertEquals(1, new BackendCopyJob(context, summary(5 * MB), new JobSignal()).getConnectionsNeeded());
+        assertEquals(2, new BackendCopyJob(context, summary(6 * MB), new JobSignal()).getConnectionsNeeded());
+        assertEquals(LocalBackend.DOWNLOAD_RANGES, new BackendCopyJob(context, summary(100 * MB), new JobSignal()).getConnectionsNeeded());
+    }
+
+    private static KeyObjectSummary summary(long size) {
+        final KeyObjectSummary summary = new KeyObjectSummary();
+        summary.setKey("key");
+        summary.setSize(size);
+        return summary;
+    }
+}
@@ -0,0 +1,64 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Mirrors a bucket of the LocalS3Stub with every engine, so it runs without an S3 endpoint.
+ */
+@RunWith(Parameterized.class)
+public class LocalMirrorTest extends StubMirrorTest {
+
+    private static final int KEYS = 120;
+
+    @Parameters(name = "{0} (same profile {1})")
+    public static Collection<Object[]> data() {
+        final ArrayList<Object[]> list = new ArrayList<Object[]>();
+        for (TransferEngine engine : TransferEngine.values()) {
+            list.add(new Object[] { engine, true });
+            list.add(new Object[] { engine, false });
+        }
+        return list;
+    }
+
+    @Parameter(0) public TransferEngine engine;
+    @Parameter(1) public boolean sameProfile;
+
+    @Override
+    protected long getLatency() { return 5; }
+
+    @Before
+    public void setUp() {
+        putKeys(SOURCE, "dir/", KEYS);
+        stub.put(DESTINATION, "dir/key-0", "value 0".getBytes(UTF_8));
+        stub.put(DESTINATION, "dir/key-1", "outdated".getBytes(UTF_8));
+    }
+
+    @Test
+    public void testMirror() throws Exception {
+        final MirrorMain main = newMain();
+        main.getOptions().setEngine(engine);
+        main.getOptions().setMaxThreads(20);
+        main.getOptions().setMaxRetries(2);
+        main.getOptions().setDeleteRemoved(true);
+        main.getOptions().setCompareSize(true);
+        stub.put(DESTINATION, "dir/removed", "removed".getBytes(UTF_8));
+
+        final MirrorContext context = mirror(main, sameProfile);
+        assertKeys(DESTINATION, "dir/", KEYS);
+        assertEquals(KEYS - 1, context.getStats().objectsCopied.get());
+        assertEquals(1, context.getStats().objectsDeleted.get());
+        assertEquals(0, context.getStats().copyErrors.get());
+        assertEquals(0, context.getStats().deleteErrors.get());
+    }
+}
@@ -0,0 +1,653 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A minimal S3 endpoint on localhost with path-style buckets, for tests and benchmarks that need many requests with a
+ * known latency. It knows just enough of the protocol for s3s3mirror: listing, HEAD, GET (with ranges), PUT,
+ * server-side copy, multipart uploads, DELETE, DeleteObjects and object ACLs. Requests are not authenticated, but
+ * copies can be denied by access key, and the requests for a key can be made to fail. Every request waits for the
+ * configured latency before it's answered.
+ */
+@Slf4j
+public class LocalS3Stub implements HttpHandler {
+
+    private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+    private static final String NS = " xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"";
+    private static final String OWNER = "<Owner><ID>stub</ID><DisplayName>stub</DisplayName></Owner>";
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final long latencyMillis;
+
+    // bucket name -> key -> object
+    private final Map<String, ConcurrentSkipListMap<String, StubObject>> buckets = new HashMap<String, ConcurrentSkipListMap<String, StubObject>>();
+
+    // upload id -> upload in progress
+    private final Map<String, StubUpload> uploads = new ConcurrentHashMap<String, StubUpload>();
+    private final AtomicLong uploadCounter = new AtomicLong(0);
+
+    // key -> error code and the number of DeleteObjects requests that fail on it
+    private final Map<String, String> deleteErrors = new ConcurrentHashMap<String, String>();
+    private final Map<String, AtomicInteger> deleteErrorCounts = new ConcurrentHashMap<String, AtomicInteger>();
+    @Getter private final AtomicLong deleteObjectsRequests = new AtomicLong(0);
+
+    // "METHOD key" -> the error that the next requests for the key fail with, in any bucket
+    private final Map<String, StubFault> faults = new ConcurrentHashMap<String, StubFault>();
+
+    // access keys whose copy requests are denied
+    private final Set<String> copyDenied = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    @Getter private final AtomicLong copyRequests = new AtomicLong(0);
+
+    // GET requests for object data
+    @Getter private final AtomicLong objectGets = new AtomicLong(0);
+    @Getter private final AtomicLong listRequests = new AtomicLong(0);
+    // PUT requests with a Content-MD5, which is checked like S3 does
+    @Getter private final AtomicLong contentMD5Requests = new AtomicLong(0);
+
+    @Getter private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    @Getter private volatile int maxInFlight = 0;
+
+    public LocalS3Stub(long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 4096);
+        this.server.createContext("/", this);
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    public String getEndpoint() { return "http://127.0.0.1:" + server.getAddress().getPort(); }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public synchronized ConcurrentSkipListMap<String, StubObject> bucket(String name) {
+        ConcurrentSkipListMap<String, StubObject> bucket = buckets.get(name);
+        if (bucket == null) {
+            bucket = new ConcurrentSkipListMap<String, StubObject>();
+            buckets.put(name, bucket);
+        }
+        return bucket;
+    }
+
+    public void put(String bucket, String key, byte[] data) {
+        bucket(bucket).put(key, new StubObject(data, "application/octet-stream", new HashMap<String, String>()));
+    }
+
+    /**
+     * Makes the next DeleteObjects requests report an error for the key, the key is deleted once they're used up.
+     */
+    public void failDelete(String key, String code, int times) {
+        deleteErrors.put(key, code);
+        deleteErrorCounts.put(key, new AtomicInteger(times));
+    }
+
+    /**
+     * Makes the next requests with the method for the key fail with the status and error code, in any bucket.
+     */
+    public void failRequests(String method, String key, int status, String code, int times) {
+        faults.put(method + " " + key, new StubFault(status, code, times));
+    }
+
+    /**
+     * Answers copy requests signed with the access key with 403 AccessDenied.
+     */
+    public void denyCopy(String accessKeyId) { copyDenied.add(accessKeyId); }
+
+    public void setLastModified(String bucket, String key, long time) { bucket(bucket).get(key).lastModified = time; }
+
+    public void resetStats() {
+        requests.set(0);
+        maxInFlight = 0;
+    }
+
+    /**
+     * Points the profile to this endpoint. The credentials are not checked.
+     */
+    public void configure(MirrorProfile profile, String name) {
+        profile.setName(name);
+        profile.setEndpoint(getEndpoint());
+        profile.setRegion("us-east-1");
+        profile.setAWSAccessKeyId(name);
+        profile.setAWSSecretKey("stub");
+        if (!profile.hasOption(MirrorProfileOptions.PATH_STYLE_ACCESS)) profile.addOption(MirrorProfileOptions.PATH_STYLE_ACCESS);
+    }
+
+    /**
+     * Sets up a mirror between two buckets of this endpoint with the options of main. With sameProfile objects are
+     * copied on the server, otherwise they're downloaded and uploaded again.
+     */
+    public MirrorContext newContext(MirrorMain main, String sourceBucket, String destinationBucket, boolean sameProfile) {
+        final MirrorOptions options = main.getOptions();
+        options.setSourceBucket(sourceBucket);
+        options.setDestinationBucket(destinationBucket);
+        configure(options.getSourceProfile(), "stub");
+        if (sameProfile) {
+            options.setDestinationProfile(options.getSourceProfile());
+        } else {
+            configure(options.getDestinationProfile(), "stub-destination");
+        }
+        options.setMaxConnections(Math.max(options.getMaxConnections(), options.getMaxThreads()));
+        options.initDerivedFields();
+
+        final AmazonS3 sourceClient = main.getAmazonS3Client(options.getSourceProfile());
+        final AmazonS3 destinationClient = sameProfile ? sourceClient : main.getAmazonS3Client(options.getDestinationProfile());
+        final MirrorContext context = new MirrorContext(options, sourceClient, destinationClient, null, null);
+        main.initCsePassthrough(context);
+        main.initParallelCse(context);
+        return context;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        final int current = inFlight.incrementAndGet();
+        if (current > maxInFlight) maxInFlight = current;
+        try {
+            if (latencyMillis > 0) TimeUnit.MILLISECONDS.sleep(latencyMillis);
+            // HttpServer sometimes drops kept-alive connections under load, which the clients see as broken pipes
+            exchange.getResponseHeaders().set("Connection", "close");
+            dispatch(exchange);
+        } catch (InterruptedException e) {
+            send(exchange, 503, null);
+        } catch (Exception e) {
+            log.error("Error handling {} {}", exchange.getRequestMethod(), exchange.getRequestURI(), e);
+            error(exchange, 500, "InternalError");
+        } finally {
+            inFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException {
+        final String method = exchange.getRequestMethod();
+        final String path = decode(exchange.getRequestURI().getRawPath()).substring(1);
+        final Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+        final int slash = path.indexOf('/');
+        final String bucketName = slash == -1 ? path : path.substring(0, slash);
+        final String key = slash == -1 ? "" : path.substring(slash + 1);
+        final ConcurrentSkipListMap<String, StubObject> bucket = bucket(bucketName);
+
+        if (key.length() == 0) {
+            if (method.equals("POST") && query.containsKey("delete")) {
+                deleteObjects(exchange, bucket);
+            } else if (method.equals("GET")) {
+                list(exchange, bucketName, bucket, query);
+            } else {
+                send(exchange, 200, null);
+            }
+            return;
+        }
+
+        final StubFault fault = faults.get(method + " " + key);
+        if (fault != null && fault.remaining.getAndDecrement() > 0) {
+            error(exchange, fault.status, fault.code);
+            return;
+        }
+
+        if (exchange.getRequestHeaders().getFirst("x-amz-copy-source") != null) {
+            copyRequests.incrementAndGet();
+            if (copyDenied.contains(accessKey(exchange))) {
+                error(exchange, 403, "AccessDenied");
+                return;
+            }
+        }
+
+        if (query.containsKey("uploads") || query.containsKey("uploadId")) {
+            multipart(exchange, method, bucketName, key, bucket, query);
+            return;
+        }
+
+        final StubObject object = bucket.get(key);
+        if (method.equals("HEAD") || (method.equals("GET") && !query.containsKey("acl"))) {
+            if (object == null) {
+                error(exchange, 404, "NoSuchKey");
+                return;
+            }
+            final Headers headers = exchange.getResponseHeaders();
+            headers.set("ETag", "\"" + object.etag + "\"");
+            headers.set("Last-Modified", httpDate(object.lastModified));
+            headers.set("Content-Type", object.contentType);
+            for (Map.Entry<String, String> entry : object.metadata.entrySet()) {
+                headers.set("x-amz-meta-" + entry.getKey(), entry.getValue());
+            }
+            if (method.equals("HEAD")) {
+                headers.set("Content-Length", Integer.toString(object.data.length));
+                exchange.sendResponseHeaders(200, -1);
+            } else {
+                objectGets.incrementAndGet();
+                final int[] range = range(exchange.getRequestHeaders().getFirst("Range"), object.data.length);
+                if (range == null) {
+                    send(exchange, 200, object.data);
+                } else {
+                    headers.set("Content-Range", "bytes " + range[0] + "-" + (range[1] - 1) + "/" + object.data.length);
+                    send(exchange, 206, Arrays.copyOfRange(object.data, range[0], range[1]));
+                }
+            }
+
+        } else if (method.equals("GET")) {
+            if (object == null) {
+                error(exchange, 404, "NoSuchKey");
+                return;
+            }
+            xml(exchange, 200, "<AccessControlPolicy" + NS + ">" + OWNER + "<AccessControlList><Grant>"
+                    + "<Grantee xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:type=\"CanonicalUser\">"
+                    + "<ID>stub</ID><DisplayName>stub</DisplayName></Grantee><Permission>FULL_CONTROL</Permission>"
+                    + "</Grant></AccessControlList></AccessControlPolicy>");
+
+        } else if (method.equals("PUT")) {
+            final Headers request = exchange.getRequestHeaders();
+            final String copySource = request.getFirst("x-amz-copy-source");
+            final StubObject stored;
+            if (copySource != null) {
+                final StubObject sourceObject = sourceObject(copySource);
+                if (sourceObject == null) {
+                    error(exchange, 404, "NoSuchKey");
+                    return;
+                }
+                final String ifMatch = request.getFirst("x-amz-copy-source-if-match");
+                if (ifMatch != null && !ifMatch.replace("\"", "").equals(sourceObject.etag)) {
+                    error(exchange, 412, "PreconditionFailed");
+                    return;
+                }
+                final boolean replace = "REPLACE".equalsIgnoreCase(request.getFirst("x-amz-metadata-directive"));
+                stored = replace
+                        ? new StubObject(sourceObject.data, contentType(request), userMetadata(request))
+                        : new StubObject(sourceObject.data, sourceObject.contentType, sourceObject.metadata);
+                bucket.put(key, stored);
+                xml(exchange, 200, "<CopyObjectResult" + NS + "><LastModified>" + isoDate(stored.lastModified)
+                        + "</LastModified><ETag>\"" + stored.etag + "\"</ETag></CopyObjectResult>");
+            } else {
+                final byte[] body = readBody(exchange);
+                final String contentMD5 = request.getFirst("Content-MD5");
+                if (contentMD5 != null) {
+                    contentMD5Requests.incrementAndGet();
+                    if (!contentMD5.equals(Base64.getEncoder().encodeToString(md5(body)))) {
+                        error(exchange, 400, "BadDigest");
+                        return;
+                    }
+                }
+                stored = new StubObject(body, contentType(request), userMetadata(request));
+                bucket.put(key, stored);
+                exchange.getResponseHeaders().set("ETag", "\"" + stored.etag + "\"");
+                send(exchange, 200, null);
+            }
+
+        } else if (method.equals("DELETE")) {
+            bucket.remove(key);
+            send(exchange, 204, null);
+
+        } else {
+            error(exchange, 501, "NotImplemented");
+        }
+    }
+
+    private void multipart(HttpExchange exchange, String method, String bucketName, String key,
+                           ConcurrentSkipListMap<String, StubObject> bucket, Map<String, String> query) throws IOException {
+        final Headers request = exchange.getRequestHeaders();
+        if (method.equals("POST") && query.containsKey("uploads")) {
+            final String uploadId = "upload-" + uploadCounter.incrementAndGet();
+            uploads.put(uploadId, new StubUpload(contentType(request), userMetadata(request)));
+            xml(exchange, 200, "<InitiateMultipartUploadResult" + NS + "><Bucket>" + bucketName + "</Bucket><Key>"
+                    + escape(key) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+            return;
+        }
+
+        final String uploadId = query.get("uploadId");
+        final StubUpload upload = uploads.get(uploadId);
+        if (upload == null) {
+            error(exchange, 404, "NoSuchUpload");
+            return;
+        }
+
+        if (method.equals("PUT")) {
+            final int partNumber = Integer.parseInt(query.get("partNumber"));
+            final String copySource = request.getFirst("x-amz-copy-source");
+            if (copySource != null) {
+                final StubObject sourceObject = sourceObject(copySource);
+                if (sourceObject == null) {
+                    error(exchange, 404, "NoSuchKey");
+                    return;
+                }
+                final String ifMatch = request.getFirst("x-amz-copy-source-if-match");
+                if (ifMatch != null && !ifMatch.replace("\"", "").equals(sourceObject.etag)) {
+                    error(exchange, 412, "PreconditionFailed");
+                    return;
+                }
+                final int[] range = range(request.getFirst("x-amz-copy-source-range"), sourceObject.data.length);
+                final byte[] part = range == null ? sourceObject.data : Arrays.copyOfRange(sourceObject.data, range[0], range[1]);
+                upload.parts.put(partNumber, part);
+                xml(exchange, 200, "<CopyPartResult" + NS + "><LastModified>" + isoDate(System.currentTimeMillis())
+                        + "</LastModified><ETag>\"" + md5Hex(part) + "\"</ETag></CopyPartResult>");
+            } else {
+                final byte[] part = readBody(exchange);
+                final String contentMD5 = request.getFirst("Content-MD5");
+                if (contentMD5 != null) {
+                    contentMD5Requests.incrementAndGet();
+                    if (!contentMD5.equals(Base64.getEncoder().encodeToString(md5(part)))) {
+                        error(exchange, 400, "BadDigest");
+                        return;
+                    }
+                }
+                upload.parts.put(partNumber, part);
+                exchange.getResponseHeaders().set("ETag", "\"" + md5Hex(part) + "\"");
+                send(exchange, 200, null);
+            }
+
+        } else if (method.equals("POST")) {
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            final ByteArrayOutputStream partDigests = new ByteArrayOutputStream();
+            for (byte[] part : upload.parts.values()) {
+                data.write(part);
+                partDigests.write(md5(part));
+            }
+            // like S3, the MD5 of the MD5s of the parts and their number
+            final StubObject stored = new StubObject(data.toByteArray(), upload.contentType, upload.metadata,
+                    md5Hex(partDigests.toByteArray()) + "-" + upload.parts.size());
+            bucket.put(key, stored);
+            uploads.remove(uploadId);
+            xml(exchange, 200, "<CompleteMultipartUploadResult" + NS + "><Location>" + getEndpoint() + "/" + bucketName
+                    + "/" + escape(key) + "</Location><Bucket>" + bucketName + "</Bucket><Key>" + escape(key)
+                    + "</Key><ETag>\"" + stored.etag + "\"</ETag></CompleteMultipartUploadResult>");
+
+        } else if (method.equals("DELETE")) {
+            uploads.remove(uploadId);
+            send(exchange, 204, null);
+
+        } else {
+            error(exchange, 501, "NotImplemented");
+        }
+    }
+
+    private void deleteObjects(HttpExchange exchange, ConcurrentSkipListMap<String, StubObject> bucket) throws IOException {
+        deleteObjectsRequests.incrementAndGet();
+        final String body = new String(readBody(exchange), UTF_8);
+        final boolean quiet = body.contains("<Quiet>true</Quiet>");
+        final StringBuilder xml = new StringBuilder("<DeleteResult" + NS + ">");
+        final Matcher matcher = Pattern.compile("<Key>(.*?)</Key>", Pattern.DOTALL).matcher(body);
+        while (matcher.find()) {
+            final String key = unescape(matcher.group(1));
+            final AtomicInteger errors = deleteErrorCounts.get(key);
+            if (errors != null && errors.getAndDecrement() > 0) {
+                xml.append("<Error><Key>").append(escape(key)).append("</Key><Code>").append(deleteErrors.get(key))
+                   .append("</Code><Message>stub error</Message></Error>");
+                continue;
+            }
+            bucket.remove(key);
+            if (!quiet) xml.append("<Deleted><Key>").append(escape(key)).append("</Key></Deleted>");
+        }
+        xml.append("</DeleteResult>");
+        xml(exchange, 200, xml.toString());
+    }
+
+    private static String accessKey(HttpExchange exchange) {
+        final String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null) return null;
+        final Matcher matcher = Pattern.compile("Credential=([^/]+)/|^AWS ([^:]+):").matcher(authorization);
+        if (!matcher.find()) return null;
+        return matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+    }
+
+    private StubObject sourceObject(String copySource) {
+        String source = decode(copySource);
+        if (source.startsWith("/")) source = source.substring(1);
+        final int slash = source.indexOf('/');
+        return bucket(source.substring(0, slash)).get(source.substring(slash + 1));
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        final byte[] data = IOUtils.toByteArray(exchange.getRequestBody());
+        final String sha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        return sha256 != null && sha256.startsWith("STREAMING-") ? decodeChunks(data) : data;
+    }
+
+    /**
+     * @return the start and the end (exclusive) of a "bytes=first-last" range, or null without a range
+     */
+    static int[] range(String header, int length) {
+        if (header == null || !header.startsWith("bytes=")) return null;
+        final String[] parts = header.substring("bytes=".length()).split("-", 2);
+        final int start = Integer.parseInt(parts[0]);
+        final int end = parts.length < 2 || parts[1].length() == 0 ? length : Math.min(length, Integer.parseInt(parts[1]) + 1);
+        return new int[] { start, end };
+    }
+
+    private void list(HttpExchange exchange, String bucketName, ConcurrentSkipListMap<String, StubObject> bucket,
+                      Map<String, String> query) throws IOException {
+        listRequests.incrementAndGet();
+        final String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+        final String marker = query.get("marker");
+        final int maxKeys = query.containsKey("max-keys") ? Integer.parseInt(query.get("max-keys")) : 1000;
+        final boolean encode = "url".equals(query.get("encoding-type"));
+
+        final StringBuilder xml = new StringBuilder("<ListBucketResult" + NS + ">");
+        xml.append("<Name>").append(bucketName).append("</Name>")
+           .append("<Prefix>").append(escape(encode ? encode(prefix) : prefix)).append("</Prefix>")
+           .append("<MaxKeys>").append(maxKeys).append("</MaxKeys>");
+        if (encode) xml.append("<EncodingType>url</EncodingType>");
+
+        final SortedMap<String, StubObject> tail = marker == null ? bucket : bucket.tailMap(marker, false);
+        int count = 0;
+        String last = null;
+        boolean truncated = false;
+        for (Map.Entry<String, StubObject> entry : tail.entrySet()) {
+            final String key = entry.getKey();
+            if (!key.startsWith(prefix)) continue;
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            final StubObject object = entry.getValue();
+            xml.append("<Contents><Key>").append(escape(encode ? encode(key) : key)).append("</Key>")
+               .append("<LastModified>").append(isoDate(object.lastModified)).append("</LastModified>")
+               .append("<ETag>&quot;").append(object.etag).append("&quot;</ETag>")
+               .append("<Size>").append(object.data.length).append("</Size>")
+               .append("<StorageClass>STANDARD</StorageClass>").append(OWNER).append("</Contents>");
+            last = key;
+            count++;
+        }
+        xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (truncated) xml.append("<NextMarker>").append(escape(encode ? encode(last) : last)).append("</NextMarker>");
+        xml.append("</ListBucketResult>");
+        xml(exchange, 200, xml.toString());
+    }
+
+    /**
+     * Removes the chunk headers of an aws-chunked body, see STREAMING-AWS4-HMAC-SHA256-PAYLOAD.
+     */
+    static byte[] decodeChunks(byte[] body) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(body.length);
+        int pos = 0;
+        while (pos < body.length) {
+            int lineEnd = pos;
+            while (lineEnd < body.length - 1 && !(body[lineEnd] == '\r' && body[lineEnd + 1] == '\n')) lineEnd++;
+            String header = new String(body, pos, lineEnd - pos, UTF_8);
+            final int semicolon = header.indexOf(';');
+            if (semicolon != -1) header = header.substring(0, semicolon);
+            final int size = Integer.parseInt(header.trim(), 16);
+            if (size == 0) break;
+            out.write(body, lineEnd + 2, size);
+            pos = lineEnd + 2 + size + 2;
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> userMetadata(Headers headers) {
+        final Map<String, String> metadata = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            final String name = entry.getKey().toLowerCase();
+            if (name.startsWith("x-amz-meta-")) metadata.put(name.substring("x-amz-meta-".length()), entry.getValue().get(0));
+        }
+        return metadata;
+    }
+
+    private static String contentType(Headers headers) {
+        final String contentType = headers.getFirst("Content-Type");
+        return contentType == null ? "application/octet-stream" : contentType;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        final Map<String, String> query = new HashMap<String, String>();
+        if (rawQuery == null) return query;
+        for (String param : rawQuery.split("&")) {
+            if (param.length() == 0) continue;
+            final int eq = param.indexOf('=');
+            if (eq == -1) {
+                query.put(decode(param), "");
+            } else {
+                query.put(decode(param.substring(0, eq)), decode(param.substring(eq + 1)));
+            }
+        }
+        return query;
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s.replace("+", "%2B"), "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8").replace("+", "%20");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static String unescape(String s) {
+        return s.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'").replace("&amp;", "&");
+    }
+
+    private static String httpDate(long time) {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    private static String isoDate(long time) {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    private static void error(HttpExchange exchange, int status, String code) throws IOException {
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        xml(exchange, status, "<Error><Code>" + code + "</Code><Message>" + code + "</Message>"
+                + "<RequestId>stub</RequestId></Error>");
+    }
+
+    private static void xml(HttpExchange exchange, int status, String xml) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        send(exchange, status, (XML_HEADER + xml).getBytes(UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+        if (body == null || body.length == 0) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static String md5Hex(byte[] data) {
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : md5(data)) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    private static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static class StubObject {
+        @Getter private final byte[] data;
+        @Getter private final String contentType;
+        @Getter private final Map<String, String> metadata;
+        private final String etag;
+        private volatile long lastModified = System.currentTimeMillis();
+
+        StubObject(byte[] data, String contentType, Map<String, String> metadata) {
+            this(data, contentType, metadata, md5Hex(data));
+        }
+
+        StubObject(byte[] data, String contentType, Map<String, String> metadata, String etag) {
+            this.data = data;
+            this.contentType = contentType;
+            this.metadata = metadata;
+            this.etag = etag;
+        }
+    }
+
+    private static class StubFault {
+        private final int status;
+        private final String code;
+        private final AtomicInteger remaining;
+
+        StubFault(int status, String code, int times) {
+            this.status = status;
+            this.code = code;
+            this.remaining = new AtomicInteger(times);
+        }
+    }
+
+    private static class StubUpload {
+        private final String contentType;
+        private final Map<String, String> metadata;
+        private final ConcurrentSkipListMap<Integer, byte[]> parts = new ConcurrentSkipListMap<Integer, byte[]>();
+
+        StubUpload(String contentType, Map<String, String> metadata) {
+            this.contentType = contentType;
+            this.metadata = metadata;
+        }
+    }
+}
@@ -111,6 +111,42 @@ public class MirrorMainTest {
         }
     }
 
+    @Test
+    public void testDeferredRetryWithAsyncEngine() throws Exception {
+        final MirrorMain main = new MirrorMain(ArrayUtils.addAll(STANDARD_ARGUMENTS, new String[]{LONGOPT_ENGINE, "ASYNC", LONGOPT_DEFERRED_RETRY, SOURCE, DESTINATION}));
+        try {
+            main.parseArguments();
+            fail("expected IllegalStateException");
+        } catch (Exception e) {
+            assertTrue(e instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testDedupWithExtraDestination() throws Exception {
+        final MirrorMain main = new MirrorMain(ArrayUtils.addAll(STANDARD_ARGUMENTS, new String[]{LONGOPT_DEDUP, LONGOPT_EXTRA_DESTINATION, PROFILE + ":other-bucket", SOURCE, DESTINATION}));
+        try {
+            main.parseArguments();
+            fail("expected IllegalStateException");
+        } catch (Exception e) {
+            assertTrue(e instanceof IllegalStateException);
+            assertTrue(e.getMessage().startsWith(LONGOPT_DEDUP));
+        }
+    }
+
+    @Test
+    public void testDeltaWithExtraDestination() throws Exception {
+        final String deltaDir = System.getProperty("java.io.tmpdir");
+        final MirrorMain main = new MirrorMain(ArrayUtils.addAll(STANDARD_ARGUMENTS, new String[]{LONGOPT_DELTA, deltaDir, LONGOPT_EXTRA_DESTINATION, PROFILE + ":other-bucket", SOURCE, DESTINATION}));
+        try {
+            main.parseArguments();
+            fail("expected IllegalStateException");
+        } catch (Exception e) {
+            assertTrue(e instanceof IllegalStateException);
+            assertTrue(e.getMessage().startsWith(LONGOPT_DELTA));
+        }
+    }
+
     @Test
     public void testProxyHostAndProxyPortOption() throws Exception {
         final MirrorMain main = new MirrorMain(ArrayUtils.addAll(STANDARD_ARGUMENTS, new String[]{SOURCE, DESTINATION}));
@@ -171,4 +207,19 @@ public class MirrorMainTest {
         main.parseArguments();
         assertTrue(main.getOptions().isCompareSize());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSizeLanes() throws Exception {
+        final MirrorMain main = new MirrorMain(ArrayUtils.addAll(STANDARD_ARGUMENTS, new String[]{LONGOPT_SIZE_LANES,
+                LONGOPT_LANE_THREADS, "10,6,4", LONGOPT_LANE_CONNECTIONS, "20,12,8", SOURCE, DESTINATION}));
+        main.parseArguments();
+
+        final MirrorOptions options = main.getOptions();
+        assertTrue(options.isSizeLanes());
+        assertEquals(6, options.getLaneThreads(SizeClass.MEDIUM));
+        assertEquals(8, options.getLaneConnections(SizeClass.LARGE));
+        assertEquals(40, options.getMaxConnections());
+        assertEquals(SizeClass.SMALL, SizeClass.of(options, 1024));
+        assertEquals(SizeClass.LARGE, SizeClass.of(options, options.getLargeObjectSize() + 1));
+    }
+}
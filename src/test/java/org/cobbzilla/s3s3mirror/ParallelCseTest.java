@@ -0,0 +1,116 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.util.IOUtils;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+import static org.junit.Assert.*;
+
+/**
+ * Checks GcmParts against the AES/GCM cipher of the JDK, and that the SDK decrypts objects uploaded by
+ * ParallelCseUploadJob to the LocalS3Stub.
+ */
+public class ParallelCseTest extends StubMirrorTest {
+
+    private static byte[] randomBytes(int length) {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testSameAsGcm() throws Exception {
+        final KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        final SecretKey key = generator.generateKey();
+        final byte[] iv = randomBytes(GcmParts.IV_LENGTH);
+
+        for (int lastPart : new int[] {1, 15, 16, 1000}) {
+            final int[] lengths = {4096, 160, 32, lastPart};
+            int total = 0;
+            for (int length : lengths) total += length;
+            final byte[] plaintext = randomBytes(total);
+
+            final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GcmParts.TAG_LENGTH * 8, iv));
+            final byte[] expected = cipher.doFinal(plaintext);
+
+            // encrypt the parts out of order
+            final GcmParts gcm = new GcmParts(key, iv);
+            final byte[][] partials = new byte[lengths.length][];
+            final long[] partLengths = new long[lengths.length];
+            final byte[] ciphertext = new byte[total + GcmParts.TAG_LENGTH];
+            for (int i = lengths.length - 1; i >= 0; i--) {
+                int offset = 0;
+                for (int j = 0; j < i; j++) offset += lengths[j];
+                final byte[] part = Arrays.copyOfRange(plaintext, offset, offset + lengths[i]);
+                partials[i] = gcm.encrypt(offset, part, part.length);
+                partLengths[i] = part.length;
+                System.arraycopy(part, 0, ciphertext, offset, part.length);
+            }
+            System.arraycopy(gcm.tag(partials, partLengths), 0, ciphertext, total, GcmParts.TAG_LENGTH);
+
+            assertArrayEquals("last part " + lastPart, expected, ciphertext);
+        }
+    }
+
+    private void mirror(boolean instructionFile) throws Exception {
+        final byte[] data = randomBytes((int) (12 * MB) + 7);
+        stub.put(SOURCE, "large", data);
+
+        final MirrorMain main = newMain();
+        final MirrorOptions options = main.getOptions();
+        options.setMaxThreads(2);
+        options.setMaxRetries(2);
+        options.setMaxSingleRequestUploadSize(6 * MB);
+        options.setUploadPartSize(5 * MB);
+        options.setCsePartThreads(3);
+        final MirrorProfile destination = options.getDestinationProfile();
+        destination.setEncryption(MirrorEncryption.CSE_AES_GCM_256_STRICT.name());
+        destination.setEncryptionKey("parallel");
+        if (instructionFile) destination.addOption(MirrorProfileOptions.CSM_INSTRUCTION_FILE);
+
+        final MirrorContext context = newContext(main);
+        assertTrue(context.getParallelCse().isEnabled());
+        new MirrorMaster(context).mirror();
+
+        assertEquals(1, context.getStats().objectsCopied.get());
+        assertEquals(0, context.getStats().copyErrors.get());
+        assertEquals(3, context.getStats().partsUploaded.get());
+        assertEquals(data.length + GcmParts.TAG_LENGTH, stub.bucket(DESTINATION).get("large").getData().length);
+        assertEquals(instructionFile, stub.bucket(DESTINATION).containsKey("large" + ParallelCse.INSTRUCTION_SUFFIX));
+
+        final byte[] decrypted = IOUtils.toByteArray(context.getDestinationClient().getObject(DESTINATION, "large").getObjectContent());
+        assertArrayEquals(data, decrypted);
+    }
+
+    @Test
+    public void testSdkDecrypts() throws Exception {
+        mirror(false);
+    }
+
+    @Test
+    public void testInstructionFile() throws Exception {
+        mirror(true);
+    }
+
+    @Test
+    public void testNeedsGcm() {
+        final MirrorOptions options = new MirrorOptions();
+        options.setCsePartThreads(4);
+        options.getDestinationProfile().setEncryption(MirrorEncryption.CSE_AES_256.name());
+        options.getDestinationProfile().setEncryptionKey("parallel");
+        assertFalse(ParallelCse.isPossible(options));
+        options.getDestinationProfile().setEncryption(MirrorEncryption.CSE_AES_GCM_256.name());
+        assertTrue(ParallelCse.isPossible(options));
+        options.setCsePartThreads(1);
+        assertFalse(ParallelCse.isPossible(options));
+    }
+}
@@ -0,0 +1,69 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Test;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.GB;
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+import static org.cobbzilla.s3s3mirror.MirrorConstants.TB;
+import static org.cobbzilla.s3s3mirror.PartSizer.*;
+import static org.junit.Assert.*;
+
+public class PartSizerTest {
+
+    @Test
+    public void testFixedPartSizeIsKept() throws Exception {
+        assertEquals(64 * MB, choosePartSize(100 * GB, 64 * MB, MAX_PART_SIZE, false));
+        assertEquals(10000000, choosePartSize(100 * MB, 10000000, MAX_PART_SIZE, false));
+    }
+
+    @Test
+    public void testPartCountLimit() throws Exception {
+        final long objectSize = 5 * TB;
+        final long partSize = choosePartSize(objectSize, 64 * MB, MAX_PART_SIZE, false);
+        assertTrue(ceilDiv(objectSize, partSize) <= MAX_PARTS);
+
+        // the part count limit wins over the memory budget
+        final long budgetPartSize = choosePartSize(objectSize, 64 * MB, 16 * MB, true);
+        assertTrue(ceilDiv(objectSize, budgetPartSize) <= MAX_PARTS);
+    }
+
+    @Test
+    public void testMinimumPartSize() throws Exception {
+        assertEquals(MIN_PART_SIZE, choosePartSize(100 * MB, MB, MAX_PART_SIZE, false));
+        assertEquals(MIN_PART_SIZE, choosePartSize(100 * MB, MB, MAX_PART_SIZE, true));
+    }
+
+    @Test
+    public void testBalancedParts() throws Exception {
+        // 70 MB with 64 MB parts would leave a 6 MB tail, balanced it's two parts of 35 MB
+        assertEquals(35 * MB, choosePartSize(70 * MB, 64 * MB, MAX_PART_SIZE, true));
+
+        // balanced part sizes are whole megabytes and never need more parts than requested
+        final long objectSize = 1000 * MB + 12345;
+        final long partSize = choosePartSize(objectSize, 64 * MB, MAX_PART_SIZE, true);
+        assertEquals(0, partSize % MB);
+        assertEquals(ceilDiv(objectSize, 64 * MB), ceilDiv(objectSize, partSize));
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        assertEquals(16 * MB, choosePartSize(GB, 64 * MB, 16 * MB, true));
+    }
+
+    @Test
+    public void testPreferredPartSizeFromThroughput() throws Exception {
+        final MirrorOptions options = new MirrorOptions();
+        options.setAdaptivePartSize(true);
+        options.setPartMemoryBudget(100 * GB);
+        final MirrorStats stats = new MirrorStats();
+        final PartSizer sizer = new PartSizer(options, stats);
+
+        // not enough measurements: fall back to --upload-part-size
+        assertEquals(options.getUploadPartSize(), sizer.getPreferredPartSize(false));
+
+        // 8 MB/s per part stream -> 240 MB parts
+        for (int i = 0; i < MIN_MEASURED_PARTS; i++) stats.recordPartUpload(8 * MB, 1000);
+        assertEquals(8 * MB * TARGET_PART_MILLIS / 1000, sizer.getPreferredPartSize(false));
+        assertEquals(240 * MB, sizer.getPartSize(40 * 240 * MB, false));
+    }
+}
@@ -0,0 +1,86 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Writes a --plan for buckets of the LocalS3Stub and executes it in two shards.
+ */
+public class PlanTest extends StubMirrorTest {
+
+    private static final int KEYS = 100;
+    private static final int SAME = 50;
+    private static final int RESIZED = 10;
+    private static final int GONE = 5;
+    private static final int SHARDS = 2;
+
+    private File planFile;
+
+    @Before
+    public void setUp() throws Exception {
+        putKeys(SOURCE, "", KEYS);
+        putKeys(DESTINATION, "", SAME);
+        for (int i = SAME; i < SAME + RESIZED; i++) stub.put(DESTINATION, "key-" + i, "old".getBytes(UTF_8));
+        for (int i = 0; i < GONE; i++) stub.put(DESTINATION, "gone-" + i, "gone".getBytes(UTF_8));
+        planFile = File.createTempFile("PlanTest", ".plan");
+    }
+
+    @After
+    public void tearDown() {
+        if (!planFile.delete()) planFile.deleteOnExit();
+    }
+
+    @Test
+    public void testPlanAndExecute() throws Exception {
+        final MirrorMain planner = newMain();
+        planner.getOptions().setCompareSize(true);
+        planner.getOptions().setDeleteRemoved(true);
+        planner.getOptions().setPlan(planFile.getPath());
+        final MirrorContext planContext = newContext(planner);
+        final MirrorPlan plan = new MirrorPlan(planContext);
+        plan.write(planFile);
+
+        // nothing but listings
+        assertEquals(stub.getRequests().get(), stub.getListRequests().get());
+        assertEquals(KEYS - SAME, plan.getCopies());
+        assertEquals(GONE, plan.getDeletes());
+        assertEquals(SAME, plan.getUnchanged());
+        assertEquals(2 * (KEYS - SAME) + GONE, plan.getRequests(RetryPolicy.Operation.HEAD));
+        assertEquals(KEYS - SAME, plan.getRequests(RetryPolicy.Operation.COPY) + plan.getRequests(RetryPolicy.Operation.PUT));
+        assertTrue(plan.getCost() > 0);
+        final List<String> lines = Files.readAllLines(planFile.toPath(), UTF_8);
+        assertEquals(MirrorPlan.HEADER, lines.get(0));
+        assertTrue(lines.contains("D\tgone-0\t4\t"));
+        MirrorPlan.checkPlan(planFile, planner.getOptions());
+        assertEquals(SAME + RESIZED + GONE, stub.bucket(DESTINATION).size());
+
+        long copied = 0;
+        for (int i = 0; i < SHARDS; i++) {
+            final MirrorMain main = newMain();
+            main.getOptions().setMaxThreads(2);
+            main.getOptions().setExecutePlan(planFile.getPath());
+            main.getOptions().setKeyShard(new Shard(i, SHARDS, null));
+            final MirrorContext context = mirror(main);
+            copied += context.getStats().objectsCopied.get();
+            assertFalse(context.hasErrors());
+        }
+        assertEquals(KEYS - SAME, copied);
+        assertKeys(DESTINATION, "", KEYS);
+
+        final MirrorMain other = newMain();
+        stub.newContext(other, SOURCE, "other", false);
+        try {
+            MirrorPlan.checkPlan(planFile, other.getOptions());
+            fail("a plan for another destination");
+        } catch (IOException expected) {}
+    }
+}
@@ -0,0 +1,72 @@
+package org.cobbzilla.s3s3mirror;
+
+import com.amazonaws.ResetException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import org.junit.Test;
+
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+    private static AmazonS3Exception s3Exception(int status, String code) {
+        final AmazonS3Exception e = new AmazonS3Exception("test");
+        e.setStatusCode(status);
+        e.setErrorCode(code);
+        return e;
+    }
+
+    @Test
+    public void testErrorClasses() throws Exception {
+        assertEquals(ErrorClass.THROTTLE, ErrorClass.of(s3Exception(503, "SlowDown")));
+        assertEquals(ErrorClass.THROTTLE, ErrorClass.of(s3Exception(400, "RequestLimitExceeded")));
+        assertEquals(ErrorClass.TIMEOUT, ErrorClass.of(s3Exception(400, "RequestTimeout")));
+        assertEquals(ErrorClass.TRANSIENT, ErrorClass.of(s3Exception(500, "InternalError")));
+        assertEquals(ErrorClass.PERMANENT, ErrorClass.of(s3Exception(403, "AccessDenied")));
+        assertEquals(ErrorClass.TRANSIENT, ErrorClass.of(new ResetException("test")));
+        assertEquals(ErrorClass.TIMEOUT, ErrorClass.of(new SdkClientException("test", new SocketTimeoutException())));
+        assertFalse(ErrorClass.PERMANENT.isRetryable());
+    }
+
+    @Test
+    public void testDelayBounds() throws Exception {
+        long previous = 0;
+        for (int i = 0; i < 100; i++) {
+            final long delay = RetryPolicy.nextDelay(50, 1000, previous);
+            assertTrue(delay >= 50);
+            assertTrue(delay <= 1000);
+            assertTrue(delay <= Math.max(50, previous * 3));
+            previous = delay;
+        }
+    }
+
+    @Test
+    public void testPermanentErrorIsNotRetried() throws Exception {
+        final MirrorContext context = new MirrorContext(new MirrorOptions(), null, null, null, null);
+        final RetryPolicy.Retry retry = context.getRetryPolicy().begin(RetryPolicy.Operation.HEAD, null);
+        assertFalse(retry.backoff(s3Exception(403, "AccessDenied")));
+        assertEquals(0, context.getStats().getRetries(RetryPolicy.Operation.HEAD));
+    }
+
+    @Test
+    public void testBudget() throws Exception {
+        final MirrorOptions options = new MirrorOptions();
+        options.setMaxRetries(10);
+        options.setRetryBudget(2 * RetryPolicy.RETRY_COST);
+        options.setRetryBaseDelay(1);
+        options.setRetryMaxDelay(1);
+        final MirrorContext context = new MirrorContext(options, null, null, null, null);
+
+        final RetryPolicy.Retry retry = context.getRetryPolicy().begin(RetryPolicy.Operation.GET, null);
+        assertTrue(retry.backoff(s3Exception(500, "InternalError")));
+        assertTrue(retry.backoff(s3Exception(500, "InternalError")));
+        assertFalse(retry.backoff(s3Exception(500, "InternalError")));
+        assertEquals(1, context.getStats().retryBudgetExhausted.get());
+
+        // a success refills the budget
+        retry.succeeded();
+        assertTrue(context.getRetryPolicy().begin(RetryPolicy.Operation.GET, null).backoff(s3Exception(500, "InternalError")));
+    }
+}
@@ -0,0 +1,86 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Mirrors between buckets of the LocalS3Stub while copies of a key fail, with --deferred-retry and --retry-pass. The
+ * errors are answered with status 400 and codes the SDK doesn't know, so it doesn't retry them on its own.
+ */
+public class RetryQueueTest extends StubMirrorTest {
+
+    private static final int KEYS = 20;
+
+    private File failureList;
+
+    @Before
+    public void setUp() throws Exception {
+        putKeys(SOURCE, "", KEYS);
+        failureList = File.createTempFile("RetryQueueTest", ".tsv");
+    }
+
+    @After
+    public void tearDown() {
+        if (!failureList.delete()) failureList.deleteOnExit();
+    }
+
+    @Test
+    public void testDeferredRetry() throws Exception {
+        stub.failRequests("PUT", "key-3", 400, "RequestThrottledException", 2);
+        final MirrorContext context = mirror(true, false);
+
+        assertFalse(context.hasErrors());
+        assertKeys(DESTINATION, "", KEYS);
+        // the job gives its thread back after every failure instead of retrying on it
+        assertEquals(2, context.getStats().deferredRetries.get());
+        assertEquals(0, context.getStats().retryPassKeys.get());
+    }
+
+    @Test
+    public void testRetryPass() throws Exception {
+        // as many failures as the job tries on its own
+        stub.failRequests("PUT", "key-5", 400, "ServiceUnavailable", 3);
+        final MirrorContext context = mirror(false, true);
+
+        assertFalse(context.hasErrors());
+        assertKeys(DESTINATION, "", KEYS);
+        assertEquals(1, context.getStats().retryPassKeys.get());
+        assertEquals(0, context.getStats().deferredRetries.get());
+    }
+
+    @Test
+    public void testGiveUp() throws Exception {
+        stub.failRequests("PUT", "key-7", 400, "ServiceUnavailable", Integer.MAX_VALUE);
+        final MirrorContext context = mirror(true, true);
+
+        assertEquals(1, context.getStats().copyErrors.get());
+        assertEquals(KEYS - 1, stub.bucket(DESTINATION).size());
+        assertFalse(stub.bucket(DESTINATION).containsKey("key-7"));
+        // deferred until the tries are used up, then once more in the retry pass
+        assertEquals(2, context.getStats().deferredRetries.get());
+        assertEquals(1, context.getStats().retryPassKeys.get());
+
+        final List<KeyObjectSummary> failures = FailureList.read(failureList, SOURCE);
+        assertEquals(1, failures.size());
+        assertEquals("key-7", failures.get(0).getKey());
+    }
+
+    private MirrorContext mirror(boolean deferredRetry, boolean retryPass) {
+        final MirrorMain main = newMain();
+        final MirrorOptions options = main.getOptions();
+        options.setMaxThreads(4);
+        options.setMaxRetries(3);
+        options.setRetryBaseDelay(1);
+        options.setRetryMaxDelay(10);
+        options.setDeferredRetry(deferredRetry);
+        options.setRetryPass(retryPass);
+        options.setFailureList(failureList.getPath());
+        return mirror(main, true);
+    }
+}
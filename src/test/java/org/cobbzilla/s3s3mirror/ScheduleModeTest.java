@@ -0,0 +1,88 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+
+import static org.cobbzilla.s3s3mirror.MirrorConstants.KB;
+import static org.cobbzilla.s3s3mirror.MirrorConstants.MB;
+import static org.junit.Assert.*;
+
+/**
+ * Submits jobs for keys of mixed sizes and ages to a lane with one thread while it's busy, and checks the order they
+ * run in for every ScheduleMode.
+ */
+public class ScheduleModeTest {
+
+    private static final Logger log = LoggerFactory.getLogger(ScheduleModeTest.class);
+
+    @Test
+    public void testOrder() throws Exception {
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), run(ScheduleMode.FIFO));
+        // b and d have the same size
+        assertEquals(Arrays.asList("b", "d", "c", "e", "a"), run(ScheduleMode.LARGEST_FIRST));
+        // e has no Last-Modified
+        assertEquals(Arrays.asList("c", "a", "d", "b", "e"), run(ScheduleMode.NEWEST_FIRST));
+    }
+
+    private List<String> run(ScheduleMode mode) throws Exception {
+        final MirrorOptions options = new MirrorOptions();
+        options.setMaxThreads(1);
+        options.setScheduleMode(mode);
+        final MirrorContext context = new MirrorContext(options, null, null, null, null);
+        final MirrorLanes lanes = new MirrorLanes(context);
+
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch busy = new CountDownLatch(1);
+        try {
+            // holds the only thread until all other jobs are waiting
+            lanes.submit(new RecordingJob(context, summary("busy", 0, null), order, busy));
+            lanes.submit(new RecordingJob(context, summary("a", KB, 3L), order, null));
+            lanes.submit(new RecordingJob(context, summary("b", 100 * MB, 1L), order, null));
+            lanes.submit(new RecordingJob(context, summary("c", 10 * MB, 4L), order, null));
+            lanes.submit(new RecordingJob(context, summary("d", 100 * MB, 2L), order, null));
+            lanes.submit(new RecordingJob(context, summary("e", 5 * KB, null), order, null));
+            busy.countDown();
+            while (!lanes.isIdle()) Thread.sleep(10);
+        } finally {
+            lanes.shutdown();
+        }
+        assertEquals("busy", order.remove(0));
+        return order;
+    }
+
+    private static KeyObjectSummary summary(String key, long size, Long lastModified) {
+        final KeyObjectSummary summary = new KeyObjectSummary();
+        summary.setKey(key);
+        summary.setSize(size);
+        if (lastModified != null) summary.setLastModified(new Date(lastModified));
+        return summary;
+    }
+
+    private static class RecordingJob extends KeyJob {
+        private final List<String> order;
+        private final CountDownLatch latch;
+
+        RecordingJob(MirrorContext context, KeyObjectSummary summary, List<String> order, CountDownLatch latch) {
+            super(context, summary, new JobSignal());
+            this.order = order;
+            this.latch = latch;
+        }
+
+        @Override public Logger getLog() { return log; }
+
+        @Override protected void countFailure() {}
+
+        @Override public void run() {
+            order.add(summary.getKey());
+            try {
+                if (latch != null) latch.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Mirrors between two profiles of the same LocalS3Stub endpoint.
+ */
+public class ServerSideCopyTest extends StubMirrorTest {
+
+    private static final int KEYS = 50;
+    private static final int THREADS = 4;
+
+    @Before
+    public void setUp() {
+        putKeys(SOURCE, "", KEYS);
+    }
+
+    private MirrorContext mirror() {
+        final MirrorMain main = newMain();
+        main.getOptions().setMaxThreads(THREADS);
+        main.getOptions().setMaxRetries(2);
+        final MirrorContext context = mirror(main);
+        assertKeys(DESTINATION, "", KEYS);
+        assertEquals(KEYS, context.getStats().objectsCopied.get());
+        assertEquals(0, context.getStats().copyErrors.get());
+        return context;
+    }
+
+    @Test
+    public void testCopiesOnServer() throws Exception {
+        final MirrorContext context = mirror();
+        assertEquals(KEYS, stub.getCopyRequests().get());
+        assertEquals(0, context.getStats().copyFallbacks.get());
+    }
+
+    @Test
+    public void testStreamsWhenDenied() throws Exception {
+        stub.denyCopy("stub-destination");
+        final MirrorContext context = mirror();
+        // the first denied copy turns server-side copies off, only the keys in flight at that time still try
+        assertTrue(stub.getCopyRequests().get() >= 1 && stub.getCopyRequests().get() <= THREADS);
+        assertEquals(stub.getCopyRequests().get(), context.getStats().copyFallbacks.get());
+    }
+
+    @Test
+    public void testSameEndpoint() {
+        final MirrorProfile source = new MirrorProfile();
+        source.setEndpoint("https://s3.example.com/");
+        final MirrorProfile destination = new MirrorProfile();
+        destination.setEndpoint("https://S3.example.com");
+        assertTrue(ServerSideCopy.isSameEndpoint(source, destination));
+
+        destination.setRegion("eu-west-1");
+        assertFalse(ServerSideCopy.isSameEndpoint(source, destination));
+
+        destination.setRegion(source.getRegion());
+        destination.setEndpoint("https://other.example.com");
+        assertFalse(ServerSideCopy.isSameEndpoint(source, destination));
+    }
+
+    @Test
+    public void testSameAwsEndpoint() {
+        final MirrorProfile source = new MirrorProfile();
+        final MirrorProfile destination = new MirrorProfile();
+        assertTrue(ServerSideCopy.isSameEndpoint(source, destination));
+
+        // the default region by its name
+        destination.setRegion("us-east-1");
+        assertTrue(ServerSideCopy.isSameEndpoint(source, destination));
+
+        destination.setRegion("eu-west-1");
+        assertFalse(ServerSideCopy.isSameEndpoint(source, destination));
+
+        destination.setRegion(source.getRegion());
+        destination.setEndpoint("https://s3.example.com");
+        assertFalse(ServerSideCopy.isSameEndpoint(source, destination));
+    }
+}
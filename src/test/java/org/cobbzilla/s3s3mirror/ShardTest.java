@@ -0,0 +1,147 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Splits a mirror into shards, in one process and in several processes against one LocalS3Stub.
+ */
+public class ShardTest extends StubMirrorTest {
+
+    private static final int KEYS = 60;
+    private static final int SHARDS = 3;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        putKeys(SOURCE, "data/", KEYS);
+        dir = Files.createTempDirectory("ShardTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testHashShards() {
+        final int[] counts = new int[4];
+        for (int i = 0; i < 1000; i++) {
+            final String key = "key-" + i;
+            int shards = 0;
+            for (int s = 0; s < 4; s++) {
+                if (new Shard(s, 4, null).contains(key)) {
+                    shards++;
+                    counts[s]++;
+                }
+            }
+            assertEquals(1, shards);
+            // one more shard only takes keys away from the others
+            final int before = Shard.hash(key, 4);
+            final int after = Shard.hash(key, 5);
+            assertTrue(after == before || after == 4);
+        }
+        for (int count : counts) assertTrue(count > 150);
+    }
+
+    @Test
+    public void testRangeShards() {
+        final List<String> splits = Arrays.asList("b", "d");
+        assertTrue(new Shard(0, 3, splits).contains("a"));
+        assertTrue(new Shard(0, 3, splits).contains("b"));
+        assertTrue(new Shard(1, 3, splits).contains("b0"));
+        assertTrue(new Shard(2, 3, splits).contains("x"));
+        assertFalse(new Shard(1, 3, splits).contains("e"));
+        // S3 lists in code point order, not in the order of UTF-16 chars
+        assertTrue(Shard.compareKeys("\uffff", "\ud83d\ude00") < 0);
+
+        try {
+            new Shard(0, 3, Arrays.asList("d", "b"));
+            fail("unsorted splits");
+        } catch (IllegalArgumentException expected) {}
+        try {
+            Shard.parse("3/3");
+            fail("shard out of range");
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    @Test
+    public void testRangeShardsListOwnKeys() throws Exception {
+        final List<String> splits = Shard.sampleSplits(stub.newContext(newMain(), "source/data/", DESTINATION, false), SHARDS);
+        final File splitsFile = new File(dir, "splits");
+        Shard.writeSplits(splitsFile, splits);
+        assertEquals(splits, Shard.readSplits(splitsFile));
+
+        long copied = 0;
+        for (int i = 0; i < SHARDS; i++) {
+            final MirrorMain main = newMain();
+            main.getOptions().setMaxThreads(2);
+            main.getOptions().setKeyShard(new Shard(i, SHARDS, splits));
+            final MirrorContext context = stub.newContext(main, "source/data/", DESTINATION, false);
+            new MirrorMaster(context).mirror();
+            copied += context.getStats().objectsCopied.get();
+            // the listing stops soon after the range of the shard
+            assertTrue(context.getStats().objectsRead.get() < KEYS / 2);
+        }
+        assertEquals(KEYS, copied);
+        assertEquals(KEYS, stub.bucket(DESTINATION).size());
+    }
+
+    @Test
+    public void testShardProcesses() throws Exception {
+        final File s3cfg = new File(dir, "s3cfg");
+        final List<String> config = new ArrayList<String>();
+        for (String profile : new String[]{"stub", "stub-destination"}) {
+            config.addAll(Arrays.asList("[" + profile + "]", "access_key = " + profile, "access_token = stub",
+                    "website_endpoint = " + stub.getEndpoint(), "options = PATH_STYLE_ACCESS"));
+        }
+        Files.write(s3cfg.toPath(), config, UTF_8);
+
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final List<Process> processes = new ArrayList<Process>();
+        final List<File> statsFiles = new ArrayList<File>();
+        for (int i = 0; i < SHARDS; i++) {
+            final File statsFile = new File(dir, "stats-" + i);
+            statsFiles.add(statsFile);
+            final ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    MirrorMain.class.getName(), "-Y", "stub", "-Z", "stub-destination", "-t", "2",
+                    MirrorOptions.LONGOPT_SHARD, i + "/" + SHARDS, MirrorOptions.LONGOPT_STATS_FILE, statsFile.getPath(),
+                    "source", "destination");
+            builder.environment().put("S3CFG", s3cfg.getPath());
+            builder.redirectErrorStream(true);
+            builder.redirectOutput(new File(dir, "shard-" + i + ".log"));
+            processes.add(builder.start());
+        }
+        for (Process process : processes) {
+            assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+            assertEquals(0, process.exitValue());
+        }
+
+        assertKeys(DESTINATION, "data/", KEYS);
+
+        final List<MirrorStats> stats = new ArrayList<MirrorStats>();
+        for (File statsFile : statsFiles) {
+            final MirrorStats shardStats = MirrorStats.read(statsFile);
+            assertTrue(shardStats.objectsCopied.get() < KEYS);
+            stats.add(shardStats);
+        }
+        final MirrorStats merged = MirrorStats.merge(stats);
+        assertEquals(KEYS, merged.objectsCopied.get());
+        assertEquals(SHARDS * KEYS, merged.objectsRead.get());
+        assertEquals(0, merged.copyErrors.get());
+    }
+}
@@ -0,0 +1,91 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+
+import java.security.MessageDigest;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Starts a LocalS3Stub before each test and stops it after, with helpers to fill its buckets, mirror the source bucket
+ * to the destination bucket and check what was mirrored. A subclass names its own @Before and @After methods
+ * differently, JUnit runs them after the start and before the stop of the stub.
+ */
+public abstract class StubMirrorTest {
+
+    protected static final String SOURCE = "source";
+    protected static final String DESTINATION = "destination";
+
+    protected LocalS3Stub stub;
+
+    /**
+     * @return the time the stub waits before it answers a request, in milliseconds
+     */
+    protected long getLatency() { return 0; }
+
+    @Before
+    public void startStub() throws Exception {
+        stub = new LocalS3Stub(getLatency());
+    }
+
+    @After
+    public void stopStub() { stub.stop(); }
+
+    /**
+     * Puts the keys prefix + "key-" + i with the content "value " + i, for i from 0 to count - 1.
+     */
+    protected void putKeys(String bucket, String prefix, int count) {
+        for (int i = 0; i < count; i++) {
+            stub.put(bucket, prefix + "key-" + i, ("value " + i).getBytes(UTF_8));
+        }
+    }
+
+    /**
+     * Asserts that the bucket has exactly the keys of putKeys, with their content.
+     */
+    protected void assertKeys(String bucket, String prefix, int count) {
+        final Map<String, LocalS3Stub.StubObject> objects = stub.bucket(bucket);
+        assertEquals(count, objects.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("value " + i, content(bucket, prefix + "key-" + i));
+        }
+    }
+
+    /**
+     * @return the content of the key as a string
+     */
+    protected String content(String bucket, String key) {
+        return new String(stub.bucket(bucket).get(key).getData(), UTF_8);
+    }
+
+    protected static MirrorMain newMain() { return new MirrorMain(new String[0]); }
+
+    /**
+     * @param sameProfile true to read and write with one profile, false for a profile of its own for the destination
+     */
+    protected MirrorContext newContext(MirrorMain main, boolean sameProfile) {
+        return stub.newContext(main, SOURCE, DESTINATION, sameProfile);
+    }
+
+    protected MirrorContext newContext(MirrorMain main) { return newContext(main, false); }
+
+    /**
+     * @return the context of the mirror, after it's done
+     */
+    protected MirrorContext mirror(MirrorMain main, boolean sameProfile) {
+        final MirrorContext context = newContext(main, sameProfile);
+        new MirrorMaster(context).mirror();
+        return context;
+    }
+
+    protected MirrorContext mirror(MirrorMain main) { return mirror(main, false); }
+
+    protected static String md5Hex(byte[] data) {
+        final MessageDigest digest = ContentDigest.newDigest();
+        digest.update(data);
+        return ContentDigest.toHex(digest);
+    }
+}
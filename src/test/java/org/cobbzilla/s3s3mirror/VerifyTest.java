@@ -0,0 +1,98 @@
+package org.cobbzilla.s3s3mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Verifies a mirror in buckets of the LocalS3Stub and repairs it with the report as a --key-list.
+ */
+public class VerifyTest extends StubMirrorTest {
+
+    private static final int KEYS = 50;
+
+    private File report;
+
+    @Before
+    public void setUp() throws Exception {
+        putKeys(SOURCE, "", KEYS);
+        putKeys(DESTINATION, "", KEYS);
+        stub.bucket(DESTINATION).remove("key-1");
+        stub.put(DESTINATION, "key-2", "resized value".getBytes(UTF_8));
+        stub.put(DESTINATION, "key-3", "value X".getBytes(UTF_8));
+        // bit rot: the stored ETag stays the one of the original content
+        stub.bucket(DESTINATION).get("key-4").getData()[0] ^= 1;
+        stub.put(DESTINATION, "extra", "extra".getBytes(UTF_8));
+        report = File.createTempFile("VerifyTest", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        if (!report.delete()) report.deleteOnExit();
+    }
+
+    @Test
+    public void testVerifyAndRepair() throws Exception {
+        final MirrorVerifier verifier = verify(0);
+        assertEquals(KEYS, verifier.getChecked().get());
+        assertEquals(1, verifier.getMissing().get());
+        assertEquals(1, verifier.getSizeMismatches().get());
+        // only the key with another ETag is read without a sample
+        assertEquals(1, verifier.getContentChecked().get());
+        assertEquals(1, verifier.getContentMismatches().get());
+        assertEquals(1, verifier.getExtra().get());
+        assertEquals(3, Files.readAllLines(report.toPath(), UTF_8).size());
+
+        final MirrorVerifier sampled = verify(1);
+        assertEquals(KEYS - 2, sampled.getContentChecked().get());
+        assertEquals(2, sampled.getContentMismatches().get());
+        final List<String> lines = Files.readAllLines(report.toPath(), UTF_8);
+        assertEquals(4, lines.size());
+        assertTrue(lines.contains("key-4\t7"));
+
+        final MirrorMain main = newMain();
+        main.getOptions().setKeyList(report.getPath());
+        final MirrorContext context = mirror(main);
+        assertFalse(context.hasErrors());
+        assertEquals(4, context.getStats().objectsCopied.get());
+
+        assertEquals(0, verify(1).getMismatches());
+        assertEquals(0, Files.readAllLines(report.toPath(), UTF_8).size());
+    }
+
+    private MirrorVerifier verify(double sample) throws Exception {
+        final MirrorMain main = newMain();
+        main.getOptions().setMaxThreads(4);
+        main.getOptions().setVerify(report.getPath());
+        main.getOptions().setVerifySample(sample);
+        final MirrorVerifier verifier = new MirrorVerifier(newContext(main));
+        verifier.verify(report);
+        return verifier;
+    }
+
+    @Test
+    public void testUnreadableKey() throws Exception {
+        stub.failRequests("GET", "key-5", 500, "InternalError", Integer.MAX_VALUE);
+        final MirrorMain main = newMain();
+        main.getOptions().setMaxThreads(4);
+        main.getOptions().setMaxRetries(2);
+        main.getOptions().setRetryBaseDelay(1);
+        main.getOptions().setVerify(report.getPath());
+        main.getOptions().setVerifySample(1);
+        final MirrorContext context = mirror(main);
+
+        // the other keys are verified, the unreadable one is repaired with them
+        assertTrue(context.hasErrors());
+        final List<String> lines = Files.readAllLines(report.toPath(), UTF_8);
+        assertEquals(5, lines.size());
+        assertTrue(lines.contains("key-5\t7"));
+        assertFalse(new File(report.getPath() + ".tmp").exists());
+    }
+}